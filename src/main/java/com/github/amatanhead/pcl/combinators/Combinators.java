@@ -41,7 +41,7 @@ public final class Combinators {
      * A parser which matches any token of the given type.
      */
     static public AST<Token> a(TokenKind tokenKind) {
-        return some(token -> token.getTokenKind() == tokenKind);
+        return oneOf(tokenKind);
     }
 
     /**
@@ -50,7 +50,24 @@ public final class Combinators {
      * Completely identical to {@link #a(TokenKind)} (except for name).
      */
     static public AST<Token> an(TokenKind tokenKind) {
-        return some(token -> token.getTokenKind() == tokenKind);
+        return oneOf(tokenKind);
+    }
+
+    /**
+     * A parser which matches any token of any of the given types.
+     * <p>
+     * Equivalent to `or(a(T1), a(T2), ...)`, but checks the token kind with a single lookup.
+     */
+    static public AST<Token> oneOf(TokenKind... tokenKinds) {
+        return new NKindSet(false, tokenKinds);
+    }
+
+    /**
+     * A parser which matches any token whose type is not among the given types. Note that, unless listed,
+     * the {@link TokenKind#EOF EOF} token is matched as well.
+     */
+    static public AST<Token> noneOf(TokenKind... tokenKinds) {
+        return new NKindSet(true, tokenKinds);
     }
 
     /**
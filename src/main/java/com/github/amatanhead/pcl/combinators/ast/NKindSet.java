@@ -0,0 +1,65 @@
+package com.github.amatanhead.pcl.combinators.ast;
+
+import com.github.amatanhead.pcl.token.TokenKind;
+
+import java.util.BitSet;
+
+/**
+ * AST node representing `oneOf` and `noneOf` parser combinators, i.e. a `some` node which matches a token
+ * iff its kind is (or is not) in the given set.
+ * <p>
+ * The set is kept as a bit set of {@link TokenKind#getId() token kind ids}, so compilers can turn it into a single
+ * bit test instead of a chain of predicates. Compilers which are not aware of this node can treat it as
+ * an ordinary {@link NSome} node.
+ *
+ * @see com.github.amatanhead.pcl.combinators.Combinators#oneOf(TokenKind...)
+ * @see com.github.amatanhead.pcl.combinators.Combinators#noneOf(TokenKind...)
+ * @see com.github.amatanhead.pcl.combinators.Combinators#a(TokenKind)
+ */
+public class NKindSet extends NSome {
+    private final BitSet kinds;
+    private final boolean negated;
+
+    /**
+     * @param negated if true, the node matches tokens whose kinds are not in the set.
+     * @param kinds   the set of token kinds.
+     */
+    public NKindSet(boolean negated, TokenKind... kinds) {
+        this(toBitSet(kinds), negated);
+    }
+
+    private NKindSet(BitSet kinds, boolean negated) {
+        super(token -> kinds.get(token.getTokenKind().getId()) != negated);
+
+        this.kinds = kinds;
+        this.negated = negated;
+    }
+
+    private static BitSet toBitSet(TokenKind... kinds) {
+        final BitSet bitSet = new BitSet();
+
+        for (TokenKind kind : kinds) {
+            bitSet.set(kind.getId());
+        }
+
+        return bitSet;
+    }
+
+    /**
+     * Get ids of the token kinds in the set. The returned bit set is a copy.
+     */
+    public BitSet getKinds() {
+        return (BitSet) kinds.clone();
+    }
+
+    public boolean isNegated() {
+        return negated;
+    }
+
+    /**
+     * Check whether this node matches tokens of the given kind.
+     */
+    public boolean matches(TokenKind tokenKind) {
+        return kinds.get(tokenKind.getId()) != negated;
+    }
+}
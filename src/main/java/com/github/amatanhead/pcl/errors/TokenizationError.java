@@ -7,12 +7,21 @@ public class TokenizationError extends ProcessingError {
     public final long row;
     public final long column;
 
+    /**
+     * Offset of the invalid input in chars, or -1 if it is unknown.
+     */
+    public final long offset;
+
     public TokenizationError() {
         this(0, 0);
     }
 
     public TokenizationError(long row, long column) {
-        this(makeMessage(row, column), row, column);
+        this(row, column, -1);
+    }
+
+    public TokenizationError(long row, long column, long offset) {
+        this(row < 0 ? "tokenization error at offset " + offset : makeMessage(row, column), row, column, offset);
     }
 
     public TokenizationError(String message) {
@@ -20,10 +29,15 @@ public class TokenizationError extends ProcessingError {
     }
 
     public TokenizationError(String message, long row, long column) {
+        this(message, row, column, -1);
+    }
+
+    public TokenizationError(String message, long row, long column, long offset) {
         super(message);
 
         this.row = row;
         this.column = column;
+        this.offset = offset;
     }
 
     static private String makeMessage(long row, long column) {
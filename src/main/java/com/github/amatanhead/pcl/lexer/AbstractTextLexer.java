@@ -5,8 +5,16 @@ import com.github.amatanhead.pcl.stream.TokenStream;
 
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 import static com.github.amatanhead.pcl.utils.Utils.streamreaderToString;
 
@@ -15,7 +23,16 @@ import static com.github.amatanhead.pcl.utils.Utils.streamreaderToString;
  * That includes the default encoding management, all conversions, standard constructors.
  */
 public abstract class AbstractTextLexer implements TextLexer {
-    private CharsetDecoder decoder;
+    /**
+     * Size of a chunk in which memory-mapped files are decoded, in chars.
+     */
+    private static final int MAPPED_CHUNK_SIZE = 1 << 16;
+
+    /**
+     * The default decoder. It is only used as a template: each call which decodes bytes gets its own decoder
+     * (see {@link #newDecoder()}), since decoders are stateful.
+     */
+    private volatile CharsetDecoder decoder;
 
     /**
      * Construct tokenizer using utf-8 as a default encoding.
@@ -84,9 +101,20 @@ public abstract class AbstractTextLexer implements TextLexer {
         return decoder.charset().name();
     }
 
+    /**
+     * Create a new decoder for the default encoding, configured the same way as the default decoder.
+     */
+    CharsetDecoder newDecoder() {
+        final CharsetDecoder decoder = this.decoder;
+        return decoder.charset().newDecoder()
+                .onMalformedInput(decoder.malformedInputAction())
+                .onUnmappableCharacter(decoder.unmappableCharacterAction())
+                .replaceWith(decoder.replacement());
+    }
+
     @Override
     public TokenStream tokenize(InputStream inputStream) throws java.io.IOException, TokenizationError {
-        return tokenize(inputStream, decoder);
+        return tokenize(inputStream, newDecoder());
     }
 
     @Override
@@ -109,6 +137,82 @@ public abstract class AbstractTextLexer implements TextLexer {
         return tokenize(streamreaderToString(inputStreamReader));
     }
 
+    @Override
+    public TokenStream tokenize(ReadableByteChannel channel, int bufferSize) {
+        return tokenize(channel, newDecoder(), bufferSize);
+    }
+
+    @Override
+    public TokenStream tokenize(ReadableByteChannel channel, CharsetDecoder decoder, int bufferSize) {
+        return tokenize(Channels.newReader(channel, decoder, -1), bufferSize);
+    }
+
+    @Override
+    public TokenStream tokenize(Path path) throws java.io.IOException, TokenizationError {
+        return tokenize(path, newDecoder());
+    }
+
+    @Override
+    public TokenStream tokenize(Path path, Charset charset) throws java.io.IOException, TokenizationError {
+        return tokenize(path, charset.newDecoder());
+    }
+
+    @Override
+    public TokenStream tokenize(FileChannel channel) throws java.io.IOException, TokenizationError {
+        return tokenize(channel, newDecoder());
+    }
+
+    @Override
+    public TokenStream tokenize(FileChannel channel, Charset charset) throws java.io.IOException, TokenizationError {
+        return tokenize(channel, charset.newDecoder());
+    }
+
+    private TokenStream tokenize(Path path, CharsetDecoder decoder) throws java.io.IOException, TokenizationError {
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        boolean owned = false;
+
+        try {
+            final TokenStream stream = tokenize(channel, decoder);
+
+            // A mapping stays valid after the channel is closed, but a file which is too large to be mapped
+            // is read through the channel, and the stream closes it at the end of the file.
+            owned = channel.size() > Integer.MAX_VALUE;
+
+            return stream;
+        } finally {
+            if (!owned) {
+                channel.close();
+            }
+        }
+    }
+
+    private TokenStream tokenize(FileChannel channel, CharsetDecoder decoder) throws java.io.IOException, TokenizationError {
+        final long position = channel.position();
+        final long size = channel.size() - position;
+
+        if (size > Integer.MAX_VALUE) {
+            return tokenize((ReadableByteChannel) channel, decoder, MAPPED_CHUNK_SIZE);
+        }
+
+        final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        final Charset charset = decoder.charset();
+
+        // ISO-8859-1 has no malformed input. US-ASCII chars can only be read directly if the decoder
+        // replaces malformed input the same way the direct view does.
+        if (charset.equals(StandardCharsets.ISO_8859_1) || charset.equals(StandardCharsets.US_ASCII)
+                && decoder.malformedInputAction() == CodingErrorAction.REPLACE
+                && decoder.replacement().equals(String.valueOf(ByteCharSequence.REPLACEMENT))) {
+            return tokenize(new ByteCharSequence(buffer, charset.equals(StandardCharsets.US_ASCII)));
+        }
+
+        return tokenize(new ByteBufferReader(buffer, decoder), MAPPED_CHUNK_SIZE);
+    }
+
     @Override
     public abstract TokenStream tokenize(String text) throws TokenizationError;
+
+    @Override
+    public TokenStream tokenize(CharSequence text) throws TokenizationError {
+        return tokenize(text.toString());
+    }
 }
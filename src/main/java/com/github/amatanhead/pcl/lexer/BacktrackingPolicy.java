@@ -0,0 +1,27 @@
+package com.github.amatanhead.pcl.lexer;
+
+/**
+ * What a lexer does with regexp rules which may backtrack catastrophically, i.e. take time exponential
+ * in the length of the input on some texts (see {@link RegexpTextLexer#setBacktrackingPolicy(BacktrackingPolicy)}).
+ * <p>
+ * Typical examples are nested repetitions such as `(a+)+` or `(\w+\s?)*`, and repetitions of alternations whose
+ * branches can start with the same char, such as `(\\.|[^"])*`. Analysis is conservative: it may flag patterns
+ * which are harmless in practice. Patterns which use flags or constructs unknown to the analyser are not flagged.
+ */
+public enum BacktrackingPolicy {
+    /**
+     * Don't analyse patterns.
+     */
+    ALLOW,
+
+    /**
+     * Report dangerous patterns to the {@link RegexpTextLexer#setWarningHandler(java.util.function.Consumer)
+     * warning handler} and register them anyway.
+     */
+    WARN,
+
+    /**
+     * Refuse to register dangerous patterns: registration throws an {@link IllegalArgumentException}.
+     */
+    REJECT
+}
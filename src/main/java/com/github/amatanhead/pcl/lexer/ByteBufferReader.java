@@ -0,0 +1,93 @@
+package com.github.amatanhead.pcl.lexer;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * A reader which decodes a byte buffer on demand, as much as the caller asks for.
+ * <p>
+ * Used to lex memory-mapped files in multi-byte encodings chunk by chunk (see {@link CharWindow}), so that
+ * the file is never decoded into a single string.
+ */
+final class ByteBufferReader extends Reader {
+    private final ByteBuffer buffer;
+    private final CharsetDecoder decoder;
+    private boolean flushed;
+    private boolean hasPending;
+    private char pending;
+
+    /**
+     * Create a reader of the buffer's contents between its position and limit.
+     *
+     * @param buffer  buffer to be read. The reader consumes it, i.e. moves its position.
+     * @param decoder decoder to be used. It will be reset.
+     */
+    ByteBufferReader(ByteBuffer buffer, CharsetDecoder decoder) {
+        this.buffer = buffer;
+        this.decoder = decoder;
+        this.flushed = false;
+        this.hasPending = false;
+
+        decoder.reset();
+    }
+
+    @Override
+    public int read(char[] chars, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        if (hasPending) {
+            chars[offset] = pending;
+            hasPending = false;
+            return 1;
+        }
+
+        if (length == 1) {
+            // A single byte sequence may decode to a surrogate pair, so decode into a larger buffer
+            // and keep the second char for the next call.
+            final char[] pair = new char[2];
+            final int read = read(pair, 0, 2);
+            if (read < 0) {
+                return -1;
+            }
+            chars[offset] = pair[0];
+            if (read == 2) {
+                pending = pair[1];
+                hasPending = true;
+            }
+            return 1;
+        }
+
+        final CharBuffer out = CharBuffer.wrap(chars, offset, length);
+
+        while (out.position() == offset && !flushed) {
+            CoderResult result = decoder.decode(buffer, out, true);
+            if (result.isError()) {
+                result.throwException();
+            }
+
+            if (result.isUnderflow()) {
+                result = decoder.flush(out);
+                if (result.isUnderflow()) {
+                    flushed = true;
+                }
+            }
+
+            if (result.isOverflow() && out.position() == offset) {
+                throw new IOException("read buffer is too small to hold a decoded char sequence");
+            }
+        }
+
+        return out.position() == offset ? -1 : out.position() - offset;
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close, the mapping is released by the garbage collector.
+    }
+}
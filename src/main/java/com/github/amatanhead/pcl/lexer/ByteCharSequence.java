@@ -0,0 +1,77 @@
+package com.github.amatanhead.pcl.lexer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A char sequence view of a byte buffer in a single-byte encoding, namely ISO-8859-1 or US-ASCII.
+ * <p>
+ * Chars are read from the buffer directly, without decoding the whole text first. In the US-ASCII mode,
+ * bytes outside of the ASCII range are read as the replacement char `\uFFFD`.
+ * <p>
+ * The buffer must not be modified while this sequence is in use.
+ */
+final class ByteCharSequence implements CharSequence {
+    static final char REPLACEMENT = '\uFFFD';
+
+    private final ByteBuffer buffer;
+    private final int offset;
+    private final int length;
+    private final boolean ascii;
+
+    /**
+     * Create a view of the buffer's contents between its position and limit.
+     *
+     * @param buffer buffer to be viewed.
+     * @param ascii  true for US-ASCII, false for ISO-8859-1.
+     */
+    ByteCharSequence(ByteBuffer buffer, boolean ascii) {
+        this(buffer, buffer.position(), buffer.remaining(), ascii);
+    }
+
+    private ByteCharSequence(ByteBuffer buffer, int offset, int length, boolean ascii) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        this.ascii = ascii;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + " is out of range");
+        }
+
+        final byte b = buffer.get(offset + index);
+
+        if (ascii && b < 0) {
+            return REPLACEMENT;
+        }
+
+        return (char) (b & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || start > end || end > length) {
+            throw new IndexOutOfBoundsException("range " + start + ".." + end + " is out of range");
+        }
+
+        return new ByteCharSequence(buffer, offset + start, end - start, ascii);
+    }
+
+    @Override
+    public String toString() {
+        final char[] chars = new char[length];
+
+        for (int i = 0; i < length; i++) {
+            chars[i] = charAt(i);
+        }
+
+        return new String(chars);
+    }
+}
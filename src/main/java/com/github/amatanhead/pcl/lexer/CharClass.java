@@ -0,0 +1,56 @@
+package com.github.amatanhead.pcl.lexer;
+
+/**
+ * A set of chars optimized for scanning runs of its members.
+ * <p>
+ * ASCII members are kept in a 128-bit mask, so that the check of an ASCII char is a shift and a bit test;
+ * other chars are looked up in the original {@link CharRanges}.
+ */
+final class CharClass {
+    private final CharRanges ranges;
+    private final long low;
+    private final long high;
+
+    CharClass(CharRanges ranges) {
+        this.ranges = ranges;
+
+        long low = 0;
+        long high = 0;
+        for (int c = 0; c < 64; c++) {
+            if (ranges.contains(c)) {
+                low |= 1L << c;
+            }
+            if (ranges.contains(c + 64)) {
+                high |= 1L << c;
+            }
+        }
+
+        this.low = low;
+        this.high = high;
+    }
+
+    boolean contains(char c) {
+        if (c < 64) {
+            return (low & (1L << c)) != 0;
+        } else if (c < 128) {
+            return (high & (1L << c)) != 0;
+        } else {
+            return ranges.contains(c);
+        }
+    }
+
+    /**
+     * Skip members of this class in `text[from, to)`.
+     *
+     * @return offset of the first char which is not a member of this class, or `to`.
+     */
+    int skip(CharSequence text, int from, int to) {
+        int i = from;
+
+        while (i < to && contains(text.charAt(i))) {
+            i += 1;
+        }
+
+        return i;
+    }
+}
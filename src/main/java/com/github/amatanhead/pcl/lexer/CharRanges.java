@@ -0,0 +1,159 @@
+package com.github.amatanhead.pcl.lexer;
+
+import java.util.Arrays;
+
+/**
+ * An immutable set of chars represented as a sorted list of disjoint, non-adjacent inclusive ranges.
+ */
+final class CharRanges {
+    static final CharRanges EMPTY = new CharRanges(new int[0]);
+    static final CharRanges ALL = new CharRanges(new int[]{Character.MIN_VALUE, Character.MAX_VALUE});
+
+    /**
+     * Range bounds: `lo0, hi0, lo1, hi1, ...`.
+     */
+    private final int[] bounds;
+
+    private CharRanges(int[] bounds) {
+        this.bounds = bounds;
+    }
+
+    /**
+     * A set containing a single char.
+     */
+    static CharRanges of(int c) {
+        return new CharRanges(new int[]{c, c});
+    }
+
+    /**
+     * A set containing all chars from `lo` to `hi` inclusive.
+     */
+    static CharRanges of(int lo, int hi) {
+        if (lo > hi) {
+            throw new IllegalArgumentException("illegal char range");
+        }
+
+        return new CharRanges(new int[]{lo, hi});
+    }
+
+    /**
+     * Number of ranges in this set.
+     */
+    int size() {
+        return bounds.length / 2;
+    }
+
+    /**
+     * Lower bound of the i-th range.
+     */
+    int lo(int i) {
+        return bounds[2 * i];
+    }
+
+    /**
+     * Upper bound of the i-th range (inclusive).
+     */
+    int hi(int i) {
+        return bounds[2 * i + 1];
+    }
+
+    boolean isEmpty() {
+        return bounds.length == 0;
+    }
+
+    boolean contains(int c) {
+        for (int i = 0; i < bounds.length; i += 2) {
+            if (c < bounds[i]) {
+                return false;
+            } else if (c <= bounds[i + 1]) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    CharRanges union(CharRanges other) {
+        if (other.isEmpty()) {
+            return this;
+        } else if (isEmpty()) {
+            return other;
+        }
+
+        // Sort all ranges by their lower bound, then merge overlapping and adjacent ones.
+        final int n = size() + other.size();
+        final long[] ranges = new long[n];
+        for (int i = 0; i < size(); i++) {
+            ranges[i] = ((long) lo(i) << 32) | hi(i);
+        }
+        for (int i = 0; i < other.size(); i++) {
+            ranges[size() + i] = ((long) other.lo(i) << 32) | other.hi(i);
+        }
+        Arrays.sort(ranges);
+
+        final int[] merged = new int[2 * n];
+        int count = 0;
+        for (long range : ranges) {
+            final int lo = (int) (range >>> 32);
+            final int hi = (int) range;
+            if (count > 0 && lo <= merged[count - 1] + 1) {
+                merged[count - 1] = Math.max(merged[count - 1], hi);
+            } else {
+                merged[count++] = lo;
+                merged[count++] = hi;
+            }
+        }
+
+        return new CharRanges(Arrays.copyOf(merged, count));
+    }
+
+    boolean intersects(CharRanges other) {
+        int i = 0;
+        int j = 0;
+
+        while (i < size() && j < other.size()) {
+            if (hi(i) < other.lo(j)) {
+                i += 1;
+            } else if (other.hi(j) < lo(i)) {
+                j += 1;
+            } else {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    CharRanges complement() {
+        final int[] result = new int[bounds.length + 2];
+        int count = 0;
+        int next = Character.MIN_VALUE;
+
+        for (int i = 0; i < bounds.length; i += 2) {
+            if (bounds[i] > next) {
+                result[count++] = next;
+                result[count++] = bounds[i] - 1;
+            }
+            next = bounds[i + 1] + 1;
+        }
+
+        if (next <= Character.MAX_VALUE) {
+            result[count++] = next;
+            result[count++] = Character.MAX_VALUE;
+        }
+
+        return new CharRanges(Arrays.copyOf(result, count));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return Arrays.equals(bounds, ((CharRanges) o).bounds);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bounds);
+    }
+}
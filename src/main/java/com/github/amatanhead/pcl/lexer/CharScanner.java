@@ -0,0 +1,43 @@
+package com.github.amatanhead.pcl.lexer;
+
+/**
+ * A hand-written matcher for a lexer rule, an alternative to a regexp.
+ * <p>
+ * A scanner looks at the text starting at the given offset and tells where its match ends. Scanners are registered
+ * in a {@link RegexpTextLexer} along with regexp rules (see {@link RegexpTextLexer#addRule(CharScanner,
+ * com.github.amatanhead.pcl.token.TokenKind)}) and follow the same order of registration. Ready-made scanners
+ * for the most common tokens can be found in {@link CharScanners}.
+ * <p>
+ * Scanners must be stateless (or at least thread-safe), since a single scanner is shared by all token streams
+ * of a lexer.
+ */
+@FunctionalInterface
+public interface CharScanner {
+    /**
+     * Returned by {@link #scan(CharSequence, int)} if the text doesn't match.
+     */
+    int NO_MATCH = -1;
+
+    /**
+     * Match the text starting at the given offset.
+     * <p>
+     * When lexing a stream (see {@link TextLexer#tokenize(java.io.Reader, int)}), the text is a window over
+     * the stream. If the scanner reads the last char of the window or matches up to its end, the lexer assumes
+     * that more text could change the result, reads it and calls the scanner again.
+     *
+     * @param text  text to be matched.
+     * @param start offset of the first char to be matched, less than the length of the text.
+     * @return the offset of the char following the match, which must be greater than `start`, or {@link #NO_MATCH}.
+     */
+    int scan(CharSequence text, int start);
+
+    /**
+     * Check whether a match can start with the given char.
+     * <p>
+     * The lexer uses this method to skip the scanner without calling {@link #scan(CharSequence, int)}.
+     * It must return true if unsure; the default implementation always does.
+     */
+    default boolean canStartWith(char c) {
+        return true;
+    }
+}
@@ -0,0 +1,436 @@
+package com.github.amatanhead.pcl.lexer;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Ready-made {@link CharScanner scanners} for the most common tokens.
+ * <p>
+ * Each scanner matches exactly what the regexp given in its description matches, but does it in a single pass
+ * over the token without backtracking. ASCII chars are classified with lookup tables, and delimiters are searched
+ * for with {@link String#indexOf(String, int)} when the text is a string.
+ */
+public final class CharScanners {
+    private static final int ASCII = 128;
+
+    private static final boolean[] DIGIT = table("0123456789");
+    private static final boolean[] HEX_DIGIT = table("0123456789abcdefABCDEF");
+
+    private static final CharScanner IDENTIFIER = identifier(
+            c -> c < ASCII && (Character.isLetter(c) || c == '_'),
+            c -> c < ASCII && (Character.isLetterOrDigit(c) || c == '_'));
+
+    private static final CharScanner WHITESPACE = whitespace(" \t\n\u000B\f\r");
+
+    /**
+     * Protect constructor since this is a static-only class.
+     */
+    protected CharScanners() {
+    }
+
+    /**
+     * A scanner for ASCII identifiers, `[a-zA-Z_][a-zA-Z_0-9]*`.
+     */
+    static public CharScanner identifier() {
+        return IDENTIFIER;
+    }
+
+    /**
+     * A scanner for identifiers with the given char classes, i.e. a char which satisfies the `start` predicate
+     * followed by any number of chars which satisfy the `part` predicate. For example,
+     * `identifier(Character::isJavaIdentifierStart, Character::isJavaIdentifierPart)` scans Java identifiers.
+     * <p>
+     * Predicates are evaluated once for all ASCII chars when the scanner is created, and on each non-ASCII char.
+     */
+    static public CharScanner identifier(IntPredicate start, IntPredicate part) {
+        final boolean[] startTable = table(start);
+        final boolean[] partTable = table(part);
+
+        return new CharScanner() {
+            @Override
+            public int scan(CharSequence text, int offset) {
+                if (!test(startTable, start, text.charAt(offset))) {
+                    return NO_MATCH;
+                }
+
+                final int length = text.length();
+                int i = offset + 1;
+                while (i < length && test(partTable, part, text.charAt(i))) {
+                    i += 1;
+                }
+
+                return i;
+            }
+
+            @Override
+            public boolean canStartWith(char c) {
+                return test(startTable, start, c);
+            }
+        };
+    }
+
+    /**
+     * A scanner for decimal integers, `[0-9]+`.
+     */
+    static public CharScanner integer() {
+        return new CharScanner() {
+            @Override
+            public int scan(CharSequence text, int start) {
+                final int end = skip(DIGIT, text, start);
+                return end > start ? end : NO_MATCH;
+            }
+
+            @Override
+            public boolean canStartWith(char c) {
+                return isDigit(c);
+            }
+        };
+    }
+
+    /**
+     * A scanner for hexadecimal integers, `0[xX][0-9a-fA-F]+`.
+     */
+    static public CharScanner hexInteger() {
+        return new CharScanner() {
+            @Override
+            public int scan(CharSequence text, int start) {
+                if (text.charAt(start) != '0' || start + 1 == text.length()) {
+                    return NO_MATCH;
+                }
+
+                final char x = text.charAt(start + 1);
+                if (x != 'x' && x != 'X') {
+                    return NO_MATCH;
+                }
+
+                final int end = skip(HEX_DIGIT, text, start + 2);
+                return end > start + 2 ? end : NO_MATCH;
+            }
+
+            @Override
+            public boolean canStartWith(char c) {
+                return c == '0';
+            }
+        };
+    }
+
+    /**
+     * A scanner for decimal numbers with an optional fraction and exponent, `[0-9]+(\.[0-9]+)?([eE][+-]?[0-9]+)?`.
+     */
+    static public CharScanner number() {
+        return new CharScanner() {
+            @Override
+            public int scan(CharSequence text, int start) {
+                int end = skip(DIGIT, text, start);
+                if (end == start) {
+                    return NO_MATCH;
+                }
+
+                final int length = text.length();
+
+                if (end < length && text.charAt(end) == '.') {
+                    if (end + 1 < length && isDigit(text.charAt(end + 1))) {
+                        end = skip(DIGIT, text, end + 2);
+                    }
+                }
+
+                if (end < length && (text.charAt(end) == 'e' || text.charAt(end) == 'E')) {
+                    int i = end + 1;
+                    if (i < length && (text.charAt(i) == '+' || text.charAt(i) == '-')) {
+                        i += 1;
+                    }
+                    if (i < length && isDigit(text.charAt(i))) {
+                        end = skip(DIGIT, text, i + 1);
+                    }
+                }
+
+                return end;
+            }
+
+            @Override
+            public boolean canStartWith(char c) {
+                return isDigit(c);
+            }
+        };
+    }
+
+    /**
+     * A scanner for C-style string literals, `"(\\[^\n]|[^"\\\n])*"`.
+     * <p>
+     * A backslash escapes any char except a line break; escapes are not validated.
+     */
+    static public CharScanner cString() {
+        return quoted('"');
+    }
+
+    /**
+     * A scanner for C-style literals enclosed in the given quote char, e.g. `quoted('\'')` for char literals.
+     * See {@link #cString()}.
+     */
+    static public CharScanner quoted(char quote) {
+        return new CharScanner() {
+            @Override
+            public int scan(CharSequence text, int start) {
+                if (text.charAt(start) != quote) {
+                    return NO_MATCH;
+                }
+
+                final int length = text.length();
+
+                for (int i = start + 1; i < length; i++) {
+                    final char c = text.charAt(i);
+
+                    if (c == quote) {
+                        return i + 1;
+                    } else if (c == '\n') {
+                        return NO_MATCH;
+                    } else if (c == '\\') {
+                        i += 1;
+                        if (i == length || text.charAt(i) == '\n') {
+                            return NO_MATCH;
+                        }
+                    }
+                }
+
+                return NO_MATCH;
+            }
+
+            @Override
+            public boolean canStartWith(char c) {
+                return c == quote;
+            }
+        };
+    }
+
+    /**
+     * A scanner for JSON strings, `"([^"\\\x00-\x1F]|\\(["\\/bfnrt]|u[0-9a-fA-F]{4}))*"`.
+     */
+    static public CharScanner jsonString() {
+        return new CharScanner() {
+            @Override
+            public int scan(CharSequence text, int start) {
+                if (text.charAt(start) != '"') {
+                    return NO_MATCH;
+                }
+
+                final int length = text.length();
+
+                for (int i = start + 1; i < length; i++) {
+                    final char c = text.charAt(i);
+
+                    if (c == '"') {
+                        return i + 1;
+                    } else if (c < 0x20) {
+                        return NO_MATCH;
+                    } else if (c == '\\') {
+                        if (i + 1 == length) {
+                            return NO_MATCH;
+                        }
+
+                        switch (text.charAt(i + 1)) {
+                            case '"':
+                            case '\\':
+                            case '/':
+                            case 'b':
+                            case 'f':
+                            case 'n':
+                            case 'r':
+                            case 't':
+                                i += 1;
+                                break;
+                            case 'u':
+                                for (int j = i + 2; j < i + 6; j++) {
+                                    if (j == length || !isHexDigit(text.charAt(j))) {
+                                        return NO_MATCH;
+                                    }
+                                }
+                                i += 5;
+                                break;
+                            default:
+                                return NO_MATCH;
+                        }
+                    }
+                }
+
+                return NO_MATCH;
+            }
+
+            @Override
+            public boolean canStartWith(char c) {
+                return c == '"';
+            }
+        };
+    }
+
+    /**
+     * A scanner for comments which start with the given prefix and last until the end of the line,
+     * e.g. `lineComment("//")`. The line break itself is not included in the match.
+     *
+     * @throws IllegalArgumentException the prefix is empty.
+     */
+    static public CharScanner lineComment(String prefix) {
+        checkDelimiter(prefix);
+
+        return new CharScanner() {
+            @Override
+            public int scan(CharSequence text, int start) {
+                if (!startsWith(text, start, prefix)) {
+                    return NO_MATCH;
+                }
+
+                final int length = text.length();
+                int i = start + prefix.length();
+                while (i < length && text.charAt(i) != '\n') {
+                    i += 1;
+                }
+
+                return i;
+            }
+
+            @Override
+            public boolean canStartWith(char c) {
+                return c == prefix.charAt(0);
+            }
+        };
+    }
+
+    /**
+     * A scanner for comments enclosed in the given delimiters, e.g. `blockComment("/*", "*&#47;")`.
+     * Comments don't nest, and unterminated comments don't match.
+     *
+     * @throws IllegalArgumentException some delimiter is empty.
+     */
+    static public CharScanner blockComment(String open, String close) {
+        checkDelimiter(open);
+        checkDelimiter(close);
+
+        return new CharScanner() {
+            @Override
+            public int scan(CharSequence text, int start) {
+                if (!startsWith(text, start, open)) {
+                    return NO_MATCH;
+                }
+
+                if (text instanceof String) {
+                    // A vectorized search for the closing delimiter.
+                    final int i = ((String) text).indexOf(close, start + open.length());
+                    return i < 0 ? NO_MATCH : i + close.length();
+                }
+
+                final int length = text.length();
+                final char first = close.charAt(0);
+
+                for (int i = start + open.length(); i < length; i++) {
+                    if (text.charAt(i) == first && startsWith(text, i, close)) {
+                        return i + close.length();
+                    }
+                }
+
+                return NO_MATCH;
+            }
+
+            @Override
+            public boolean canStartWith(char c) {
+                return c == open.charAt(0);
+            }
+        };
+    }
+
+    /**
+     * A scanner for runs of whitespaces, `\s+` (that is, `[ \t\n\x0B\f\r]+`).
+     */
+    static public CharScanner whitespace() {
+        return WHITESPACE;
+    }
+
+    /**
+     * A scanner for runs of the given ASCII chars.
+     *
+     * @throws IllegalArgumentException some of the chars are not ASCII.
+     */
+    static public CharScanner whitespace(String chars) {
+        for (int i = 0; i < chars.length(); i++) {
+            if (chars.charAt(i) >= ASCII) {
+                throw new IllegalArgumentException("char '" + chars.charAt(i) + "' is not an ASCII char");
+            }
+        }
+
+        final boolean[] table = table(chars);
+
+        return new CharScanner() {
+            @Override
+            public int scan(CharSequence text, int start) {
+                final int end = skip(table, text, start);
+                return end > start ? end : NO_MATCH;
+            }
+
+            @Override
+            public boolean canStartWith(char c) {
+                return c < ASCII && table[c];
+            }
+        };
+    }
+
+    private static boolean[] table(String chars) {
+        return table(c -> chars.indexOf(c) >= 0);
+    }
+
+    private static boolean[] table(IntPredicate predicate) {
+        final boolean[] table = new boolean[ASCII];
+
+        for (int c = 0; c < ASCII; c++) {
+            table[c] = predicate.test(c);
+        }
+
+        return table;
+    }
+
+    private static boolean test(boolean[] table, IntPredicate predicate, char c) {
+        return c < ASCII ? table[c] : predicate.test(c);
+    }
+
+    private static boolean isDigit(char c) {
+        return c < ASCII && DIGIT[c];
+    }
+
+    private static boolean isHexDigit(char c) {
+        return c < ASCII && HEX_DIGIT[c];
+    }
+
+    /**
+     * Skip ASCII chars from the table, starting at the given offset.
+     *
+     * @return offset of the first char which is not in the table, or the length of the text.
+     */
+    private static int skip(boolean[] table, CharSequence text, int start) {
+        final int length = text.length();
+        int i = start;
+
+        while (i < length) {
+            final char c = text.charAt(i);
+            if (c >= ASCII || !table[c]) {
+                break;
+            }
+            i += 1;
+        }
+
+        return i;
+    }
+
+    private static boolean startsWith(CharSequence text, int start, String prefix) {
+        final int length = text.length();
+
+        for (int i = 0; i < prefix.length(); i++) {
+            if (start + i == length || text.charAt(start + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static void checkDelimiter(String delimiter) {
+        if (delimiter.isEmpty()) {
+            throw new IllegalArgumentException("delimiter must not be empty");
+        }
+    }
+}
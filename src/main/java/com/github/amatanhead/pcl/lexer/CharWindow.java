@@ -0,0 +1,207 @@
+package com.github.amatanhead.pcl.lexer;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+
+/**
+ * A sliding window over the text read from a {@link Reader}.
+ * <p>
+ * The window holds a contiguous part of the text in a char buffer. Indices of this char sequence are relative
+ * to the beginning of the buffer. When more text is needed, the window drops the chars which are no longer
+ * needed, moves the rest to the beginning of the buffer and reads more. If not enough can be dropped, the buffer
+ * grows, so a single token may be longer than the initial buffer size. Thus, the memory used by the window
+ * is bounded by the buffer size and the length of the longest token, not by the length of the text.
+ * <p>
+ * A window may also be created without a reader, in which case the text is pushed into it with
+ * {@link #append(CharBuffer, int)} (see {@link PushLexer}), and {@link #fill(int)} reads nothing until the window
+ * is {@link #finish() finished}.
+ */
+final class CharWindow implements CharSequence {
+    private final Reader reader;
+    private char[] buffer;
+    private int length;
+    private long offset;
+    private boolean exhausted;
+
+    /**
+     * Create a new window. Nothing is read until the first {@link #fill(int)}.
+     *
+     * @param reader     source of the text.
+     * @param bufferSize initial size of the buffer.
+     * @throws IllegalArgumentException buffer size is not positive.
+     */
+    CharWindow(Reader reader, int bufferSize) {
+        if (reader == null) {
+            throw new NullPointerException("reader must not be null");
+        }
+
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("buffer size must be positive");
+        }
+
+        this.reader = reader;
+        this.buffer = new char[bufferSize];
+        this.length = 0;
+        this.offset = 0;
+        this.exhausted = false;
+    }
+
+    /**
+     * Create a new window which is filled by {@link #append(CharBuffer, int)}.
+     *
+     * @param bufferSize initial size of the buffer.
+     * @throws IllegalArgumentException buffer size is not positive.
+     */
+    CharWindow(int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("buffer size must be positive");
+        }
+
+        this.reader = null;
+        this.buffer = new char[bufferSize];
+        this.length = 0;
+        this.offset = 0;
+        this.exhausted = false;
+    }
+
+    /**
+     * Check whether the whole text has been read.
+     */
+    boolean isExhausted() {
+        return exhausted;
+    }
+
+    /**
+     * Offset of the beginning of this window in the text.
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Current size of the buffer.
+     */
+    int getCapacity() {
+        return buffer.length;
+    }
+
+    /**
+     * Read more text into the window.
+     * <p>
+     * The chars before `keep` may be dropped to make room for the new ones. The reader is closed once
+     * it is exhausted.
+     *
+     * @param keep index of the first char which must be kept in the window.
+     * @return number of chars the window was shifted by, i.e. the char which had index `i` now has
+     * index `i - shift`.
+     * @throws IOException if an I/O error occurs.
+     */
+    int fill(int keep) throws IOException {
+        if (exhausted || reader == null) {
+            return 0;
+        }
+
+        int shift = 0;
+
+        if (length == buffer.length) {
+            // Shift the window if this frees at least half of the buffer, otherwise the current token
+            // takes up most of the buffer, and it's cheaper to grow it.
+            if (keep >= buffer.length / 2 && keep > 0) {
+                System.arraycopy(buffer, keep, buffer, 0, length - keep);
+                length -= keep;
+                offset += keep;
+                shift = keep;
+            } else {
+                final char[] grown = new char[buffer.length * 2];
+                System.arraycopy(buffer, 0, grown, 0, length);
+                buffer = grown;
+            }
+        }
+
+        final int read = reader.read(buffer, length, buffer.length - length);
+
+        if (read < 0) {
+            exhausted = true;
+            reader.close();
+        } else {
+            length += read;
+        }
+
+        return shift;
+    }
+
+    /**
+     * Append the remaining chars of the given buffer to the window of a pushed text.
+     * <p>
+     * The chars before `keep` may be dropped to make room for the new ones.
+     *
+     * @param chars chars to be appended. The window consumes them, i.e. moves the buffer's position.
+     * @param keep  index of the first char which must be kept in the window.
+     * @return number of chars the window was shifted by, see {@link #fill(int)}.
+     * @throws IllegalStateException the window reads from a reader, or it's already finished.
+     */
+    int append(CharBuffer chars, int keep) {
+        if (reader != null || exhausted) {
+            throw new IllegalStateException("can't append to this window");
+        }
+
+        final int count = chars.remaining();
+        int shift = 0;
+
+        if (length + count > buffer.length) {
+            if (keep > 0) {
+                System.arraycopy(buffer, keep, buffer, 0, length - keep);
+                length -= keep;
+                offset += keep;
+                shift = keep;
+            }
+
+            if (length + count > buffer.length) {
+                final char[] grown = new char[Math.max(buffer.length * 2, length + count)];
+                System.arraycopy(buffer, 0, grown, 0, length);
+                buffer = grown;
+            }
+        }
+
+        chars.get(buffer, length, count);
+        length += count;
+
+        return shift;
+    }
+
+    /**
+     * Mark the end of a pushed text.
+     */
+    void finish() {
+        exhausted = true;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + " is out of the window");
+        }
+
+        return buffer[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || start > end || end > length) {
+            throw new IndexOutOfBoundsException("range " + start + ".." + end + " is out of the window");
+        }
+
+        return new String(buffer, start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length);
+    }
+}
@@ -0,0 +1,284 @@
+package com.github.amatanhead.pcl.lexer;
+
+import com.github.amatanhead.pcl.errors.TokenizationError;
+import com.github.amatanhead.pcl.stream.TokenBuffer;
+import com.github.amatanhead.pcl.stream.TokenCursor;
+import com.github.amatanhead.pcl.stream.TokenStream;
+import com.github.amatanhead.pcl.token.Token;
+
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * An immutable snapshot of the rules and settings of a {@link RegexpTextLexer}, ready for tokenization.
+ * <p>
+ * Compiled lexers are created by {@link RegexpTextLexer#compile()}, which freezes the registered rules along with
+ * everything derived from them (dispatch indices, automata, etc.). Later changes of the original lexer don't
+ * affect the compiled one.
+ * <p>
+ * A compiled lexer is safe to share between any number of threads: it has no mutable state, and each call
+ * creates its own token stream and, if bytes are to be decoded, its own {@link CharsetDecoder decoder}.
+ * Creating a stream costs a few small per-stream objects (such as a {@link java.util.regex.Matcher matcher} per
+ * regexp rule); the rules themselves are shared, not copied. Token factories and {@link CharScanner scanners}
+ * of the rules must be thread-safe as well.
+ * <p>
+ * Compiled lexers can't be reconfigured; setting the default encoding throws
+ * an {@link UnsupportedOperationException}.
+ */
+public final class CompiledLexer extends AbstractTextLexer {
+    /**
+     * Chunks smaller than that are not worth a separate task.
+     */
+    private static final int MIN_CHUNK_SIZE = 1 << 16;
+
+    private final Function<CharSequence, RuleTokenStream> streams;
+    private final int modeCount;
+    private final ResyncPredicate resyncPredicate;
+    private final boolean frozen;
+
+    /**
+     * Create a compiled lexer.
+     *
+     * @param decoder         decoder whose encoding and error handling are used by default. It is never used
+     *                        directly, only as a template for per-call decoders.
+     * @param streams         creates a token stream over the given text. Must be thread-safe.
+     * @param modeCount       number of lexer modes.
+     * @param resyncPredicate tells where a text can be split for parallel tokenization.
+     */
+    CompiledLexer(CharsetDecoder decoder, Function<CharSequence, RuleTokenStream> streams, int modeCount,
+                  ResyncPredicate resyncPredicate) {
+        super(decoder);
+
+        this.streams = streams;
+        this.modeCount = modeCount;
+        this.resyncPredicate = resyncPredicate;
+        this.frozen = true;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws UnsupportedOperationException always, since compiled lexers are immutable.
+     */
+    @Override
+    public void setDefaultEncoding(CharsetDecoder decoder) {
+        // The constructor of the base class sets the initial decoder.
+        if (frozen) {
+            throw new UnsupportedOperationException("compiled lexers are immutable");
+        }
+
+        super.setDefaultEncoding(decoder);
+    }
+
+    @Override
+    public TokenStream tokenize(String text) {
+        return newTokenStream(text);
+    }
+
+    @Override
+    public TokenStream tokenize(CharSequence text) {
+        return newTokenStream(text);
+    }
+
+    @Override
+    public TokenStream tokenize(Reader reader, int bufferSize) {
+        return newTokenStream(new CharWindow(reader, bufferSize));
+    }
+
+    @Override
+    public TokenBuffer tokenizeAll(CharSequence text) throws TokenizationError {
+        final TokenBuffer buffer = new TokenBuffer(text);
+        newTokenStream(text).drainTo(buffer);
+        return buffer;
+    }
+
+    /**
+     * Tokenize the text in parallel.
+     * <p>
+     * The text is split into chunks at offsets approved by the {@link RegexpTextLexer#setResyncPredicate(
+     * ResyncPredicate) resync predicate}, and the chunks are tokenized in the given pool. The result is exactly
+     * the same as the result of {@link #tokenizeAll(CharSequence)}: if a chunk turns out to start in the middle
+     * of a token, the part of the text around the chunk boundary is tokenized again.
+     * <p>
+     * Chunks are sized so that each thread of the pool gets a few of them.
+     *
+     * @param text text to be tokenized. It must not change while the tokens are in use.
+     * @param pool pool to run the tokenization in.
+     * @throws TokenizationError the text cannot be tokenized.
+     */
+    public TokenBuffer tokenizeParallel(CharSequence text, ForkJoinPool pool) throws TokenizationError {
+        final int chunks = pool.getParallelism() * 4;
+        return tokenizeParallel(text, pool, Math.max(MIN_CHUNK_SIZE, text.length() / chunks + 1));
+    }
+
+    /**
+     * Tokenize the text in parallel, splitting it into chunks of the given approximate size.
+     * See {@link #tokenizeParallel(CharSequence, ForkJoinPool)}.
+     *
+     * @param text      text to be tokenized. It must not change while the tokens are in use.
+     * @param pool      pool to run the tokenization in.
+     * @param chunkSize approximate size of a chunk, in chars.
+     * @throws TokenizationError the text cannot be tokenized.
+     */
+    public TokenBuffer tokenizeParallel(CharSequence text, ForkJoinPool pool, int chunkSize)
+            throws TokenizationError {
+        if (modeCount > 1) {
+            // Chunks can't know the mode they start in.
+            return tokenizeAll(text);
+        }
+
+        return ParallelTokenizer.tokenize(text, streams, pool, chunkSize, resyncPredicate);
+    }
+
+    /**
+     * Tokenize a text stream in background tasks, reading it and lexing it ahead of the parser.
+     * See {@link PipelinedTokenStream}.
+     * <p>
+     * The executor runs two long tasks, which wait for each other and for the reader of the stream. It must be able
+     * to run both at the same time, e.g. a cached thread pool; a {@link ForkJoinPool} is not a good fit.
+     *
+     * @param reader     text stream to be tokenized. It's read by a background task and is not closed.
+     * @param bufferSize size of a chunk the text is read in, in chars.
+     * @param executor   runs the reading and the lexing tasks.
+     * @throws IllegalArgumentException buffer size is not positive.
+     */
+    public PipelinedTokenStream tokenizePipelined(Reader reader, int bufferSize, Executor executor) {
+        final ReadAheadReader readAhead = new ReadAheadReader(reader, bufferSize, executor);
+        return new PipelinedTokenStream(newTokenStream(new CharWindow(readAhead, bufferSize)), readAhead, executor);
+    }
+
+    /**
+     * Tokenize a byte channel in background tasks, decoding it and lexing it ahead of the parser.
+     * See {@link #tokenizePipelined(Reader, int, Executor)}.
+     *
+     * @param channel    channel to be tokenized. It's read by a background task and is not closed.
+     * @param decoder    {@link CharsetDecoder decoder} instance which will be used to decode bytes. It must not be
+     *                   used by anyone else while the stream is in use.
+     * @param bufferSize size of a chunk the text is read in, in chars.
+     * @param executor   runs the decoding and the lexing tasks.
+     * @throws IllegalArgumentException buffer size is not positive.
+     */
+    public PipelinedTokenStream tokenizePipelined(ReadableByteChannel channel, CharsetDecoder decoder,
+                                                  int bufferSize, Executor executor) {
+        return tokenizePipelined(Channels.newReader(channel, decoder, -1), bufferSize, executor);
+    }
+
+    /**
+     * Update tokens of a text after an edit, tokenizing only the part of the new text around the edit.
+     * <p>
+     * The result is the same as the result of {@link #tokenizeAll(CharSequence)} over the new text. Tokens whose
+     * matches didn't look at the edited part are copied, and tokens after it are copied and moved by the length
+     * difference. The result records how far each match looked, so pass it to the next call to keep edits cheap.
+     *
+     * @param previous       result of tokenizing the text before the edit, with the same rules.
+     * @param text           the text after the edit. It must not change while the tokens are in use.
+     * @param offset         offset of the edit.
+     * @param removedLength  number of chars removed from the old text at the offset.
+     * @param insertedLength number of chars inserted in their place.
+     * @throws TokenizationError the new text cannot be tokenized.
+     */
+    public TokenBuffer retokenize(TokenBuffer previous, CharSequence text, int offset, int removedLength,
+                                  int insertedLength) throws TokenizationError {
+        if (modeCount > 1) {
+            // The old tokens don't tell the mode to restart in.
+            return tokenizeAll(text);
+        }
+
+        return IncrementalTokenizer.retokenize(
+                previous, text, offset, removedLength, insertedLength, streams);
+    }
+
+    /**
+     * Apply an edit to a tokenized text and update its tokens.
+     * See {@link #retokenize(TokenBuffer, CharSequence, int, int, int)}.
+     *
+     * @param previous      result of tokenizing the text before the edit, with the same rules.
+     * @param offset        offset of the edit.
+     * @param removedLength number of chars to be removed from the old text at the offset.
+     * @param inserted      text to be inserted in their place.
+     * @return tokens of the new text, whose {@link TokenBuffer#getSource() source} is the new text.
+     * @throws TokenizationError the new text cannot be tokenized.
+     */
+    public TokenBuffer retokenize(TokenBuffer previous, int offset, int removedLength, CharSequence inserted)
+            throws TokenizationError {
+        final CharSequence source = previous.getSource();
+
+        if (offset < 0 || removedLength < 0 || offset + removedLength > source.length()) {
+            throw new IndexOutOfBoundsException(
+                    "edit " + offset + ".." + (offset + removedLength) + " is out of the text");
+        }
+
+        final String text = new StringBuilder(source.length() - removedLength + inserted.length())
+                .append(source, 0, offset)
+                .append(inserted)
+                .append(source, offset + removedLength, source.length())
+                .toString();
+
+        return retokenize(previous, text, offset, removedLength, inserted.length());
+    }
+
+    /**
+     * Create a lexer which is given its text chunk by chunk and passes tokens to the consumer as soon as they are
+     * complete. Bytes are decoded using the default encoding. See {@link PushLexer}.
+     *
+     * @param consumer receives tokens, including the EOF token, in order.
+     */
+    public PushLexer newPushLexer(Consumer<? super Token> consumer) {
+        return newPushLexer(consumer, newDecoder());
+    }
+
+    /**
+     * Create a lexer which is given its text chunk by chunk and passes tokens to the consumer as soon as they are
+     * complete. See {@link PushLexer}.
+     *
+     * @param consumer receives tokens, including the EOF token, in order.
+     * @param decoder  {@link CharsetDecoder decoder} instance which will be used to decode bytes. It must not be
+     *                 used by anyone else while the push lexer is in use.
+     */
+    public PushLexer newPushLexer(Consumer<? super Token> consumer, CharsetDecoder decoder) {
+        return new PushLexer(streams, decoder, consumer);
+    }
+
+    /**
+     * Tokenize the text lazily into a {@link TokenCursor}, which describes each token by its own state instead
+     * of building a token object. See {@link TokenCursor}.
+     *
+     * @param text text to be tokenized. It must not change while the cursor is in use.
+     */
+    public TokenCursor newCursor(CharSequence text) {
+        return new RuleTokenCursor(newTokenStream(text));
+    }
+
+    /**
+     * Tokenize a text stream lazily into a {@link TokenCursor}, reading it through a bounded buffer
+     * (see {@link #tokenize(Reader, int)}). Offsets reported by the cursor are counted from the start of the stream.
+     *
+     * @param reader     text stream to be tokenized.
+     * @param bufferSize initial size of the buffer, in chars.
+     * @throws IllegalArgumentException buffer size is not positive.
+     */
+    public TokenCursor newCursor(Reader reader, int bufferSize) {
+        return new RuleTokenCursor(newTokenStream(new CharWindow(reader, bufferSize)));
+    }
+
+    /**
+     * Create a token stream which can be reset to tokenize one text after another, reusing its matchers and
+     * other per-stream state. See {@link LexerSession}.
+     */
+    public LexerSession newSession() {
+        return new LexerSession(newTokenStream(""));
+    }
+
+    /**
+     * Create a token stream over the given text, which is either a complete text or a {@link CharWindow}.
+     */
+    RuleTokenStream newTokenStream(CharSequence text) {
+        return streams.apply(text);
+    }
+}
@@ -0,0 +1,640 @@
+package com.github.amatanhead.pcl.lexer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * A minimized deterministic finite automaton which recognizes a prioritized list of regular languages,
+ * one per lexer rule.
+ * <p>
+ * Chars are mapped to equivalence classes first (chars of the same class behave identically in every state),
+ * so the transition table has one row per state and one column per class.
+ * <p>
+ * Instances are immutable.
+ */
+final class Dfa {
+    /**
+     * Thrown when the automaton gets too large to be built.
+     */
+    static final class TooLarge extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        TooLarge(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Maximal number of states of a non-minimized automaton.
+     */
+    static final int MAX_STATES = 10000;
+
+    /**
+     * Maximal number of states of a nondeterministic automaton which is used to build the deterministic one.
+     */
+    static final int MAX_NFA_STATES = 100000;
+
+    private static final int NONE = Integer.MAX_VALUE;
+
+    private final int start;
+    private final int classCount;
+    private final int[] asciiClasses;
+    private final int[] rangeStarts;
+    private final int[] rangeClasses;
+
+    /**
+     * Transition table: `transitions[state * classCount + class]` is the next state or -1.
+     */
+    private final int[] transitions;
+
+    /**
+     * The smallest rule index accepted in each state, or {@link #NONE}.
+     */
+    private final int[] accepting;
+
+    /**
+     * The smallest rule index accepted in each state or in any state reachable from it, or {@link #NONE}.
+     */
+    private final int[] bestReachable;
+
+    private Dfa(int start, int classCount, int[] asciiClasses, int[] rangeStarts, int[] rangeClasses,
+                int[] transitions, int[] accepting, int[] bestReachable) {
+        this.start = start;
+        this.classCount = classCount;
+        this.asciiClasses = asciiClasses;
+        this.rangeStarts = rangeStarts;
+        this.rangeClasses = rangeClasses;
+        this.transitions = transitions;
+        this.accepting = accepting;
+        this.bestReachable = bestReachable;
+    }
+
+    /**
+     * Number of states of this automaton.
+     */
+    int getStateCount() {
+        return accepting.length;
+    }
+
+    /**
+     * Match the text starting at the given position.
+     * <p>
+     * Finds the rule with the smallest index that matches a non-empty or empty prefix of `text[from, to)`,
+     * and the longest prefix that it matches.
+     *
+     * @return `-1` if nothing matches, otherwise the rule index in the upper 32 bits and the end of the match
+     * in the lower 32 bits.
+     */
+    long match(CharSequence text, int from, int to) {
+        return match(text, from, to, null);
+    }
+
+    /**
+     * Match the text starting at the given position, see {@link #match(CharSequence, int, int)}.
+     *
+     * @param hitEnd if not null, its first element is set to true if the automaton ran up to `to` and more text
+     *               could change the result, and to false otherwise.
+     */
+    long match(CharSequence text, int from, int to, boolean[] hitEnd) {
+        int state = start;
+        int bestRule = NONE;
+        int bestEnd = -1;
+        int pos = from;
+        boolean reachedEnd = false;
+
+        while (true) {
+            final int rule = accepting[state];
+            if (rule <= bestRule && rule != NONE) {
+                bestRule = rule;
+                bestEnd = pos;
+            }
+
+            if (bestReachable[state] > bestRule) {
+                break;
+            }
+
+            if (pos == to) {
+                reachedEnd = true;
+                break;
+            }
+
+            state = transitions[state * classCount + classOf(text.charAt(pos))];
+
+            if (state < 0) {
+                break;
+            }
+
+            pos += 1;
+        }
+
+        if (hitEnd != null) {
+            hitEnd[0] = reachedEnd;
+        }
+
+        return bestRule == NONE ? -1 : ((long) bestRule << 32) | bestEnd;
+    }
+
+    private int classOf(char c) {
+        if (c < 128) {
+            return asciiClasses[c];
+        }
+
+        int i = Arrays.binarySearch(rangeStarts, c);
+        if (i < 0) {
+            i = -i - 2;
+        }
+
+        return rangeClasses[i];
+    }
+
+    /**
+     * Build an automaton for the given trees.
+     *
+     * @param trees trees to compile.
+     * @param rules rule index for each tree; when several trees match, the one with the smallest index wins.
+     * @throws TooLarge the automaton exceeds the size limit.
+     */
+    static Dfa build(List<RegexTree> trees, int[] rules) throws TooLarge {
+        return new Builder(trees, rules).build();
+    }
+
+    /**
+     * Check whether a backtracking matcher, such as {@link java.util.regex}, always takes the longest match
+     * of the given tree, like an automaton does.
+     * <p>
+     * A backtracking matcher takes the first match in the order of preference: earlier alternatives first,
+     * and more iterations of a greedy repetition first. E.g. `\d+|\d+\.\d+` matches `1` in `1.5`. The check
+     * follows the matcher's threads in the order of preference through every reachable combination of them,
+     * like a Pike VM does. Once a thread accepts, less preferred threads are dropped; the tree fails the check
+     * if any of them could still go on, since it may have found a longer match. The check is conservative,
+     * i.e. a more preferred thread may always find an even longer match.
+     *
+     * @throws TooLarge the check takes too many states.
+     */
+    static boolean isLongestMatch(RegexTree tree) throws TooLarge {
+        return new Builder(Collections.singletonList(tree), new int[]{0}).isLongestMatch();
+    }
+
+    private static final class NfaState {
+        int[] epsilon = new int[0];
+        CharRanges set = null;
+        int next = -1;
+        int accept = NONE;
+
+        void addEpsilon(int target) {
+            epsilon = Arrays.copyOf(epsilon, epsilon.length + 1);
+            epsilon[epsilon.length - 1] = target;
+        }
+    }
+
+    private static final class IntArrayKey {
+        private final int[] data;
+        private final int hash;
+
+        IntArrayKey(int[] data) {
+            this.data = data;
+            this.hash = Arrays.hashCode(data);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof IntArrayKey && Arrays.equals(data, ((IntArrayKey) o).data);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Builder {
+        private final List<RegexTree> trees;
+        private final int[] rules;
+
+        private final ArrayList<NfaState> nfa = new ArrayList<>();
+
+        /**
+         * Starts of elementary char ranges. Every char set used in the trees is a union of elementary ranges.
+         */
+        private int[] rangeStarts;
+
+        Builder(List<RegexTree> trees, int[] rules) {
+            this.trees = trees;
+            this.rules = rules;
+        }
+
+        Dfa build() throws TooLarge {
+            final int nfaStart = newState();
+            for (int i = 0; i < trees.size(); i++) {
+                final int[] fragment = fragment(trees.get(i));
+                nfa.get(nfaStart).addEpsilon(fragment[0]);
+                nfa.get(fragment[1]).accept = rules[i];
+            }
+
+            collectRanges();
+
+            return minimize(determinize(nfaStart));
+        }
+
+        boolean isLongestMatch() throws TooLarge {
+            final int[] root = fragment(trees.get(0));
+            nfa.get(root[1]).accept = rules[0];
+
+            collectRanges();
+
+            final int rangeCount = rangeStarts.length;
+            final Map<IntArrayKey, Integer> ids = new HashMap<>();
+            final ArrayList<int[]> queue = new ArrayList<>();
+
+            final int[] initial = orderedClosure(new int[]{root[0]});
+            if (initial == null) {
+                return false;
+            }
+            ids.put(new IntArrayKey(initial), 0);
+            queue.add(initial);
+
+            for (int current = 0; current < queue.size(); current++) {
+                final int[] threads = queue.get(current);
+                final int[][] moves = new int[rangeCount][];
+                final int[] moveCounts = new int[rangeCount];
+
+                for (int thread : threads) {
+                    final NfaState state = nfa.get(thread);
+                    for (int i = 0; i < state.set.size(); i++) {
+                        final int last = rangeOf(state.set.hi(i));
+                        for (int r = rangeOf(state.set.lo(i)); r <= last; r++) {
+                            if (moves[r] == null) {
+                                moves[r] = new int[threads.length];
+                            }
+                            moves[r][moveCounts[r]++] = state.next;
+                        }
+                    }
+                }
+
+                for (int r = 0; r < rangeCount; r++) {
+                    if (moves[r] == null) {
+                        continue;
+                    }
+
+                    final int[] target = orderedClosure(Arrays.copyOf(moves[r], moveCounts[r]));
+                    if (target == null) {
+                        return false;
+                    }
+
+                    final IntArrayKey key = new IntArrayKey(target);
+                    if (!ids.containsKey(key)) {
+                        if (queue.size() >= MAX_STATES) {
+                            throw new TooLarge("too many states to check");
+                        }
+                        ids.put(key, queue.size());
+                        queue.add(target);
+                    }
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Follow epsilon transitions from the given states in the order of preference, like a backtracking
+         * matcher does, and collect the states which consume a char.
+         *
+         * @return the states which consume a char, in the order of preference and up to the accepting state,
+         * or null if some state after the accepting one consumes a char, i.e. may lead to a longer match.
+         */
+        private int[] orderedClosure(int[] states) {
+            final BitSet visited = new BitSet();
+            final ArrayDeque<Integer> stack = new ArrayDeque<>();
+            final int[] result = new int[nfa.size()];
+            int count = 0;
+            boolean accepted = false;
+
+            for (int i = states.length - 1; i >= 0; i--) {
+                stack.push(states[i]);
+            }
+
+            while (!stack.isEmpty()) {
+                final int s = stack.pop();
+                if (visited.get(s)) {
+                    continue;
+                }
+                visited.set(s);
+
+                final NfaState state = nfa.get(s);
+                if (state.accept != NONE) {
+                    accepted = true;
+                } else if (state.set != null && state.set.size() > 0) {
+                    if (accepted) {
+                        return null;
+                    }
+                    result[count++] = s;
+                }
+
+                for (int i = state.epsilon.length - 1; i >= 0; i--) {
+                    stack.push(state.epsilon[i]);
+                }
+            }
+
+            return Arrays.copyOf(result, count);
+        }
+
+        // Thompson construction. A fragment is a pair of the start and the end states.
+
+        private int newState() throws TooLarge {
+            if (nfa.size() >= MAX_NFA_STATES) {
+                throw new TooLarge("too many NFA states");
+            }
+            nfa.add(new NfaState());
+            return nfa.size() - 1;
+        }
+
+        private int[] fragment(RegexTree tree) throws TooLarge {
+            final int s = newState();
+            final int e = newState();
+
+            if (tree instanceof RegexTree.Chars) {
+                nfa.get(s).set = ((RegexTree.Chars) tree).set;
+                nfa.get(s).next = e;
+            } else if (tree instanceof RegexTree.Concat) {
+                int last = s;
+                for (RegexTree item : ((RegexTree.Concat) tree).items) {
+                    final int[] f = fragment(item);
+                    nfa.get(last).addEpsilon(f[0]);
+                    last = f[1];
+                }
+                nfa.get(last).addEpsilon(e);
+            } else if (tree instanceof RegexTree.Alt) {
+                for (RegexTree alternative : ((RegexTree.Alt) tree).alternatives) {
+                    final int[] f = fragment(alternative);
+                    nfa.get(s).addEpsilon(f[0]);
+                    nfa.get(f[1]).addEpsilon(e);
+                }
+            } else if (tree instanceof RegexTree.Repeat) {
+                final RegexTree.Repeat repeat = (RegexTree.Repeat) tree;
+                int last = s;
+                for (int i = 0; i < repeat.min; i++) {
+                    final int[] f = fragment(repeat.node);
+                    nfa.get(last).addEpsilon(f[0]);
+                    last = f[1];
+                }
+                if (repeat.max < 0) {
+                    final int[] f = fragment(repeat.node);
+                    nfa.get(last).addEpsilon(f[0]);
+                    nfa.get(f[1]).addEpsilon(f[0]);
+                    nfa.get(f[1]).addEpsilon(e);
+                } else {
+                    for (int i = repeat.min; i < repeat.max; i++) {
+                        final int[] f = fragment(repeat.node);
+                        nfa.get(last).addEpsilon(f[0]);
+                        nfa.get(last).addEpsilon(e);
+                        last = f[1];
+                    }
+                }
+                nfa.get(last).addEpsilon(e);
+            } else {
+                throw new IllegalArgumentException("unknown regex tree node");
+            }
+
+            return new int[]{s, e};
+        }
+
+        // Alphabet.
+
+        private void collectRanges() {
+            final TreeSet<Integer> starts = new TreeSet<>();
+            starts.add(0);
+
+            for (NfaState state : nfa) {
+                if (state.set != null) {
+                    for (int i = 0; i < state.set.size(); i++) {
+                        starts.add(state.set.lo(i));
+                        if (state.set.hi(i) < Character.MAX_VALUE) {
+                            starts.add(state.set.hi(i) + 1);
+                        }
+                    }
+                }
+            }
+
+            rangeStarts = starts.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        private int rangeOf(int c) {
+            final int i = Arrays.binarySearch(rangeStarts, c);
+            return i >= 0 ? i : -i - 2;
+        }
+
+        // Subset construction.
+
+        private BitSet closure(BitSet states) {
+            final BitSet result = (BitSet) states.clone();
+            final ArrayDeque<Integer> stack = new ArrayDeque<>();
+            states.stream().forEach(stack::push);
+
+            while (!stack.isEmpty()) {
+                for (int target : nfa.get(stack.pop()).epsilon) {
+                    if (!result.get(target)) {
+                        result.set(target);
+                        stack.push(target);
+                    }
+                }
+            }
+
+            return result;
+        }
+
+        /**
+         * Result of the subset construction: transitions over elementary ranges.
+         */
+        private final ArrayList<int[]> dfaTransitions = new ArrayList<>();
+        private final ArrayList<Integer> dfaAccepting = new ArrayList<>();
+
+        private int determinize(int nfaStart) throws TooLarge {
+            final int rangeCount = rangeStarts.length;
+            final Map<BitSet, Integer> ids = new HashMap<>();
+            final ArrayList<BitSet> sets = new ArrayList<>();
+
+            final BitSet initial = new BitSet();
+            initial.set(nfaStart);
+            sets.add(closure(initial));
+            ids.put(sets.get(0), 0);
+
+            for (int current = 0; current < sets.size(); current++) {
+                final BitSet set = sets.get(current);
+                final BitSet[] moves = new BitSet[rangeCount];
+                int accept = NONE;
+
+                for (int s = set.nextSetBit(0); s >= 0; s = set.nextSetBit(s + 1)) {
+                    final NfaState state = nfa.get(s);
+                    accept = Math.min(accept, state.accept);
+                    if (state.set == null) {
+                        continue;
+                    }
+                    for (int i = 0; i < state.set.size(); i++) {
+                        final int last = rangeOf(state.set.hi(i));
+                        for (int r = rangeOf(state.set.lo(i)); r <= last; r++) {
+                            if (moves[r] == null) {
+                                moves[r] = new BitSet();
+                            }
+                            moves[r].set(state.next);
+                        }
+                    }
+                }
+
+                final int[] row = new int[rangeCount];
+                for (int r = 0; r < rangeCount; r++) {
+                    if (moves[r] == null) {
+                        row[r] = -1;
+                        continue;
+                    }
+
+                    final BitSet target = closure(moves[r]);
+                    Integer id = ids.get(target);
+                    if (id == null) {
+                        if (sets.size() >= MAX_STATES) {
+                            throw new TooLarge("too many DFA states");
+                        }
+                        id = sets.size();
+                        sets.add(target);
+                        ids.put(target, id);
+                    }
+                    row[r] = id;
+                }
+
+                dfaTransitions.add(row);
+                dfaAccepting.add(accept);
+            }
+
+            return 0;
+        }
+
+        // Minimization.
+
+        private Dfa minimize(int start) {
+            final int stateCount = dfaTransitions.size();
+            final int rangeCount = rangeStarts.length;
+
+            // Find the best rule reachable from each state, then drop transitions into states that can't
+            // accept anything. This way the matching loop stops as soon as no rule can match.
+            final int[] reachable = new int[stateCount];
+            for (int s = 0; s < stateCount; s++) {
+                reachable[s] = dfaAccepting.get(s);
+            }
+            for (boolean changed = true; changed; ) {
+                changed = false;
+                for (int s = 0; s < stateCount; s++) {
+                    for (int target : dfaTransitions.get(s)) {
+                        if (target >= 0 && reachable[target] < reachable[s]) {
+                            reachable[s] = reachable[target];
+                            changed = true;
+                        }
+                    }
+                }
+            }
+            for (int[] row : dfaTransitions) {
+                for (int r = 0; r < rangeCount; r++) {
+                    if (row[r] >= 0 && reachable[row[r]] == NONE) {
+                        row[r] = -1;
+                    }
+                }
+            }
+
+            // Moore's algorithm: split blocks of states until states of each block have the same accepting rule
+            // and lead to the same blocks on every char.
+            int[] block = new int[stateCount];
+            int blockCount = partition(block, s -> new int[]{dfaAccepting.get(s)});
+            while (true) {
+                final int[] current = block;
+                final int[] refined = new int[stateCount];
+                final int refinedCount = partition(refined, s -> {
+                    final int[] row = dfaTransitions.get(s);
+                    final int[] signature = new int[rangeCount + 1];
+                    signature[0] = current[s];
+                    for (int r = 0; r < rangeCount; r++) {
+                        signature[r + 1] = row[r] < 0 ? -1 : current[row[r]];
+                    }
+                    return signature;
+                });
+                block = refined;
+                if (refinedCount == blockCount) {
+                    break;
+                }
+                blockCount = refinedCount;
+            }
+
+            final int minimizedCount = blockCount;
+            final int[] rangeTable = new int[minimizedCount * rangeCount];
+            final int[] accepting = new int[blockCount];
+            final int[] bestReachable = new int[blockCount];
+            for (int s = 0; s < stateCount; s++) {
+                final int b = block[s];
+                final int[] row = dfaTransitions.get(s);
+                for (int r = 0; r < rangeCount; r++) {
+                    rangeTable[b * rangeCount + r] = row[r] < 0 ? -1 : block[row[r]];
+                }
+                accepting[b] = dfaAccepting.get(s);
+                bestReachable[b] = reachable[s];
+            }
+
+            // Merge elementary ranges which behave identically in every state into char classes.
+            final int[] rangeClasses = new int[rangeCount];
+            final int classCount = partition(rangeClasses, r -> {
+                final int[] column = new int[minimizedCount];
+                for (int b = 0; b < minimizedCount; b++) {
+                    column[b] = rangeTable[b * rangeCount + r];
+                }
+                return column;
+            }, rangeCount);
+
+            final int[] transitions = new int[blockCount * classCount];
+            for (int b = 0; b < blockCount; b++) {
+                for (int r = 0; r < rangeCount; r++) {
+                    transitions[b * classCount + rangeClasses[r]] = rangeTable[b * rangeCount + r];
+                }
+            }
+
+            final int[] asciiClasses = new int[128];
+            for (int c = 0; c < 128; c++) {
+                asciiClasses[c] = rangeClasses[rangeOf(c)];
+            }
+
+            return new Dfa(block[start], classCount, asciiClasses, rangeStarts, rangeClasses,
+                    transitions, accepting, bestReachable);
+        }
+
+        private interface Signature {
+            int[] of(int item);
+        }
+
+        private int partition(int[] result, Signature signature) {
+            return partition(result, signature, dfaTransitions.size());
+        }
+
+        /**
+         * Assign equal ids to items with equal signatures.
+         *
+         * @return number of distinct ids.
+         */
+        private static int partition(int[] result, Signature signature, int count) {
+            final Map<IntArrayKey, Integer> ids = new HashMap<>();
+
+            for (int i = 0; i < count; i++) {
+                final IntArrayKey key = new IntArrayKey(signature.of(i));
+                Integer id = ids.get(key);
+                if (id == null) {
+                    id = ids.size();
+                    ids.put(key, id);
+                }
+                result[i] = id;
+            }
+
+            return ids.size();
+        }
+    }
+}
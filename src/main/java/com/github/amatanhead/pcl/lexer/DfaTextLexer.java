@@ -0,0 +1,325 @@
+package com.github.amatanhead.pcl.lexer;
+
+import com.github.amatanhead.pcl.stream.TokenStream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+
+/**
+ * Token stream of the {@link DfaTextLexer}.
+ * <p>
+ * Rules compiled into the automaton are matched in a single pass over the text. Rules which the automaton
+ * cannot handle are matched with their own {@link Matcher matchers}, but only if they precede the rule found
+ * by the automaton. Each lexer mode has its own automaton and its own list of such rules.
+ */
+final class DfaTextLexerTokenStream extends RuleTokenStream {
+    private final Dfa[] dfas;
+    private final int[][] fallbackRules;
+    private final boolean[] dfaHitEnd = new boolean[1];
+
+    DfaTextLexerTokenStream(Rule[] rules, Dfa[] dfas, int[][] fallbackRules, CharSequence text,
+                            boolean trackPositions, MatchBudget budget) {
+        super(rules, text, trackPositions, budget);
+
+        this.dfas = dfas;
+        this.fallbackRules = fallbackRules;
+
+        for (int i = 0; i < this.rules.length; i++) {
+            if (this.rules[i].hasTokenFactory()) {
+                matchers[i] = this.rules[i].getPattern().matcher(matchText);
+            }
+        }
+
+        for (int[] modeRules : fallbackRules) {
+            for (int i : modeRules) {
+                if (this.rules[i].needsMatcher()) {
+                    matchers[i] = this.rules[i].getPattern().matcher(matchText);
+                }
+            }
+        }
+    }
+
+    @Override
+    protected int match() {
+        final Dfa dfa = dfas[mode];
+        final long match = dfa == null ? -1 : dfa.match(text, position, text.length(), dfaHitEnd);
+        hitEnd = dfa != null && dfaHitEnd[0];
+        final int rule = match < 0 ? Integer.MAX_VALUE : (int) (match >>> 32);
+
+        for (int i : fallbackRules[mode]) {
+            if (i > rule) {
+                break;
+            }
+
+            if (rules[i].getScanner() != null) {
+                if (scan(i)) {
+                    return i;
+                }
+                continue;
+            }
+
+            final Matcher matcher = matchers[i];
+            matcher.region(position, text.length());
+            final boolean matched = matcher.lookingAt();
+            hitEnd |= matcher.hitEnd();
+            if (matched) {
+                matchEnd = matcher.end();
+                return i;
+            }
+        }
+
+        if (match < 0) {
+            return -1;
+        }
+
+        matchEnd = (int) match;
+
+        if (rules[rule].hasTokenFactory()) {
+            // Token factories need a matcher holding the match.
+            final Matcher matcher = matchers[rule];
+            matcher.region(position, matchEnd);
+            if (!matcher.matches()) {
+                matcher.region(position, text.length());
+                final boolean matched = matcher.lookingAt();
+                hitEnd |= matcher.hitEnd();
+                if (!matched) {
+                    return -1;
+                }
+                matchEnd = matcher.end();
+            }
+        }
+
+        return rule;
+    }
+}
+
+/**
+ * A lexer which compiles all of its rules into a single minimized deterministic finite automaton.
+ * <p>
+ * Rules are registered exactly as in {@link RegexpTextLexer}, and the first registered rule that matches
+ * still wins. However, instead of trying every rule with a backtracking {@link Matcher}, this lexer finds
+ * the winning rule in a single pass over the token, in time linear in its length and independent of
+ * the number of rules. This also makes tokenization immune to catastrophic backtracking.
+ * <p>
+ * The automaton supports the regular subset of {@link java.util.regex.Pattern} syntax: literals and escapes,
+ * character classes, `.`, groups, alternations and greedy quantifiers. Within a single rule, the automaton
+ * takes the longest possible match, so it only compiles patterns for which that is what a regexp matches
+ * (see {@link Dfa#isLongestMatch(RegexTree)}). E.g. `==|=` and `\d+(\.\d+)?` are compiled, but `\d+|\d+\.\d+`
+ * is not, since a regexp matches `1` in `1.5`. These patterns, and patterns that the automaton cannot handle
+ * (anchors, boundaries, backreferences, lookaround, lazy or possessive quantifiers, pattern flags, etc.)
+ * are matched with {@link java.util.regex} as a fallback,
+ * or rejected if the fallback is disabled (see {@link #setRegexFallback(boolean)}). Rules matched with
+ * a {@link CharScanner} are called as is, in their order of registration.
+ * <p>
+ * The automaton works with UTF-16 code units, so a `.` or a negated class matches half of a surrogate pair.
+ */
+public class DfaTextLexer extends RegexpTextLexer {
+    private boolean regexFallback;
+
+    /**
+     * Automata and indices of the rules matched with {@link java.util.regex}, by mode.
+     */
+    private Dfa[] dfas = null;
+    private int[][] fallbackRules = null;
+
+    /**
+     * Construct a lexer which falls back to {@link java.util.regex} for the patterns it cannot compile.
+     */
+    public DfaTextLexer() {
+        this(true);
+    }
+
+    /**
+     * Construct a lexer.
+     *
+     * @param regexFallback whether to fall back to {@link java.util.regex} for the patterns that cannot be
+     *                      compiled into an automaton. See {@link #setRegexFallback(boolean)}.
+     */
+    public DfaTextLexer(boolean regexFallback) {
+        this.regexFallback = regexFallback;
+    }
+
+    /**
+     * Enable or disable the {@link java.util.regex} fallback.
+     * <p>
+     * If the fallback is disabled, registering a rule that the automaton cannot handle throws an error,
+     * which guarantees that tokenization runs in linear time.
+     *
+     * @param regexFallback true to enable the fallback.
+     * @throws IllegalArgumentException the fallback is being disabled while some of the registered rules need it.
+     */
+    public void setRegexFallback(boolean regexFallback) {
+        if (!regexFallback) {
+            for (Rule rule : getRules()) {
+                checkSupported(rule);
+            }
+        }
+
+        this.regexFallback = regexFallback;
+    }
+
+    /**
+     * Check whether the {@link java.util.regex} fallback is enabled.
+     */
+    public boolean isRegexFallback() {
+        return regexFallback;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IllegalArgumentException the fallback is disabled and the rule's pattern cannot be compiled
+     *                                  into an automaton.
+     */
+    @Override
+    void addRule(Rule rule) {
+        if (!regexFallback) {
+            checkSupported(rule);
+        }
+
+        super.addRule(rule);
+
+        dfas = null;
+        fallbackRules = null;
+    }
+
+    @Override
+    Function<CharSequence, RuleTokenStream> newStreamFactory(Rule[] rules, boolean trackPositions,
+                                                             MatchBudget budget) {
+        if (fallbackRules == null) {
+            buildAutomata();
+        }
+
+        final Dfa[] dfas = this.dfas;
+        final int[][] fallbackRules = this.fallbackRules;
+        return text -> new DfaTextLexerTokenStream(rules, dfas, fallbackRules, text, trackPositions, budget);
+    }
+
+    /**
+     * Indices of the rules which are matched with {@link java.util.regex}, in ascending order.
+     */
+    int[] getFallbackRules() {
+        if (fallbackRules == null) {
+            buildAutomata();
+        }
+
+        return Arrays.stream(fallbackRules).flatMapToInt(Arrays::stream).sorted().toArray();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Rules compiled into the automaton never backtrack, unless they have a token factory, which needs a matcher.
+     */
+    @Override
+    boolean isBacktracking(Rule rule) {
+        if (!super.isBacktracking(rule) || rule.hasTokenFactory()) {
+            return super.isBacktracking(rule);
+        }
+
+        try {
+            RegexTree.parseRegular(rule.getPattern());
+            return false;
+        } catch (RegexTree.Unsupported unsupported) {
+            return true;
+        }
+    }
+
+    private static void checkSupported(Rule rule) {
+        if (rule.getScanner() != null) {
+            return;
+        }
+
+        try {
+            RegexTree.parseRegular(rule.getPattern());
+        } catch (RegexTree.Unsupported unsupported) {
+            throw new IllegalArgumentException(
+                    "pattern '" + rule.getPattern() + "' cannot be compiled into an automaton: "
+                            + unsupported.getMessage(), unsupported);
+        }
+    }
+
+    private void buildAutomata() {
+        final int modes = getModeCount();
+        final Dfa[] dfas = new Dfa[modes];
+        final int[][] fallbackRules = new int[modes][];
+
+        for (int mode = 0; mode < modes; mode++) {
+            final List<Integer> fallback = new ArrayList<>();
+            dfas[mode] = buildAutomaton(mode, fallback);
+            fallbackRules[mode] = toArray(fallback);
+        }
+
+        this.dfas = dfas;
+        this.fallbackRules = fallbackRules;
+    }
+
+    /**
+     * Compile rules of the given mode into an automaton.
+     *
+     * @param fallback receives indices of the rules of the mode which the automaton doesn't handle, in order.
+     * @return the automaton, or null if no rules are compiled.
+     */
+    private Dfa buildAutomaton(int mode, List<Integer> fallback) {
+        final List<Rule> rules = getRules();
+        final List<RegexTree> trees = new ArrayList<>();
+        final List<Integer> compiled = new ArrayList<>();
+
+        for (int i = 0; i < rules.size(); i++) {
+            if (rules.get(i).getMode() != mode) {
+                continue;
+            }
+
+            if (rules.get(i).getScanner() != null) {
+                fallback.add(i);
+                continue;
+            }
+
+            try {
+                trees.add(RegexTree.parseRegular(rules.get(i).getPattern()));
+                compiled.add(i);
+            } catch (RegexTree.Unsupported unsupported) {
+                fallback.add(i);
+            }
+        }
+
+        Dfa dfa;
+        try {
+            dfa = Dfa.build(trees, toArray(compiled));
+        } catch (Dfa.TooLarge tooLarge) {
+            // Find out which rules blow up on their own and match them with regexps instead.
+            final int unsupported = fallback.size();
+            for (int i = trees.size() - 1; i >= 0; i--) {
+                try {
+                    Dfa.build(trees.subList(i, i + 1), new int[]{compiled.get(i)});
+                } catch (Dfa.TooLarge ruleTooLarge) {
+                    fallback.add(compiled.get(i));
+                    compiled.remove(i);
+                    trees.remove(i);
+                }
+            }
+
+            if (!regexFallback && fallback.size() > unsupported) {
+                throw new IllegalStateException("some rules are too complex to be compiled into an automaton");
+            }
+
+            try {
+                dfa = Dfa.build(trees, toArray(compiled));
+            } catch (Dfa.TooLarge combinedTooLarge) {
+                throw new IllegalStateException("rules are too complex to be compiled into an automaton",
+                        combinedTooLarge);
+            }
+        }
+
+        fallback.sort(Integer::compare);
+
+        return trees.isEmpty() ? null : dfa;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        return list.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
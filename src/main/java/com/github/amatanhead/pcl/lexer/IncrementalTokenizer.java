@@ -0,0 +1,181 @@
+package com.github.amatanhead.pcl.lexer;
+
+import com.github.amatanhead.pcl.errors.TokenizationError;
+import com.github.amatanhead.pcl.stream.TokenBuffer;
+
+import java.util.function.Function;
+
+/**
+ * Updates tokens of a text after an edit by tokenizing only the part of the text around the edit.
+ * <p>
+ * The text is read through a view which records how far each match looked (e.g. `1.` followed by `x` lexes
+ * as `1` and `.` only after looking at the `x`), and every token keeps this {@link TokenBuffer#getReach(int) reach}.
+ * Tokens whose reach is before the edit are kept, since nothing they depend on has changed. The new text
+ * is tokenized from the first other token until the stream reaches, past the edit, the start of one of the old
+ * tokens; since rule-based lexers have no state besides the current position, the rest of the old tokens are
+ * valid and are moved by the length difference. Tokens with unknown reaches (e.g. the ones built by
+ * {@link CompiledLexer#tokenizeAll(CharSequence)}) are re-tokenized.
+ */
+final class IncrementalTokenizer {
+    /**
+     * Protect constructor since this is a static-only class.
+     */
+    private IncrementalTokenizer() {
+    }
+
+    /**
+     * Update tokens after an edit.
+     *
+     * @param previous       tokens of the text before the edit, including the EOF token.
+     * @param text           the text after the edit.
+     * @param offset         offset of the edit.
+     * @param removedLength  number of chars removed from the old text at the offset.
+     * @param insertedLength number of chars inserted in their place.
+     * @param streams        creates a token stream over the given text.
+     * @throws TokenizationError the new text cannot be tokenized.
+     */
+    static TokenBuffer retokenize(TokenBuffer previous, CharSequence text, int offset, int removedLength,
+                                  int insertedLength, Function<CharSequence, RuleTokenStream> streams)
+            throws TokenizationError {
+        final int oldLength = previous.getSource().length();
+
+        if (offset < 0 || removedLength < 0 || insertedLength < 0 || offset + removedLength > oldLength) {
+            throw new IndexOutOfBoundsException(
+                    "edit " + offset + ".." + (offset + removedLength) + " is out of the text");
+        }
+
+        if (text.length() != oldLength - removedLength + insertedLength) {
+            throw new IllegalArgumentException("text length doesn't match the edit");
+        }
+
+        final int shift = insertedLength - removedLength;
+        final int editEnd = offset + insertedLength;
+        final TokenBuffer result = new TokenBuffer(text);
+        final Probe probe = new Probe(text);
+        final RuleTokenStream stream = streams.apply(probe);
+
+        int restartIndex = 0;
+        while (restartIndex < previous.size() && previous.getReach(restartIndex) <= offset) {
+            restartIndex += 1;
+        }
+
+        final int restart = restartIndex == 0 ? 0 : previous.getStart(restartIndex);
+
+        result.addAll(previous, 0, restartIndex, 0);
+        stream.seek(restart);
+
+        // Reach of the text skipped before the first token. Text skipped after a token belongs to the token.
+        int skipped = 0;
+
+        while (true) {
+            final int position = stream.getPosition();
+
+            if (position >= editEnd) {
+                final int index = find(previous, position - shift);
+                if (index >= 0) {
+                    final int first = result.size();
+                    result.addAll(previous, index, previous.size(), shift);
+                    if (first == 0 && result.size() > 0) {
+                        result.setReach(first, Math.max(result.getReach(first), skipped));
+                    }
+                    return result;
+                }
+            }
+
+            final int count = result.size();
+            probe.start(position);
+            final int step = stream.step(result);
+            final int reach = probe.getReach();
+
+            if (result.size() > count) {
+                result.setReach(count, count == 0 ? Math.max(reach, skipped) : reach);
+            } else if (count > 0) {
+                result.setReach(count - 1, Math.max(result.getReach(count - 1), reach));
+            } else {
+                skipped = Math.max(skipped, reach);
+            }
+
+            if (step < 0) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Find the first token which starts at or after the given offset.
+     *
+     * @return index of the token, or the number of tokens.
+     */
+    private static int findFirst(TokenBuffer tokens, int offset) {
+        int low = 0;
+        int high = tokens.size();
+
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (tokens.getStart(mid) < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Find the token which starts at the given offset.
+     *
+     * @return index of the token, or -1.
+     */
+    private static int find(TokenBuffer tokens, int offset) {
+        final int i = findFirst(tokens, offset);
+        return i < tokens.size() && tokens.getStart(i) == offset ? i : -1;
+    }
+
+    /**
+     * A view of the text which records how far it was read since the last {@link #start(int)}.
+     */
+    private static final class Probe implements CharSequence {
+        private final CharSequence text;
+        private int reach;
+
+        Probe(CharSequence text) {
+            this.text = text;
+        }
+
+        void start(int position) {
+            reach = position;
+        }
+
+        /**
+         * Offset following the last char read. Looking at the last char of the text counts as looking past it,
+         * since a match could have stopped there because the text ends.
+         */
+        int getReach() {
+            return reach >= text.length() ? text.length() + 1 : reach;
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            reach = Math.max(reach, index + 1);
+            return text.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            reach = Math.max(reach, end);
+            return text.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            reach = text.length();
+            return text.toString();
+        }
+    }
+}
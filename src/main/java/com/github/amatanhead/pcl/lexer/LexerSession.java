@@ -0,0 +1,56 @@
+package com.github.amatanhead.pcl.lexer;
+
+import com.github.amatanhead.pcl.errors.TokenizationError;
+import com.github.amatanhead.pcl.stream.TokenStream;
+import com.github.amatanhead.pcl.token.Token;
+
+/**
+ * A lazy token stream which can be {@link #reset(CharSequence) reset} to tokenize another text.
+ * <p>
+ * Creating a token stream costs a few objects per rule (such as a {@link java.util.regex.Matcher matcher}),
+ * which is noticeable when texts are small and many. A session creates them once and reuses them for each
+ * text, so tokenizing a text only allocates the tokens themselves.
+ * <p>
+ * Sessions are created by {@link CompiledLexer#newSession()} and are not thread-safe. A session starts with
+ * an empty text. Tokens of a text stay valid after the session is reset.
+ */
+public final class LexerSession implements TokenStream {
+    private final RuleTokenStream stream;
+
+    LexerSession(RuleTokenStream stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Start tokenizing the given text from its beginning. The session becomes {@link #isClear() clear} again.
+     *
+     * @param text text to be tokenized. It must not change while the tokens are in use.
+     */
+    public void reset(CharSequence text) {
+        if (text == null) {
+            throw new NullPointerException("text must not be null");
+        }
+
+        stream.reset(text);
+    }
+
+    @Override
+    public Token input() throws TokenizationError {
+        return stream.input();
+    }
+
+    @Override
+    public int input(Token[] dst, int off, int len) throws TokenizationError {
+        return stream.input(dst, off, len);
+    }
+
+    @Override
+    public boolean canInput() {
+        return stream.canInput();
+    }
+
+    @Override
+    public boolean isClear() {
+        return stream.isClear();
+    }
+}
@@ -0,0 +1,195 @@
+package com.github.amatanhead.pcl.lexer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A trie over a set of fixed strings which finds the longest string a text starts with, or checks whether
+ * a slice of a text is one of the strings, without creating any string objects.
+ * <p>
+ * Each string has a value index (its position in the list the trie was built from). Children of each node
+ * are stored as a sorted run of chars in a single array and are looked up with a binary search.
+ * <p>
+ * Instances are immutable.
+ */
+final class LiteralTrie {
+    private final String[] strings;
+
+    /**
+     * Children of the i-th node are `edgeChars[childStart[i] .. childStart[i + 1])`, sorted.
+     */
+    private final int[] childStart;
+    private final char[] edgeChars;
+    private final int[] edgeTargets;
+
+    /**
+     * Value index of the string which ends in each node, or -1.
+     */
+    private final int[] values;
+
+    /**
+     * Build a trie over the given strings.
+     *
+     * @throws IllegalArgumentException some string is empty or occurs twice.
+     */
+    LiteralTrie(List<String> strings) {
+        this.strings = strings.toArray(new String[0]);
+
+        final List<TreeMap<Character, Integer>> children = new ArrayList<>();
+        final List<Integer> nodeValues = new ArrayList<>();
+        children.add(new TreeMap<>());
+        nodeValues.add(-1);
+
+        for (int i = 0; i < this.strings.length; i++) {
+            final String string = this.strings[i];
+
+            if (string.isEmpty()) {
+                throw new IllegalArgumentException("literal must not be empty");
+            }
+
+            int node = 0;
+            for (int j = 0; j < string.length(); j++) {
+                final Integer next = children.get(node).get(string.charAt(j));
+                if (next != null) {
+                    node = next;
+                } else {
+                    children.get(node).put(string.charAt(j), children.size());
+                    node = children.size();
+                    children.add(new TreeMap<>());
+                    nodeValues.add(-1);
+                }
+            }
+
+            if (nodeValues.get(node) >= 0) {
+                throw new IllegalArgumentException("literal '" + string + "' is registered twice");
+            }
+
+            nodeValues.set(node, i);
+        }
+
+        final int nodes = children.size();
+        childStart = new int[nodes + 1];
+        edgeChars = new char[nodes - 1];
+        edgeTargets = new int[nodes - 1];
+        values = new int[nodes];
+
+        int edge = 0;
+        for (int i = 0; i < nodes; i++) {
+            childStart[i] = edge;
+            values[i] = nodeValues.get(i);
+
+            for (Map.Entry<Character, Integer> child : children.get(i).entrySet()) {
+                edgeChars[edge] = child.getKey();
+                edgeTargets[edge] = child.getValue();
+                edge += 1;
+            }
+        }
+        childStart[nodes] = edge;
+    }
+
+    /**
+     * Number of strings in this trie.
+     */
+    int size() {
+        return strings.length;
+    }
+
+    /**
+     * Get the string with the given value index.
+     */
+    String get(int value) {
+        return strings[value];
+    }
+
+    /**
+     * Find the longest string which `text[from, to)` starts with.
+     *
+     * @param hitEnd if not null, its first element is set to true if the scan ran up to `to` and more text
+     *               could change the result, and to false otherwise.
+     * @return `-1` if no string matches, otherwise the value index in the upper 32 bits and the end of the match
+     * in the lower 32 bits.
+     */
+    long longestMatch(CharSequence text, int from, int to, boolean[] hitEnd) {
+        int node = 0;
+        int bestValue = -1;
+        int bestEnd = -1;
+        int pos = from;
+
+        while (true) {
+            if (values[node] >= 0) {
+                bestValue = values[node];
+                bestEnd = pos;
+            }
+
+            if (pos == to) {
+                break;
+            }
+
+            node = child(node, text.charAt(pos));
+
+            if (node < 0) {
+                break;
+            }
+
+            pos += 1;
+        }
+
+        if (hitEnd != null) {
+            hitEnd[0] = pos == to && node >= 0 && childStart[node] < childStart[node + 1];
+        }
+
+        return bestValue < 0 ? -1 : ((long) bestValue << 32) | bestEnd;
+    }
+
+    /**
+     * Check whether `text[start, end)` is one of the strings.
+     *
+     * @return the value index of the string, or -1.
+     */
+    int exactMatch(CharSequence text, int start, int end) {
+        int node = 0;
+
+        for (int pos = start; pos < end && node >= 0; pos++) {
+            node = child(node, text.charAt(pos));
+        }
+
+        return node < 0 ? -1 : values[node];
+    }
+
+    private int child(int node, char c) {
+        final int i = Arrays.binarySearch(edgeChars, childStart[node], childStart[node + 1], c);
+        return i < 0 ? -1 : edgeTargets[i];
+    }
+
+    /**
+     * Build a regexp which matches the same strings as the trie, preferring longer ones.
+     * <p>
+     * The regexp is only used to analyse and compile the rule (see {@link RuleIndex} and {@link DfaTextLexer});
+     * alternatives are sorted by length, so a backtracking matcher also finds the longest match.
+     */
+    String toRegex() {
+        final String[] sorted = strings.clone();
+        Arrays.sort(sorted, (a, b) -> a.length() != b.length() ? b.length() - a.length() : a.compareTo(b));
+
+        final StringBuilder builder = new StringBuilder();
+        for (String string : sorted) {
+            if (builder.length() > 0) {
+                builder.append('|');
+            }
+
+            for (int i = 0; i < string.length(); i++) {
+                final char c = string.charAt(i);
+                if (c < 128 && Character.isLetterOrDigit(c)) {
+                    builder.append(c);
+                } else {
+                    builder.append(String.format("\\u%04x", (int) c));
+                }
+            }
+        }
+
+        return builder.toString();
+    }
+}
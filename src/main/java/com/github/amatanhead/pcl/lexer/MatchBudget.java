@@ -0,0 +1,176 @@
+package com.github.amatanhead.pcl.lexer;
+
+/**
+ * Limits on the work regexp matchers may do to find a single token.
+ * <p>
+ * Backtracking matchers may take exponential time on some patterns and inputs (see
+ * {@link RegexpTextLexer#setBacktrackingPolicy(BacktrackingPolicy)}). To bound it, matchers run over
+ * a {@link Meter} which counts the chars they read, and gives up once the number of reads or the time spent
+ * exceeds the budget. The budget is renewed before each token.
+ * <p>
+ * Budgets are immutable. A zero limit means no limit.
+ */
+final class MatchBudget {
+    static final MatchBudget UNLIMITED = new MatchBudget(0, 0);
+
+    /**
+     * The clock is checked once in that many reads.
+     */
+    private static final int CLOCK_INTERVAL = 1 << 10;
+
+    private final long maxSteps;
+    private final long maxNanos;
+
+    private MatchBudget(long maxSteps, long maxNanos) {
+        this.maxSteps = maxSteps;
+        this.maxNanos = maxNanos;
+    }
+
+    /**
+     * Get a copy of this budget with the given limit on the number of chars read per token.
+     */
+    MatchBudget withMaxSteps(long maxSteps) {
+        if (maxSteps < 0) {
+            throw new IllegalArgumentException("step limit must not be negative");
+        }
+
+        return new MatchBudget(maxSteps, maxNanos);
+    }
+
+    /**
+     * Get a copy of this budget with the given limit on the time spent per token, in nanoseconds.
+     */
+    MatchBudget withMaxNanos(long maxNanos) {
+        if (maxNanos < 0) {
+            throw new IllegalArgumentException("time limit must not be negative");
+        }
+
+        return new MatchBudget(maxSteps, maxNanos);
+    }
+
+    long getMaxSteps() {
+        return maxSteps;
+    }
+
+    long getMaxNanos() {
+        return maxNanos;
+    }
+
+    boolean isUnlimited() {
+        return maxSteps == 0 && maxNanos == 0;
+    }
+
+    /**
+     * Thrown by a {@link Meter} when the budget is exceeded. Carries no stack trace, since it's always caught
+     * by the token stream and turned into a {@link com.github.amatanhead.pcl.errors.TokenizationError}.
+     */
+    static final class Exceeded extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Exceeded() {
+            super("match budget exceeded", null, false, false);
+        }
+    }
+
+    /**
+     * A view of a text which enforces the budget on everyone who reads it. Not thread-safe.
+     */
+    static final class Meter implements CharSequence {
+        private CharSequence text;
+        private final MatchBudget budget;
+
+        /**
+         * Reads allowed since the last check, and reads left until the next one.
+         */
+        private long granted;
+        private long left;
+
+        /**
+         * Reads accounted for by the checks since the budget was renewed.
+         */
+        private long steps;
+        private long deadline;
+
+        Meter(CharSequence text, MatchBudget budget) {
+            this.text = text;
+            this.budget = budget;
+        }
+
+        /**
+         * Replace the text, e.g. when a stream is reused for another text.
+         */
+        void setText(CharSequence text) {
+            this.text = text;
+        }
+
+        /**
+         * Renew the budget.
+         */
+        void start() {
+            steps = 0;
+
+            if (budget.maxNanos > 0) {
+                deadline = System.nanoTime() + budget.maxNanos;
+            }
+
+            grant();
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (left-- == 0) {
+                check();
+            }
+
+            return text.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return text.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return text.toString();
+        }
+
+        /**
+         * Allow some more reads before the next check: up to the step limit, and no more than
+         * {@link #CLOCK_INTERVAL} if there's a time limit.
+         */
+        private void grant() {
+            granted = budget.maxNanos > 0 ? CLOCK_INTERVAL : Long.MAX_VALUE;
+
+            if (budget.maxSteps > 0) {
+                granted = Math.min(granted, budget.maxSteps - steps);
+            }
+
+            left = granted;
+        }
+
+        /**
+         * Called on the first read past the granted ones. Either throws or grants some more reads,
+         * counting the current one.
+         */
+        private void check() {
+            steps += granted;
+
+            if (budget.maxSteps > 0 && steps >= budget.maxSteps) {
+                throw new Exceeded();
+            }
+
+            if (budget.maxNanos > 0 && System.nanoTime() - deadline > 0) {
+                throw new Exceeded();
+            }
+
+            grant();
+            left -= 1;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.github.amatanhead.pcl.lexer;
+
+/**
+ * A change of the lexer mode which happens when a rule matches (see {@link RegexpTextLexer#beginMode(String)}).
+ * <p>
+ * Token streams keep a stack of modes. A rule may push a new mode onto the stack (e.g. on an opening quote
+ * of a string with interpolation), pop the current mode and return to the previous one (e.g. on the closing
+ * quote), or switch the current mode without touching the rest of the stack.
+ * <p>
+ * Transitions refer to modes by name; a mode is created on first use, either by a transition or by
+ * {@link RegexpTextLexer#beginMode(String)}.
+ */
+public final class ModeTransition {
+    enum Kind {
+        PUSH, POP, SWITCH
+    }
+
+    private static final ModeTransition POP = new ModeTransition(Kind.POP, null);
+
+    private final Kind kind;
+    private final String mode;
+
+    private ModeTransition(Kind kind, String mode) {
+        this.kind = kind;
+        this.mode = mode;
+    }
+
+    /**
+     * Enter the given mode, remembering the current one.
+     */
+    static public ModeTransition push(String mode) {
+        if (mode == null) {
+            throw new NullPointerException("mode must not be null");
+        }
+
+        return new ModeTransition(Kind.PUSH, mode);
+    }
+
+    /**
+     * Return to the mode which was current before the last push. Popping the last mode is a tokenization error.
+     */
+    static public ModeTransition pop() {
+        return POP;
+    }
+
+    /**
+     * Replace the current mode with the given one.
+     */
+    static public ModeTransition switchTo(String mode) {
+        if (mode == null) {
+            throw new NullPointerException("mode must not be null");
+        }
+
+        return new ModeTransition(Kind.SWITCH, mode);
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Name of the mode to be entered, or null for {@link #pop()}.
+     */
+    public String getMode() {
+        return mode;
+    }
+
+    @Override
+    public String toString() {
+        return kind == Kind.POP ? "pop" : kind.name().toLowerCase() + "(" + mode + ")";
+    }
+}
@@ -0,0 +1,271 @@
+package com.github.amatanhead.pcl.lexer;
+
+import com.github.amatanhead.pcl.errors.TokenizationError;
+import com.github.amatanhead.pcl.stream.TokenBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+
+/**
+ * Tokenizes a text in chunks, in parallel, and joins the results.
+ * <p>
+ * The text is split at offsets approved by a {@link ResyncPredicate}, and each chunk is tokenized by its own
+ * token stream starting at the chunk's first char. Rule-based lexers have no state besides the current position,
+ * so whenever the tokenization of the preceding part of the text has a token boundary at the same offset as
+ * a chunk, the rest of the chunk is known to be tokenized correctly. Chunks are joined in order; if the preceding
+ * part ends in the middle of the chunk's token (e.g. the chunk starts inside a multi-line string), the text is
+ * tokenized again from the true boundary until it reaches one of the chunk's token boundaries.
+ * <p>
+ * A chunk stops at an error or at a match which doesn't move the position, since with a single mode the same
+ * match repeats forever. Tokenizing from the true boundary never reaches such a point unless the text can't
+ * be tokenized at all, so the rest of the chunk is tokenized again as well.
+ */
+final class ParallelTokenizer {
+    /**
+     * Tokens of a part of the text.
+     */
+    private static final class Chunk {
+        final int start;
+        final int limit;
+        final TokenBuffer tokens;
+
+        /**
+         * Start offsets of the tokens.
+         */
+        int[] starts = new int[16];
+
+        /**
+         * Number of the tokens which are known to be correct if the tokenization starts at a true boundary.
+         */
+        int count;
+
+        /**
+         * Offset at which the tokenization stopped, i.e. the end of the last match.
+         */
+        int end;
+
+        /**
+         * Whether the tokenization stopped at a match which doesn't move the position.
+         */
+        boolean stalled;
+
+        /**
+         * Index of the token of the synchronization chunk at which the tokenization stopped, or -1.
+         */
+        int syncIndex = -1;
+
+        /**
+         * Error which stopped the tokenization, or null.
+         */
+        TokenizationError error;
+
+        Chunk(CharSequence text, int start, int limit) {
+            this.start = start;
+            this.limit = limit;
+            this.tokens = new TokenBuffer(text);
+        }
+
+        /**
+         * Tokenize matches which start before the limit, or up to the end of the text. If the synchronization
+         * chunk is given, stop at the first of its token boundaries.
+         *
+         * @param speculative whether the chunk may start at a position the text is never tokenized at;
+         *                    if so, stop at a match which doesn't move the position.
+         */
+        void tokenize(RuleTokenStream stream, Chunk sync, boolean speculative) {
+            stream.seek(start);
+
+            try {
+                while (stream.getPosition() < limit) {
+                    final int position = stream.getPosition();
+
+                    if (sync != null) {
+                        syncIndex = sync.find(position);
+                        if (syncIndex >= 0) {
+                            break;
+                        }
+                    }
+
+                    count = tokens.size();
+
+                    final int result = stream.step(tokens);
+
+                    if (speculative && result >= 0 && stream.getPosition() == position) {
+                        stalled = true;
+                        break;
+                    }
+
+                    if (result != 0) {
+                        if (tokens.size() > starts.length) {
+                            starts = Arrays.copyOf(starts, starts.length * 2);
+                        }
+                        starts[tokens.size() - 1] = position;
+                    }
+
+                    if (result < 0) {
+                        break;
+                    }
+                }
+            } catch (TokenizationError e) {
+                error = e;
+            }
+
+            if (!stalled) {
+                count = tokens.size();
+            }
+
+            end = stream.getPosition();
+        }
+
+        /**
+         * Find the token which starts at the given offset.
+         *
+         * @return index of the token (0 if the offset is the start of the chunk), or -1 if the offset is not
+         * a known token boundary of this chunk.
+         */
+        int find(int offset) {
+            if (offset == start) {
+                return 0;
+            }
+
+            final int i = Arrays.binarySearch(starts, 0, count, offset);
+            return i < 0 ? -1 : i;
+        }
+    }
+
+    /**
+     * Protect constructor since this is a static-only class.
+     */
+    private ParallelTokenizer() {
+    }
+
+    /**
+     * Tokenize the text.
+     *
+     * @param text      text to be tokenized.
+     * @param streams   creates a token stream over the given text. Called in the calling thread only.
+     * @param pool      pool to run the tokenization in.
+     * @param chunkSize approximate size of a chunk, in chars.
+     * @param predicate tells where the text can be split.
+     * @throws TokenizationError the text cannot be tokenized.
+     */
+    static TokenBuffer tokenize(CharSequence text, Function<CharSequence, RuleTokenStream> streams,
+                                ForkJoinPool pool, int chunkSize, ResyncPredicate predicate)
+            throws TokenizationError {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunk size must be positive");
+        }
+
+        final List<Chunk> chunks = split(text, chunkSize, predicate);
+        final List<RuleTokenStream> chunkStreams = new ArrayList<>();
+        final List<ForkJoinTask<?>> tasks = new ArrayList<>();
+
+        // Streams are created here, since lexers are not thread-safe and may compile their rules lazily.
+        for (int i = 0; i < chunks.size(); i++) {
+            chunkStreams.add(streams.apply(text));
+        }
+
+        for (int i = 0; i < chunks.size(); i++) {
+            final Chunk chunk = chunks.get(i);
+            final RuleTokenStream stream = chunkStreams.get(i);
+            tasks.add(pool.submit(() -> chunk.tokenize(stream, null, true)));
+        }
+
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+
+        return join(text, chunks, streams);
+    }
+
+    private static List<Chunk> split(CharSequence text, int chunkSize, ResyncPredicate predicate) {
+        final int length = text.length();
+        final List<Integer> bounds = new ArrayList<>();
+        bounds.add(0);
+
+        int offset = chunkSize;
+        while (offset < length) {
+            while (offset < length && !predicate.isSafe(text, offset)) {
+                offset += 1;
+            }
+
+            if (offset < length) {
+                bounds.add(offset);
+            }
+
+            offset += chunkSize;
+        }
+
+        final List<Chunk> chunks = new ArrayList<>();
+        for (int i = 0; i < bounds.size(); i++) {
+            final int limit = i + 1 < bounds.size() ? bounds.get(i + 1) : Integer.MAX_VALUE;
+            chunks.add(new Chunk(text, bounds.get(i), limit));
+        }
+
+        return chunks;
+    }
+
+    private static TokenBuffer join(CharSequence text, List<Chunk> chunks,
+                                    Function<CharSequence, RuleTokenStream> streams) throws TokenizationError {
+        final TokenBuffer result = new TokenBuffer(text);
+        int position = 0;
+
+        for (Chunk chunk : chunks) {
+            if (position >= chunk.limit) {
+                // The chunk is covered by the tokens of the previous chunks.
+                continue;
+            }
+
+            int index = chunk.find(position);
+
+            if (index < 0) {
+                // The chunk starts in the middle of a token, or its tokenization stopped before the true boundary;
+                // tokenize from the true boundary until the tokens of the chunk or its limit are reached.
+                final Chunk gap = new Chunk(text, position, chunk.limit);
+                position = fill(result, gap, streams.apply(text), chunk);
+
+                if (gap.syncIndex < 0) {
+                    continue;
+                }
+
+                index = gap.syncIndex;
+            }
+
+            result.addAll(chunk.tokens, index, chunk.count);
+            position = chunk.end;
+
+            if (chunk.error != null) {
+                throw chunk.error;
+            }
+
+            if (chunk.stalled) {
+                position = fill(result, new Chunk(text, position, chunk.limit), streams.apply(text), null);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Tokenize the gap from a true boundary and add its tokens to the result.
+     *
+     * @return offset at which the tokenization of the gap stopped.
+     * @throws TokenizationError the gap cannot be tokenized.
+     */
+    private static int fill(TokenBuffer result, Chunk gap, RuleTokenStream stream, Chunk sync)
+            throws TokenizationError {
+        gap.tokenize(stream, sync, false);
+
+        result.addAll(gap.tokens, 0, gap.tokens.size());
+
+        if (gap.error != null) {
+            throw gap.error;
+        }
+
+        return gap.end;
+    }
+}
@@ -0,0 +1,220 @@
+package com.github.amatanhead.pcl.lexer;
+
+import com.github.amatanhead.pcl.errors.NoNewTokenError;
+import com.github.amatanhead.pcl.errors.TokenizationError;
+import com.github.amatanhead.pcl.stream.TokenStream;
+import com.github.amatanhead.pcl.token.Token;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * A token stream which reads and lexes its text ahead on background threads.
+ * <p>
+ * The text is tokenized in two background tasks: one reads (and, for bytes, decodes) the text, the other lexes
+ * it. Tokens are handed to the thread which reads this stream in batches, through a bounded ring. When the
+ * reader of the stream falls behind, the ring fills up and the tasks wait, so memory used by the pipeline is
+ * bounded. On a multi-core machine, reading, lexing and parsing then overlap instead of taking turns.
+ * <p>
+ * A {@link TokenizationError} of the lexer is thrown by {@link #input()} once all tokens before the invalid
+ * input are read, and tells the same position as it would without the pipeline. I/O errors are thrown as
+ * {@link java.io.UncheckedIOException}s, the same way.
+ * <p>
+ * Pipelined streams are created by {@link CompiledLexer#tokenizePipelined(java.io.Reader, int, Executor)}.
+ * The stream should be {@link #close() closed} if it's not read to the end, to stop the background tasks.
+ * It's only worth it for large inputs: {@link #canInput()} and {@link #input()} may wait for the lexer,
+ * and a batch is only handed over when it's full or the text is over.
+ * <p>
+ * Like other token streams, a pipelined stream must be read by one thread at a time.
+ */
+public final class PipelinedTokenStream implements TokenStream, AutoCloseable {
+    /**
+     * Number of tokens in a batch.
+     */
+    static final int BATCH_SIZE = 256;
+
+    /**
+     * Number of batches lexed ahead.
+     */
+    static final int CAPACITY = 16;
+
+    private static final Token[] NO_TOKENS = new Token[0];
+
+    private final SpscRing<Token[]> ring = new SpscRing<>(CAPACITY);
+    private final ReadAheadReader source;
+
+    private Token[] batch = NO_TOKENS;
+    private int position = 0;
+
+    private boolean over = false;
+    private Throwable error = null;
+
+    private boolean clear = true;
+
+    /**
+     * Start lexing the given stream in the background.
+     *
+     * @param tokens   token stream to be read ahead. It's only used by the background task from now on.
+     * @param source   reader which feeds the token stream, closed along with this stream to stop its task.
+     * @param executor runs the lexing task.
+     */
+    PipelinedTokenStream(TokenStream tokens, ReadAheadReader source, Executor executor) {
+        this.source = source;
+
+        executor.execute(() -> lexAhead(tokens));
+    }
+
+    private void lexAhead(TokenStream tokens) {
+        Token[] batch = new Token[BATCH_SIZE];
+        int size = 0;
+
+        Throwable error = null;
+
+        try {
+            while (tokens.canInput()) {
+                size += tokens.input(batch, size, BATCH_SIZE - size);
+
+                if (size == BATCH_SIZE) {
+                    if (!ring.put(batch)) {
+                        return;
+                    }
+
+                    batch = new Token[BATCH_SIZE];
+                    size = 0;
+                }
+            }
+        } catch (InterruptedException e) {
+            ring.finish(new TokenizationError("tokenization was interrupted"));
+            return;
+        } catch (Throwable e) {
+            error = e;
+        }
+
+        try {
+            // Tokens before the error go first.
+            if (size > 0 && !ring.put(Arrays.copyOf(batch, size))) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            error = new TokenizationError("tokenization was interrupted");
+        }
+
+        ring.finish(error);
+    }
+
+    /**
+     * Make sure there's a token in the current batch, unless the stream is over.
+     *
+     * @return true if there's a token or an error to be thrown.
+     */
+    private boolean fetch() {
+        if (position < batch.length) {
+            return true;
+        }
+
+        if (over) {
+            return error != null;
+        }
+
+        final Token[] next;
+
+        try {
+            next = ring.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+
+            over = true;
+            error = new TokenizationError("interrupted while waiting for tokens");
+            return true;
+        }
+
+        if (next == null) {
+            over = true;
+            error = ring.getError();
+            return error != null;
+        }
+
+        batch = next;
+        position = 0;
+
+        return true;
+    }
+
+    @Override
+    public Token input() throws TokenizationError {
+        clear = false;
+
+        if (!fetch()) {
+            throw new NoNewTokenError("no tokens left in the stream");
+        }
+
+        if (position < batch.length) {
+            return batch[position++];
+        }
+
+        if (error instanceof TokenizationError) {
+            throw (TokenizationError) error;
+        } else if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error instanceof Error) {
+            throw (Error) error;
+        } else {
+            throw new IllegalStateException("tokenization failed", error);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Copies the tokens from one batch at most, and only waits for the lexer if there are no tokens lexed ahead.
+     */
+    @Override
+    public int input(Token[] dst, int off, int len) throws TokenizationError {
+        if (off < 0 || len < 0 || len > dst.length - off) {
+            throw new IndexOutOfBoundsException("range " + off + ".." + (off + len) + " is out of the array");
+        }
+
+        if (len == 0 || !fetch()) {
+            return 0;
+        }
+
+        if (position == batch.length) {
+            // Only the error is left, let input() throw it.
+            input();
+        }
+
+        final int count = Math.min(len, batch.length - position);
+        System.arraycopy(batch, position, dst, off, count);
+        position += count;
+
+        clear = false;
+
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Waits for the lexer if there are no tokens lexed ahead.
+     */
+    @Override
+    public boolean canInput() {
+        return fetch();
+    }
+
+    @Override
+    public boolean isClear() {
+        return clear;
+    }
+
+    /**
+     * Stop the background tasks. Tokens which are lexed ahead already can still be read, after which the stream
+     * is over, without an EOF token.
+     */
+    @Override
+    public void close() {
+        ring.close();
+        source.close();
+    }
+}
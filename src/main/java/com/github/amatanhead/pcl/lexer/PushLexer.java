@@ -0,0 +1,190 @@
+package com.github.amatanhead.pcl.lexer;
+
+import com.github.amatanhead.pcl.errors.TokenizationError;
+import com.github.amatanhead.pcl.token.Token;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A lexer which is given its text chunk by chunk, as the text arrives, and passes tokens to a consumer
+ * as soon as they are complete.
+ * <p>
+ * This is an inversion of {@link TextLexer#tokenize(java.io.Reader, int)}: instead of reading the input when
+ * the parser asks for tokens, the caller pushes the input with {@link #feed(CharBuffer)} or
+ * {@link #feed(ByteBuffer)}, and tokens are delivered as soon as the text fed so far decides them. A token which
+ * may continue in the next chunk (e.g. an identifier at the end of a chunk) is held back until more text
+ * or {@link #finish()} arrives. Only the text of the unfinished token is kept between calls, so the memory used
+ * by the lexer is bounded by the size of a chunk and the length of the longest token.
+ * <p>
+ * Push lexers are created by {@link CompiledLexer#newPushLexer(Consumer)} and use the rules of the lexer
+ * which created them. Tokens hold copies of their data. A push lexer is not thread-safe.
+ */
+public final class PushLexer {
+    /**
+     * Initial size of the window, in chars.
+     */
+    private static final int BUFFER_SIZE = 1 << 12;
+
+    private final CharWindow window;
+    private final RuleTokenStream stream;
+    private final CharsetDecoder decoder;
+    private final Consumer<? super Token> consumer;
+
+    /**
+     * Bytes fed to the lexer which are not decoded yet, in read mode.
+     */
+    private ByteBuffer bytes = ByteBuffer.allocate(0);
+    private CharBuffer chars = CharBuffer.allocate(0);
+
+    private boolean finished = false;
+
+    PushLexer(Function<CharSequence, RuleTokenStream> streams, CharsetDecoder decoder,
+              Consumer<? super Token> consumer) {
+        if (consumer == null) {
+            throw new NullPointerException("consumer must not be null");
+        }
+
+        this.window = new CharWindow(BUFFER_SIZE);
+        this.stream = streams.apply(window);
+        this.decoder = decoder;
+        this.consumer = consumer;
+
+        decoder.reset();
+    }
+
+    /**
+     * Tokenize the next chunk of the text.
+     * <p>
+     * All tokens which are complete are passed to the consumer before this method returns.
+     *
+     * @param chars next chunk of the text. The lexer consumes it, i.e. moves the buffer's position.
+     * @throws TokenizationError     the text cannot be tokenized.
+     * @throws IllegalStateException the lexer is finished, or there are undecoded bytes.
+     */
+    public void feed(CharBuffer chars) throws TokenizationError {
+        checkNotFinished();
+
+        if (bytes.hasRemaining()) {
+            throw new IllegalStateException("can't feed chars in the middle of a multi-byte sequence");
+        }
+
+        stream.feed(chars);
+        drain();
+    }
+
+    /**
+     * Tokenize the next chunk of the text, decoding it with the decoder the lexer was created with.
+     * <p>
+     * A multi-byte sequence may span chunks: its head is kept until the rest of it is fed.
+     *
+     * @param input next chunk of the encoded text. The lexer consumes it, i.e. moves the buffer's position.
+     * @throws CharacterCodingException the decoder reports a malformed or unmappable input.
+     * @throws TokenizationError        the text cannot be tokenized.
+     * @throws IllegalStateException    the lexer is finished.
+     */
+    public void feed(ByteBuffer input) throws CharacterCodingException, TokenizationError {
+        checkNotFinished();
+
+        if (bytes.hasRemaining()) {
+            // Prepend the incomplete sequence left from the previous chunk.
+            final ByteBuffer joined = ByteBuffer.allocate(bytes.remaining() + input.remaining());
+            joined.put(bytes).put(input).flip();
+            decode(joined, false);
+            bytes = joined;
+        } else {
+            decode(input, false);
+            if (input.hasRemaining()) {
+                bytes = ByteBuffer.allocate(input.remaining());
+                bytes.put(input).flip();
+            }
+        }
+
+        drain();
+    }
+
+    /**
+     * Mark the end of the text: tokenize what's left of it and pass the EOF token to the consumer.
+     *
+     * @throws CharacterCodingException the text ends in the middle of a multi-byte sequence, and the decoder
+     *                                  reports it.
+     * @throws TokenizationError        the text cannot be tokenized.
+     * @throws IllegalStateException    the lexer is already finished.
+     */
+    public void finish() throws CharacterCodingException, TokenizationError {
+        checkNotFinished();
+
+        decode(bytes, true);
+
+        CoderResult result;
+        do {
+            chars.clear();
+            result = decoder.flush(chars);
+            chars.flip();
+            stream.feed(chars);
+        } while (result.isOverflow());
+
+        if (result.isError()) {
+            result.throwException();
+        }
+
+        finished = true;
+        window.finish();
+        drain();
+    }
+
+    /**
+     * Check whether {@link #finish()} was called.
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    private void checkNotFinished() {
+        if (finished) {
+            throw new IllegalStateException("lexer is finished");
+        }
+    }
+
+    /**
+     * Decode as much of the input as possible and feed the chars into the stream.
+     */
+    private void decode(ByteBuffer input, boolean endOfInput) throws CharacterCodingException {
+        final int size = (int) Math.ceil(input.remaining() * (double) decoder.maxCharsPerByte()) + 2;
+        if (chars.capacity() < size) {
+            chars = CharBuffer.allocate(size);
+        }
+
+        CoderResult result;
+        do {
+            chars.clear();
+            result = decoder.decode(input, chars, endOfInput);
+            chars.flip();
+            stream.feed(chars);
+        } while (result.isOverflow());
+
+        if (result.isError()) {
+            result.throwException();
+        }
+    }
+
+    /**
+     * Pass all tokens which are decided by the text fed so far to the consumer.
+     */
+    private void drain() throws TokenizationError {
+        while (stream.canInput()) {
+            final Token token = stream.poll();
+
+            if (token == null) {
+                return;
+            }
+
+            consumer.accept(token);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.amatanhead.pcl.lexer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.util.concurrent.Executor;
+
+/**
+ * A reader which reads (and thus decodes) another reader ahead in a background task.
+ * <p>
+ * The task reads the source in chunks and hands them over through a {@link SpscRing}, so reading the source
+ * overlaps with whatever the consumer of this reader does. At most a few chunks are read ahead. Errors of
+ * the source are rethrown by {@link #read(char[], int, int)} after the chars read before them.
+ * <p>
+ * Closing this reader stops the task, but doesn't close the source.
+ */
+final class ReadAheadReader extends Reader {
+    /**
+     * Number of chunks read ahead.
+     */
+    private static final int CAPACITY = 4;
+
+    private final SpscRing<CharBuffer> ring = new SpscRing<>(CAPACITY);
+
+    private CharBuffer chunk = CharBuffer.allocate(0);
+
+    /**
+     * @param source    reader to be read ahead.
+     * @param chunkSize size of a chunk, in chars.
+     * @param executor  runs the reading task.
+     * @throws IllegalArgumentException chunk size is not positive.
+     */
+    ReadAheadReader(Reader source, int chunkSize, Executor executor) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("buffer size must be positive");
+        }
+
+        executor.execute(() -> readAhead(source, chunkSize));
+    }
+
+    private void readAhead(Reader source, int chunkSize) {
+        try {
+            while (true) {
+                final char[] chars = new char[chunkSize];
+
+                int size = 0;
+                int read = 0;
+                while (size < chunkSize && (read = source.read(chars, size, chunkSize - size)) >= 0) {
+                    size += read;
+                }
+
+                if (size > 0 && !ring.put(CharBuffer.wrap(chars, 0, size))) {
+                    return;
+                }
+
+                if (read < 0) {
+                    ring.finish(null);
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            ring.finish(new InterruptedIOException("reading ahead was interrupted"));
+        } catch (Throwable e) {
+            ring.finish(e);
+        }
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (!chunk.hasRemaining()) {
+            final CharBuffer next;
+
+            try {
+                next = ring.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for input");
+            }
+
+            if (next == null) {
+                final Throwable error = ring.getError();
+
+                if (error == null) {
+                    return -1;
+                } else if (error instanceof IOException) {
+                    throw (IOException) error;
+                } else if (error instanceof RuntimeException) {
+                    throw (RuntimeException) error;
+                } else if (error instanceof Error) {
+                    throw (Error) error;
+                } else {
+                    throw new IOException(error);
+                }
+            }
+
+            chunk = next;
+        }
+
+        final int size = Math.min(len, chunk.remaining());
+        chunk.get(cbuf, off, size);
+
+        return size;
+    }
+
+    @Override
+    public void close() {
+        ring.close();
+    }
+}
@@ -0,0 +1,102 @@
+package com.github.amatanhead.pcl.lexer;
+
+import com.github.amatanhead.pcl.errors.TokenizationError;
+import com.github.amatanhead.pcl.stream.TokenStream;
+import com.github.amatanhead.pcl.token.Token;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+
+/**
+ * A token stream which reads the whole text of a reader and tokenizes it once the first token is requested.
+ * <p>
+ * This is the default {@link TextLexer#tokenize(Reader, int)} for lexers which can only tokenize strings.
+ * Like lazy streams, it reports I/O errors as {@link UncheckedIOException}s, and closes the reader once
+ * it is exhausted.
+ */
+final class ReaderTokenStream implements TokenStream {
+    private final TextLexer lexer;
+    private final Reader reader;
+    private final int bufferSize;
+
+    private TokenStream tokens = null;
+    private TokenizationError error = null;
+
+    /**
+     * @param lexer      lexer to tokenize the text with.
+     * @param reader     reader of the text.
+     * @param bufferSize size of the buffer the text is read through, in chars.
+     * @throws IllegalArgumentException buffer size is not positive.
+     */
+    ReaderTokenStream(TextLexer lexer, Reader reader, int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("buffer size must be positive");
+        }
+
+        this.lexer = lexer;
+        this.reader = reader;
+        this.bufferSize = bufferSize;
+    }
+
+    private TokenStream tokens() throws TokenizationError {
+        if (error != null) {
+            throw error;
+        }
+
+        if (tokens == null) {
+            final StringBuilder text = new StringBuilder();
+            final char[] buffer = new char[bufferSize];
+
+            try {
+                int read;
+                while ((read = reader.read(buffer, 0, buffer.length)) >= 0) {
+                    text.append(buffer, 0, read);
+                }
+
+                reader.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            try {
+                tokens = lexer.tokenize(text.toString());
+            } catch (TokenizationError e) {
+                error = e;
+                throw e;
+            }
+        }
+
+        return tokens;
+    }
+
+    @Override
+    public Token input() throws TokenizationError {
+        return tokens().input();
+    }
+
+    @Override
+    public int input(Token[] dst, int off, int len) throws TokenizationError {
+        return tokens().input(dst, off, len);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Reads the whole text if it's not read yet.
+     */
+    @Override
+    public boolean canInput() {
+        try {
+            return tokens().canInput();
+        } catch (TokenizationError e) {
+            // Let input() throw it.
+            return true;
+        }
+    }
+
+    @Override
+    public boolean isClear() {
+        return error == null && (tokens == null || tokens.isClear());
+    }
+}
@@ -0,0 +1,820 @@
+package com.github.amatanhead.pcl.lexer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A syntax tree for a subset of {@link Pattern java.util.regex} patterns.
+ * <p>
+ * Supported are literals and escapes, character classes (including nested unions and the predefined
+ * `\d`, `\s`, `\w`, `\h`, `\v` classes and their negations), `.`, `\Q...\E` quotations, capturing and
+ * non-capturing groups, alternations and quantifiers. Class intersections, unicode properties, atomic groups
+ * and flags are not supported.
+ * <p>
+ * Anchors, boundaries, lookaround, backreferences and lazy or possessive quantifiers are parsed, but they make
+ * the tree non-regular, i.e. such a tree can be analysed (see {@link #firstChars()}) but cannot be turned
+ * into a finite automaton (see {@link #isRegular()}).
+ * <p>
+ * The tree works with UTF-16 code units rather than code points.
+ */
+abstract class RegexTree {
+    /**
+     * Thrown when a pattern uses a construct outside of the supported subset.
+     */
+    static final class Unsupported extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A single char from the given set.
+     */
+    static final class Chars extends RegexTree {
+        final CharRanges set;
+
+        Chars(CharRanges set) {
+            this.set = set;
+        }
+    }
+
+    /**
+     * A sequence of nodes. An empty sequence matches an empty string.
+     */
+    static final class Concat extends RegexTree {
+        final List<RegexTree> items;
+
+        Concat(List<RegexTree> items) {
+            this.items = items;
+        }
+    }
+
+    /**
+     * Either of the given nodes.
+     */
+    static final class Alt extends RegexTree {
+        final List<RegexTree> alternatives;
+
+        Alt(List<RegexTree> alternatives) {
+            this.alternatives = alternatives;
+        }
+    }
+
+    /**
+     * A node repeated `min` to `max` times. `max = -1` means no upper bound.
+     */
+    static final class Repeat extends RegexTree {
+        final RegexTree node;
+        final int min;
+        final int max;
+        final boolean greedy;
+
+        Repeat(RegexTree node, int min, int max, boolean greedy) {
+            this.node = node;
+            this.min = min;
+            this.max = max;
+            this.greedy = greedy;
+        }
+    }
+
+    /**
+     * A zero-width assertion: an anchor, a boundary or a lookaround.
+     */
+    static final class Assertion extends RegexTree {
+    }
+
+    /**
+     * A backreference to a capturing group.
+     */
+    static final class Backreference extends RegexTree {
+    }
+
+    /**
+     * Maximal supported bound of a counted repetition.
+     */
+    static final int MAX_REPEAT = 1000;
+
+    private static final CharRanges DIGIT = CharRanges.of('0', '9');
+    private static final CharRanges SPACE = CharRanges.of('\t', '\r').union(CharRanges.of(' '));
+    private static final CharRanges WORD = CharRanges.of('a', 'z').union(CharRanges.of('A', 'Z'))
+            .union(CharRanges.of('_')).union(DIGIT);
+    private static final CharRanges HORIZONTAL_SPACE = CharRanges.of(' ').union(CharRanges.of('\t'))
+            .union(CharRanges.of('\u00A0')).union(CharRanges.of('\u1680')).union(CharRanges.of('\u180E'))
+            .union(CharRanges.of('\u2000', '\u200A')).union(CharRanges.of('\u202F'))
+            .union(CharRanges.of('\u205F')).union(CharRanges.of('\u3000'));
+    private static final CharRanges VERTICAL_SPACE = CharRanges.of('\n', '\r').union(CharRanges.of('\u0085'))
+            .union(CharRanges.of('\u2028', '\u2029'));
+    private static final CharRanges DOT = CharRanges.of('\n').union(CharRanges.of('\r'))
+            .union(CharRanges.of('\u0085')).union(CharRanges.of('\u2028', '\u2029')).complement();
+
+    /**
+     * Parse the given pattern.
+     *
+     * @throws Unsupported the pattern uses flags or constructs which are not supported.
+     */
+    static RegexTree parse(Pattern pattern) throws Unsupported {
+        if (pattern.flags() != 0) {
+            throw new Unsupported("pattern flags are not supported");
+        }
+
+        return new Parser(pattern.pattern()).parse();
+    }
+
+    /**
+     * Parse the given pattern and make sure that it can be turned into a finite automaton which takes
+     * the longest match, i.e. that the longest match is what {@link java.util.regex} matches
+     * (see {@link Dfa#isLongestMatch(RegexTree)}).
+     *
+     * @throws Unsupported the pattern uses flags or constructs which are not supported or not regular,
+     *                     or it may match less than the longest match.
+     */
+    static RegexTree parseRegular(Pattern pattern) throws Unsupported {
+        final RegexTree tree = parse(pattern);
+
+        if (!tree.isRegular()) {
+            throw new Unsupported("anchors, boundaries, lookaround, backreferences and lazy or possessive "
+                    + "quantifiers are not supported");
+        }
+
+        try {
+            if (!Dfa.isLongestMatch(tree)) {
+                throw new Unsupported("an earlier alternative or an earlier exit from a repetition "
+                        + "may match less than the longest match");
+            }
+        } catch (Dfa.TooLarge tooLarge) {
+            throw new Unsupported("the pattern is too complex to be checked");
+        }
+
+        return tree;
+    }
+
+    /**
+     * Check whether this tree describes a regular language, i.e. whether it can be turned into a finite automaton.
+     */
+    boolean isRegular() {
+        if (this instanceof Concat) {
+            return ((Concat) this).items.stream().allMatch(RegexTree::isRegular);
+        } else if (this instanceof Alt) {
+            return ((Alt) this).alternatives.stream().allMatch(RegexTree::isRegular);
+        } else if (this instanceof Repeat) {
+            return ((Repeat) this).greedy && ((Repeat) this).node.isRegular();
+        } else {
+            return this instanceof Chars;
+        }
+    }
+
+    /**
+     * Check whether this tree can match an empty string. Zero-width assertions are assumed to always succeed.
+     */
+    boolean isNullable() {
+        if (this instanceof Chars) {
+            return false;
+        } else if (this instanceof Concat) {
+            return ((Concat) this).items.stream().allMatch(RegexTree::isNullable);
+        } else if (this instanceof Alt) {
+            return ((Alt) this).alternatives.stream().anyMatch(RegexTree::isNullable);
+        } else if (this instanceof Repeat) {
+            return ((Repeat) this).min == 0 || ((Repeat) this).node.isNullable();
+        } else {
+            return true;
+        }
+    }
+
+    /**
+     * A conservative set of chars which a non-empty match of this tree can start with.
+     */
+    CharRanges firstChars() {
+        if (this instanceof Chars) {
+            return ((Chars) this).set;
+        } else if (this instanceof Concat) {
+            CharRanges result = CharRanges.EMPTY;
+            for (RegexTree item : ((Concat) this).items) {
+                result = result.union(item.firstChars());
+                if (!item.isNullable()) {
+                    break;
+                }
+            }
+            return result;
+        } else if (this instanceof Alt) {
+            CharRanges result = CharRanges.EMPTY;
+            for (RegexTree alternative : ((Alt) this).alternatives) {
+                result = result.union(alternative.firstChars());
+            }
+            return result;
+        } else if (this instanceof Repeat) {
+            return ((Repeat) this).node.firstChars();
+        } else if (this instanceof Backreference) {
+            return CharRanges.ALL;
+        } else {
+            return CharRanges.EMPTY;
+        }
+    }
+
+    /**
+     * Find a construct which can make a backtracking matcher take time exponential in the length of the input.
+     * <p>
+     * Such constructs are unbounded repetitions whose body can match the same text in many ways, namely
+     * a body which ends with another unbounded repetition of the chars the body can start with (e.g. `(a+)+`
+     * or `(\\w+\\s?)*`), and a body which is an alternation of branches that can start with the same char
+     * (e.g. `(a|ab)*`). The check is conservative, i.e. it may flag patterns which never backtrack much.
+     *
+     * @return a description of the construct, or null if there's none.
+     */
+    String backtrackingHazard() {
+        if (this instanceof Concat) {
+            for (RegexTree item : ((Concat) this).items) {
+                final String hazard = item.backtrackingHazard();
+                if (hazard != null) {
+                    return hazard;
+                }
+            }
+        } else if (this instanceof Alt) {
+            for (RegexTree alternative : ((Alt) this).alternatives) {
+                final String hazard = alternative.backtrackingHazard();
+                if (hazard != null) {
+                    return hazard;
+                }
+            }
+        } else if (this instanceof Repeat) {
+            final Repeat repeat = (Repeat) this;
+
+            if (repeat.max < 0) {
+                final CharRanges first = repeat.node.firstChars();
+                final List<Repeat> tails = new ArrayList<>();
+                repeat.node.collectTailRepeats(tails);
+
+                for (Repeat tail : tails) {
+                    if (tail.node.firstChars().intersects(first)) {
+                        return "nested unbounded repetitions can match the same text";
+                    }
+                }
+
+                final RegexTree body = repeat.node.unwrap();
+                if (body instanceof Alt) {
+                    CharRanges seen = CharRanges.EMPTY;
+                    for (RegexTree alternative : ((Alt) body).alternatives) {
+                        final CharRanges chars = alternative.firstChars();
+                        if (chars.intersects(seen)) {
+                            return "alternatives of an unbounded repetition can start with the same char";
+                        }
+                        seen = seen.union(chars);
+                    }
+                }
+            }
+
+            return repeat.node.backtrackingHazard();
+        }
+
+        return null;
+    }
+
+    /**
+     * Collect unbounded repetitions which a match of this tree can end with.
+     */
+    private void collectTailRepeats(List<Repeat> result) {
+        if (this instanceof Concat) {
+            final List<RegexTree> items = ((Concat) this).items;
+            for (int i = items.size() - 1; i >= 0; i--) {
+                items.get(i).collectTailRepeats(result);
+                if (!items.get(i).isNullable()) {
+                    break;
+                }
+            }
+        } else if (this instanceof Alt) {
+            for (RegexTree alternative : ((Alt) this).alternatives) {
+                alternative.collectTailRepeats(result);
+            }
+        } else if (this instanceof Repeat) {
+            if (((Repeat) this).max < 0) {
+                result.add((Repeat) this);
+            }
+            ((Repeat) this).node.collectTailRepeats(result);
+        }
+    }
+
+    /**
+     * If this tree is a greedy run of chars of a single set (e.g. `\\s+` or `[a-z]{2,}`), return it as
+     * a {@link Repeat} of {@link Chars}. A single set is returned as a run of exactly one char.
+     *
+     * @return the run, or null if this tree is not a run of chars.
+     */
+    Repeat asCharRun() {
+        RegexTree tree = unwrap();
+
+        if (tree instanceof Chars) {
+            return new Repeat(tree, 1, 1, true);
+        }
+
+        if (tree instanceof Repeat) {
+            final Repeat repeat = (Repeat) tree;
+            final RegexTree node = repeat.node.unwrap();
+
+            if (node instanceof Chars && repeat.greedy && repeat.min > 0) {
+                return new Repeat(node, repeat.min, repeat.max, true);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Strip concatenations and alternations of a single item.
+     */
+    private RegexTree unwrap() {
+        RegexTree tree = this;
+
+        while (true) {
+            if (tree instanceof Concat && ((Concat) tree).items.size() == 1) {
+                tree = ((Concat) tree).items.get(0);
+            } else if (tree instanceof Alt && ((Alt) tree).alternatives.size() == 1) {
+                tree = ((Alt) tree).alternatives.get(0);
+            } else {
+                return tree;
+            }
+        }
+    }
+
+    /**
+     * The longest string which every match of this tree starts with.
+     */
+    String literalPrefix() {
+        final StringBuilder prefix = new StringBuilder();
+        appendLiteralPrefix(prefix);
+        return prefix.toString();
+    }
+
+    /**
+     * Check whether this tree matches exactly one string, namely its {@link #literalPrefix()}.
+     */
+    boolean isLiteral() {
+        return appendLiteralPrefix(new StringBuilder());
+    }
+
+    /**
+     * Append the literal prefix of this tree to the builder.
+     *
+     * @return true if the whole tree is a literal.
+     */
+    private boolean appendLiteralPrefix(StringBuilder prefix) {
+        if (this instanceof Chars) {
+            final CharRanges set = ((Chars) this).set;
+            if (set.size() == 1 && set.lo(0) == set.hi(0)) {
+                prefix.append((char) set.lo(0));
+                return true;
+            }
+        } else if (this instanceof Concat) {
+            for (RegexTree item : ((Concat) this).items) {
+                if (!item.appendLiteralPrefix(prefix)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (this instanceof Repeat) {
+            final Repeat repeat = (Repeat) this;
+            for (int i = 0; i < repeat.min; i++) {
+                if (!repeat.node.appendLiteralPrefix(prefix)) {
+                    return false;
+                }
+            }
+            return repeat.min == repeat.max;
+        }
+
+        return false;
+    }
+
+    /**
+     * A recursive descent parser for patterns. Patterns are assumed to be valid since they
+     * were already compiled by {@link Pattern}.
+     */
+    private static final class Parser {
+        private final String pattern;
+        private int pos = 0;
+
+        Parser(String pattern) {
+            this.pattern = pattern;
+        }
+
+        RegexTree parse() throws Unsupported {
+            final RegexTree tree = parseAlt();
+            if (pos != pattern.length()) {
+                throw new Unsupported("unexpected '" + pattern.charAt(pos) + "' at " + pos);
+            }
+            return tree;
+        }
+
+        private boolean atEnd() {
+            return pos >= pattern.length();
+        }
+
+        private char peek() {
+            return pattern.charAt(pos);
+        }
+
+        private boolean lookingAt(String s) {
+            return pattern.startsWith(s, pos);
+        }
+
+        private RegexTree parseAlt() throws Unsupported {
+            final List<RegexTree> alternatives = new ArrayList<>();
+            alternatives.add(parseConcat());
+
+            while (!atEnd() && peek() == '|') {
+                pos += 1;
+                alternatives.add(parseConcat());
+            }
+
+            return alternatives.size() == 1 ? alternatives.get(0) : new Alt(alternatives);
+        }
+
+        private RegexTree parseConcat() throws Unsupported {
+            final List<RegexTree> items = new ArrayList<>();
+
+            while (!atEnd() && peek() != '|' && peek() != ')') {
+                if (lookingAt("\\Q")) {
+                    parseQuotation(items);
+                } else {
+                    items.add(parseQuantifier(parseAtom()));
+                }
+            }
+
+            return items.size() == 1 ? items.get(0) : new Concat(items);
+        }
+
+        private void parseQuotation(List<RegexTree> items) {
+            pos += 2;
+
+            int end = pattern.indexOf("\\E", pos);
+            if (end < 0) {
+                end = pattern.length();
+            }
+
+            for (int i = pos; i < end; i++) {
+                items.add(new Chars(CharRanges.of(pattern.charAt(i))));
+            }
+
+            pos = Math.min(end + 2, pattern.length());
+        }
+
+        private RegexTree parseQuantifier(RegexTree atom) throws Unsupported {
+            while (!atEnd()) {
+                final int min;
+                final int max;
+
+                final char c = peek();
+                if (c == '*') {
+                    pos += 1;
+                    min = 0;
+                    max = -1;
+                } else if (c == '+') {
+                    pos += 1;
+                    min = 1;
+                    max = -1;
+                } else if (c == '?') {
+                    pos += 1;
+                    min = 0;
+                    max = 1;
+                } else if (c == '{') {
+                    pos += 1;
+                    min = parseNumber();
+                    if (peek() == ',') {
+                        pos += 1;
+                        max = peek() == '}' ? -1 : parseNumber();
+                    } else {
+                        max = min;
+                    }
+                    expect('}');
+                } else {
+                    break;
+                }
+
+                boolean greedy = true;
+                if (!atEnd() && (peek() == '?' || peek() == '+')) {
+                    greedy = false;
+                    pos += 1;
+                }
+
+                if (min > MAX_REPEAT || max > MAX_REPEAT) {
+                    throw new Unsupported("repetition count is too large");
+                }
+
+                atom = new Repeat(atom, min, max, greedy);
+            }
+
+            return atom;
+        }
+
+        private int parseNumber() throws Unsupported {
+            final int start = pos;
+            while (!atEnd() && Character.isDigit(peek())) {
+                pos += 1;
+            }
+
+            if (start == pos || pos - start > 9) {
+                throw new Unsupported("malformed repetition count");
+            }
+
+            return Integer.parseInt(pattern.substring(start, pos));
+        }
+
+        private void expect(char c) throws Unsupported {
+            if (atEnd() || peek() != c) {
+                throw new Unsupported("expected '" + c + "' at " + pos);
+            }
+            pos += 1;
+        }
+
+        private RegexTree parseAtom() throws Unsupported {
+            final char c = peek();
+
+            switch (c) {
+                case '(':
+                    return parseGroup();
+                case '[':
+                    return new Chars(parseClass());
+                case '.':
+                    pos += 1;
+                    return new Chars(DOT);
+                case '\\':
+                    return parseAtomEscape();
+                case '^':
+                case '$':
+                    pos += 1;
+                    return new Assertion();
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                    throw new Unsupported("dangling quantifier at " + pos);
+                default:
+                    pos += 1;
+                    return new Chars(CharRanges.of(c));
+            }
+        }
+
+        private RegexTree parseGroup() throws Unsupported {
+            pos += 1;
+
+            if (lookingAt("?:")) {
+                pos += 2;
+            } else if (lookingAt("?<") && !lookingAt("?<=") && !lookingAt("?<!")) {
+                // Named capturing group. Captures are irrelevant for matching, so it's just a group.
+                final int end = pattern.indexOf('>', pos);
+                if (end < 0) {
+                    throw new Unsupported("malformed named group");
+                }
+                pos = end + 1;
+            } else if (lookingAt("?=") || lookingAt("?!") || lookingAt("?<=") || lookingAt("?<!")) {
+                pos += lookingAt("?<") ? 3 : 2;
+                parseAlt();
+                expect(')');
+                return new Assertion();
+            } else if (lookingAt("?")) {
+                throw new Unsupported("atomic groups and inline flags are not supported");
+            }
+
+            final RegexTree tree = parseAlt();
+            expect(')');
+
+            return tree;
+        }
+
+        private CharRanges parseClass() throws Unsupported {
+            pos += 1;
+
+            boolean negated = false;
+            if (!atEnd() && peek() == '^') {
+                negated = true;
+                pos += 1;
+            }
+
+            if (!atEnd() && peek() == ']') {
+                throw new Unsupported("leading ']' in a character class is not supported");
+            }
+
+            CharRanges set = CharRanges.EMPTY;
+
+            while (true) {
+                if (atEnd()) {
+                    throw new Unsupported("unclosed character class");
+                }
+
+                final char c = peek();
+
+                if (c == ']') {
+                    pos += 1;
+                    break;
+                } else if (c == '[') {
+                    if (negated) {
+                        throw new Unsupported("nested classes inside a negated class are not supported");
+                    }
+                    set = set.union(parseClass());
+                } else if (lookingAt("&&")) {
+                    throw new Unsupported("class intersections are not supported");
+                } else {
+                    final int lo = parseClassChar();
+                    if (lo < 0) {
+                        set = set.union(lastClassEscape);
+                    } else if (lookingAt("-") && !lookingAt("-]") && pos + 1 < pattern.length()) {
+                        pos += 1;
+                        if (peek() == '[') {
+                            throw new Unsupported("range to a nested class is not supported");
+                        }
+                        final int hi = parseClassChar();
+                        if (hi < 0 || hi < lo) {
+                            throw new Unsupported("malformed range in a character class");
+                        }
+                        set = set.union(CharRanges.of(lo, hi));
+                    } else {
+                        set = set.union(CharRanges.of(lo));
+                    }
+                }
+            }
+
+            return negated ? set.complement() : set;
+        }
+
+        /**
+         * A class escape (such as `\d`) parsed by the last call to {@link #parseClassChar()}.
+         */
+        private CharRanges lastClassEscape;
+
+        /**
+         * Parse a single char inside a character class.
+         *
+         * @return the char, or -1 if a class escape was parsed (it is stored in {@link #lastClassEscape}).
+         */
+        private int parseClassChar() throws Unsupported {
+            final char c = peek();
+
+            if (Character.isSurrogate(c)) {
+                throw new Unsupported("supplementary characters in classes are not supported");
+            }
+
+            if (c != '\\') {
+                pos += 1;
+                return c;
+            }
+
+            final CharRanges set = parseEscape();
+            if (set.size() == 1 && set.lo(0) == set.hi(0)) {
+                return set.lo(0);
+            } else {
+                lastClassEscape = set;
+                return -1;
+            }
+        }
+
+        /**
+         * Parse an escape outside of a character class.
+         */
+        private RegexTree parseAtomEscape() throws Unsupported {
+            if (pos + 1 < pattern.length()) {
+                final char c = pattern.charAt(pos + 1);
+
+                if ("bBAGzZ".indexOf(c) >= 0) {
+                    pos += 2;
+                    return new Assertion();
+                } else if (c >= '1' && c <= '9') {
+                    pos += 2;
+                    while (!atEnd() && Character.isDigit(peek())) {
+                        pos += 1;
+                    }
+                    return new Backreference();
+                } else if (c == 'k') {
+                    final int end = pattern.indexOf('>', pos);
+                    if (end < 0) {
+                        throw new Unsupported("malformed named backreference");
+                    }
+                    pos = end + 1;
+                    return new Backreference();
+                }
+            }
+
+            return new Chars(parseEscape());
+        }
+
+        private CharRanges parseEscape() throws Unsupported {
+            pos += 1;
+
+            if (atEnd()) {
+                throw new Unsupported("trailing backslash");
+            }
+
+            final char c = peek();
+            pos += 1;
+
+            switch (c) {
+                case 't':
+                    return CharRanges.of('\t');
+                case 'n':
+                    return CharRanges.of('\n');
+                case 'r':
+                    return CharRanges.of('\r');
+                case 'f':
+                    return CharRanges.of('\f');
+                case 'a':
+                    return CharRanges.of('\u0007');
+                case 'e':
+                    return CharRanges.of('\u001B');
+                case 'd':
+                    return DIGIT;
+                case 'D':
+                    return DIGIT.complement();
+                case 's':
+                    return SPACE;
+                case 'S':
+                    return SPACE.complement();
+                case 'w':
+                    return WORD;
+                case 'W':
+                    return WORD.complement();
+                case 'h':
+                    return HORIZONTAL_SPACE;
+                case 'H':
+                    return HORIZONTAL_SPACE.complement();
+                case 'v':
+                    return VERTICAL_SPACE;
+                case 'V':
+                    return VERTICAL_SPACE.complement();
+                case '0':
+                    return CharRanges.of(parseOctal());
+                case 'x':
+                    return CharRanges.of(parseHex());
+                case 'u':
+                    return CharRanges.of(parseHexDigits(4));
+                case 'c':
+                    if (atEnd()) {
+                        throw new Unsupported("malformed control char escape");
+                    }
+                    return CharRanges.of(pattern.charAt(pos++) ^ 64);
+                default:
+                    if (Character.isLetterOrDigit(c)) {
+                        throw new Unsupported("escape '\\" + c + "' is not supported");
+                    }
+                    if (Character.isSurrogate(c)) {
+                        throw new Unsupported("escaped supplementary characters are not supported");
+                    }
+                    return CharRanges.of(c);
+            }
+        }
+
+        private int parseOctal() throws Unsupported {
+            int value = 0;
+            int digits = 0;
+
+            while (!atEnd() && digits < 3 && peek() >= '0' && peek() <= '7') {
+                final int next = value * 8 + (peek() - '0');
+                if (next > 0377) {
+                    break;
+                }
+                value = next;
+                digits += 1;
+                pos += 1;
+            }
+
+            if (digits == 0) {
+                throw new Unsupported("malformed octal escape");
+            }
+
+            return value;
+        }
+
+        private int parseHex() throws Unsupported {
+            if (!atEnd() && peek() == '{') {
+                final int end = pattern.indexOf('}', pos);
+                if (end < 0 || end - pos - 1 > 6) {
+                    throw new Unsupported("malformed hex escape");
+                }
+                pos += 1;
+                final int value = parseHexDigits(end - pos);
+                pos = end + 1;
+                if (value > Character.MAX_VALUE) {
+                    throw new Unsupported("supplementary characters are not supported");
+                }
+                return value;
+            }
+
+            return parseHexDigits(2);
+        }
+
+        private int parseHexDigits(int count) throws Unsupported {
+            if (count == 0 || pos + count > pattern.length()) {
+                throw new Unsupported("malformed hex escape");
+            }
+
+            int value = 0;
+            for (int i = 0; i < count; i++) {
+                final int digit = Character.digit(pattern.charAt(pos++), 16);
+                if (digit < 0) {
+                    throw new Unsupported("malformed hex escape");
+                }
+                value = value * 16 + digit;
+            }
+
+            return value;
+        }
+    }
+}
@@ -3,107 +3,146 @@ package com.github.amatanhead.pcl.lexer;
 import com.github.amatanhead.pcl.errors.TokenizationError;
 import com.github.amatanhead.pcl.token.Token;
 import com.github.amatanhead.pcl.token.TokenKind;
+import com.github.amatanhead.pcl.stream.TokenBuffer;
+import com.github.amatanhead.pcl.stream.TokenCursor;
 import com.github.amatanhead.pcl.stream.TokenStream;
 
+import java.io.Reader;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetDecoder;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
- * Represents a single lexer rule, i.e. a regexp and a token factory.
+ * Token stream which actually does all tokenization (a lazy token stream).
+ * <p>
+ * Each rule gets a single {@link Matcher} which is created once per stream and then reused for every token
+ * by moving its region to the current position. Thus, lexing never copies the remaining input, and its cost
+ * is linear in the size of the text.
+ * <p>
+ * Only rules which can start with the char at the current position are tried (see {@link RuleIndex}), and rules
+ * whose literal prefix doesn't match are skipped without running their matchers. Groups of literals are matched
+ * with their {@link LiteralTrie tries}, and runs of a single char class (typically whitespaces) are scanned
+ * with a {@link CharClass} bit mask.
  */
-final class Rule {
-    private final Pattern pattern;
-    private final Function<Matcher, Token> tokenFactory;
+final class RegexpTextLexerTokenStream extends RuleTokenStream {
+    private final RuleIndex index;
+    private final boolean[] trieHitEnd = new boolean[1];
 
-    Rule(Pattern pattern, Function<Matcher, Token> tokenFactory) {
-        this.pattern = pattern;
-        this.tokenFactory = tokenFactory;
-    }
+    RegexpTextLexerTokenStream(Rule[] rules, RuleIndex index, CharSequence text, boolean trackPositions,
+                               MatchBudget budget) {
+        super(rules, text, trackPositions, budget);
 
-    Pattern getPattern() {
-        return pattern;
-    }
+        this.index = index;
 
-    Function<Matcher, Token> getTokenFactory() {
-        return tokenFactory;
-    }
-}
-
-/**
- * Token stream which actually does all tokenization (a lazy token stream).
- */
-final class RegexpTextLexerTokenStream implements TokenStream {
-    private final ArrayList<Rule> rules;
-    private String text;
-    private boolean isOver;
-    private long currentRow;
-    private long currentColumn;
-    private boolean clear;
-
-    RegexpTextLexerTokenStream(ArrayList<Rule> rules, String text) {
-        this.rules = rules;
-        this.text = text;
-        this.isOver = false;
-        this.currentRow = 0;
-        this.currentColumn = 0;
-        this.clear = true;
+        for (int i = 0; i < this.rules.length; i++) {
+            if (this.rules[i].needsMatcher()) {
+                matchers[i] = this.rules[i].getPattern().matcher(matchText);
+            }
+        }
     }
 
     @Override
-    public Token input() throws TokenizationError {
-        if (isOver) {
-            throw new java.util.NoSuchElementException("no elements left in stream");
-        }
-
-        clear = false;
-
-        if (text.isEmpty()) {
-            isOver = true;
-            return new Token(TokenKind.EOF, "", currentRow, currentColumn);
-        }
+    protected int match() {
+        final char c = text.charAt(position);
 
-        for (Rule rule : rules) {
-            final Matcher matcher = rule.getPattern().matcher(text);
-            if (matcher.lookingAt()) {
-                final long rows = matcher.group().chars().filter(ch -> ch == '\n').count();
-                final long columns = matcher.group().substring(matcher.group().lastIndexOf('\n') + 1).length();
-                final int endPos = matcher.end();
+        for (int i : index.candidates(mode, c)) {
+            if (c >= 128 && !index.canStartWith(i, c)) {
+                continue;
+            }
 
-                Token token = rule.getTokenFactory().apply(matcher);
+            final String prefix = index.getPrefix(i);
+            if (!startsWith(prefix)) {
+                continue;
+            }
 
-                if (token != null) {
-                    token = new Token(token, currentRow, currentColumn);
+            if (rules[i].getScanner() != null) {
+                if (scan(i)) {
+                    return i;
                 }
+                continue;
+            }
 
-                currentRow += rows;
-                if (rows > 0) {
-                    currentColumn = 0;
+            final LiteralTrie literals = rules[i].getLiterals();
+            if (literals != null) {
+                final long match = literals.longestMatch(text, position, text.length(), trieHitEnd);
+                hitEnd |= trieHitEnd[0];
+                if (match >= 0) {
+                    matchEnd = (int) match;
+                    return i;
                 }
-                currentColumn += columns;
+                continue;
+            }
 
-                text = text.substring(endPos);
+            if (index.isLiteral(i) && !rules[i].hasTokenFactory()) {
+                matchEnd = position + prefix.length();
+                return i;
+            }
 
-                if (token == null) {
-                    return input();
-                } else {
-                    return token;
+            final CharClass run = index.getRun(i);
+            if (run != null && !rules[i].hasTokenFactory()) {
+                if (matchRun(run, index.getRunMin(i), index.getRunMax(i))) {
+                    return i;
                 }
+                continue;
+            }
+
+            final Matcher matcher = matchers[i];
+            matcher.region(position, text.length());
+            final boolean matched = matcher.lookingAt();
+            hitEnd |= matcher.hitEnd();
+            if (matched) {
+                matchEnd = matcher.end();
+                return i;
             }
         }
 
-        throw new TokenizationError(currentRow, currentColumn);
+        return -1;
     }
 
-    @Override
-    public boolean canInput() {
-        return !isOver;
+    private boolean matchRun(CharClass run, int min, int max) {
+        final int length = text.length();
+        final int limit = max < 0 || max >= length - position ? length : position + max;
+        final int end = run.skip(text, position, limit);
+
+        if (end == length && (max < 0 || end - position < max)) {
+            hitEnd = true;
+        }
+
+        if (end - position < min) {
+            return false;
+        }
+
+        matchEnd = end;
+        return true;
     }
 
-    @Override
-    public boolean isClear() {
-        return clear;
+    private boolean startsWith(String prefix) {
+        final int length = Math.min(prefix.length(), text.length() - position);
+
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(position + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+
+        if (length < prefix.length()) {
+            hitEnd = true;
+            return false;
+        }
+
+        return true;
     }
 }
 
@@ -113,10 +152,59 @@ final class RegexpTextLexerTokenStream implements TokenStream {
  * Given a list of matching rules (namely regular expressions and associated token factories), tries to match
  * the beginning of the text with each regular expression sequentially, in the order of registration.
  * Once matched, builds a new token and continues from the position where the match ended.
+ * <p>
+ * To avoid trying every rule at every position, rules are indexed by the chars their matches can start with.
+ * Rules are analysed conservatively, so the order of registration and the results of tokenization stay exactly
+ * the same as if all rules were tried.
+ * <p>
+ * Fixed strings, such as operators and punctuation, are best registered as literals
+ * (see {@link #addLiteral(String, TokenKind)}): literals registered one after another are merged into a single
+ * rule which is matched with a trie rather than a regexp per literal. Keywords are best handled by the identifier
+ * rule itself (see {@link #addRule(String, TokenKind, Map)}).
+ * <p>
+ * Rules may be split into named modes (see {@link #beginMode(String)}). Only rules of the current mode are tried,
+ * and rules change the mode when they match (see {@link ModeTransition}). This is meant for embedded languages,
+ * such as string interpolation or templates, where each part of the text has its own set of tokens.
+ * <p>
+ * Since {@link java.util.regex} matchers backtrack, a badly written pattern may take time exponential in the length
+ * of the text. Such patterns can be detected on registration (see {@link #setBacktrackingPolicy(BacktrackingPolicy)}),
+ * and the work spent on a single token can be limited (see {@link #setMatchBudget(long)}).
  */
 public class RegexpTextLexer extends AbstractTextLexer {
+    /**
+     * Name of the mode lexing starts in. Rules registered before the first {@link #beginMode(String)} belong to it.
+     */
+    public static final String DEFAULT_MODE = "default";
+
     private final ArrayList<Rule> rules = new ArrayList<>();
 
+    private RuleIndex index = null;
+
+    /**
+     * Snapshot of the rules and settings, or null if they changed since it was taken.
+     */
+    private CompiledLexer compiled = null;
+
+    private boolean positionTracking = true;
+
+    private ResyncPredicate resyncPredicate = ResyncPredicate.LINE_START;
+
+    private BacktrackingPolicy backtrackingPolicy = BacktrackingPolicy.ALLOW;
+
+    private Consumer<? super String> warningHandler = Logger.getLogger(RegexpTextLexer.class.getName())::warning;
+
+    private MatchBudget matchBudget = MatchBudget.UNLIMITED;
+
+    /**
+     * Names of the modes, by their ids.
+     */
+    private final ArrayList<String> modes = new ArrayList<>(Collections.singletonList(DEFAULT_MODE));
+
+    /**
+     * Id of the mode new rules are registered in.
+     */
+    private int currentMode = 0;
+
     /**
      * Register a new matching rule.
      * <p>
@@ -145,11 +233,202 @@ public class RegexpTextLexer extends AbstractTextLexer {
      *                  If null is passed, no token will be generated upon match.
      */
     public void addRule(Pattern pattern, TokenKind tokenKind) {
-        if (tokenKind == null) {
-            addRule(pattern, (Matcher matcher) -> null);
-        } else {
-            addRule(pattern, (Matcher matcher) -> new Token(tokenKind, matcher.group(), 0, 0));
+        addRule(new Rule(pattern, tokenKind));
+    }
+
+    /**
+     * Register a new matching rule which changes the lexer mode when it matches.
+     * <p>
+     * Identical to the {@link #addRule(String, TokenKind)} except for the mode transition.
+     *
+     * @param pattern    a regexp pattern for this rule.
+     * @param tokenKind  a token kind which will be used to create new tokens for this rule.
+     *                   If null is passed, no token will be generated upon match.
+     * @param transition the mode transition which happens on match.
+     */
+    public void addRule(String pattern, TokenKind tokenKind, ModeTransition transition) {
+        addRule(Pattern.compile(pattern), tokenKind, transition);
+    }
+
+    /**
+     * Register a new matching rule which changes the lexer mode when it matches.
+     * <p>
+     * Identical to the {@link #addRule(String, TokenKind, ModeTransition)} except that it accepts a compiled regexp.
+     *
+     * @param pattern    a regexp pattern for this rule.
+     * @param tokenKind  a token kind which will be used to create new tokens for this rule.
+     *                   If null is passed, no token will be generated upon match.
+     * @param transition the mode transition which happens on match.
+     */
+    public void addRule(Pattern pattern, TokenKind tokenKind, ModeTransition transition) {
+        addRule(withTransition(new Rule(pattern, tokenKind), transition));
+    }
+
+    /**
+     * Register a new matching rule with keywords.
+     * <p>
+     * Identical to the {@link #addRule(String, TokenKind)} except that, if the matched text is one of the keywords,
+     * the token gets the keyword's kind instead of the rule's one. This is meant for identifier rules: reserved
+     * words are reclassified with a single lookup instead of being registered as separate rules which precede
+     * the identifier rule.
+     *
+     * @param pattern   a regexp pattern for this rule.
+     * @param tokenKind a token kind which will be used to create new tokens for this rule.
+     *                  If null is passed, no token will be generated upon match (unless a keyword is matched).
+     * @param keywords  token kinds of the keywords. Null kinds suppress the token.
+     * @throws IllegalArgumentException some keyword is empty.
+     */
+    public void addRule(String pattern, TokenKind tokenKind, Map<String, TokenKind> keywords) {
+        addRule(Pattern.compile(pattern), tokenKind, keywords);
+    }
+
+    /**
+     * Register a new matching rule with keywords.
+     * <p>
+     * Identical to the {@link #addRule(String, TokenKind, Map)} except that it accepts a compiled regexp.
+     *
+     * @param pattern   a regexp pattern for this rule.
+     * @param tokenKind a token kind which will be used to create new tokens for this rule.
+     *                  If null is passed, no token will be generated upon match (unless a keyword is matched).
+     * @param keywords  token kinds of the keywords. Null kinds suppress the token.
+     * @throws IllegalArgumentException some keyword is empty.
+     */
+    public void addRule(Pattern pattern, TokenKind tokenKind, Map<String, TokenKind> keywords) {
+        final List<String> strings = new ArrayList<>(keywords.keySet());
+        addRule(new Rule(pattern, tokenKind, new LiteralTrie(strings), keywordKinds(strings, keywords)));
+    }
+
+    /**
+     * Register a new scanner rule.
+     * <p>
+     * This rule matches the text with the given {@link CharScanner} instead of a regexp. Otherwise, it's the same
+     * as {@link #addRule(String, TokenKind)}. See {@link CharScanners} for the common scanners.
+     *
+     * @param scanner   a scanner for this rule.
+     * @param tokenKind a token kind which will be used to create new tokens for this rule.
+     *                  If null is passed, no token will be generated upon match.
+     */
+    public void addRule(CharScanner scanner, TokenKind tokenKind) {
+        addRule(new Rule(scanner, tokenKind, null, null));
+    }
+
+    /**
+     * Register a new scanner rule which changes the lexer mode when it matches.
+     * <p>
+     * Identical to the {@link #addRule(CharScanner, TokenKind)} except for the mode transition.
+     *
+     * @param scanner    a scanner for this rule.
+     * @param tokenKind  a token kind which will be used to create new tokens for this rule.
+     *                   If null is passed, no token will be generated upon match.
+     * @param transition the mode transition which happens on match.
+     */
+    public void addRule(CharScanner scanner, TokenKind tokenKind, ModeTransition transition) {
+        addRule(withTransition(new Rule(scanner, tokenKind, null, null), transition));
+    }
+
+    /**
+     * Register a new scanner rule with keywords.
+     * <p>
+     * Identical to the {@link #addRule(String, TokenKind, Map)} except that it accepts a {@link CharScanner}.
+     *
+     * @param scanner   a scanner for this rule.
+     * @param tokenKind a token kind which will be used to create new tokens for this rule.
+     *                  If null is passed, no token will be generated upon match (unless a keyword is matched).
+     * @param keywords  token kinds of the keywords. Null kinds suppress the token.
+     * @throws IllegalArgumentException some keyword is empty.
+     */
+    public void addRule(CharScanner scanner, TokenKind tokenKind, Map<String, TokenKind> keywords) {
+        final List<String> strings = new ArrayList<>(keywords.keySet());
+        addRule(new Rule(scanner, tokenKind, new LiteralTrie(strings), keywordKinds(strings, keywords)));
+    }
+
+    private static TokenKind[] keywordKinds(List<String> strings, Map<String, TokenKind> keywords) {
+        final TokenKind[] kinds = new TokenKind[strings.size()];
+
+        for (int i = 0; i < kinds.length; i++) {
+            kinds[i] = keywords.get(strings.get(i));
         }
+
+        return kinds;
+    }
+
+    /**
+     * Register a new literal rule.
+     * <p>
+     * This rule checks whether a text starts with the given string. If it does, yields a token with the given
+     * token kind. Null token kind disables token generation, as in {@link #addRule(String, TokenKind)}.
+     * <p>
+     * Literals registered one after another (with no other rules in between) are merged into a single rule.
+     * Within such a group, the longest literal which matches the text wins, regardless of the order in which
+     * literals were registered; the group as a whole keeps its place in the order of registration. Literals
+     * of a group are matched with a single trie, so the cost of matching doesn't depend on their number.
+     *
+     * @param literal   a string to be matched.
+     * @param tokenKind a token kind which will be used to create new tokens for this rule.
+     *                  If null is passed, no token will be generated upon match.
+     * @throws IllegalArgumentException the literal is empty or is already registered in the same group.
+     */
+    public void addLiteral(String literal, TokenKind tokenKind) {
+        addLiterals(Collections.singletonMap(literal, tokenKind));
+    }
+
+    /**
+     * Register a new literal rule which changes the lexer mode when it matches.
+     * <p>
+     * Unlike {@link #addLiteral(String, TokenKind)}, the literal is not merged with its neighbours, so it is matched
+     * before the literals registered after it, regardless of their length.
+     *
+     * @param literal    a string to be matched.
+     * @param tokenKind  a token kind which will be used to create new tokens for this rule.
+     *                   If null is passed, no token will be generated upon match.
+     * @param transition the mode transition which happens on match.
+     * @throws IllegalArgumentException the literal is empty.
+     */
+    public void addLiteral(String literal, TokenKind tokenKind, ModeTransition transition) {
+        final LiteralTrie trie = new LiteralTrie(Collections.singletonList(literal));
+        addRule(withTransition(Rule.literals(trie, new TokenKind[]{tokenKind}), transition));
+    }
+
+    /**
+     * Register several literal rules, in the iteration order of the map.
+     * <p>
+     * Identical to calling {@link #addLiteral(String, TokenKind)} for each entry of the map.
+     *
+     * @param literals token kinds of the literals.
+     * @throws IllegalArgumentException some literal is empty or is already registered in the same group.
+     */
+    public void addLiterals(Map<String, TokenKind> literals) {
+        if (literals.isEmpty()) {
+            return;
+        }
+
+        final List<String> strings = new ArrayList<>();
+        final List<TokenKind> kinds = new ArrayList<>();
+
+        final Rule last = rules.isEmpty() ? null : rules.get(rules.size() - 1);
+        final boolean merge = last != null && last.getLiterals() != null
+                && last.getMode() == currentMode && last.getTransition() == null;
+
+        if (merge) {
+            for (int i = 0; i < last.getLiterals().size(); i++) {
+                strings.add(last.getLiterals().get(i));
+            }
+            kinds.addAll(Arrays.asList(last.getLiteralKinds()));
+        }
+
+        for (Map.Entry<String, TokenKind> entry : literals.entrySet()) {
+            strings.add(entry.getKey());
+            kinds.add(entry.getValue());
+        }
+
+        final Rule rule = Rule.literals(new LiteralTrie(strings), kinds.toArray(new TokenKind[0]));
+
+        if (merge) {
+            // The group is replaced by the extended one; `addRule` invalidates everything compiled from it.
+            rules.remove(rules.size() - 1);
+        }
+
+        addRule(rule);
     }
 
     /**
@@ -160,14 +439,467 @@ public class RegexpTextLexer extends AbstractTextLexer {
      * @param pattern      a regexp pattern for this rule.
      * @param tokenFactory a function which, given a {@link Matcher} object, generates a new {@link Token} (or null
      *                     to suppress adding new token to the token stream). NB: token's row and column will
-     *                     be overridden by tokenizer.
+     *                     be overridden by tokenizer. NB: the matcher runs over the whole text with its region
+     *                     set to the current position, so its {@link Matcher#start()} and {@link Matcher#end()}
+     *                     are absolute offsets in the text.
      */
     public void addRule(Pattern pattern, Function<Matcher, Token> tokenFactory) {
-        rules.add(new Rule(pattern, tokenFactory));
+        addRule(new Rule(pattern, tokenFactory));
+    }
+
+    /**
+     * Register a new matching rule which changes the lexer mode when it matches.
+     * <p>
+     * Identical to the {@link #addRule(Pattern, Function)} except for the mode transition. The transition happens
+     * even if the factory returns null.
+     *
+     * @param pattern      a regexp pattern for this rule.
+     * @param tokenFactory a function which, given a {@link Matcher} object, generates a new {@link Token} (or null
+     *                     to suppress adding new token to the token stream).
+     * @param transition   the mode transition which happens on match.
+     */
+    public void addRule(Pattern pattern, Function<Matcher, Token> tokenFactory, ModeTransition transition) {
+        addRule(withTransition(new Rule(pattern, tokenFactory), transition));
+    }
+
+    private Rule withTransition(Rule rule, ModeTransition transition) {
+        if (transition == null) {
+            throw new NullPointerException("transition must not be null");
+        }
+
+        final int target = transition.getMode() == null ? -1 : modeId(transition.getMode());
+        return rule.inMode(currentMode, transition, target);
+    }
+
+    /**
+     * Register a new rule in the current mode. All public registration methods end up here.
+     */
+    void addRule(Rule rule) {
+        if (backtrackingPolicy != BacktrackingPolicy.ALLOW && isBacktracking(rule)) {
+            checkBacktracking(rule.getPattern());
+        }
+
+        rules.add(rule.inMode(currentMode, rule.getTransition(), rule.getTargetMode()));
+
+        index = null;
+        compiled = null;
+    }
+
+    /**
+     * Check whether the given rule is matched with a backtracking {@link Matcher matcher}.
+     */
+    boolean isBacktracking(Rule rule) {
+        return rule.getScanner() == null && rule.getLiterals() == null;
+    }
+
+    /**
+     * Apply the backtracking policy to the given pattern.
+     *
+     * @throws IllegalArgumentException the pattern is rejected.
+     */
+    private void checkBacktracking(Pattern pattern) {
+        final String hazard;
+
+        try {
+            hazard = RegexTree.parse(pattern).backtrackingHazard();
+        } catch (RegexTree.Unsupported unsupported) {
+            return;
+        }
+
+        if (hazard == null) {
+            return;
+        }
+
+        final String message = "pattern '" + pattern + "' may backtrack catastrophically: " + hazard;
+
+        if (backtrackingPolicy == BacktrackingPolicy.REJECT) {
+            throw new IllegalArgumentException(message);
+        }
+
+        warningHandler.accept(message);
+    }
+
+    /**
+     * Select the mode which the rules registered after this call belong to.
+     * <p>
+     * Each mode has its own list of rules, and only the rules of the current mode are tried at each position
+     * of the text. Lexing starts in the {@link #DEFAULT_MODE default mode}, and rules with
+     * a {@link ModeTransition} move the lexer to other modes. Rules are registered in the default mode until
+     * this method is called. Modes are created on first use.
+     * <p>
+     * Since the result of lexing a part of the text depends on the mode it starts in, lexers with several modes
+     * don't split texts for {@link #tokenizeParallel(CharSequence, ForkJoinPool) parallel tokenization}
+     * and don't {@link #retokenize(TokenBuffer, CharSequence, int, int, int) re-lex} parts of the text.
+     *
+     * @param mode name of the mode.
+     */
+    public void beginMode(String mode) {
+        if (mode == null) {
+            throw new NullPointerException("mode must not be null");
+        }
+
+        currentMode = modeId(mode);
+    }
+
+    /**
+     * Get id of the mode with the given name, creating the mode if needed.
+     */
+    private int modeId(String mode) {
+        int id = modes.indexOf(mode);
+
+        if (id < 0) {
+            id = modes.size();
+            modes.add(mode);
+            index = null;
+            compiled = null;
+        }
+
+        return id;
+    }
+
+    /**
+     * Get number of modes, including the default one.
+     */
+    int getModeCount() {
+        return modes.size();
+    }
+
+    /**
+     * Enable or disable tracking of token positions.
+     * <p>
+     * Token positions are computed lazily, so tracking costs nothing unless rows and columns are actually
+     * requested. However, lexing of readers and channels has to count lines as it goes. If tracking is disabled,
+     * all tokens and tokenization errors have their rows and columns set to -1 (errors still report the offset).
+     *
+     * @param positionTracking true to track positions (the default).
+     */
+    public void setPositionTracking(boolean positionTracking) {
+        this.positionTracking = positionTracking;
+        this.compiled = null;
+    }
+
+    /**
+     * Check whether token positions are tracked. See {@link #setPositionTracking(boolean)}.
+     */
+    public boolean isPositionTracking() {
+        return positionTracking;
+    }
+
+    /**
+     * Set the predicate which tells where a text can be split for parallel tokenization,
+     * see {@link #tokenizeParallel(CharSequence, ForkJoinPool)}. By default, texts are split at line starts.
+     */
+    public void setResyncPredicate(ResyncPredicate resyncPredicate) {
+        this.resyncPredicate = resyncPredicate;
+        this.compiled = null;
+    }
+
+    /**
+     * Get the predicate which tells where a text can be split for parallel tokenization.
+     */
+    public ResyncPredicate getResyncPredicate() {
+        return resyncPredicate;
+    }
+
+    /**
+     * Set what happens when a regexp rule which may backtrack catastrophically is registered
+     * (see {@link BacktrackingPolicy}). The policy applies to the rules registered after this call.
+     * By default, patterns are not analysed.
+     */
+    public void setBacktrackingPolicy(BacktrackingPolicy backtrackingPolicy) {
+        if (backtrackingPolicy == null) {
+            throw new NullPointerException("policy must not be null");
+        }
+
+        this.backtrackingPolicy = backtrackingPolicy;
+    }
+
+    /**
+     * Get the policy for regexp rules which may backtrack catastrophically.
+     */
+    public BacktrackingPolicy getBacktrackingPolicy() {
+        return backtrackingPolicy;
+    }
+
+    /**
+     * Set the handler which receives warnings about dangerous patterns under the {@link BacktrackingPolicy#WARN}
+     * policy. By default, warnings are logged with {@link java.util.logging} under the name of this class.
+     */
+    public void setWarningHandler(Consumer<? super String> warningHandler) {
+        if (warningHandler == null) {
+            throw new NullPointerException("handler must not be null");
+        }
+
+        this.warningHandler = warningHandler;
+    }
+
+    /**
+     * Limit the number of chars regexp matchers may read to find a single token.
+     * <p>
+     * A matcher which backtracks reads the same chars many times, so this bounds the cost of a token regardless
+     * of the patterns and the text. If the limit is exceeded, tokenization fails with
+     * a {@link TokenizationError} at the position of the token. Scanners, literals and runs of chars
+     * never backtrack and are not counted. Each token gets a fresh budget.
+     *
+     * @param maxSteps maximal number of chars read per token, or 0 for no limit (the default).
+     * @throws IllegalArgumentException the limit is negative.
+     */
+    public void setMatchBudget(long maxSteps) {
+        matchBudget = matchBudget.withMaxSteps(maxSteps);
+        compiled = null;
+    }
+
+    /**
+     * Limit the time regexp matchers may spend to find a single token. See {@link #setMatchBudget(long)}.
+     * <p>
+     * The clock is checked periodically rather than on each read, so the time limit is approximate.
+     * Unlike the step limit, it makes the result of tokenization depend on the load of the machine.
+     *
+     * @param timeout maximal time per token, or 0 for no limit (the default).
+     * @param unit    unit of the timeout.
+     * @throws IllegalArgumentException the limit is negative.
+     */
+    public void setMatchTimeout(long timeout, TimeUnit unit) {
+        matchBudget = matchBudget.withMaxNanos(unit.toNanos(timeout));
+        compiled = null;
+    }
+
+    /**
+     * Get the limit on the number of chars read per token, or 0 if there's no limit.
+     */
+    public long getMatchBudget() {
+        return matchBudget.getMaxSteps();
+    }
+
+    /**
+     * Get the limit on the time spent per token, in the given unit, or 0 if there's no limit.
+     */
+    public long getMatchTimeout(TimeUnit unit) {
+        return unit.convert(matchBudget.getMaxNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Get all registered rules, in the order of registration.
+     */
+    List<Rule> getRules() {
+        return rules;
+    }
+
+    /**
+     * Freeze the registered rules and the settings of this lexer into an immutable, thread-safe lexer.
+     * <p>
+     * The result is cached until the rules or the settings change, so calling this method repeatedly is cheap.
+     * All tokenization methods of this lexer use the cached compiled lexer, too.
+     *
+     * @return a compiled lexer which tokenizes texts exactly as this one does now.
+     */
+    public CompiledLexer compile() {
+        CompiledLexer compiled = this.compiled;
+
+        if (compiled == null) {
+            final Rule[] rules = this.rules.toArray(new Rule[0]);
+            compiled = new CompiledLexer(newDecoder(), newStreamFactory(rules, positionTracking, matchBudget),
+                    modes.size(), resyncPredicate);
+            this.compiled = compiled;
+        }
+
+        return compiled;
+    }
+
+    /**
+     * Create a thread-safe factory of token streams over the given rules.
+     *
+     * @param rules          frozen rules, which must be the same as the registered ones.
+     * @param trackPositions whether streams track token positions.
+     * @param budget         limits on the work of regexp matchers per token.
+     */
+    Function<CharSequence, RuleTokenStream> newStreamFactory(Rule[] rules, boolean trackPositions,
+                                                             MatchBudget budget) {
+        final RuleIndex index = getIndex();
+        return text -> new RegexpTextLexerTokenStream(rules, index, text, trackPositions, budget);
+    }
+
+    @Override
+    public void setDefaultEncoding(CharsetDecoder decoder) {
+        super.setDefaultEncoding(decoder);
+
+        compiled = null;
     }
 
     @Override
     public TokenStream tokenize(String text) {
-        return new RegexpTextLexerTokenStream(new ArrayList<>(rules), text);
+        return compile().tokenize(text);
+    }
+
+    @Override
+    public TokenStream tokenize(CharSequence text) {
+        return compile().tokenize(text);
+    }
+
+    @Override
+    public TokenStream tokenize(Reader reader, int bufferSize) {
+        return compile().tokenize(reader, bufferSize);
+    }
+
+    @Override
+    public TokenBuffer tokenizeAll(CharSequence text) throws TokenizationError {
+        return compile().tokenizeAll(text);
+    }
+
+    /**
+     * Tokenize the text in parallel. See {@link CompiledLexer#tokenizeParallel(CharSequence, ForkJoinPool)}.
+     *
+     * @param text text to be tokenized. It must not change while the tokens are in use.
+     * @param pool pool to run the tokenization in.
+     * @throws TokenizationError the text cannot be tokenized.
+     */
+    public TokenBuffer tokenizeParallel(CharSequence text, ForkJoinPool pool) throws TokenizationError {
+        return compile().tokenizeParallel(text, pool);
+    }
+
+    /**
+     * Tokenize the text in parallel, splitting it into chunks of the given approximate size.
+     * See {@link CompiledLexer#tokenizeParallel(CharSequence, ForkJoinPool, int)}.
+     *
+     * @param text      text to be tokenized. It must not change while the tokens are in use.
+     * @param pool      pool to run the tokenization in.
+     * @param chunkSize approximate size of a chunk, in chars.
+     * @throws TokenizationError the text cannot be tokenized.
+     */
+    public TokenBuffer tokenizeParallel(CharSequence text, ForkJoinPool pool, int chunkSize)
+            throws TokenizationError {
+        return compile().tokenizeParallel(text, pool, chunkSize);
+    }
+
+    /**
+     * Tokenize a text stream in background tasks, reading it and lexing it ahead of the parser.
+     * See {@link CompiledLexer#tokenizePipelined(Reader, int, Executor)}.
+     *
+     * @param reader     text stream to be tokenized. It's read by a background task and is not closed.
+     * @param bufferSize size of a chunk the text is read in, in chars.
+     * @param executor   runs the reading and the lexing tasks.
+     * @throws IllegalArgumentException buffer size is not positive.
+     */
+    public PipelinedTokenStream tokenizePipelined(Reader reader, int bufferSize, Executor executor) {
+        return compile().tokenizePipelined(reader, bufferSize, executor);
+    }
+
+    /**
+     * Tokenize a byte channel in background tasks, decoding it and lexing it ahead of the parser.
+     * See {@link CompiledLexer#tokenizePipelined(ReadableByteChannel, CharsetDecoder, int, Executor)}.
+     *
+     * @param channel    channel to be tokenized. It's read by a background task and is not closed.
+     * @param decoder    {@link CharsetDecoder decoder} instance which will be used to decode bytes. It must not be
+     *                   used by anyone else while the stream is in use.
+     * @param bufferSize size of a chunk the text is read in, in chars.
+     * @param executor   runs the decoding and the lexing tasks.
+     * @throws IllegalArgumentException buffer size is not positive.
+     */
+    public PipelinedTokenStream tokenizePipelined(ReadableByteChannel channel, CharsetDecoder decoder,
+                                                  int bufferSize, Executor executor) {
+        return compile().tokenizePipelined(channel, decoder, bufferSize, executor);
+    }
+
+    /**
+     * Update tokens of a text after an edit, tokenizing only the part of the new text around the edit.
+     * See {@link CompiledLexer#retokenize(TokenBuffer, CharSequence, int, int, int)}.
+     *
+     * @param previous       result of tokenizing the text before the edit, with this lexer.
+     * @param text           the text after the edit. It must not change while the tokens are in use.
+     * @param offset         offset of the edit.
+     * @param removedLength  number of chars removed from the old text at the offset.
+     * @param insertedLength number of chars inserted in their place.
+     * @throws TokenizationError the new text cannot be tokenized.
+     */
+    public TokenBuffer retokenize(TokenBuffer previous, CharSequence text, int offset, int removedLength,
+                                  int insertedLength) throws TokenizationError {
+        return compile().retokenize(previous, text, offset, removedLength, insertedLength);
+    }
+
+    /**
+     * Apply an edit to a tokenized text and update its tokens.
+     * See {@link CompiledLexer#retokenize(TokenBuffer, int, int, CharSequence)}.
+     *
+     * @param previous      result of tokenizing the text before the edit, with this lexer.
+     * @param offset        offset of the edit.
+     * @param removedLength number of chars to be removed from the old text at the offset.
+     * @param inserted      text to be inserted in their place.
+     * @return tokens of the new text, whose {@link TokenBuffer#getSource() source} is the new text.
+     * @throws TokenizationError the new text cannot be tokenized.
+     */
+    public TokenBuffer retokenize(TokenBuffer previous, int offset, int removedLength, CharSequence inserted)
+            throws TokenizationError {
+        return compile().retokenize(previous, offset, removedLength, inserted);
+    }
+
+    /**
+     * Create a lexer which is given its text chunk by chunk and passes tokens to the consumer as soon as they are
+     * complete. Bytes are decoded using the default encoding. See {@link PushLexer}.
+     *
+     * @param consumer receives tokens, including the EOF token, in order.
+     */
+    public PushLexer newPushLexer(Consumer<? super Token> consumer) {
+        return compile().newPushLexer(consumer);
+    }
+
+    /**
+     * Create a lexer which is given its text chunk by chunk and passes tokens to the consumer as soon as they are
+     * complete. See {@link PushLexer}.
+     *
+     * @param consumer receives tokens, including the EOF token, in order.
+     * @param decoder  {@link CharsetDecoder decoder} instance which will be used to decode bytes. It must not be
+     *                 used by anyone else while the push lexer is in use.
+     */
+    public PushLexer newPushLexer(Consumer<? super Token> consumer, CharsetDecoder decoder) {
+        return compile().newPushLexer(consumer, decoder);
+    }
+
+    /**
+     * Tokenize the text lazily into a {@link TokenCursor}, which describes each token by its own state instead
+     * of building a token object. See {@link TokenCursor}.
+     *
+     * @param text text to be tokenized. It must not change while the cursor is in use.
+     */
+    public TokenCursor newCursor(CharSequence text) {
+        return compile().newCursor(text);
+    }
+
+    /**
+     * Tokenize a text stream lazily into a {@link TokenCursor}, reading it through a bounded buffer
+     * (see {@link #tokenize(Reader, int)}). Offsets reported by the cursor are counted from the start of the stream.
+     *
+     * @param reader     text stream to be tokenized.
+     * @param bufferSize initial size of the buffer, in chars.
+     * @throws IllegalArgumentException buffer size is not positive.
+     */
+    public TokenCursor newCursor(Reader reader, int bufferSize) {
+        return compile().newCursor(reader, bufferSize);
+    }
+
+    /**
+     * Create a token stream which can be reset to tokenize one text after another, reusing its matchers and
+     * other per-stream state. See {@link LexerSession}.
+     */
+    public LexerSession newSession() {
+        return compile().newSession();
+    }
+
+    /**
+     * Create a token stream over the given text, which is either a complete text or a {@link CharWindow}.
+     */
+    RuleTokenStream newTokenStream(CharSequence text) {
+        return compile().newTokenStream(text);
+    }
+
+    /**
+     * Get the dispatch index of the registered rules. The index is built lazily and rebuilt after a new rule
+     * is registered.
+     */
+    RuleIndex getIndex() {
+        if (index == null) {
+            index = new RuleIndex(rules, modes.size());
+        }
+
+        return index;
     }
 }
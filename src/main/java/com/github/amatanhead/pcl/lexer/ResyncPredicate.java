@@ -0,0 +1,26 @@
+package com.github.amatanhead.pcl.lexer;
+
+/**
+ * Tells where a text can be split for parallel tokenization (see
+ * {@link RegexpTextLexer#tokenizeParallel(CharSequence, java.util.concurrent.ForkJoinPool)}).
+ * <p>
+ * A safe offset is one which is likely to be a boundary between tokens, e.g. a start of a line in a line-oriented
+ * format. The predicate doesn't need to be exact: if a chunk starts in the middle of a token (say, a multi-line
+ * string), the mismatch is detected when the chunks are joined, and the affected part of the text is tokenized
+ * again. Wrong guesses only cost time.
+ */
+@FunctionalInterface
+public interface ResyncPredicate {
+    /**
+     * Offsets which follow a line break.
+     */
+    ResyncPredicate LINE_START = (text, offset) -> text.charAt(offset - 1) == '\n';
+
+    /**
+     * Check whether the text can be split at the given offset.
+     *
+     * @param text   text being split.
+     * @param offset offset in the text, greater than zero and less than the length of the text.
+     */
+    boolean isSafe(CharSequence text, int offset);
+}
@@ -0,0 +1,197 @@
+package com.github.amatanhead.pcl.lexer;
+
+import com.github.amatanhead.pcl.token.Token;
+import com.github.amatanhead.pcl.token.TokenKind;
+
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Represents a single lexer rule, i.e. a regexp and either a token kind or a token factory.
+ * <p>
+ * Rules registered with a token kind don't need a {@link Matcher} to build their tokens, which lets
+ * engines other than {@link java.util.regex} (see {@link DfaTextLexer}) handle them on their own.
+ * <p>
+ * A rule may also be a group of literals (see {@link #literals(LiteralTrie, TokenKind[])}), in which case
+ * its pattern is an alternation of the literals and the token kind depends on the matched literal.
+ * Rules with a token kind may have a set of keywords which reclassify matched text to other token kinds.
+ * <p>
+ * Finally, a rule may be matched with a {@link CharScanner} instead of a regexp, in which case it has no pattern.
+ * <p>
+ * Each rule belongs to a lexer mode and may change the mode when it matches (see {@link ModeTransition}).
+ */
+final class Rule {
+    private final Pattern pattern;
+    private final TokenKind tokenKind;
+    private final Function<Matcher, Token> tokenFactory;
+    private final CharScanner scanner;
+    private final LiteralTrie literals;
+    private final TokenKind[] literalKinds;
+    private final LiteralTrie keywords;
+    private final TokenKind[] keywordKinds;
+    private final int mode;
+    private final ModeTransition transition;
+    private final int targetMode;
+
+    /**
+     * Construct a rule which yields tokens of the given kind (or no tokens at all if the kind is null).
+     */
+    Rule(Pattern pattern, TokenKind tokenKind) {
+        this(pattern, tokenKind, null, null, null, null, null, null, 0, null, -1);
+    }
+
+    /**
+     * Construct a rule which yields tokens of the given kind, unless the matched text is one of the keywords,
+     * in which case the keyword's kind is used.
+     */
+    Rule(Pattern pattern, TokenKind tokenKind, LiteralTrie keywords, TokenKind[] keywordKinds) {
+        this(pattern, tokenKind, null, null, null, null, keywords, keywordKinds, 0, null, -1);
+    }
+
+    /**
+     * Construct a rule which is matched with the given scanner and yields tokens of the given kind, possibly
+     * reclassified by keywords (which may be null).
+     */
+    Rule(CharScanner scanner, TokenKind tokenKind, LiteralTrie keywords, TokenKind[] keywordKinds) {
+        this(null, tokenKind, null, scanner, null, null, keywords, keywordKinds, 0, null, -1);
+    }
+
+    /**
+     * Construct a rule which builds its tokens with the given factory.
+     */
+    Rule(Pattern pattern, Function<Matcher, Token> tokenFactory) {
+        this(pattern, null, tokenFactory, null, null, null, null, null, 0, null, -1);
+    }
+
+    private Rule(Pattern pattern, TokenKind tokenKind, Function<Matcher, Token> tokenFactory, CharScanner scanner,
+                 LiteralTrie literals, TokenKind[] literalKinds, LiteralTrie keywords, TokenKind[] keywordKinds,
+                 int mode, ModeTransition transition, int targetMode) {
+        this.pattern = pattern;
+        this.tokenKind = tokenKind;
+        this.tokenFactory = tokenFactory;
+        this.scanner = scanner;
+        this.literals = literals;
+        this.literalKinds = literalKinds;
+        this.keywords = keywords;
+        this.keywordKinds = keywordKinds;
+        this.mode = mode;
+        this.transition = transition;
+        this.targetMode = targetMode;
+    }
+
+    /**
+     * Construct a rule which matches the longest of the given literals and yields a token of its kind.
+     *
+     * @param literals     literals to match.
+     * @param literalKinds token kind of each literal, by its value index; null kinds suppress tokens.
+     */
+    static Rule literals(LiteralTrie literals, TokenKind[] literalKinds) {
+        return new Rule(Pattern.compile(literals.toRegex()), null, null, null, literals, literalKinds, null, null,
+                0, null, -1);
+    }
+
+    /**
+     * Copy this rule, placing it into the given mode.
+     *
+     * @param mode       id of the mode this rule belongs to.
+     * @param transition mode transition on match, or null.
+     * @param targetMode id of the mode the transition enters, or -1 for pops and rules without transitions.
+     */
+    Rule inMode(int mode, ModeTransition transition, int targetMode) {
+        return new Rule(pattern, tokenKind, tokenFactory, scanner, literals, literalKinds, keywords, keywordKinds,
+                mode, transition, targetMode);
+    }
+
+    /**
+     * Id of the mode this rule belongs to; the default mode has id 0.
+     */
+    int getMode() {
+        return mode;
+    }
+
+    /**
+     * Mode transition which happens when this rule matches, or null.
+     */
+    ModeTransition getTransition() {
+        return transition;
+    }
+
+    /**
+     * Id of the mode the {@link #getTransition() transition} enters, or -1.
+     */
+    int getTargetMode() {
+        return targetMode;
+    }
+
+    /**
+     * Pattern of this rule, or null if this rule is matched with a {@link #getScanner() scanner}.
+     */
+    Pattern getPattern() {
+        return pattern;
+    }
+
+    /**
+     * Scanner of this rule, or null if this rule is matched with its {@link #getPattern() pattern}.
+     */
+    CharScanner getScanner() {
+        return scanner;
+    }
+
+    /**
+     * Check whether this rule needs a {@link Matcher}, i.e. it is neither a group of literals nor a scanner rule.
+     */
+    boolean needsMatcher() {
+        return scanner == null && literals == null;
+    }
+
+    /**
+     * Token kind of this rule. Only meaningful if this rule has no token factory and is not a group of literals;
+     * null means that no tokens should be generated upon match.
+     */
+    TokenKind getTokenKind() {
+        return tokenKind;
+    }
+
+    /**
+     * Token kind for the given match of this rule, taking literals and keywords into account. Only meaningful
+     * if this rule has no token factory; null means that no token should be generated.
+     */
+    TokenKind getTokenKind(CharSequence text, int start, int end) {
+        if (literals != null) {
+            final int value = literals.exactMatch(text, start, end);
+            return value < 0 ? null : literalKinds[value];
+        }
+
+        if (keywords != null) {
+            final int value = keywords.exactMatch(text, start, end);
+            if (value >= 0) {
+                return keywordKinds[value];
+            }
+        }
+
+        return tokenKind;
+    }
+
+    boolean hasTokenFactory() {
+        return tokenFactory != null;
+    }
+
+    Function<Matcher, Token> getTokenFactory() {
+        return tokenFactory;
+    }
+
+    /**
+     * Literals of this rule, or null if this rule is not a group of literals.
+     */
+    LiteralTrie getLiterals() {
+        return literals;
+    }
+
+    /**
+     * Token kinds of the {@link #getLiterals() literals}, by their value index.
+     */
+    TokenKind[] getLiteralKinds() {
+        return literalKinds;
+    }
+}
@@ -0,0 +1,206 @@
+package com.github.amatanhead.pcl.lexer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A dispatch index which, given the char at the current position, tells which rules can possibly match there.
+ * <p>
+ * For each rule, a conservative set of chars a match can start with is computed from its pattern. Rules whose
+ * pattern cannot be analysed (see {@link RegexTree}) or which can match an empty string are considered to
+ * start with any char. Additionally, each rule gets a literal prefix which every match starts with; rules
+ * whose pattern is a plain literal can be matched without running a regexp at all.
+ * <p>
+ * Rules whose pattern is a run of chars of a single class (such as `\\s+`) can be matched by scanning the run
+ * with a {@link CharClass} instead of running a regexp.
+ * <p>
+ * Rules matched with a {@link CharScanner} are indexed by asking the scanner about each ASCII char; for non-ASCII
+ * chars, the scanner is asked on the fly.
+ * <p>
+ * Candidates are kept separately for each lexer mode, so that rules of other modes are never tried.
+ */
+final class RuleIndex {
+    private static final int ASCII = 128;
+
+    /**
+     * Candidate rules for each mode and each ASCII char, in the order of registration.
+     */
+    private final int[][][] ascii;
+
+    /**
+     * Candidate rules for each mode and any non-ASCII char, in the order of registration.
+     */
+    private final int[][] other;
+
+    /**
+     * Per-rule literal prefixes.
+     */
+    private final String[] prefixes;
+
+    /**
+     * Per-rule flags telling whether the rule's pattern is exactly its literal prefix.
+     */
+    private final boolean[] literal;
+
+    /**
+     * Per-rule sets of first chars, used for non-ASCII chars. Null for scanner rules.
+     */
+    private final CharRanges[] firstChars;
+
+    /**
+     * Per-rule classes of char runs, or nulls if rule's pattern is not a run of chars.
+     */
+    private final CharClass[] runs;
+
+    /**
+     * Per-rule bounds of the length of char runs; the maximum is -1 if there is no upper bound.
+     */
+    private final int[] runMin;
+    private final int[] runMax;
+
+    /**
+     * Per-rule scanners, or nulls.
+     */
+    private final CharScanner[] scanners;
+
+    /**
+     * Build an index of the given rules.
+     *
+     * @param modes number of lexer modes, including those which have no rules.
+     */
+    RuleIndex(List<Rule> rules, int modes) {
+        final int n = rules.size();
+
+        prefixes = new String[n];
+        literal = new boolean[n];
+        firstChars = new CharRanges[n];
+        scanners = new CharScanner[n];
+        runs = new CharClass[n];
+        runMin = new int[n];
+        runMax = new int[n];
+
+        final List<Integer> others = new ArrayList<>();
+
+        for (int i = 0; i < n; i++) {
+            scanners[i] = rules.get(i).getScanner();
+
+            if (scanners[i] != null) {
+                prefixes[i] = "";
+                literal[i] = false;
+                others.add(i);
+                continue;
+            }
+
+            final Pattern pattern = rules.get(i).getPattern();
+
+            RegexTree tree;
+            try {
+                tree = RegexTree.parse(pattern);
+            } catch (RegexTree.Unsupported unsupported) {
+                tree = null;
+            }
+
+            if (tree == null || tree.isNullable()) {
+                firstChars[i] = CharRanges.ALL;
+                prefixes[i] = "";
+                literal[i] = false;
+            } else {
+                firstChars[i] = tree.firstChars();
+                prefixes[i] = tree.literalPrefix();
+                literal[i] = tree.isLiteral();
+
+                final RegexTree.Repeat run = tree.asCharRun();
+                if (run != null) {
+                    runs[i] = new CharClass(((RegexTree.Chars) run.node).set);
+                    runMin[i] = run.min;
+                    runMax[i] = run.max;
+                }
+            }
+
+            final CharRanges set = firstChars[i];
+            if (set.size() > 0 && set.hi(set.size() - 1) >= ASCII) {
+                others.add(i);
+            }
+        }
+
+        ascii = new int[modes][ASCII][];
+        other = new int[modes][];
+
+        for (int mode = 0; mode < modes; mode++) {
+            for (int c = 0; c < ASCII; c++) {
+                final List<Integer> candidates = new ArrayList<>();
+                for (int i = 0; i < n; i++) {
+                    if (rules.get(i).getMode() == mode && canStartWith(i, (char) c)) {
+                        candidates.add(i);
+                    }
+                }
+                ascii[mode][c] = candidates.stream().mapToInt(Integer::intValue).toArray();
+            }
+
+            final int m = mode;
+            other[mode] = others.stream().filter(i -> rules.get(i).getMode() == m).mapToInt(Integer::intValue)
+                    .toArray();
+        }
+    }
+
+    /**
+     * Get rules of the default mode that can match a text starting with the given char, in the order
+     * of registration.
+     * <p>
+     * For non-ASCII chars, the returned list is a superset of candidates; use {@link #canStartWith(int, char)}
+     * to filter it.
+     */
+    int[] candidates(char c) {
+        return candidates(0, c);
+    }
+
+    /**
+     * Get rules of the given mode that can match a text starting with the given char, see {@link #candidates(char)}.
+     */
+    int[] candidates(int mode, char c) {
+        return c < ASCII ? ascii[mode][c] : other[mode];
+    }
+
+    /**
+     * Check whether the i-th rule can match a text starting with the given char.
+     */
+    boolean canStartWith(int i, char c) {
+        return scanners[i] != null ? scanners[i].canStartWith(c) : firstChars[i].contains(c);
+    }
+
+    /**
+     * A string which every match of the i-th rule starts with.
+     */
+    String getPrefix(int i) {
+        return prefixes[i];
+    }
+
+    /**
+     * Class of chars of the i-th rule if its pattern is a greedy run of chars of this class, null otherwise.
+     */
+    CharClass getRun(int i) {
+        return runs[i];
+    }
+
+    /**
+     * Minimal length of the run of the i-th rule, see {@link #getRun(int)}.
+     */
+    int getRunMin(int i) {
+        return runMin[i];
+    }
+
+    /**
+     * Maximal length of the run of the i-th rule, or -1 if unbounded, see {@link #getRun(int)}.
+     */
+    int getRunMax(int i) {
+        return runMax[i];
+    }
+
+    /**
+     * Check whether the i-th rule matches exactly its {@link #getPrefix(int) prefix} and nothing else.
+     */
+    boolean isLiteral(int i) {
+        return literal[i];
+    }
+}
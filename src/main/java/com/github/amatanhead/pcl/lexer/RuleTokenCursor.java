@@ -0,0 +1,140 @@
+package com.github.amatanhead.pcl.lexer;
+
+import com.github.amatanhead.pcl.errors.NoNewTokenError;
+import com.github.amatanhead.pcl.errors.TokenizationError;
+import com.github.amatanhead.pcl.stream.TokenCursor;
+import com.github.amatanhead.pcl.token.LineIndex;
+
+/**
+ * A {@link TokenCursor} over a {@link RuleTokenStream}.
+ * <p>
+ * The stream writes the current token into the cursor instead of building a token object. The text of the token
+ * is a view of the stream's text, which stays valid until the stream moves on (and, for windows, refills).
+ * Rows and columns of complete texts are looked up only when asked for.
+ */
+final class RuleTokenCursor implements TokenCursor {
+    private final RuleTokenStream stream;
+    private final LineIndex lines;
+    private final Slice slice;
+
+    private int kind = NONE;
+    private long start;
+    private long end;
+    private long row;
+    private long column;
+    private CharSequence data;
+
+    RuleTokenCursor(RuleTokenStream stream) {
+        this.stream = stream;
+        this.lines = stream.getLineIndex();
+        this.slice = new Slice(stream.text);
+    }
+
+    /**
+     * Describe the current token.
+     *
+     * @param kind   id of the kind of the token.
+     * @param from   start of the token in the stream's text.
+     * @param to     end of the token in the stream's text.
+     * @param data   data of the token if it's not its text, or null.
+     * @param offset offset of the token in the whole text.
+     * @param row    row of the token, ignored if the stream has a line index.
+     * @param column column of the token, ignored if the stream has a line index.
+     */
+    void set(int kind, int from, int to, CharSequence data, long offset, long row, long column) {
+        this.kind = kind;
+        this.start = offset;
+        this.end = offset + to - from;
+        this.data = data;
+        this.row = row;
+        this.column = column;
+
+        slice.from = from;
+        slice.to = to;
+    }
+
+    @Override
+    public int next() throws TokenizationError {
+        if (!hasNext()) {
+            throw new NoNewTokenError("no tokens left in the stream");
+        }
+
+        return stream.step(this);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return stream.canInput();
+    }
+
+    @Override
+    public int kind() {
+        return kind;
+    }
+
+    @Override
+    public long start() {
+        return start;
+    }
+
+    @Override
+    public long end() {
+        return end;
+    }
+
+    @Override
+    public CharSequence text() {
+        return data != null ? data : slice;
+    }
+
+    @Override
+    public long line() {
+        return lines != null ? lines.getRow((int) start) : row;
+    }
+
+    @Override
+    public long column() {
+        return lines != null ? lines.getColumn((int) start) : column;
+    }
+
+    /**
+     * A reusable view of a part of the text.
+     */
+    private static final class Slice implements CharSequence {
+        private final CharSequence text;
+        private int from;
+        private int to;
+
+        Slice(CharSequence text) {
+            this.text = text;
+        }
+
+        @Override
+        public int length() {
+            return to - from;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= to - from) {
+                throw new IndexOutOfBoundsException("index " + index + " is out of the token");
+            }
+
+            return text.charAt(from + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || start > end || end > to - from) {
+                throw new IndexOutOfBoundsException("range " + start + ".." + end + " is out of the token");
+            }
+
+            return text.subSequence(from + start, from + end);
+        }
+
+        @Override
+        public String toString() {
+            return text.subSequence(from, to).toString();
+        }
+    }
+}
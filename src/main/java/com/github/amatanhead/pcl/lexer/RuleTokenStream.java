@@ -0,0 +1,678 @@
+package com.github.amatanhead.pcl.lexer;
+
+import com.github.amatanhead.pcl.errors.TokenizationError;
+import com.github.amatanhead.pcl.stream.TokenBuffer;
+import com.github.amatanhead.pcl.stream.TokenStream;
+import com.github.amatanhead.pcl.token.LineIndex;
+import com.github.amatanhead.pcl.token.SliceToken;
+import com.github.amatanhead.pcl.token.Token;
+import com.github.amatanhead.pcl.token.TokenKind;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+
+/**
+ * Base for lazy token streams which split a text according to a list of {@link Rule rules}.
+ * <p>
+ * Implementations only decide which rule matches at the current position and where its match ends.
+ * This class keeps the original text and a cursor into it, skips suppressed rules and builds tokens. Tokens refer
+ * to slices of the text rather than copying it (see {@link SliceToken}), and only record their offsets: rows
+ * and columns are computed on demand with a {@link LineIndex} shared by all tokens of the stream.
+ * <p>
+ * If the text is a {@link CharWindow}, it is read lazily: whenever the current position reaches the end of
+ * the window, or {@link #match()} reports that more text could change its result, the window is refilled
+ * and matching is retried. If the window's text is pushed rather than read, and no more text is available yet,
+ * the stream stops before the current match (see {@link #poll()}) and retries it once more text is
+ * {@link #feed(CharBuffer) fed}. Note that in this case all positions are relative to the window, and they change
+ * after each refill. Since the text is discarded as the window slides, rows and columns are counted as the text
+ * is scanned and tokens hold copies of their data.
+ * <p>
+ * If position tracking is disabled, tokens and errors have no rows and columns (they are set to -1).
+ * <p>
+ * The stream keeps a stack of lexer modes; implementations only try rules of the {@link #mode current mode}.
+ * Rules change the mode after they match (see {@link ModeTransition}).
+ * <p>
+ * Implementations run regexp matchers over {@link #matchText} rather than the text itself, so that the stream can
+ * enforce its {@link MatchBudget} on each token.
+ */
+abstract class RuleTokenStream implements TokenStream {
+    /**
+     * Returned by {@link #next()} if the text of a pushed window ends before the next match can be decided.
+     */
+    private static final int NEED_INPUT = -2;
+
+    protected final Rule[] rules;
+    protected CharSequence text;
+
+    /**
+     * The text as seen by regexp matchers: either the text itself or a view which enforces the match budget.
+     */
+    protected CharSequence matchText;
+
+    /**
+     * Matchers of the rules, one per rule. Entries may be null if an implementation doesn't need a matcher
+     * for some rule. For rules with a token factory, {@link #match()} must leave the matcher holding the match.
+     */
+    protected final Matcher[] matchers;
+
+    /**
+     * Current position in the text.
+     */
+    protected int position;
+
+    /**
+     * End of the last match, set by {@link #match()}.
+     */
+    protected int matchEnd;
+
+    /**
+     * Set by {@link #match()} if matching reached the end of the text, so that its result could be different
+     * if there was more text.
+     */
+    protected boolean hitEnd;
+
+    /**
+     * Id of the current lexer mode.
+     */
+    protected int mode;
+
+    /**
+     * Modes to return to, see {@link ModeTransition#pop()}.
+     */
+    private int[] modeStack = new int[4];
+    private int modeDepth;
+
+    private final CharWindow window;
+    private final Probe probe;
+    private final boolean trackPositions;
+    private LineIndex lines;
+    private final MatchBudget.Meter meter;
+
+    private boolean isOver;
+    private long currentRow;
+    private long currentColumn;
+    private boolean clear;
+
+    /**
+     * Create a stream.
+     *
+     * @param rules rules to be matched, shared by all streams of a lexer. The array is not copied and must not
+     *              be changed.
+     * @param budget limits on the work of regexp matchers per token.
+     */
+    RuleTokenStream(Rule[] rules, CharSequence text, boolean trackPositions, MatchBudget budget) {
+        this.rules = rules;
+        this.matchers = new Matcher[this.rules.length];
+        this.text = text;
+        this.window = text instanceof CharWindow ? (CharWindow) text : null;
+        this.probe = window != null ? new Probe(window) : null;
+        this.trackPositions = trackPositions;
+        this.lines = trackPositions && window == null ? new LineIndex(text) : null;
+        this.meter = budget.isUnlimited() ? null : new MatchBudget.Meter(text, budget);
+        this.matchText = meter == null ? text : meter;
+        this.position = 0;
+        this.isOver = false;
+        this.currentRow = 0;
+        this.currentColumn = 0;
+        this.clear = true;
+    }
+
+    /**
+     * Find the rule which matches the text at the current position.
+     *
+     * @return index of the matched rule or -1 if no rule matches. On success, {@link #matchEnd} is set to the end
+     * of the match. If the result depends on the text past its end, {@link #hitEnd} must be set.
+     */
+    protected abstract int match();
+
+    /**
+     * Match the i-th rule, which must be a {@link CharScanner scanner} rule, at the current position.
+     * <p>
+     * On success, {@link #matchEnd} is set to the end of the match. {@link #hitEnd} is set if the scanner
+     * looked at the end of the text.
+     *
+     * @return true if the scanner matched.
+     */
+    protected boolean scan(int i) {
+        final CharScanner scanner = rules[i].getScanner();
+        final int end;
+
+        if (probe != null) {
+            probe.reachedEnd = false;
+            end = scanner.scan(probe, position);
+            hitEnd |= probe.reachedEnd || end == text.length();
+        } else {
+            end = scanner.scan(text, position);
+        }
+
+        if (end == CharScanner.NO_MATCH) {
+            return false;
+        }
+
+        if (end <= position || end > text.length()) {
+            throw new IllegalStateException("scanner returned an invalid match end " + end);
+        }
+
+        matchEnd = end;
+        return true;
+    }
+
+    @Override
+    public Token input() throws TokenizationError {
+        final Token token = poll();
+
+        if (token == null) {
+            throw new IllegalStateException("no text to be tokenized yet");
+        }
+
+        return token;
+    }
+
+    @Override
+    public int input(Token[] dst, int off, int len) throws TokenizationError {
+        if (off < 0 || len < 0 || len > dst.length - off) {
+            throw new IndexOutOfBoundsException("range " + off + ".." + (off + len) + " is out of the array");
+        }
+
+        int count = 0;
+
+        try {
+            while (count < len && !isOver) {
+                final Token token = poll();
+
+                if (token == null) {
+                    throw new IllegalStateException("no text to be tokenized yet");
+                }
+
+                dst[off + count++] = token;
+            }
+        } catch (TokenizationError error) {
+            // The stream stays at the invalid input, so the next call fails again.
+            if (count == 0) {
+                throw error;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Read the next token, unless the text is pushed and more of it is needed to decide the next match.
+     *
+     * @return the next token, or null if more text should be {@link #feed(CharBuffer) fed}.
+     */
+    Token poll() throws TokenizationError {
+        if (isOver) {
+            throw new java.util.NoSuchElementException("no elements left in stream");
+        }
+
+        clear = false;
+
+        while (true) {
+            final int ruleIndex = next();
+
+            if (ruleIndex == NEED_INPUT) {
+                return null;
+            }
+
+            if (ruleIndex < 0) {
+                isOver = true;
+                return makeToken(TokenKind.EOF, position);
+            }
+
+            final Token token = makeToken(ruleIndex);
+
+            changeMode(ruleIndex);
+            advance(matchEnd);
+
+            if (token != null) {
+                return token;
+            }
+        }
+    }
+
+    /**
+     * Tokenize the rest of the text, including the EOF token, into the given buffer.
+     * <p>
+     * Unlike {@link #input()}, this method doesn't create token objects for ordinary rules.
+     */
+    void drainTo(TokenBuffer buffer) throws TokenizationError {
+        if (isOver) {
+            throw new java.util.NoSuchElementException("no elements left in stream");
+        }
+
+        if (window != null) {
+            throw new IllegalStateException("can't store slices of a reusable window");
+        }
+
+        while (step(buffer) >= 0) {
+            // Keep going until the end of the text.
+        }
+    }
+
+    /**
+     * Move the cursor to the given offset of a complete text, e.g. to tokenize a part of the text.
+     * The offset must be a boundary between tokens.
+     */
+    void seek(int offset) {
+        if (window != null) {
+            throw new IllegalStateException("can't seek in a reusable window");
+        }
+
+        if (offset < 0 || offset > text.length()) {
+            throw new IndexOutOfBoundsException("offset " + offset + " is out of the text");
+        }
+
+        position = offset;
+        isOver = false;
+        mode = 0;
+        modeDepth = 0;
+    }
+
+    /**
+     * Start over with another complete text, keeping the matchers and other per-stream state.
+     * <p>
+     * Tokens of the previous text stay valid, since they don't refer to the state of the stream.
+     */
+    void reset(CharSequence text) {
+        if (window != null || text instanceof CharWindow) {
+            throw new IllegalStateException("can't reset a stream over a reusable window");
+        }
+
+        this.text = text;
+        this.lines = trackPositions ? new LineIndex(text) : null;
+
+        if (meter != null) {
+            meter.setText(text);
+        } else {
+            matchText = text;
+        }
+
+        for (Matcher matcher : matchers) {
+            if (matcher != null) {
+                matcher.reset(matchText);
+            }
+        }
+
+        position = 0;
+        isOver = false;
+        clear = true;
+        mode = 0;
+        modeDepth = 0;
+    }
+
+    /**
+     * Get the current position in the text.
+     */
+    int getPosition() {
+        return position;
+    }
+
+    /**
+     * Tokenize a single match at the current position into the given buffer and move past it.
+     * If a token is added, it starts at the position the cursor was at before this call.
+     *
+     * @return 1 if a token was added, 0 if the match yielded no token, -1 if the end of the text is reached
+     * (in which case the EOF token is added).
+     */
+    int step(TokenBuffer buffer) throws TokenizationError {
+        if (isOver) {
+            throw new java.util.NoSuchElementException("no elements left in stream");
+        }
+
+        clear = false;
+
+        final int ruleIndex = next();
+
+        if (ruleIndex < 0) {
+            isOver = true;
+            buffer.add(TokenKind.EOF, position, position);
+            return -1;
+        }
+
+        final Rule rule = rules[ruleIndex];
+        boolean added = false;
+
+        if (rule.hasTokenFactory()) {
+            final Token token = makeToken(ruleIndex);
+            if (token != null) {
+                buffer.add(token);
+                added = true;
+            }
+        } else {
+            final TokenKind tokenKind = rule.getTokenKind(text, position, matchEnd);
+            if (tokenKind != null) {
+                buffer.add(tokenKind, position, matchEnd);
+                added = true;
+            }
+        }
+
+        changeMode(ruleIndex);
+        advance(matchEnd);
+
+        return added ? 1 : 0;
+    }
+
+    /**
+     * Move the given cursor to the next token. Unlike {@link #poll()}, this method doesn't build token objects
+     * unless a rule has a token factory.
+     *
+     * @return id of the kind of the token, {@link TokenKind#EOF_ID} if the end of the text is reached.
+     */
+    int step(RuleTokenCursor cursor) throws TokenizationError {
+        if (isOver) {
+            throw new java.util.NoSuchElementException("no elements left in stream");
+        }
+
+        clear = false;
+
+        while (true) {
+            final int ruleIndex = next();
+
+            if (ruleIndex == NEED_INPUT) {
+                throw new IllegalStateException("no text to be tokenized yet");
+            }
+
+            // Rows and columns of complete texts are computed by the cursor on demand.
+            final long row = lines == null ? getRow() : -1;
+            final long column = lines == null ? getColumn() : -1;
+
+            if (ruleIndex < 0) {
+                isOver = true;
+                cursor.set(TokenKind.EOF_ID, position, position, null, getOffset(), row, column);
+                return TokenKind.EOF_ID;
+            }
+
+            final Rule rule = rules[ruleIndex];
+            int kind = -1;
+
+            if (rule.hasTokenFactory()) {
+                final Token token = rule.getTokenFactory().apply(matchers[ruleIndex]);
+                if (token != null) {
+                    kind = token.getTokenKind().getId();
+                    cursor.set(kind, position, matchEnd, token.getData(), getOffset(), row, column);
+                }
+            } else {
+                final TokenKind tokenKind = rule.getTokenKind(text, position, matchEnd);
+                if (tokenKind != null) {
+                    kind = tokenKind.getId();
+                    cursor.set(kind, position, matchEnd, null, getOffset(), row, column);
+                }
+            }
+
+            changeMode(ruleIndex);
+            advance(matchEnd);
+
+            if (kind >= 0) {
+                return kind;
+            }
+        }
+    }
+
+    /**
+     * Get the index of line starts of a complete text, or null if the text is a window or positions are not
+     * tracked.
+     */
+    LineIndex getLineIndex() {
+        return lines;
+    }
+
+    /**
+     * Apply the mode transition of the given rule, which matched at the current position.
+     *
+     * @throws TokenizationError the rule pops the last mode.
+     */
+    private void changeMode(int ruleIndex) throws TokenizationError {
+        final Rule rule = rules[ruleIndex];
+        final ModeTransition transition = rule.getTransition();
+
+        if (transition == null) {
+            return;
+        }
+
+        switch (transition.getKind()) {
+            case PUSH:
+                if (modeDepth == modeStack.length) {
+                    modeStack = Arrays.copyOf(modeStack, modeDepth * 2);
+                }
+                modeStack[modeDepth++] = mode;
+                mode = rule.getTargetMode();
+                break;
+            case POP:
+                if (modeDepth == 0) {
+                    throw new TokenizationError("no mode to return to", getRow(), getColumn(), getOffset());
+                }
+                mode = modeStack[--modeDepth];
+                break;
+            case SWITCH:
+                mode = rule.getTargetMode();
+                break;
+        }
+    }
+
+    /**
+     * Find the next match, refilling the window as needed.
+     *
+     * @return index of the matched rule, -1 if the end of the text is reached, or {@link #NEED_INPUT}.
+     * @throws TokenizationError no rule matches the text at the current position, or matching exceeds
+     *                           the budget.
+     */
+    private int next() throws TokenizationError {
+        while (true) {
+            if (position == text.length()) {
+                if (refill()) {
+                    continue;
+                }
+
+                return isStarved() ? NEED_INPUT : -1;
+            }
+
+            hitEnd = false;
+
+            final int ruleIndex = meter == null ? match() : meterMatch();
+
+            if (hitEnd) {
+                if (refill()) {
+                    continue;
+                }
+
+                if (isStarved()) {
+                    return NEED_INPUT;
+                }
+            }
+
+            if (ruleIndex < 0) {
+                throw new TokenizationError(getRow(), getColumn(), getOffset());
+            }
+
+            return ruleIndex;
+        }
+    }
+
+    /**
+     * Find the rule which matches the text at the current position within the budget.
+     */
+    private int meterMatch() throws TokenizationError {
+        meter.start();
+
+        try {
+            return match();
+        } catch (MatchBudget.Exceeded e) {
+            throw new TokenizationError(
+                    "match budget exceeded at offset " + getOffset(), getRow(), getColumn(), getOffset());
+        }
+    }
+
+    @Override
+    public boolean canInput() {
+        return !isOver;
+    }
+
+    @Override
+    public boolean isClear() {
+        return clear;
+    }
+
+    /**
+     * Read more text into the window, dropping the text before the current position if needed.
+     *
+     * @return false if there's no more text to read, or no more text is available yet.
+     */
+    private boolean refill() {
+        if (window == null || window.isExhausted()) {
+            return false;
+        }
+
+        final int length = window.length();
+
+        try {
+            final int shift = window.fill(position);
+            position -= shift;
+            return window.isExhausted() || window.length() > length - shift;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Check whether the window's text is pushed and the window holds all of the text fed so far.
+     */
+    private boolean isStarved() {
+        return window != null && !window.isExhausted();
+    }
+
+    /**
+     * Append more text to a pushed window.
+     */
+    void feed(CharBuffer chars) {
+        position -= window.append(chars, position);
+    }
+
+    /**
+     * Build a token for the given rule which matched the text between the current position and {@link #matchEnd}.
+     */
+    private Token makeToken(int ruleIndex) {
+        final Rule rule = rules[ruleIndex];
+
+        if (rule.hasTokenFactory()) {
+            final Token token = rule.getTokenFactory().apply(matchers[ruleIndex]);
+            return token == null ? null : new Token(token, getRow(), getColumn(), getOffset());
+        } else {
+            final TokenKind tokenKind = rule.getTokenKind(text, position, matchEnd);
+            return tokenKind == null ? null : makeToken(tokenKind, matchEnd);
+        }
+    }
+
+    /**
+     * Build a token of the given kind for the text between the current position and the given end.
+     */
+    private Token makeToken(TokenKind tokenKind, int end) {
+        if (window == null) {
+            return new SliceToken(tokenKind, text, position, end, position, lines);
+        } else {
+            // The window is reused, so tokens can't refer to it.
+            final String data = text.subSequence(position, end).toString();
+            return new Token(tokenKind, data, getRow(), getColumn(), getOffset());
+        }
+    }
+
+    /**
+     * Row of the current position, or -1 if positions are not tracked.
+     */
+    private long getRow() {
+        if (lines != null) {
+            return lines.getRow(position);
+        }
+
+        return trackPositions ? currentRow : -1;
+    }
+
+    /**
+     * Column of the current position, or -1 if positions are not tracked.
+     */
+    private long getColumn() {
+        if (lines != null) {
+            return lines.getColumn(position);
+        }
+
+        return trackPositions ? currentColumn : -1;
+    }
+
+    /**
+     * Offset of the current position in the text.
+     */
+    private long getOffset() {
+        return window == null ? position : window.getOffset() + position;
+    }
+
+    /**
+     * Move the cursor to the given position. When reading from a window, this updates the current row and column.
+     */
+    private void advance(int end) {
+        if (window == null || !trackPositions) {
+            position = end;
+            return;
+        }
+
+        int lineStart = -1;
+
+        for (int i = position; i < end; i++) {
+            if (text.charAt(i) == '\n') {
+                currentRow += 1;
+                lineStart = i + 1;
+            }
+        }
+
+        if (lineStart >= 0) {
+            currentColumn = end - lineStart;
+        } else {
+            currentColumn += end - position;
+        }
+
+        position = end;
+    }
+
+    /**
+     * A view of the window which records whether the last char of the window was read.
+     */
+    private static final class Probe implements CharSequence {
+        private final CharSequence text;
+        private boolean reachedEnd;
+
+        Probe(CharSequence text) {
+            this.text = text;
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index == text.length() - 1) {
+                reachedEnd = true;
+            }
+
+            return text.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (end == text.length()) {
+                reachedEnd = true;
+            }
+
+            return text.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            reachedEnd = true;
+            return text.toString();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.github.amatanhead.pcl.lexer;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded queue which hands items from one producer thread to one consumer thread.
+ * <p>
+ * The producer waits while the ring is full, and the consumer waits while it's empty. Either side is only parked
+ * when it has to wait, so a ring which is neither full nor empty costs two volatile writes per item.
+ * <p>
+ * The producer ends the sequence with {@link #finish(Throwable)}, optionally passing the error which stopped it.
+ * The consumer sees the end after all items put before it. Anyone can {@link #close()} the ring to stop both sides.
+ *
+ * @param <T> type of the items.
+ */
+final class SpscRing<T> {
+    private final Object[] items;
+    private final int mask;
+
+    private volatile long head = 0;
+    private volatile long tail = 0;
+
+    private volatile Thread producer = null;
+    private volatile Thread consumer = null;
+
+    private volatile boolean finished = false;
+    private volatile boolean closed = false;
+    private volatile Throwable error = null;
+
+    /**
+     * @param capacity maximal number of items in the ring, rounded up to a power of two.
+     */
+    SpscRing(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        this.items = new Object[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Put an item, waiting while the ring is full.
+     *
+     * @return false if the ring is closed and the item is dropped.
+     * @throws InterruptedException the producer thread was interrupted while waiting.
+     */
+    boolean put(T item) throws InterruptedException {
+        final long t = tail;
+
+        while (t - head == items.length) {
+            if (closed) {
+                return false;
+            }
+
+            producer = Thread.currentThread();
+            if (t - head == items.length && !closed) {
+                LockSupport.park(this);
+            }
+            producer = null;
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+
+        if (closed) {
+            return false;
+        }
+
+        items[(int) t & mask] = item;
+        tail = t + 1;
+
+        unpark(consumer);
+
+        return true;
+    }
+
+    /**
+     * End the sequence of items. Called by the producer after its last item.
+     *
+     * @param error error which stopped the producer, or null if the sequence is complete.
+     */
+    void finish(Throwable error) {
+        this.error = error;
+        this.finished = true;
+
+        unpark(consumer);
+    }
+
+    /**
+     * Take the next item, waiting while the ring is empty.
+     *
+     * @return the next item, or null if there are no items left and the sequence is over or the ring is closed.
+     * @throws InterruptedException the consumer thread was interrupted while waiting.
+     */
+    @SuppressWarnings("unchecked")
+    T take() throws InterruptedException {
+        final long h = head;
+
+        while (tail == h) {
+            if (finished || closed) {
+                // Items put before finishing are visible by now.
+                if (tail == h) {
+                    return null;
+                }
+                break;
+            }
+
+            consumer = Thread.currentThread();
+            if (tail == h && !finished && !closed) {
+                LockSupport.park(this);
+            }
+            consumer = null;
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+
+        final T item = (T) items[(int) h & mask];
+        items[(int) h & mask] = null;
+        head = h + 1;
+
+        unpark(producer);
+
+        return item;
+    }
+
+    /**
+     * Get the error the producer {@link #finish(Throwable) finished} with, or null.
+     */
+    Throwable getError() {
+        return error;
+    }
+
+    /**
+     * Stop both sides: further items are dropped, and the consumer sees the end of the sequence once it takes
+     * the items which are already in the ring.
+     */
+    void close() {
+        closed = true;
+
+        unpark(producer);
+        unpark(consumer);
+    }
+
+    private static void unpark(Thread thread) {
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+}
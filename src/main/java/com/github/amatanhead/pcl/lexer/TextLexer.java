@@ -1,10 +1,17 @@
 package com.github.amatanhead.pcl.lexer;
 
 import com.github.amatanhead.pcl.errors.TokenizationError;
+import com.github.amatanhead.pcl.stream.TokenBuffer;
 import com.github.amatanhead.pcl.stream.TokenStream;
 
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 
@@ -117,4 +124,157 @@ public interface TextLexer extends Lexer {
      * @throws TokenizationError if given string cannot be tokenized, i.e. it contains a malformed text.
      */
     TokenStream tokenize(String text) throws TokenizationError;
+
+    /**
+     * Tokenize text input.
+     * <p>
+     * The text is not copied, so it must not change while the returned stream is in use.
+     * <p>
+     * The default implementation copies the text into a string and calls {@link #tokenize(String)}.
+     *
+     * @param text text to be tokenized.
+     * @return the result of tokenization, i.e. a stream of tokens.
+     * @throws TokenizationError if given text cannot be tokenized, i.e. it contains a malformed text.
+     */
+    default TokenStream tokenize(CharSequence text) throws TokenizationError {
+        return tokenize(text.toString());
+    }
+
+    /**
+     * Tokenize the whole text eagerly into a compact {@link TokenBuffer}.
+     * <p>
+     * The buffer keeps tokens in primitive arrays and refers to the text instead of copying it, so it takes
+     * a fraction of memory of a stream which retains all token objects. Use {@link TokenBuffer#stream()}
+     * to parse the result.
+     *
+     * @param text text to be tokenized. It must not change while the buffer is in use.
+     * @return a buffer with all tokens of the text, including the EOF token.
+     * @throws TokenizationError if given text cannot be tokenized, i.e. it contains a malformed text.
+     */
+    default TokenBuffer tokenizeAll(CharSequence text) throws TokenizationError {
+        return new TokenBuffer(text, tokenize(text));
+    }
+
+    /**
+     * Tokenize text input lazily, reading it through a bounded buffer.
+     * <p>
+     * Unlike {@link #tokenize(InputStreamReader)}, this method doesn't read the whole input in advance. Instead,
+     * the text is read on demand as tokens are requested, and only the part of the text which is not yet
+     * tokenized is kept in memory. Thus, the memory usage is bounded by the buffer size and the length
+     * of the longest token, not by the size of the input. Tokens may span buffer boundaries; the buffer grows
+     * if a single token doesn't fit into it.
+     * <p>
+     * Since the returned stream reads input lazily, I/O errors are reported by its {@link TokenStream#input()}
+     * method as {@link java.io.UncheckedIOException unchecked I/O exceptions}. The reader is closed once
+     * it is exhausted.
+     * <p>
+     * The default implementation is not lazy: it reads the whole text once the first token is requested,
+     * and tokenizes it with {@link #tokenize(String)}. Lexers which can tokenize a text as it's read should
+     * override it.
+     *
+     * @param reader     text stream to be tokenized.
+     * @param bufferSize initial size of the buffer, in chars.
+     * @return the result of tokenization, i.e. a lazy stream of tokens.
+     * @throws IllegalArgumentException buffer size is not positive.
+     */
+    default TokenStream tokenize(Reader reader, int bufferSize) {
+        return new ReaderTokenStream(this, reader, bufferSize);
+    }
+
+    /**
+     * Tokenize raw input lazily using the default encoding, reading it through a bounded buffer.
+     * <p>
+     * See {@link #tokenize(Reader, int)} for details.
+     *
+     * @param channel    channel to be tokenized.
+     * @param bufferSize initial size of the buffer, in chars.
+     * @return the result of tokenization, i.e. a lazy stream of tokens.
+     * @throws IllegalArgumentException buffer size is not positive.
+     */
+    default TokenStream tokenize(ReadableByteChannel channel, int bufferSize) {
+        return tokenize(channel, Charset.forName(getDefaultEncoding()).newDecoder(), bufferSize);
+    }
+
+    /**
+     * Tokenize raw input lazily using the given encoding, reading it through a bounded buffer.
+     * <p>
+     * See {@link #tokenize(Reader, int)} for details.
+     *
+     * @param channel    channel to be tokenized.
+     * @param decoder    {@link CharsetDecoder decoder} instance which will be used to decode this channel.
+     * @param bufferSize initial size of the buffer, in chars.
+     * @return the result of tokenization, i.e. a lazy stream of tokens.
+     * @throws IllegalArgumentException buffer size is not positive.
+     */
+    default TokenStream tokenize(ReadableByteChannel channel, CharsetDecoder decoder, int bufferSize) {
+        return tokenize(Channels.newReader(channel, decoder, -1), bufferSize);
+    }
+
+    /**
+     * Tokenize a file using the default encoding.
+     * <p>
+     * See {@link #tokenize(FileChannel, Charset)} for details.
+     *
+     * @param path file to be tokenized.
+     * @return the result of tokenization, i.e. a lazy stream of tokens.
+     * @throws java.io.IOException if an I/O error occurs while opening or mapping the file.
+     * @throws TokenizationError   if given file cannot be tokenized, i.e. it contains a malformed text.
+     */
+    default TokenStream tokenize(Path path) throws java.io.IOException, TokenizationError {
+        return tokenize(path, Charset.forName(getDefaultEncoding()));
+    }
+
+    /**
+     * Tokenize a file using the given encoding.
+     * <p>
+     * See {@link #tokenize(FileChannel, Charset)} for details.
+     *
+     * @param path    file to be tokenized.
+     * @param charset {@link Charset charset} which will be used to decode this file.
+     * @return the result of tokenization, i.e. a lazy stream of tokens.
+     * @throws java.io.IOException if an I/O error occurs while opening or mapping the file.
+     * @throws TokenizationError   if given file cannot be tokenized, i.e. it contains a malformed text.
+     */
+    default TokenStream tokenize(Path path, Charset charset) throws java.io.IOException, TokenizationError {
+        // The default implementation reads the channel, and closes it at the end of the file.
+        return tokenize(FileChannel.open(path, StandardOpenOption.READ), charset);
+    }
+
+    /**
+     * Tokenize the contents of a file channel, from its current position to its end, using the default encoding.
+     * <p>
+     * See {@link #tokenize(FileChannel, Charset)} for details.
+     *
+     * @param channel channel to be tokenized.
+     * @return the result of tokenization, i.e. a lazy stream of tokens.
+     * @throws java.io.IOException if an I/O error occurs while mapping the file.
+     * @throws TokenizationError   if given file cannot be tokenized, i.e. it contains a malformed text.
+     */
+    default TokenStream tokenize(FileChannel channel) throws java.io.IOException, TokenizationError {
+        return tokenize(channel, Charset.forName(getDefaultEncoding()));
+    }
+
+    /**
+     * Tokenize the contents of a file channel, from its current position to its end, using the given encoding.
+     * <p>
+     * The file is memory-mapped rather than read into a string. For single-byte encodings (ISO-8859-1 and
+     * US-ASCII) the text is read from the mapping directly. For other encodings it is decoded lazily, chunk
+     * by chunk, as tokens are requested (see {@link #tokenize(Reader, int)}). Files which are too large
+     * to be mapped at once are read through the channel instead; the stream then closes the channel at
+     * the end of the file.
+     * <p>
+     * The file must not be modified while the returned stream is in use.
+     * <p>
+     * The default implementation doesn't map the file: it reads the channel through
+     * {@link #tokenize(ReadableByteChannel, CharsetDecoder, int)}, and closes it at the end of the file.
+     *
+     * @param channel channel to be tokenized.
+     * @param charset {@link Charset charset} which will be used to decode this channel.
+     * @return the result of tokenization, i.e. a lazy stream of tokens.
+     * @throws java.io.IOException if an I/O error occurs while mapping the file.
+     * @throws TokenizationError   if given file cannot be tokenized, i.e. it contains a malformed text.
+     */
+    default TokenStream tokenize(FileChannel channel, Charset charset) throws java.io.IOException, TokenizationError {
+        return tokenize(channel, charset.newDecoder(), 1 << 16);
+    }
 }
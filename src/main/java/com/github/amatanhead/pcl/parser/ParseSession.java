@@ -0,0 +1,75 @@
+package com.github.amatanhead.pcl.parser;
+
+import com.github.amatanhead.pcl.errors.ParsingError;
+import com.github.amatanhead.pcl.errors.TokenizationError;
+import com.github.amatanhead.pcl.lexer.CompiledLexer;
+import com.github.amatanhead.pcl.lexer.LexerSession;
+import com.github.amatanhead.pcl.stream.ArrayStreamStar;
+
+/**
+ * Tokenizes and parses one text after another, reusing the token stream, its matchers and backtracking buffers.
+ * <p>
+ * Parsing a text with `parser.parse(lexer.tokenize(text))` creates a token stream, a matcher per regexp rule,
+ * a backtracking wrapper and its stacks for each text. When texts are small and many, that's most of the work.
+ * A session creates all of them once, and then only allocates tokens and parsing results for each text.
+ * <p>
+ * Sessions are not thread-safe; use a session per thread. The lexer and the parser may be shared by many sessions.
+ *
+ * @param <R> result type of the parser.
+ */
+public final class ParseSession<R> {
+    /**
+     * Number of tokens read from the lexer at once. The whole text is given upfront, so reading ahead never waits.
+     */
+    private static final int BLOCK_SIZE = 64;
+
+    private final Parser<R> parser;
+    private final LexerSession tokens;
+    private final ArrayStreamStar stream;
+
+    /**
+     * Create a session.
+     *
+     * @param lexer  lexer to tokenize texts with.
+     * @param parser parser to parse the tokens with.
+     */
+    public ParseSession(CompiledLexer lexer, Parser<R> parser) {
+        this.parser = parser;
+        this.tokens = lexer.newSession();
+        this.stream = new ArrayStreamStar(tokens, BLOCK_SIZE);
+    }
+
+    /**
+     * Start over with the given text, dropping whatever is left of the previous one.
+     *
+     * @param text text to be parsed. It must not change while its tokens are in use.
+     */
+    public void reset(CharSequence text) {
+        tokens.reset(text);
+        stream.reset(tokens);
+    }
+
+    /**
+     * Parse the text given to the last {@link #reset(CharSequence)}. A text can only be parsed once.
+     *
+     * @return result of the root AST node.
+     * @throws TokenizationError the text cannot be tokenized.
+     * @throws ParsingError      the tokens cannot be parsed.
+     */
+    public R parse() throws TokenizationError, ParsingError {
+        return parser.parse(stream);
+    }
+
+    /**
+     * Reset the session to the given text and parse it.
+     *
+     * @param text text to be parsed. It must not change while its tokens are in use.
+     * @return result of the root AST node.
+     * @throws TokenizationError the text cannot be tokenized.
+     * @throws ParsingError      the tokens cannot be parsed.
+     */
+    public R parse(CharSequence text) throws TokenizationError, ParsingError {
+        reset(text);
+        return parse();
+    }
+}
@@ -8,6 +8,7 @@ import com.github.amatanhead.pcl.token.Token;
 import com.github.amatanhead.pcl.utils.Maybe;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.function.Function;
@@ -19,9 +20,11 @@ import java.util.stream.Collectors;
 public class RDPStandardCompiler implements RDPCompiler {
     protected static class CompilationState {
         public final Map<AST, RDPCompiledAST> compiled;
+        public final Map<AST<?>, BitSet> firstKinds;
 
         CompilationState() {
             compiled = new HashMap<>();
+            firstKinds = new HashMap<>();
         }
     }
 
@@ -82,7 +85,7 @@ public class RDPStandardCompiler implements RDPCompiler {
                 break;
             case Custom:
                 // noinspection unchecked
-                compiled = compileCustom((AST<Object>) root, compilationState);
+                compiled = new CompiledCustom(compileCustom((AST<Object>) root, compilationState));
                 break;
             case Defer:
                 if (root instanceof NDefer) {
@@ -115,7 +118,8 @@ public class RDPStandardCompiler implements RDPCompiler {
     @SuppressWarnings("unused")
     protected CompiledMany compileMany(NMany<?> node, CompilationState compilationState) {
         RDPCompiledAST underlying = compile(node.getUnderlying(), compilationState);
-        return new CompiledMany(underlying, node.getMin(), node.getMax());
+        BitSet first = firstKinds(node.getUnderlying(), compilationState);
+        return new CompiledMany(underlying, node.getMin(), node.getMax(), first);
     }
 
     /**
@@ -124,7 +128,8 @@ public class RDPStandardCompiler implements RDPCompiler {
     @SuppressWarnings("unused")
     protected CompiledMaybe compileMaybe(NMaybe<?> node, CompilationState compilationState) {
         RDPCompiledAST underlying = compile(node.getUnderlying(), compilationState);
-        return new CompiledMaybe(underlying);
+        BitSet first = firstKinds(node.getUnderlying(), compilationState);
+        return new CompiledMaybe(underlying, first);
     }
 
     /**
@@ -135,7 +140,10 @@ public class RDPStandardCompiler implements RDPCompiler {
         ArrayList<RDPCompiledAST> underlying = node.getUnderlying().stream()
                 .map(ast -> compile(ast, compilationState))
                 .collect(Collectors.toCollection(ArrayList::new));
-        return new CompiledOr(underlying);
+        BitSet[] firsts = node.getUnderlying().stream()
+                .map(ast -> firstKinds(ast, compilationState))
+                .toArray(BitSet[]::new);
+        return new CompiledOr(underlying, firsts);
     }
 
     /**
@@ -154,6 +162,10 @@ public class RDPStandardCompiler implements RDPCompiler {
      */
     @SuppressWarnings("unused")
     protected CompiledSome compileSome(NSome node, CompilationState compilationState) {
+        if (node instanceof NKindSet) {
+            return new CompiledKindSet((NKindSet) node);
+        }
+
         return new CompiledSome(node.getPredicate());
     }
 
@@ -177,6 +189,9 @@ public class RDPStandardCompiler implements RDPCompiler {
 
     /**
      * Compile a `custom` node. Throws an error by default. Override to add support for custom nodes.
+     * <p>
+     * The stream is held while the compiled node parses (see {@link CompiledCustom}), so it can go back
+     * to the marks and bookmarks it makes, even across nodes that commit.
      */
     @SuppressWarnings("unused")
     protected RDPCompiledAST compileCustom(AST<Object> node, CompilationState compilationState) {
@@ -185,6 +200,79 @@ public class RDPStandardCompiler implements RDPCompiler {
                         "you're free to derive from this parser and add support for custom AST nodes");
     }
 
+    /**
+     * Find ids of the kinds of tokens a node can start with.
+     * <p>
+     * The result is null if it's unknown, i.e. if the node may succeed without consuming tokens, or if it may start
+     * with a token matched by an arbitrary predicate. Nodes that can start with the next token are only tried
+     * if the next token is of one of these kinds, so the result may include extra kinds but never miss one.
+     */
+    protected BitSet firstKinds(AST<?> node, CompilationState compilationState) {
+        if (compilationState.firstKinds.containsKey(node)) {
+            return compilationState.firstKinds.get(node);
+        }
+
+        // Give up on cycles through `defer` nodes.
+        compilationState.firstKinds.put(node, null);
+
+        BitSet first = null;
+
+        switch (node.getType()) {
+            case Apply:
+                if (node instanceof NApply) {
+                    first = firstKinds(((NApply<?, ?>) node).getUnderlying(), compilationState);
+                }
+                break;
+            case Many:
+                if (node instanceof NMany && ((NMany<?>) node).getMin() > 0) {
+                    first = firstKinds(((NMany<?>) node).getUnderlying(), compilationState);
+                }
+                break;
+            case Or:
+                if (node instanceof NOr) {
+                    first = new BitSet();
+                    for (AST<?> ast : ((NOr<?>) node).getUnderlying()) {
+                        BitSet kinds = firstKinds(ast, compilationState);
+                        if (kinds == null) {
+                            first = null;
+                            break;
+                        }
+                        first.or(kinds);
+                    }
+                }
+                break;
+            case Seq:
+                if (node instanceof NSeq && !((NSeq<?>) node).getUnderlying().isEmpty()) {
+                    first = firstKinds(((NSeq<?>) node).getUnderlying().get(0), compilationState);
+                }
+                break;
+            case Some:
+                if (node instanceof NKindSet && !((NKindSet) node).isNegated()) {
+                    first = ((NKindSet) node).getKinds();
+                }
+                break;
+            case Defer:
+                if (node instanceof NDefer && ((NDefer<?>) node).getDeferred() != null) {
+                    first = firstKinds(((NDefer<?>) node).getDeferred(), compilationState);
+                }
+                break;
+        }
+
+        compilationState.firstKinds.put(node, first);
+
+        return first;
+    }
+
+    /**
+     * Check whether the next token is of one of the given kinds, without moving the stream.
+     *
+     * @param first ids of token kinds as returned by {@link #firstKinds(AST, CompilationState)}.
+     * @return true if the kinds are unknown or include the kind of the next token.
+     */
+    static protected boolean canStart(BitSet first, TokenStreamStar tokenStream) throws TokenizationError {
+        return first == null || tokenStream.canInput() && first.get(tokenStream.peek().getTokenKind().getId());
+    }
+
     // Classes
 
     /**
@@ -218,28 +306,54 @@ public class RDPStandardCompiler implements RDPCompiler {
         protected final RDPCompiledAST underlying;
         protected final Integer min;
         protected final Integer max;
+        protected final BitSet first;
 
         CompiledMany(RDPCompiledAST underlying, Integer min, Integer max) {
+            this(underlying, min, max, null);
+        }
+
+        CompiledMany(RDPCompiledAST underlying, Integer min, Integer max, BitSet first) {
             this.underlying = underlying;
             this.min = min;
             this.max = max;
+            this.first = first;
         }
 
         @Override
         public RDPResult parse(TokenStreamStar tokenStream) throws TokenizationError, ParsingError {
-            TokenStreamStar.Bookmark bookmark = tokenStream.makeBookmark();
-
             ArrayList<Object> results = new ArrayList<>();
 
-            for (int i = 0; max == null || i < max; i++) {
+            int i = 0;
+
+            if (min > 0) {
+                // Until there are `min` items, a failure takes us back to where we started.
+                int mark = tokenStream.hold();
+                try {
+                    for (; i < min && (max == null || i < max); i++) {
+                        RDPResult parsingResult = underlying.parse(tokenStream);
+                        if (parsingResult.isSuccess()) {
+                            results.add(parsingResult.getResult());
+                        } else {
+                            tokenStream.reset(mark);
+                            return new RDPResult(false, null);
+                        }
+                    }
+                } finally {
+                    tokenStream.release();
+                }
+
+                tokenStream.commit();
+            }
+
+            // Complete items are never unparsed, so there's no need to keep their tokens
+            // unless an enclosing node holds them.
+            for (; (max == null || i < max) && canStart(first, tokenStream); i++) {
                 RDPResult parsingResult = underlying.parse(tokenStream);
                 if (parsingResult.isSuccess()) {
                     results.add(parsingResult.getResult());
-                } else if (i >= min) {
-                    break;
+                    tokenStream.commit();
                 } else {
-                    tokenStream.restoreBookmark(bookmark);
-                    return new RDPResult(false, null);
+                    break;
                 }
             }
 
@@ -252,13 +366,23 @@ public class RDPStandardCompiler implements RDPCompiler {
      */
     static protected class CompiledMaybe implements RDPCompiledAST {
         protected final RDPCompiledAST underlying;
+        protected final BitSet first;
 
         CompiledMaybe(RDPCompiledAST underlying) {
+            this(underlying, null);
+        }
+
+        CompiledMaybe(RDPCompiledAST underlying, BitSet first) {
             this.underlying = underlying;
+            this.first = first;
         }
 
         @Override
         public RDPResult parse(TokenStreamStar tokenStream) throws TokenizationError, ParsingError {
+            if (!canStart(first, tokenStream)) {
+                return new RDPResult(true, new Maybe<>());
+            }
+
             RDPResult parsingResult = underlying.parse(tokenStream);
 
             if (parsingResult.isSuccess()) {
@@ -277,15 +401,25 @@ public class RDPStandardCompiler implements RDPCompiler {
      */
     static protected class CompiledOr implements RDPCompiledAST {
         protected final ArrayList<RDPCompiledAST> underlying;
+        protected final BitSet[] firsts;
 
         CompiledOr(ArrayList<RDPCompiledAST> underlying) {
+            this(underlying, new BitSet[underlying.size()]);
+        }
+
+        CompiledOr(ArrayList<RDPCompiledAST> underlying, BitSet[] firsts) {
             this.underlying = underlying;
+            this.firsts = firsts;
         }
 
         @Override
         public RDPResult parse(TokenStreamStar tokenStream) throws TokenizationError, ParsingError {
-            for (RDPCompiledAST compiledAST : underlying) {
-                RDPResult parsingResult = compiledAST.parse(tokenStream);
+            for (int i = 0; i < underlying.size(); i++) {
+                if (!canStart(firsts[i], tokenStream)) {
+                    continue;
+                }
+
+                RDPResult parsingResult = underlying.get(i).parse(tokenStream);
                 if (parsingResult.isSuccess()) {
                     return parsingResult;
                 }
@@ -307,18 +441,21 @@ public class RDPStandardCompiler implements RDPCompiler {
 
         @Override
         public RDPResult parse(TokenStreamStar tokenStream) throws TokenizationError, ParsingError {
-            TokenStreamStar.Bookmark bookmark = tokenStream.makeBookmark();
-
             ArrayList<Object> results = new ArrayList<>(underlying.size());
 
-            for (RDPCompiledAST compiledAST : underlying) {
-                RDPResult parsingResult = compiledAST.parse(tokenStream);
-                if (parsingResult.isSuccess()) {
-                    results.add(parsingResult.getResult());
-                } else {
-                    tokenStream.restoreBookmark(bookmark);
-                    return parsingResult;
+            int mark = tokenStream.hold();
+            try {
+                for (RDPCompiledAST compiledAST : underlying) {
+                    RDPResult parsingResult = compiledAST.parse(tokenStream);
+                    if (parsingResult.isSuccess()) {
+                        results.add(parsingResult.getResult());
+                    } else {
+                        tokenStream.reset(mark);
+                        return parsingResult;
+                    }
                 }
+            } finally {
+                tokenStream.release();
             }
 
             return new RDPResult(true, results);
@@ -341,12 +478,66 @@ public class RDPStandardCompiler implements RDPCompiler {
                 return new RDPResult(false, null);
             }
 
-            Token token = tokenStream.input();
+            Token token = tokenStream.peek();
 
             if (predicate.apply(token)) {
+                tokenStream.input();
+                return new RDPResult(true, token);
+            } else {
+                return new RDPResult(false, null);
+            }
+        }
+    }
+
+    /**
+     * Default implementation of `some` nodes which match a set of token kinds.
+     * <p>
+     * Checks token kinds with a single bit test against a mask of {@link com.github.amatanhead.pcl.token.TokenKind
+     * token kind ids}. The mask is a single `long` if all ids are less than 64.
+     */
+    static protected class CompiledKindSet extends CompiledSome {
+        protected final long mask;
+        protected final BitSet kinds;
+        protected final boolean negated;
+
+        CompiledKindSet(NKindSet node) {
+            super(node.getPredicate());
+
+            BitSet kinds = node.getKinds();
+            this.negated = node.isNegated();
+
+            if (kinds.length() <= 64) {
+                long[] words = kinds.toLongArray();
+                this.mask = words.length == 0 ? 0 : words[0];
+                this.kinds = null;
+            } else {
+                this.mask = 0;
+                this.kinds = kinds;
+            }
+        }
+
+        protected boolean matches(Token token) {
+            int id = token.getTokenKind().getId();
+
+            if (kinds == null) {
+                return (id < 64 && (mask & (1L << id)) != 0) != negated;
+            } else {
+                return kinds.get(id) != negated;
+            }
+        }
+
+        @Override
+        public RDPResult parse(TokenStreamStar tokenStream) throws TokenizationError {
+            if (!tokenStream.canInput()) {
+                return new RDPResult(false, null);
+            }
+
+            Token token = tokenStream.peek();
+
+            if (matches(token)) {
+                tokenStream.input();
                 return new RDPResult(true, token);
             } else {
-                tokenStream.unput();
                 return new RDPResult(false, null);
             }
         }
@@ -370,4 +561,25 @@ public class RDPStandardCompiler implements RDPCompiler {
             return underlying.parse(tokenStream);
         }
     }
+
+    /**
+     * Wrapper for compiled `custom` nodes which {@link TokenStreamStar#hold() holds} the stream while they parse.
+     */
+    static protected class CompiledCustom implements RDPCompiledAST {
+        protected final RDPCompiledAST underlying;
+
+        CompiledCustom(RDPCompiledAST underlying) {
+            this.underlying = underlying;
+        }
+
+        @Override
+        public RDPResult parse(TokenStreamStar tokenStream) throws TokenizationError, ParsingError {
+            tokenStream.hold();
+            try {
+                return underlying.parse(tokenStream);
+            } finally {
+                tokenStream.release();
+            }
+        }
+    }
 }
@@ -0,0 +1,284 @@
+package com.github.amatanhead.pcl.stream;
+
+import com.github.amatanhead.pcl.errors.BookmarkError;
+import com.github.amatanhead.pcl.errors.NoBacktrackingTokenError;
+import com.github.amatanhead.pcl.errors.NoNewTokenError;
+import com.github.amatanhead.pcl.errors.TokenizationError;
+import com.github.amatanhead.pcl.token.Token;
+
+import java.util.Arrays;
+
+/**
+ * A {@link TokenStreamStar} which keeps the tokens read from the underlying stream in a ring buffer.
+ * <p>
+ * The stream only keeps an index into the buffer, so backtracking and restoring a bookmark take constant time.
+ * Marks are the index itself, so {@link #reset(int)} is a single assignment. Bookmarks are cached by index,
+ * thus making a bookmark usually doesn't allocate. {@link #peek(int) Peeked} tokens are read into the buffer
+ * without moving the index.
+ * <p>
+ * By default, the underlying stream is read one token at a time, as the tokens are needed, so the stream can
+ * wrap an interactive source. When the source is a complete text, a block size can be given to read the tokens
+ * in blocks with {@link TokenStream#input(Token[], int, int)}, straight into the buffer.
+ * <p>
+ * Tokens before the last {@link #commit() commit point} are dropped from the buffer, which only grows to fit
+ * the tokens after it. The parser commits after each item of a top-level `many`, so parsing a long stream
+ * of records keeps about one record in memory. Positions are counted modulo 2<sup>32</sup>, thus the stream
+ * can be longer than {@link Integer#MAX_VALUE} tokens as long as the buffer is not.
+ * <p>
+ * The commit point never passes a {@link #hold() held} mark. Marks and bookmarks are not held, the parser
+ * holds the stream around custom nodes instead.
+ * <p>
+ * This is the stream {@link StandardConversions#toStreamStar(TokenStream)} wraps lexers into.
+ * <p>
+ * The stream can be {@link #reset(TokenStream) reset} to read another underlying stream, keeping its buffer.
+ * This is meant for parsing many small texts, see {@link com.github.amatanhead.pcl.parser.ParseSession}.
+ */
+public final class ArrayStreamStar implements TokenStreamStar {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final class IndexBookmark extends TokenStreamStar.Bookmark {
+        final int index;
+
+        IndexBookmark(TokenStreamStar originalStream, int index) {
+            super(originalStream);
+            this.index = index;
+        }
+    }
+
+    private TokenStream tokenStream;
+    private final int blockSize;
+
+    // Tokens from `first` (inclusive) to `size` (exclusive) live at `tokens[position & mask]`.
+    private Token[] tokens = new Token[INITIAL_CAPACITY];
+    private int mask = INITIAL_CAPACITY - 1;
+    private int first = 0;
+    private int size = 0;
+    private int index = 0;
+
+    private IndexBookmark[] bookmarks = new IndexBookmark[INITIAL_CAPACITY];
+
+    // Number of unreleased holds, and the position of the outermost one.
+    private int holds = 0;
+    private int held = 0;
+
+    private boolean clear = true;
+
+    /**
+     * Create a stream which reads the given one.
+     */
+    public ArrayStreamStar(TokenStream tokenStream) {
+        this(tokenStream, 1);
+    }
+
+    /**
+     * Create a stream which reads the given one in blocks.
+     *
+     * @param tokenStream underlying stream.
+     * @param blockSize   number of tokens to read from the underlying stream at once, if there are that many.
+     * @throws IllegalArgumentException block size is not positive.
+     */
+    public ArrayStreamStar(TokenStream tokenStream, int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("block size must be positive");
+        }
+
+        this.tokenStream = tokenStream;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Start over with another underlying stream. The stream becomes {@link #isClear() clear} again.
+     * Bookmarks, marks and holds made before the reset must not be used.
+     */
+    public void reset(TokenStream tokenStream) {
+        Arrays.fill(tokens, null);
+
+        this.tokenStream = tokenStream;
+        this.first = 0;
+        this.size = 0;
+        this.index = 0;
+        this.holds = 0;
+        this.clear = true;
+    }
+
+    @Override
+    public Token input() throws TokenizationError {
+        clear = false;
+
+        if (index == size && fill(blockSize) == 0) {
+            throw new NoNewTokenError("no tokens left in the stream");
+        }
+
+        return tokens[index++ & mask];
+    }
+
+    @Override
+    public int input(Token[] dst, int off, int len) throws TokenizationError {
+        if (off < 0 || len < 0 || len > dst.length - off) {
+            throw new IndexOutOfBoundsException("range " + off + ".." + (off + len) + " is out of the array");
+        }
+
+        if (len == 0) {
+            return 0;
+        }
+
+        clear = false;
+
+        if (index == size && fill(Math.max(blockSize, len)) == 0) {
+            return 0;
+        }
+
+        final int count = Math.min(len, size - index);
+        final int start = index & mask;
+        final int head = Math.min(count, tokens.length - start);
+
+        System.arraycopy(tokens, start, dst, off, head);
+        System.arraycopy(tokens, 0, dst, off + head, count - head);
+
+        index += count;
+
+        return count;
+    }
+
+    @Override
+    public Token peek(int k) throws TokenizationError {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+
+        while (size - index < k) {
+            if (fill(Math.max(blockSize, k - (size - index))) == 0) {
+                throw new NoNewTokenError("no tokens left in the stream");
+            }
+        }
+
+        return tokens[(index + k - 1) & mask];
+    }
+
+    @Override
+    public boolean canInput() {
+        return index != size || tokenStream.canInput();
+    }
+
+    @Override
+    public Token unput() {
+        if (canUnput()) {
+            return tokens[--index & mask];
+        } else {
+            throw new NoBacktrackingTokenError("no tokens left in the backtracking stack");
+        }
+    }
+
+    @Override
+    public boolean canUnput() {
+        return index != first;
+    }
+
+    @Override
+    public boolean isClear() {
+        return clear;
+    }
+
+    @Override
+    public Bookmark makeBookmark() {
+        IndexBookmark bookmark = bookmarks[index & mask];
+        if (bookmark == null || bookmark.index != index) {
+            bookmark = new IndexBookmark(this, index);
+            bookmarks[index & mask] = bookmark;
+        }
+
+        return bookmark;
+    }
+
+    @Override
+    public void restoreBookmark(Bookmark bookmark) {
+        assertBookmark(bookmark);
+
+        if (bookmark instanceof IndexBookmark) {
+            reset(((IndexBookmark) bookmark).index);
+        } else {
+            throw new BookmarkError("wrong bookmark type");
+        }
+    }
+
+    @Override
+    public int mark() {
+        return index;
+    }
+
+    @Override
+    public void reset(int mark) {
+        if (size - mark < 0) {
+            throw new BookmarkError("mark " + mark + " is out of the tokens read so far");
+        }
+
+        if (mark - first < 0) {
+            throw new BookmarkError("mark " + mark + " is behind the commit point");
+        }
+
+        index = mark;
+    }
+
+    @Override
+    public int hold() {
+        if (holds++ == 0) {
+            held = index;
+        }
+
+        return index;
+    }
+
+    @Override
+    public void release() {
+        if (holds == 0) {
+            throw new IllegalStateException("no holds to release");
+        }
+
+        holds--;
+    }
+
+    @Override
+    public void commit() {
+        final int cut = holds == 0 ? index : held;
+
+        while (first != cut) {
+            tokens[first++ & mask] = null;
+        }
+    }
+
+    /**
+     * Read up to `count` tokens of the underlying stream into the buffer. Reads less if the free space
+     * of the buffer wraps around its end.
+     *
+     * @return number of tokens read, zero if the underlying stream is over.
+     */
+    private int fill(int count) throws TokenizationError {
+        if (size - first == tokens.length) {
+            grow();
+        }
+
+        final int start = size & mask;
+        final int free = Math.min(tokens.length - (size - first), tokens.length - start);
+
+        final int read = tokenStream.input(tokens, start, Math.min(count, free));
+        size += read;
+
+        return read;
+    }
+
+    /**
+     * Double the buffer, keeping the tokens after the commit point.
+     */
+    private void grow() {
+        final Token[] grown = new Token[tokens.length * 2];
+        final int grownMask = grown.length - 1;
+
+        for (int i = first; i != size; i++) {
+            grown[i & grownMask] = tokens[i & mask];
+        }
+
+        tokens = grown;
+        mask = grownMask;
+        bookmarks = new IndexBookmark[grown.length];
+    }
+}
@@ -5,6 +5,7 @@ import com.github.amatanhead.pcl.errors.NoBacktrackingTokenError;
 import com.github.amatanhead.pcl.errors.NoNewTokenError;
 import com.github.amatanhead.pcl.errors.TokenizationError;
 import com.github.amatanhead.pcl.token.Token;
+import com.github.amatanhead.pcl.token.TokenKind;
 
 import java.util.Iterator;
 import java.util.ListIterator;
@@ -36,6 +37,22 @@ final class DefaultIteratorStream extends StandardUnclearable implements TokenSt
     public boolean canInput() {
         return iterator.hasNext();
     }
+
+    @Override
+    public int input(Token[] dst, int off, int len) {
+        if (off < 0 || len < 0 || len > dst.length - off) {
+            throw new IndexOutOfBoundsException("range " + off + ".." + (off + len) + " is out of the array");
+        }
+
+        int count = 0;
+
+        while (count < len && iterator.hasNext()) {
+            markUnclear();
+            dst[off + count++] = iterator.next();
+        }
+
+        return count;
+    }
 }
 
 
@@ -81,6 +98,22 @@ final class DefaultListIteratorStream extends StandardUnclearableBookmarkable im
         return iterator.hasNext();
     }
 
+    @Override
+    public int input(Token[] dst, int off, int len) {
+        if (off < 0 || len < 0 || len > dst.length - off) {
+            throw new IndexOutOfBoundsException("range " + off + ".." + (off + len) + " is out of the array");
+        }
+
+        int count = 0;
+
+        while (count < len && iterator.hasNext()) {
+            onInput();
+            dst[off + count++] = iterator.next();
+        }
+
+        return count;
+    }
+
     @Override
     public boolean isClear() {
         return iterator.nextIndex() == 0;
@@ -88,17 +121,55 @@ final class DefaultListIteratorStream extends StandardUnclearableBookmarkable im
 }
 
 
+/**
+ * A wrapper for converting {@link TokenCursor} into a {@link TokenStream}.
+ * <p>
+ * Each token is copied out of the cursor, so tokens stay valid after the cursor moves on.
+ */
+final class DefaultCursorStream implements TokenStream {
+    private final TokenCursor cursor;
+
+    DefaultCursorStream(TokenCursor cursor) {
+        this.cursor = cursor;
+    }
+
+    @Override
+    public Token input() throws TokenizationError {
+        if (!canInput()) {
+            throw new NoNewTokenError("no tokens left in the stream");
+        }
+
+        final int kind = cursor.next();
+
+        return new Token(TokenKind.forId(kind), cursor.text().toString(), cursor.line(), cursor.column(),
+                cursor.start());
+    }
+
+    @Override
+    public boolean canInput() {
+        return cursor.hasNext();
+    }
+
+    @Override
+    public boolean isClear() {
+        return cursor.kind() == TokenCursor.NONE;
+    }
+}
+
+
 /**
  * A wrapper which ads {@link TokenStream1} functionality to existing base token stream.
  * <p>
  * This wrapper keeps last token that was generated by the underlying stream, handling all unput procedures
- * and delegating input procedures to the underlying stream.
+ * and delegating input procedures to the underlying stream. A {@link #peek() peeked} token is kept until it's
+ * input, so peeking doesn't prevent unputting the previous token.
  */
 final class DefaultStream1 extends StandardUnclearable implements TokenStream1 {
     private final TokenStream tokenStream;
 
     Token prev = null;
     Token next = null;
+    Token ahead = null;
 
     DefaultStream1(TokenStream tokenStream) {
         this.tokenStream = tokenStream;
@@ -110,6 +181,7 @@ final class DefaultStream1 extends StandardUnclearable implements TokenStream1 {
             throw new NoBacktrackingTokenError("no previous token available");
         }
 
+        ahead = next;
         next = prev;
         prev = null;
 
@@ -133,7 +205,8 @@ final class DefaultStream1 extends StandardUnclearable implements TokenStream1 {
             token = tokenStream.input();
         }
 
-        next = null;
+        next = ahead;
+        ahead = null;
         prev = token;
 
         return token;
@@ -143,6 +216,15 @@ final class DefaultStream1 extends StandardUnclearable implements TokenStream1 {
     public boolean canInput() {
         return (next != null) || tokenStream.canInput();
     }
+
+    @Override
+    public Token peek() throws TokenizationError {
+        if (next == null) {
+            next = tokenStream.input();
+        }
+
+        return next;
+    }
 }
 
 
@@ -185,67 +267,6 @@ final class DefaultStreamN extends StandardUnclearable implements TokenStreamN {
 }
 
 
-/**
- * A wrapper which ads {@link TokenStreamStar} functionality to existing base token stream.
- * <p>
- * This wrapper keeps a list of all tokens that was generated by the underlying stream and a backtracking stack,
- * handling all unput procedures and delegating input procedures to the underlying stream.
- */
-final class DefaultStreamStar extends StandardUnclearableBookmarkable implements TokenStreamStar {
-    private final TokenStream tokenStream;
-
-    private final Stack<Token> backtrackingStack = new Stack<>();
-    private final Stack<Token> savedStack = new Stack<>();
-
-    DefaultStreamStar(TokenStream tokenStream) {
-        this.tokenStream = tokenStream;
-    }
-
-    @Override
-    public Token unput() {
-        if (canUnput()) {
-            onUnput();
-            Token token = savedStack.pop();
-            backtrackingStack.push(token);
-            return token;
-        } else {
-            throw new NoBacktrackingTokenError("no tokens left in the backtracking stack");
-        }
-    }
-
-    @Override
-    public boolean canUnput() {
-        return !savedStack.empty();
-    }
-
-    @Override
-    public Token input() throws TokenizationError {
-        markUnclear();
-
-        Token token;
-
-        if (!backtrackingStack.empty()) {
-            onInput();
-            token = backtrackingStack.pop();
-        } else if (canInput()) {
-            onInput();
-            token = tokenStream.input();
-        } else {
-            throw new NoNewTokenError("no tokens left in the stream");
-        }
-
-        savedStack.push(token);
-
-        return token;
-    }
-
-    @Override
-    public boolean canInput() {
-        return !backtrackingStack.empty() || tokenStream.canInput();
-    }
-}
-
-
 /**
  * Commonly used conversions between token stream types. Allow adding new features to basic token stream.
  * For example, one can turn the default {@link TokenStream} into a full-featured {@link TokenStreamN}.
@@ -281,13 +302,27 @@ public final class StandardConversions {
         }
     }
 
+    /**
+     * Convert a token cursor into a proper token stream. Tokens are built from the state of the cursor
+     * as it moves.
+     *
+     * @throws LexerProtocolError the cursor has already moved.
+     */
+    static public TokenStream toStream(TokenCursor cursor) {
+        if (cursor.kind() != TokenCursor.NONE) {
+            throw new LexerProtocolError("no conversion can be applied to a cursor which has already moved");
+        }
+
+        return new DefaultCursorStream(cursor);
+    }
+
     /**
      * Convert arbitrary token stream into a one-backtrackable token stream.
      * <p>
      * If given `tokenStream` is an a one-backtrackable stream, this function is noop.
      * <p>
-     * Otherwise, it returns a default wrapper which delegates `input()` and `canInput()` to the original
-     * stream and adds support for `unput()`.
+     * Otherwise, it returns an {@link ArrayStreamStar} which delegates `input()` and `canInput()` to the original
+     * stream and keeps the tokens in an array to support `unput()` and constant-time bookmarks.
      *
      * @throws LexerProtocolError no conversion can be applied to an unclear token stream. See {@link TokenStream#isClear()}.
      */
@@ -308,8 +343,8 @@ public final class StandardConversions {
      * <p>
      * If given `tokenStream` is an an N-backtrackable stream, this function is noop.
      * <p>
-     * Otherwise, it returns a default wrapper which delegates `input()` and `canInput()` to the original
-     * stream and adds support for `unput()`.
+     * Otherwise, it returns an {@link ArrayStreamStar} which delegates `input()` and `canInput()` to the original
+     * stream and keeps the tokens in an array to support `unput()` and constant-time bookmarks.
      *
      * @throws LexerProtocolError no conversion can be applied to an unclear token stream. See {@link TokenStream#isClear()}.
      */
@@ -328,10 +363,12 @@ public final class StandardConversions {
     /**
      * Convert arbitrary token stream into a *-backtrackable token stream.
      * <p>
-     * If given `tokenStream` is an a *-backtrackable stream, this function is noop.
+     * If given `tokenStream` is an a *-backtrackable stream which implements {@link TokenStreamStar#mark()},
+     * this function is noop. Streams which rely on the default marks, that take linear time, are wrapped like
+     * any other stream, since the parser makes a mark for almost every AST node.
      * <p>
-     * Otherwise, it returns a default wrapper which delegates `input()` and `canInput()` to the original
-     * stream and adds support for `unput()`.
+     * Otherwise, it returns an {@link ArrayStreamStar} which delegates `input()` and `canInput()` to the original
+     * stream and keeps the tokens in an array to support `unput()` and constant-time bookmarks.
      *
      * @throws LexerProtocolError no conversion can be applied to an unclear token stream. See {@link TokenStream#isClear()}.
      */
@@ -340,10 +377,18 @@ public final class StandardConversions {
             throw new LexerProtocolError("no conversion can be applied to an unclear token stream");
         }
 
-        if (tokenStream instanceof TokenStreamStar) {
+        if (tokenStream instanceof TokenStreamStar && implementsMarks(tokenStream)) {
             return (TokenStreamStar) tokenStream;
         } else {
-            return new DefaultStreamStar(tokenStream);
+            return new ArrayStreamStar(tokenStream);
+        }
+    }
+
+    static private boolean implementsMarks(TokenStream tokenStream) {
+        try {
+            return !tokenStream.getClass().getMethod("mark").isDefault();
+        } catch (NoSuchMethodException e) {
+            throw new AssertionError("TokenStreamStar declares mark()", e);
         }
     }
 }
@@ -6,7 +6,8 @@ import com.github.amatanhead.pcl.errors.TokenizationError;
 
 
 /**
- * Provides default implementations for {@link #makeBookmark()}/{@link #restoreBookmark(Bookmark)} for star-parsers.
+ * Provides default implementations for {@link #makeBookmark()}/{@link #restoreBookmark(Bookmark)} and
+ * {@link #mark()}/{@link #reset(int)} for star-parsers.
  * <p>
  * Subclasses should call {@link #onInput()}/{@link #onUnput()} after each successful input/unput.
  * <p>
@@ -17,7 +18,8 @@ import com.github.amatanhead.pcl.errors.TokenizationError;
  * index is changed. It's class user responsibility to notify this class about index change. This is done via
  * {@link #onInput()}/{@link #onUnput()}. Each bookmark consists of an index that was current in the moment
  * of bookmark's creation. When {@link #restoreBookmark(Bookmark)} is called, this class executes {@link #input()} or
- * {@link #unput()} `abs(bookmark.index - currentIndex)` times.
+ * {@link #unput()} `abs(bookmark.index - currentIndex)` times. Marks are plain indices, and {@link #reset(int)}
+ * works the same way.
  */
 abstract class StandardUnclearableBookmarkable extends StandardUnclearable implements TokenStreamStar {
     private static class StandardBookmark extends TokenStreamStar.Bookmark {
@@ -41,21 +43,33 @@ abstract class StandardUnclearableBookmarkable extends StandardUnclearable imple
         assertBookmark(bookmark);
 
         if (bookmark instanceof StandardBookmark) {
-            StandardBookmark standardBookmark = (StandardBookmark) bookmark;
+            reset(((StandardBookmark) bookmark).position);
+        } else {
+            throw new BookmarkError("wrong bookmark type");
+        }
+    }
 
-            while (standardBookmark.position > position) {
-                try {
-                    input();
-                } catch (TokenizationError tokenizationError) {
-                    throw new LexerProtocolError("failed to restore bookmark", tokenizationError);
-                }
-            }
+    @Override
+    public int mark() {
+        return position;
+    }
 
-            while (standardBookmark.position < position) {
-                unput();
+    @Override
+    public void reset(int mark) {
+        if (mark < 0) {
+            throw new BookmarkError("mark must not be negative");
+        }
+
+        while (mark > position) {
+            try {
+                input();
+            } catch (TokenizationError tokenizationError) {
+                throw new LexerProtocolError("failed to restore bookmark", tokenizationError);
             }
-        } else {
-            throw new BookmarkError("wrong bookmark type");
+        }
+
+        while (mark < position) {
+            unput();
         }
     }
 
@@ -0,0 +1,520 @@
+package com.github.amatanhead.pcl.stream;
+
+import com.github.amatanhead.pcl.errors.BookmarkError;
+import com.github.amatanhead.pcl.errors.NoBacktrackingTokenError;
+import com.github.amatanhead.pcl.errors.NoNewTokenError;
+import com.github.amatanhead.pcl.errors.TokenizationError;
+import com.github.amatanhead.pcl.token.LineIndex;
+import com.github.amatanhead.pcl.token.SliceToken;
+import com.github.amatanhead.pcl.token.Token;
+import com.github.amatanhead.pcl.token.TokenKind;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * A {@link TokenStreamStar} view of a {@link TokenBuffer}.
+ * <p>
+ * The view only keeps an index into the buffer, so restoring a bookmark takes constant time.
+ */
+final class TokenBufferStream extends StandardUnclearable implements TokenStreamStar {
+    private static class IndexBookmark extends TokenStreamStar.Bookmark {
+        final int index;
+
+        IndexBookmark(TokenStreamStar originalStream, int index) {
+            super(originalStream);
+            this.index = index;
+        }
+    }
+
+    private final TokenBuffer buffer;
+    private int index = 0;
+
+    TokenBufferStream(TokenBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public Token input() {
+        markUnclear();
+
+        if (canInput()) {
+            return buffer.get(index++);
+        } else {
+            throw new NoNewTokenError("no tokens left in the stream");
+        }
+    }
+
+    @Override
+    public boolean canInput() {
+        return index < buffer.size();
+    }
+
+    @Override
+    public int input(Token[] dst, int off, int len) {
+        if (off < 0 || len < 0 || len > dst.length - off) {
+            throw new IndexOutOfBoundsException("range " + off + ".." + (off + len) + " is out of the array");
+        }
+
+        final int count = Math.min(len, buffer.size() - index);
+
+        if (count > 0) {
+            markUnclear();
+        }
+
+        for (int i = 0; i < count; i++) {
+            dst[off + i] = buffer.get(index++);
+        }
+
+        return count;
+    }
+
+    @Override
+    public Token peek(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+
+        if (k > buffer.size() - index) {
+            throw new NoNewTokenError("no tokens left in the stream");
+        }
+
+        return buffer.get(index + k - 1);
+    }
+
+    @Override
+    public Token unput() {
+        if (canUnput()) {
+            return buffer.get(--index);
+        } else {
+            throw new NoBacktrackingTokenError("no tokens left in the backtracking stack");
+        }
+    }
+
+    @Override
+    public boolean canUnput() {
+        return index > 0;
+    }
+
+    @Override
+    public Bookmark makeBookmark() {
+        return new IndexBookmark(this, index);
+    }
+
+    @Override
+    public void restoreBookmark(Bookmark bookmark) {
+        assertBookmark(bookmark);
+
+        if (bookmark instanceof IndexBookmark) {
+            index = ((IndexBookmark) bookmark).index;
+        } else {
+            throw new BookmarkError("wrong bookmark type");
+        }
+    }
+
+    @Override
+    public int mark() {
+        return index;
+    }
+
+    @Override
+    public void reset(int mark) {
+        if (mark < 0 || mark > buffer.size()) {
+            throw new BookmarkError("mark " + mark + " is out of the stream");
+        }
+
+        index = mark;
+    }
+}
+
+
+/**
+ * A compact, eagerly filled storage for tokens of a single text.
+ * <p>
+ * Instead of keeping a {@link Token} object per token, the buffer keeps parallel primitive arrays of token kinds,
+ * offsets and lengths. Token data are slices of the original text, and rows and columns are computed on demand
+ * with a {@link LineIndex}.
+ * Token objects are only created when requested via {@link #get(int)}, e.g. by the {@link #stream()} view.
+ * <p>
+ * Tokens which are not slices of the buffer's text (e.g. tokens built by lexer's token factories) are stored
+ * as is.
+ */
+public final class TokenBuffer {
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Reach of tokens which were added without one.
+     */
+    public static final int UNKNOWN_REACH = Integer.MAX_VALUE;
+
+    private final CharSequence source;
+    private final LineIndex lines;
+
+    private int size = 0;
+    private int[] kindIdArray = new int[INITIAL_CAPACITY];
+    private int[] starts = new int[INITIAL_CAPACITY];
+    private int[] lengths = new int[INITIAL_CAPACITY];
+
+    /**
+     * Tokens which are stored as is, by their index. Such tokens have a negative length in the {@link #lengths}
+     * array, and their offset (or -1) in the {@link #starts} array.
+     */
+    private final Map<Integer, Token> objects = new HashMap<>();
+
+    /**
+     * Reaches of tokens, see {@link #getReach(int)}. Allocated when the first reach is set.
+     */
+    private int[] reaches = null;
+
+    /**
+     * Create an empty buffer for tokens of the given text.
+     *
+     * @param source the original text. It must not change while the buffer is in use.
+     */
+    public TokenBuffer(CharSequence source) {
+        this.source = source;
+        this.lines = new LineIndex(source);
+    }
+
+    /**
+     * Create a buffer and fill it with all tokens of the given stream.
+     *
+     * @param source      the original text. It must not change while the buffer is in use.
+     * @param tokenStream stream of tokens of the given text.
+     * @throws TokenizationError the stream fails to tokenize its input.
+     */
+    public TokenBuffer(CharSequence source, TokenStream tokenStream) throws TokenizationError {
+        this(source);
+
+        while (tokenStream.canInput()) {
+            add(tokenStream.input());
+        }
+    }
+
+    /**
+     * Get the original text.
+     */
+    public CharSequence getSource() {
+        return source;
+    }
+
+    /**
+     * Append a token which is a slice of the original text.
+     *
+     * @param tokenKind kind of the token.
+     * @param start     index of the first char of the token in the text.
+     * @param end       index of the char following the last char of the token in the text.
+     */
+    public void add(TokenKind tokenKind, int start, int end) {
+        if (start < 0 || start > end || end > source.length()) {
+            throw new IndexOutOfBoundsException("range " + start + ".." + end + " is out of the source");
+        }
+
+        append(tokenKind, start, end - start);
+    }
+
+    /**
+     * Append a token.
+     * <p>
+     * Slice tokens which refer to the buffer's text and are positioned according to it are stored compactly,
+     * other tokens are stored as is.
+     */
+    public void add(Token token) {
+        if (token instanceof SliceToken && ((SliceToken) token).getSource() == source) {
+            final SliceToken slice = (SliceToken) token;
+            append(slice.getTokenKind(), slice.getStart(), slice.getLength());
+
+            if (slice.getLineIndex() == lines
+                    || getRow(size - 1) == slice.getRow() && getColumn(size - 1) == slice.getColumn()) {
+                return;
+            }
+
+            lengths[size - 1] = -1;
+        } else {
+            final long offset = token.getOffset();
+            append(token.getTokenKind(), offset >= 0 && offset <= Integer.MAX_VALUE ? (int) offset : -1, -1);
+        }
+
+        objects.put(size - 1, token);
+    }
+
+    /**
+     * Append a range of tokens of another buffer of the same text.
+     *
+     * @param other a buffer with the same {@link #getSource() source}.
+     * @param from  index of the first token to be appended.
+     * @param to    index following the last token to be appended.
+     * @throws IllegalArgumentException the other buffer has a different source.
+     */
+    public void addAll(TokenBuffer other, int from, int to) {
+        if (other.source != source) {
+            throw new IllegalArgumentException("buffers have different sources");
+        }
+
+        if (from < 0 || from > to || to > other.size) {
+            throw new IndexOutOfBoundsException("range " + from + ".." + to + " is out of the buffer");
+        }
+
+        final int count = to - from;
+
+        if (size + count > starts.length) {
+            final int capacity = Math.max(size * 2, size + count);
+            kindIdArray = Arrays.copyOf(kindIdArray, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            if (reaches != null) {
+                reaches = copyReaches(reaches, capacity);
+            }
+        }
+
+        if (other.reaches != null) {
+            allocateReaches();
+            System.arraycopy(other.reaches, from, reaches, size, count);
+        } else if (reaches != null) {
+            Arrays.fill(reaches, size, size + count, UNKNOWN_REACH);
+        }
+
+        System.arraycopy(other.kindIdArray, from, kindIdArray, size, count);
+        System.arraycopy(other.starts, from, starts, size, count);
+        System.arraycopy(other.lengths, from, lengths, size, count);
+
+        for (int i = from; i < to; i++) {
+            if (other.lengths[i] < 0) {
+                objects.put(size + i - from, other.objects.get(i));
+            }
+        }
+
+        size += count;
+    }
+
+    /**
+     * Append a range of tokens of a buffer of another text, moving them by the given number of chars.
+     * <p>
+     * This is meant for texts which differ by an edit: tokens of the unchanged part of the old text are moved
+     * to their place in the new text. The caller must make sure that the text of each token is the same in both
+     * texts. Tokens stored as is get their position updated, and known {@link #getReach(int) reaches} are moved
+     * as well.
+     *
+     * @param other a buffer of another text.
+     * @param from  index of the first token to be appended.
+     * @param to    index following the last token to be appended.
+     * @param shift number of chars to be added to each token's offset.
+     */
+    public void addAll(TokenBuffer other, int from, int to, int shift) {
+        if (other.source == source && shift == 0) {
+            addAll(other, from, to);
+            return;
+        }
+
+        if (from < 0 || from > to || to > other.size) {
+            throw new IndexOutOfBoundsException("range " + from + ".." + to + " is out of the buffer");
+        }
+
+        for (int i = from; i < to; i++) {
+            if (other.lengths[i] < 0) {
+                final Token token = other.objects.get(i);
+                final int start = other.starts[i];
+
+                if (start < 0) {
+                    add(token);
+                } else {
+                    final int moved = start + shift;
+                    final boolean positioned = token.getRow() >= 0;
+                    append(token.getTokenKind(), moved, -1);
+                    objects.put(size - 1, new Token(token, positioned ? lines.getRow(moved) : -1,
+                            positioned ? lines.getColumn(moved) : -1, moved));
+                }
+            } else {
+                final int start = other.starts[i] + shift;
+                final int end = start + other.lengths[i];
+
+                if (start < 0 || end > source.length()) {
+                    throw new IndexOutOfBoundsException("range " + start + ".." + end + " is out of the source");
+                }
+
+                append(TokenKind.forId(other.kindIdArray[i]), start, other.lengths[i]);
+            }
+
+            final int reach = other.getReach(i);
+            if (reach != UNKNOWN_REACH) {
+                setReach(size - 1, reach + shift);
+            }
+        }
+    }
+
+    private void append(TokenKind tokenKind, int start, int length) {
+        if (size == starts.length) {
+            final int capacity = size * 2;
+            kindIdArray = Arrays.copyOf(kindIdArray, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            if (reaches != null) {
+                reaches = copyReaches(reaches, capacity);
+            }
+        }
+
+        kindIdArray[size] = tokenKind.getId();
+        starts[size] = start;
+        lengths[size] = length;
+        size += 1;
+    }
+
+    private void allocateReaches() {
+        if (reaches == null) {
+            reaches = copyReaches(new int[0], starts.length);
+        }
+    }
+
+    private static int[] copyReaches(int[] reaches, int capacity) {
+        final int[] copy = Arrays.copyOf(reaches, capacity);
+        Arrays.fill(copy, reaches.length, capacity, UNKNOWN_REACH);
+        return copy;
+    }
+
+    /**
+     * Number of tokens in this buffer.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get kind of the i-th token.
+     */
+    public TokenKind getTokenKind(int i) {
+        return TokenKind.forId(getKindId(i));
+    }
+
+    /**
+     * Get the {@link TokenKind#getId() id} of kind of the i-th token.
+     */
+    public int getKindId(int i) {
+        checkIndex(i);
+        return kindIdArray[i];
+    }
+
+    /**
+     * Get offset of the i-th token in the original text, or -1 if it is unknown.
+     */
+    public int getStart(int i) {
+        checkIndex(i);
+        return starts[i];
+    }
+
+    /**
+     * Get length of the i-th token's text.
+     */
+    public int getLength(int i) {
+        checkIndex(i);
+
+        if (lengths[i] < 0) {
+            return objects.get(i).getText().length();
+        }
+
+        return lengths[i];
+    }
+
+    /**
+     * Get reach of the i-th token: offset of the first char of the text which was not looked at while lexing
+     * the token and the skipped text which follows it, or {@link #UNKNOWN_REACH}.
+     * <p>
+     * Reaches are recorded by incremental tokenization: a token is valid after an edit of the text at or after
+     * its reach.
+     */
+    public int getReach(int i) {
+        checkIndex(i);
+        return reaches == null ? UNKNOWN_REACH : reaches[i];
+    }
+
+    /**
+     * Set reach of the i-th token, see {@link #getReach(int)}.
+     */
+    public void setReach(int i, int reach) {
+        checkIndex(i);
+        allocateReaches();
+        reaches[i] = reach;
+    }
+
+    /**
+     * Get row on which the i-th token starts.
+     */
+    public long getRow(int i) {
+        checkIndex(i);
+
+        if (lengths[i] < 0) {
+            return objects.get(i).getRow();
+        }
+
+        return lines.getRow(starts[i]);
+    }
+
+    /**
+     * Get column on which the i-th token starts.
+     */
+    public long getColumn(int i) {
+        checkIndex(i);
+
+        if (lengths[i] < 0) {
+            return objects.get(i).getColumn();
+        }
+
+        return lines.getColumn(starts[i]);
+    }
+
+    /**
+     * Get a read-only view of the i-th token's text, without creating a string.
+     */
+    public CharSequence getText(int i) {
+        checkIndex(i);
+
+        if (lengths[i] < 0) {
+            return objects.get(i).getText();
+        }
+
+        return CharBuffer.wrap(source, starts[i], starts[i] + lengths[i]);
+    }
+
+    /**
+     * Get data of the i-th token.
+     */
+    public String getData(int i) {
+        checkIndex(i);
+
+        if (lengths[i] < 0) {
+            return objects.get(i).getData();
+        }
+
+        return source.subSequence(starts[i], starts[i] + lengths[i]).toString();
+    }
+
+    /**
+     * Build a token object for the i-th token.
+     */
+    public Token get(int i) {
+        checkIndex(i);
+
+        if (lengths[i] < 0) {
+            return objects.get(i);
+        }
+
+        return new SliceToken(TokenKind.forId(kindIdArray[i]), source, starts[i], starts[i] + lengths[i], starts[i],
+                lines);
+    }
+
+    /**
+     * Get a {@link TokenStreamStar} view of this buffer. Each call returns a new view positioned
+     * at the first token.
+     */
+    public TokenStreamStar stream() {
+        return new TokenBufferStream(this);
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("token index " + i + " is out of range");
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.github.amatanhead.pcl.stream;
+
+import com.github.amatanhead.pcl.errors.NoNewTokenError;
+import com.github.amatanhead.pcl.errors.TokenizationError;
+import com.github.amatanhead.pcl.token.Token;
+import com.github.amatanhead.pcl.token.TokenKind;
+
+/**
+ * A cursor over the result of tokenization which doesn't build token objects.
+ * <p>
+ * Unlike a {@link TokenStream}, which yields a new {@link Token} for each token, a cursor only moves
+ * to the next token and describes it by its own accessors: the {@link TokenKind#getId() id} of its kind, its
+ * offsets, text and position. The accessors read state which is overwritten by the next call to {@link #next()},
+ * so a cursor allocates nothing per token, and the text returned by {@link #text()} is a view which is only valid
+ * until then. This is meant for code which inspects every token of a large input but keeps few of them,
+ * e.g. validators and filters.
+ * <p>
+ * A cursor can be turned into an ordinary token stream with {@link StandardConversions#toStream(TokenCursor)}.
+ */
+public interface TokenCursor {
+    /**
+     * Returned by {@link #kind()} before the first call to {@link #next()}.
+     */
+    int NONE = -1;
+
+    /**
+     * Move to the next token.
+     *
+     * @return id of the kind of the token, {@link TokenKind#EOF_ID} for the end of the text.
+     * @throws TokenizationError if the underlying text cannot be tokenized.
+     * @throws NoNewTokenError   the cursor is past the end of the text. See {@link #hasNext()}.
+     */
+    int next() throws TokenizationError;
+
+    /**
+     * Check whether there are tokens left, i.e. whether the cursor hasn't reached the EOF token yet.
+     */
+    boolean hasNext();
+
+    /**
+     * Get id of the kind of the current token, or {@link #NONE} if the cursor hasn't moved yet.
+     */
+    int kind();
+
+    /**
+     * Get kind of the current token.
+     *
+     * @throws IndexOutOfBoundsException the cursor hasn't moved yet.
+     */
+    default TokenKind getTokenKind() {
+        return TokenKind.forId(kind());
+    }
+
+    /**
+     * Get offset of the first char of the current token in the text.
+     */
+    long start();
+
+    /**
+     * Get offset of the char after the last char of the current token in the text.
+     */
+    long end();
+
+    /**
+     * Get data of the current token, i.e. its text unless the rule which matched it says otherwise.
+     * <p>
+     * The result is valid until the next call to {@link #next()}. Call {@link Object#toString()} to keep a copy.
+     */
+    CharSequence text();
+
+    /**
+     * Get row of the current token, starting with 0, or -1 if positions are not tracked.
+     */
+    long line();
+
+    /**
+     * Get column of the current token, starting with 0, or -1 if positions are not tracked.
+     */
+    long column();
+}
@@ -21,6 +21,46 @@ public interface TokenStream {
      */
     Token input() throws TokenizationError;
 
+    /**
+     * Input up to `len` tokens at once and put them into `dst`, starting at `off`.
+     * <p>
+     * This is a bulk version of {@link #input()} for code which reads many tokens in a row, e.g. wrappers which
+     * refill their buffers: a stream can implement it without a {@link #canInput()} check and other per-call
+     * bookkeeping for each token.
+     * <p>
+     * The call may input less than `len` tokens even if the stream is not over. If the stream fails to tokenize
+     * its input after some tokens are read, the call returns them, and the next call throws the error.
+     * The default implementation relies on the streams failing at the same input again, which all streams of this
+     * library do.
+     *
+     * @param dst array to put the tokens into.
+     * @param off index of the first token in the array.
+     * @param len maximal number of tokens to input.
+     * @return number of tokens put into the array, which is zero only if `len` is zero or no tokens are left.
+     * @throws TokenizationError         if the underlying stream cannot be tokenized and no tokens were read.
+     * @throws IndexOutOfBoundsException `off` and `len` don't describe a range of the array.
+     */
+    default int input(Token[] dst, int off, int len) throws TokenizationError {
+        if (off < 0 || len < 0 || len > dst.length - off) {
+            throw new IndexOutOfBoundsException("range " + off + ".." + (off + len) + " is out of the array");
+        }
+
+        int count = 0;
+
+        try {
+            while (count < len && canInput()) {
+                dst[off + count] = input();
+                count++;
+            }
+        } catch (TokenizationError error) {
+            if (count == 0) {
+                throw error;
+            }
+        }
+
+        return count;
+    }
+
     /**
      * Check if there is a next token available in the given stream.
      *
@@ -1,6 +1,8 @@
 package com.github.amatanhead.pcl.stream;
 
 import com.github.amatanhead.pcl.errors.NoBacktrackingTokenError;
+import com.github.amatanhead.pcl.errors.NoNewTokenError;
+import com.github.amatanhead.pcl.errors.TokenizationError;
 import com.github.amatanhead.pcl.token.Token;
 
 /**
@@ -23,4 +25,20 @@ public interface TokenStream1 extends TokenStream {
      * @return true if {@link #unput()} can return token to the stream.
      */
     boolean canUnput();
+
+    /**
+     * Get the next token without moving the stream, i.e. the token the next {@link #input()} will return.
+     * <p>
+     * The default implementation inputs the token and unputs it back, which loses the previous token for
+     * streams that can only unput one token. Implementations should override it.
+     *
+     * @return next token.
+     * @throws NoNewTokenError   no tokens left in the stream. See {@link #canInput()}.
+     * @throws TokenizationError underlying lexer failed to generate a token.
+     */
+    default Token peek() throws TokenizationError {
+        final Token token = input();
+        unput();
+        return token;
+    }
 }
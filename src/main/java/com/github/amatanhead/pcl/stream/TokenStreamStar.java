@@ -1,12 +1,19 @@
 package com.github.amatanhead.pcl.stream;
 
 import com.github.amatanhead.pcl.errors.BookmarkError;
+import com.github.amatanhead.pcl.errors.NoNewTokenError;
+import com.github.amatanhead.pcl.errors.TokenizationError;
+import com.github.amatanhead.pcl.token.Token;
 
 /**
  * TokenStreamStar keeps track of all previously generated tokens, allowing to backtrack as many tokens
  * as you like.
  * <p>
- * There is also a special mechanism for bookmarking and restoring stream position.
+ * There is also a special mechanism for bookmarking and restoring stream position, either with bookmark objects
+ * or with plain int marks (see {@link #mark()}), which don't need an allocation.
+ * <p>
+ * Keeping every token is not always affordable, so a stream may drop tokens the parser has
+ * {@link #commit() committed} to.
  */
 public interface TokenStreamStar extends TokenStream1 {
     /**
@@ -43,6 +50,125 @@ public interface TokenStreamStar extends TokenStream1 {
      */
     void restoreBookmark(Bookmark bookmark);
 
+    /**
+     * Get the current stream position, i.e. the number of tokens before it.
+     * <p>
+     * This is a primitive version of {@link #makeBookmark()}: the mark can be supplied to {@link #reset(int)}
+     * of this exact stream instance.
+     * <p>
+     * The default implementation counts the tokens by unputting all of them, and then restores the position
+     * with a bookmark. It takes time linear in the position, so streams should override it.
+     */
+    default int mark() {
+        final Bookmark bookmark = makeBookmark();
+
+        int position = 0;
+        while (canUnput()) {
+            unput();
+            position++;
+        }
+
+        restoreBookmark(bookmark);
+
+        return position;
+    }
+
+    /**
+     * Restore stream position at the given mark.
+     * <p>
+     * The default implementation finds the current position with {@link #mark()}, and then walks to the given
+     * one with {@link #input()} and {@link #unput()}.
+     *
+     * @param mark stream position returned by {@link #mark()}.
+     * @throws BookmarkError the stream has never been at the given position.
+     */
+    default void reset(int mark) {
+        if (mark < 0) {
+            throw new BookmarkError("mark must not be negative");
+        }
+
+        int position = mark();
+
+        while (mark > position) {
+            try {
+                input();
+            } catch (TokenizationError tokenizationError) {
+                throw new BookmarkError("mark " + mark + " is out of the tokens read so far", tokenizationError);
+            }
+            position++;
+        }
+
+        while (mark < position) {
+            unput();
+            position--;
+        }
+    }
+
+    /**
+     * Get the next token without moving the stream. Same as `peek(1)`.
+     */
+    @Override
+    default Token peek() throws TokenizationError {
+        return peek(1);
+    }
+
+    /**
+     * Look `k` tokens ahead without moving the stream, i.e. get the token the `k`-th next {@link #input()}
+     * will return.
+     * <p>
+     * The default implementation inputs `k` tokens and {@link #reset(int) resets} the stream back.
+     *
+     * @param k number of the token to look at, starting with 1.
+     * @return the `k`-th next token.
+     * @throws NoNewTokenError   there are less than `k` tokens left in the stream.
+     * @throws TokenizationError underlying lexer failed to generate a token.
+     */
+    default Token peek(int k) throws TokenizationError {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+
+        final int mark = mark();
+        try {
+            Token token = null;
+            for (int i = 0; i < k; i++) {
+                token = input();
+            }
+            return token;
+        } finally {
+            reset(mark);
+        }
+    }
+
+    /**
+     * Make a mark for the current stream position and keep it valid until the matching {@link #release()}:
+     * {@link #commit()} doesn't drop tokens after a held mark. Holds nest and must be released in reverse order.
+     * <p>
+     * The default implementation just returns {@link #mark()}, which suits streams that never drop tokens.
+     *
+     * @return a mark which can be supplied to {@link #reset(int)} until the hold is released.
+     */
+    default int hold() {
+        return mark();
+    }
+
+    /**
+     * Release the last hold made with {@link #hold()}.
+     */
+    default void release() {
+    }
+
+    /**
+     * Promise that the stream will never go back behind the current position, except to held marks.
+     * <p>
+     * A stream may drop tokens before the outermost hold, or before the current position if there are
+     * no holds. Unputting those tokens or restoring marks and bookmarks made before them fails afterwards.
+     * Code which goes back to a mark or a bookmark across nodes that may commit should {@link #hold()}
+     * the stream; the standard parser does so around custom nodes. The default implementation does nothing.
+     */
+    default void commit() {
+    }
+
     /**
      * Assert that the given bookmark can be used with this stream.
      *
@@ -0,0 +1,113 @@
+package com.github.amatanhead.pcl.token;
+
+import java.util.Arrays;
+
+/**
+ * An index of line starts of a text, used to turn char offsets into rows and columns.
+ * <p>
+ * The index is built lazily: the text is scanned for line breaks only up to the largest offset requested so far,
+ * and each lookup is a binary search over the offsets of line starts. Thus, tokens and errors only need to carry
+ * an offset, and rows and columns are computed only for those of them which are actually asked for.
+ * <p>
+ * Line breaks in strings are found with {@link String#indexOf(int, int)}, which the JVM compiles to a vectorized
+ * search; other char sequences are scanned char by char.
+ * <p>
+ * Lines are separated by `\n`. The text must not change while the index is in use. The index is thread-safe.
+ */
+public final class LineIndex {
+    private final CharSequence text;
+
+    private int[] lineStarts = new int[16];
+    private int lineCount = 1;
+    private int scanned = 0;
+
+    /**
+     * Offset of the first line break at or after {@link #scanned} if it's known, i.e. if it's not less than
+     * {@link #scanned}. The length of the text if there are no more line breaks.
+     */
+    private int nextBreak = -1;
+
+    /**
+     * Create an index of the given text. The text is not scanned until the first lookup.
+     */
+    public LineIndex(CharSequence text) {
+        this.text = text;
+    }
+
+    /**
+     * Get the indexed text.
+     */
+    public CharSequence getText() {
+        return text;
+    }
+
+    /**
+     * Get row of the char at the given offset, starting with 0.
+     *
+     * @param offset offset in the text, from 0 to the length of the text inclusive.
+     * @throws IndexOutOfBoundsException offset is out of the text.
+     */
+    public synchronized long getRow(int offset) {
+        return findLine(offset);
+    }
+
+    /**
+     * Get column of the char at the given offset, starting with 0.
+     *
+     * @param offset offset in the text, from 0 to the length of the text inclusive.
+     * @throws IndexOutOfBoundsException offset is out of the text.
+     */
+    public synchronized long getColumn(int offset) {
+        return offset - lineStarts[findLine(offset)];
+    }
+
+    private int findLine(int offset) {
+        if (offset < 0 || offset > text.length()) {
+            throw new IndexOutOfBoundsException("offset " + offset + " is out of the text");
+        }
+
+        scanTo(offset);
+
+        final int i = Arrays.binarySearch(lineStarts, 0, lineCount, offset);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /**
+     * Make sure that all line breaks before the given offset are indexed.
+     */
+    private void scanTo(int offset) {
+        if (text instanceof String) {
+            final String string = (String) text;
+
+            while (scanned < offset) {
+                if (nextBreak < scanned) {
+                    nextBreak = string.indexOf('\n', scanned);
+                    if (nextBreak < 0) {
+                        nextBreak = string.length();
+                    }
+                }
+
+                if (nextBreak >= offset) {
+                    scanned = offset;
+                } else {
+                    addLine(nextBreak + 1);
+                    scanned = nextBreak + 1;
+                }
+            }
+        } else {
+            for (; scanned < offset; scanned++) {
+                if (text.charAt(scanned) == '\n') {
+                    addLine(scanned + 1);
+                }
+            }
+        }
+    }
+
+    private void addLine(int start) {
+        if (lineCount == lineStarts.length) {
+            lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+        }
+
+        lineStarts[lineCount++] = start;
+    }
+}
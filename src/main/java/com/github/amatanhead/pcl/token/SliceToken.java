@@ -0,0 +1,151 @@
+package com.github.amatanhead.pcl.token;
+
+import java.nio.CharBuffer;
+
+/**
+ * A token which refers to a slice of the original text instead of holding a copy of it.
+ * <p>
+ * The data string is only created when {@link #getData()} is called for the first time, so tokens whose text
+ * is never read (punctuation, keywords, etc.) cost no string allocation. {@link #getText()} gives access
+ * to the text without creating a string.
+ * <p>
+ * If constructed with a {@link LineIndex}, the token's row and column are computed from its offset each time
+ * they are requested, so tokens which are never reported cost no position lookup.
+ * <p>
+ * Slice tokens keep a reference to the whole original text, and the text must not change while they are in use.
+ * Slice tokens are equal to ordinary tokens with the same kind, data and position.
+ */
+public class SliceToken extends Token {
+    private final CharSequence source;
+    private final int start;
+    private final int end;
+    private final LineIndex lines;
+
+    /**
+     * The data string, or null if it is not created yet. The inherited data is always null.
+     */
+    private String data;
+
+    /**
+     * Construct a slice token.
+     *
+     * @param tokenKind kind of the token.
+     * @param source    the original text.
+     * @param start     index of the first char of the token in the source.
+     * @param end       index of the char following the last char of the token in the source.
+     * @param offset    offset of the token in the original text (may differ from `start` if the source is
+     *                  a part of a larger text).
+     * @param row       row of the original text on which the token was rendered.
+     * @param column    column of the original text on which the token was rendered.
+     * @throws IndexOutOfBoundsException `start` and `end` don't denote a slice of the source.
+     */
+    public SliceToken(TokenKind tokenKind, CharSequence source, int start, int end, long offset, long row, long column) {
+        this(tokenKind, source, start, end, offset, null, row, column);
+    }
+
+    /**
+     * Construct a slice token whose row and column are computed lazily.
+     *
+     * @param tokenKind kind of the token.
+     * @param source    the original text.
+     * @param start     index of the first char of the token in the source.
+     * @param end       index of the char following the last char of the token in the source.
+     * @param offset    offset of the token in the original text (may differ from `start` if the source is
+     *                  a part of a larger text).
+     * @param lines     line index of the source, or null if the token has no position (in which case its row
+     *                  and column are -1).
+     * @throws IndexOutOfBoundsException `start` and `end` don't denote a slice of the source.
+     */
+    public SliceToken(TokenKind tokenKind, CharSequence source, int start, int end, long offset, LineIndex lines) {
+        this(tokenKind, source, start, end, offset, lines, -1, -1);
+    }
+
+    private SliceToken(TokenKind tokenKind, CharSequence source, int start, int end, long offset, LineIndex lines,
+                       long row, long column) {
+        super(tokenKind, null, row, column, offset);
+
+        if (start < 0 || start > end || end > source.length()) {
+            throw new IndexOutOfBoundsException("range " + start + ".." + end + " is out of the source");
+        }
+
+        this.source = source;
+        this.start = start;
+        this.end = end;
+        this.lines = lines;
+    }
+
+    /**
+     * Get data associated with the given token. The string is created on the first call and cached.
+     */
+    @Override
+    public String getData() {
+        // Racy, but strings are immutable, so the worst case is creating the string twice.
+        String data = this.data;
+
+        if (data == null) {
+            data = source.subSequence(start, end).toString();
+            this.data = data;
+        }
+
+        return data;
+    }
+
+    /**
+     * Get a read-only view of the token's slice of the original text.
+     */
+    @Override
+    public CharSequence getText() {
+        final String data = this.data;
+
+        if (data != null) {
+            return data;
+        }
+
+        return CharBuffer.wrap(source, start, end);
+    }
+
+    @Override
+    public long getRow() {
+        return lines != null ? lines.getRow(start) : super.getRow();
+    }
+
+    @Override
+    public long getColumn() {
+        return lines != null ? lines.getColumn(start) : super.getColumn();
+    }
+
+    /**
+     * Get length of the token's text, in chars.
+     */
+    public int getLength() {
+        return end - start;
+    }
+
+    /**
+     * Get the line index this token computes its row and column with, or null.
+     */
+    public LineIndex getLineIndex() {
+        return lines;
+    }
+
+    /**
+     * Get the original text this token refers to.
+     */
+    public CharSequence getSource() {
+        return source;
+    }
+
+    /**
+     * Get index of the first char of the token in the {@link #getSource() source}.
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * Get index of the char following the last char of the token in the {@link #getSource() source}.
+     */
+    public int getEnd() {
+        return end;
+    }
+}
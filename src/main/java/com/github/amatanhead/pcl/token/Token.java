@@ -10,6 +10,8 @@ import java.util.Objects;
  * <p>
  * Tokens can cary information about position in the original text on which they were rendered.
  * <p>
+ * Lexers may produce {@link SliceToken slice tokens} which refer to the original text instead of copying it.
+ * <p>
  * Tokens are immutable.
  */
 public class Token {
@@ -17,6 +19,7 @@ public class Token {
     private final String data;
     private final long row;
     private final long column;
+    private final long offset;
 
     /**
      * Construct a token with an empty string as its data and zero position.
@@ -36,24 +39,39 @@ public class Token {
      * Construct a full token.
      */
     public Token(TokenKind tokenKind, String data, long row, long column) {
+        this(tokenKind, data, row, column, -1);
+    }
+
+    /**
+     * Construct a full token which knows its offset in the original text.
+     */
+    public Token(TokenKind tokenKind, String data, long row, long column, long offset) {
         this.tokenKind = tokenKind;
         this.data = data;
         this.row = row;
         this.column = column;
+        this.offset = offset;
     }
 
     /**
      * Copy the given token.
      */
     public Token(Token token) {
-        this(token.tokenKind, token.data, token.row, token.column);
+        this(token.getTokenKind(), token.getData(), token.getRow(), token.getColumn());
     }
 
     /**
      * Copy the given token and replace its position.
      */
     public Token(Token token, long row, long column) {
-        this(token.tokenKind, token.data, row, column);
+        this(token.getTokenKind(), token.getData(), row, column);
+    }
+
+    /**
+     * Copy the given token and replace its position, including its offset in the original text.
+     */
+    public Token(Token token, long row, long column, long offset) {
+        this(token.getTokenKind(), token.getData(), row, column, offset);
     }
 
     /**
@@ -70,6 +88,24 @@ public class Token {
         return data;
     }
 
+    /**
+     * Get data associated with the given token as a char sequence.
+     * <p>
+     * Unlike {@link #getData()}, this method doesn't have to create a new string.
+     */
+    public CharSequence getText() {
+        return getData();
+    }
+
+    /**
+     * Get offset of the given token in the original text, in chars.
+     *
+     * @return the offset or -1 if it is unknown.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
     /**
      * Get row of the original text on which the given token was rendered.
      */
@@ -86,23 +122,23 @@ public class Token {
 
     @Override
     public String toString() {
-        return "Token(" + tokenKind + " at " + row + ":" + column + ")";
+        return "Token(" + getTokenKind() + " at " + getRow() + ":" + getColumn() + ")";
     }
 
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
+        if (!(o instanceof Token)) return false;
         Token token = (Token) o;
-        return row == token.row &&
-                column == token.column &&
-                Objects.equals(tokenKind, token.tokenKind) &&
-                Objects.equals(data, token.data);
+        return getRow() == token.getRow() &&
+                getColumn() == token.getColumn() &&
+                Objects.equals(getTokenKind(), token.getTokenKind()) &&
+                Objects.equals(getData(), token.getData());
     }
 
     @Override
     public int hashCode() {
 
-        return Objects.hash(tokenKind, data, row, column);
+        return Objects.hash(getTokenKind(), getData(), getRow(), getColumn());
     }
 }
@@ -1,5 +1,7 @@
 package com.github.amatanhead.pcl.token;
 
+import java.util.Arrays;
+
 /**
  * Token kind represents a class of tokens. Token kinds used to compare tokens and match them in parsers.
  * Essentially, token kind is a single word in a grammar. Example token kinds are 'word', 'keyword', 'newline', etc.
@@ -7,11 +9,26 @@ package com.github.amatanhead.pcl.token;
  * Token kinds are usually being static constants. Their names should be written in UPPERCASE, as you would white names
  * of all constants in java.
  * <p>
+ * Each token kind gets a unique dense integer id upon creation: ids are assigned sequentially, starting with
+ * {@link #EOF_ID} for the standard {@link #EOF} token kind. Ids can be used to build lookup tables indexed
+ * by token kinds. Note that token kinds are never released since the registry keeps all of them.
+ * <p>
  * Note that there is a standard token kind for the end of file. Every lexer yields this token at the very end
  * of a token stream.
  */
 public class TokenKind {
+    private static final Object registryLock = new Object();
+
+    /**
+     * All registered token kinds, by their ids. The array is replaced when it grows, so that lookups don't need
+     * to take the lock.
+     */
+    private static volatile TokenKind[] registry = new TokenKind[64];
+
+    private static int registrySize = 0;
+
     private final String name;
+    private final int id;
 
     /**
      * Construct a new `TokenKind` with the given name. Note that token names are purely decorative, i.e. they're
@@ -19,6 +36,18 @@ public class TokenKind {
      */
     public TokenKind(String name) {
         this.name = name;
+
+        synchronized (registryLock) {
+            TokenKind[] kinds = registry;
+            if (registrySize == kinds.length) {
+                kinds = Arrays.copyOf(kinds, kinds.length * 2);
+            }
+
+            this.id = registrySize;
+            kinds[id] = this;
+            registrySize += 1;
+            registry = kinds;
+        }
     }
 
     /**
@@ -29,11 +58,47 @@ public class TokenKind {
         return name;
     }
 
+    /**
+     * Get a unique dense id of this token kind.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Get a token kind by its id.
+     *
+     * @throws IndexOutOfBoundsException there is no token kind with the given id.
+     */
+    static public TokenKind forId(int id) {
+        final TokenKind[] kinds = registry;
+
+        if (id < 0 || id >= kinds.length || kinds[id] == null) {
+            throw new IndexOutOfBoundsException("there is no token kind with id " + id);
+        }
+
+        return kinds[id];
+    }
+
+    /**
+     * Get the number of token kinds created so far. All ids are less than this number.
+     */
+    static public int count() {
+        synchronized (registryLock) {
+            return registrySize;
+        }
+    }
+
     @Override
     public String toString() {
         return "<" + name + ">";
     }
 
+    /**
+     * Id of the standard {@link #EOF} token kind.
+     */
+    static public final int EOF_ID = 0;
+
     /**
      * Standard End If File token kind.
      */
@@ -0,0 +1,104 @@
+package com.github.amatanhead.pcl.lexer;
+
+import com.github.amatanhead.pcl.errors.TokenizationError;
+import com.github.amatanhead.pcl.stream.StandardConversions;
+import com.github.amatanhead.pcl.stream.TokenStream;
+import com.github.amatanhead.pcl.token.Token;
+import com.github.amatanhead.pcl.token.TokenKind;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AbstractTextLexerTest {
+    static private final TokenKind WORD = new TokenKind("WORD");
+
+    /**
+     * A lexer which only implements what the base class requires.
+     */
+    static private class WordLexer extends AbstractTextLexer {
+        @Override
+        public TokenStream tokenize(String text) throws TokenizationError {
+            List<Token> tokens = new ArrayList<>();
+
+            for (String word : text.split("\\s+")) {
+                if (word.contains("!")) {
+                    throw new TokenizationError("malformed word " + word);
+                }
+                if (!word.isEmpty()) {
+                    tokens.add(new Token(WORD, word));
+                }
+            }
+            tokens.add(new Token(TokenKind.EOF));
+
+            return StandardConversions.toStream(tokens.iterator());
+        }
+    }
+
+    static private List<Token> tokenizeAll(TokenStream stream) throws TokenizationError {
+        List<Token> tokens = new ArrayList<>();
+        while (stream.canInput()) {
+            tokens.add(stream.input());
+        }
+        return tokens;
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void tokenizeDefaults() throws IOException, TokenizationError {
+        WordLexer lexer = new WordLexer();
+        List<Token> expected = tokenizeAll(lexer.tokenize("a \u00e9t\u00e9 c"));
+
+        assertEquals(expected, tokenizeAll(lexer.tokenize(new StringBuilder("a \u00e9t\u00e9 c"))));
+
+        Path path = folder.newFile("words.txt").toPath();
+        Files.write(path, "a \u00e9t\u00e9 c".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(expected, tokenizeAll(lexer.tokenize(path)));
+        assertEquals(expected, tokenizeAll(lexer.tokenize(Files.newByteChannel(path), 4)));
+
+        try (FileChannel channel = FileChannel.open(path)) {
+            assertEquals(expected, tokenizeAll(lexer.tokenize(channel)));
+        }
+    }
+
+    @Test
+    public void tokenizeReader() throws TokenizationError {
+        WordLexer lexer = new WordLexer();
+
+        TokenStream stream = lexer.tokenize(new StringReader("a bb  ccc"), 2);
+        assertTrue(stream.isClear());
+        assertEquals(tokenizeAll(lexer.tokenize("a bb  ccc")), tokenizeAll(stream));
+        assertFalse(stream.isClear());
+
+        stream = lexer.tokenize(new StringReader("a b!"), 2);
+        assertTrue("errors are thrown by input()", stream.canInput());
+        for (int i = 0; i < 2; i++) {
+            try {
+                stream.input();
+                fail("should've fail on malformed input");
+            } catch (TokenizationError error) {
+                assertEquals("malformed word b!", error.getMessage());
+            }
+        }
+
+        try {
+            lexer.tokenize(new StringReader("a"), 0);
+            fail("should've fail on non-positive buffer size");
+        } catch (IllegalArgumentException ignored) {
+            // ok
+        }
+    }
+}
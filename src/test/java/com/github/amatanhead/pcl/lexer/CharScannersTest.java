@@ -0,0 +1,81 @@
+package com.github.amatanhead.pcl.lexer;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class CharScannersTest {
+    private static void assertSameAsRegex(CharScanner scanner, String regex, String alphabet) {
+        Pattern pattern = Pattern.compile(regex);
+        Random random = new Random(42);
+
+        for (int n = 0; n < 20000; n++) {
+            StringBuilder builder = new StringBuilder();
+            int length = 1 + random.nextInt(10);
+            for (int i = 0; i < length; i++) {
+                builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            String text = builder.toString();
+
+            Matcher matcher = pattern.matcher(text);
+            int expected = matcher.lookingAt() && matcher.end() > 0 ? matcher.end() : CharScanner.NO_MATCH;
+
+            assertEquals(text, expected, scanner.scan(text, 0));
+            assertEquals(text, expected >= 0 ? expected + 1 : CharScanner.NO_MATCH, scanner.scan("#" + text, 1));
+
+            if (expected >= 0) {
+                assertTrue(text, scanner.canStartWith(text.charAt(0)));
+            }
+        }
+    }
+
+    @Test
+    public void identifier() {
+        assertSameAsRegex(CharScanners.identifier(), "[a-zA-Z_][a-zA-Z_0-9]*", "aZ_09 .\u00E9");
+        assertSameAsRegex(
+                CharScanners.identifier(Character::isJavaIdentifierStart, Character::isJavaIdentifierPart),
+                "\\p{javaJavaIdentifierStart}\\p{javaJavaIdentifierPart}*", "aZ_09$ .\u00E9\u2028");
+    }
+
+    @Test
+    public void numbers() {
+        assertSameAsRegex(CharScanners.integer(), "[0-9]+", "019a.");
+        assertSameAsRegex(CharScanners.hexInteger(), "0[xX][0-9a-fA-F]+", "0xX1fFg");
+        assertSameAsRegex(CharScanners.number(), "[0-9]+(\\.[0-9]+)?([eE][+-]?[0-9]+)?", "09.eE+-x");
+    }
+
+    @Test
+    public void strings() {
+        assertSameAsRegex(CharScanners.cString(), "\"(\\\\[^\\n]|[^\"\\\\\\n])*\"", "\"\\\na'");
+        assertSameAsRegex(CharScanners.quoted('\''), "'(\\\\[^\\n]|[^'\\\\\\n])*'", "\"\\\na'");
+        assertSameAsRegex(CharScanners.jsonString(),
+                "\"([^\"\\\\\\x00-\\x1F]|\\\\([\"\\\\/bfnrt]|u[0-9a-fA-F]{4}))*\"", "\"\\\tnu0fga/");
+    }
+
+    @Test
+    public void comments() {
+        assertSameAsRegex(CharScanners.lineComment("//"), "//[^\\n]*", "/ *\na");
+        assertSameAsRegex(CharScanners.blockComment("/*", "*/"), "(?s)/\\*.*?\\*/", "/ *\na");
+        assertSameAsRegex(CharScanners.blockComment("{-", "-}"), "(?s)\\{-.*?-\\}", "{-} a");
+    }
+
+    @Test
+    public void whitespace() {
+        assertSameAsRegex(CharScanners.whitespace(), "\\s+", " \t\n\r\f\u000Ba\u00A0");
+        assertSameAsRegex(CharScanners.whitespace(" ."), "[ .]+", " .\ta");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void whitespaceNotAscii() {
+        CharScanners.whitespace(" \u00A0");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyDelimiter() {
+        CharScanners.lineComment("");
+    }
+}
@@ -0,0 +1,133 @@
+package com.github.amatanhead.pcl.lexer;
+
+import com.github.amatanhead.pcl.errors.TokenizationError;
+import com.github.amatanhead.pcl.stream.TokenStream;
+import com.github.amatanhead.pcl.token.Token;
+import com.github.amatanhead.pcl.token.TokenKind;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class CompiledLexerTest {
+    private final TokenKind NAME = new TokenKind("NAME");
+    private final TokenKind NUMBER = new TokenKind("NUMBER");
+    private final TokenKind EQ_SIGN = new TokenKind("EQ_SIGN");
+    private final TokenKind TAG = new TokenKind("TAG");
+
+    private RegexpTextLexer lexer;
+
+    @Before
+    public void setUp() {
+        lexer = new RegexpTextLexer();
+
+        lexer.addRule("[a-zA-Z_][a-zA-Z_0-9]*", NAME);
+        lexer.addRule(CharScanners.integer(), NUMBER);
+        lexer.addLiteral("=", EQ_SIGN);
+        lexer.addRule(Pattern.compile("#([a-z]+)"), matcher -> new Token(TAG, matcher.group(1)));
+        lexer.addRule("\\s+", (TokenKind) null);
+    }
+
+    private static List<Token> tokenizeAll(TokenStream stream) throws TokenizationError {
+        List<Token> tokens = new ArrayList<>();
+        while (stream.canInput()) {
+            tokens.add(stream.input());
+        }
+        return tokens;
+    }
+
+    @Test
+    public void snapshot() throws TokenizationError {
+        CompiledLexer compiled = lexer.compile();
+        assertSame(compiled, lexer.compile());
+
+        lexer.addLiteral("+", EQ_SIGN);
+        assertNotSame(compiled, lexer.compile());
+
+        assertEquals(EQ_SIGN, lexer.tokenize("+").input().getTokenKind());
+
+        try {
+            compiled.tokenize("+").input();
+            fail("compiled lexer should've ignored the new rule");
+        } catch (TokenizationError ignored) {
+        }
+
+        lexer.setPositionTracking(false);
+        assertEquals(-1, lexer.tokenize("x").input().getRow());
+        assertEquals(0, compiled.tokenize("x").input().getRow());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void immutable() {
+        lexer.compile().setDefaultEncoding("utf-16");
+    }
+
+    @Test
+    public void encoding() throws IOException, TokenizationError {
+        lexer.setDefaultEncoding("utf-16");
+        CompiledLexer compiled = lexer.compile();
+        lexer.setDefaultEncoding("utf-8");
+
+        assertEquals("UTF-16", compiled.getDefaultEncoding());
+
+        byte[] bytes = "abc = 1".getBytes(StandardCharsets.UTF_16);
+        assertEquals(new Token(NAME, "abc", 0, 0), compiled.tokenize(new ByteArrayInputStream(bytes)).input());
+    }
+
+    @Test
+    public void concurrentTokenization() throws Exception {
+        CompiledLexer compiled = lexer.compile();
+
+        List<String> documents = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            StringBuilder builder = new StringBuilder();
+            for (int j = 0; j < i; j++) {
+                builder.append("x").append(j).append(" = ").append(i * j).append(j % 3 == 0 ? " #tag\n" : "\n");
+            }
+            documents.add(builder.toString());
+        }
+
+        List<List<Token>> expected = new ArrayList<>();
+        for (String document : documents) {
+            expected.add(tokenizeAll(compiled.tokenize(document)));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int thread = 0; thread < 8; thread++) {
+                results.add(executor.submit(() -> {
+                    for (int round = 0; round < 20; round++) {
+                        for (int i = 0; i < documents.size(); i++) {
+                            byte[] bytes = documents.get(i).getBytes(StandardCharsets.UTF_8);
+                            if (!expected.get(i).equals(tokenizeAll(compiled.tokenize(documents.get(i))))
+                                    || !expected.get(i).equals(tokenizeAll(compiled.tokenizeAll(documents.get(i))
+                                    .stream()))
+                                    || !expected.get(i).equals(tokenizeAll(
+                                    compiled.tokenize(new ByteArrayInputStream(bytes))))) {
+                                return false;
+                            }
+                        }
+                    }
+                    return true;
+                }));
+            }
+
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
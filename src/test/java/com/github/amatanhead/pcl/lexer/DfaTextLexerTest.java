@@ -0,0 +1,453 @@
+package com.github.amatanhead.pcl.lexer;
+
+import com.github.amatanhead.pcl.errors.TokenizationError;
+import com.github.amatanhead.pcl.stream.TokenStream;
+import com.github.amatanhead.pcl.token.Token;
+import com.github.amatanhead.pcl.token.TokenKind;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class DfaTextLexerTest {
+    private final TokenKind TOK1 = new TokenKind("TOK1");
+    private final TokenKind TOK2 = new TokenKind("TOK2");
+    private final TokenKind NAME = new TokenKind("NAME");
+    private final TokenKind KEYWORD = new TokenKind("KEYWORD");
+    private final TokenKind STRING = new TokenKind("STRING");
+    private final TokenKind NUMBER = new TokenKind("NUMBER");
+    private final TokenKind OPERATOR = new TokenKind("OPERATOR");
+    private final TokenKind EQ_SIGN = new TokenKind("EQ_SIGN");
+    private final TokenKind NEWLINE = new TokenKind("NEWLINE");
+
+    private DfaTextLexer lexer;
+
+    @Before
+    public void setUp() {
+        lexer = new DfaTextLexer();
+
+        lexer.addRule(Pattern.compile("[a-zA-Z_][a-zA-Z_0-9]*"), NAME);
+        lexer.addRule(Pattern.compile("'(\\\\.|[^\\\\.])*'"), STRING);
+        lexer.addRule(Pattern.compile("\"(\\\\.|[^\\\\.])*\""), STRING);
+        lexer.addRule(Pattern.compile("[0-9]+"), NUMBER);
+        lexer.addRule(Pattern.compile("="), EQ_SIGN);
+        lexer.addRule(Pattern.compile("\r?\n"), NEWLINE);
+        lexer.addRule(Pattern.compile("\\s"), (TokenKind) null);
+    }
+
+    private static ArrayList<Token> tokenizeAll(RegexpTextLexer lexer, String text) throws TokenizationError {
+        ArrayList<Token> tokens = new ArrayList<>();
+
+        TokenStream stream = lexer.tokenize(text);
+        while (stream.canInput()) {
+            tokens.add(stream.input());
+        }
+
+        return tokens;
+    }
+
+    @Test
+    public void tokenize() throws TokenizationError {
+        String text = "" +
+                "TEST_VAR_1 = 10\n" +
+                "TEST_VAR_2 = 'test \\' string'\n" +
+                "TEST_VAR_3 = \"test \\\" string\"\n";
+
+        assertEquals(0, lexer.getFallbackRules().length);
+
+        TokenStream stream = lexer.tokenize(text);
+
+        assertEquals(new Token(NAME, "TEST_VAR_1", 0, 0), stream.input());
+        assertEquals(new Token(EQ_SIGN, "=", 0, 11), stream.input());
+        assertEquals(new Token(NUMBER, "10", 0, 13), stream.input());
+        assertEquals(new Token(NEWLINE, "\n", 0, 15), stream.input());
+
+        assertEquals(new Token(NAME, "TEST_VAR_2", 1, 0), stream.input());
+        assertEquals(new Token(EQ_SIGN, "=", 1, 11), stream.input());
+        assertEquals(new Token(STRING, "'test \\' string'", 1, 13), stream.input());
+        assertEquals(new Token(NEWLINE, "\n", 1, 29), stream.input());
+
+        assertEquals(new Token(NAME, "TEST_VAR_3", 2, 0), stream.input());
+        assertEquals(new Token(EQ_SIGN, "=", 2, 11), stream.input());
+        assertEquals(new Token(STRING, "\"test \\\" string\"", 2, 13), stream.input());
+        assertEquals(new Token(NEWLINE, "\n", 2, 29), stream.input());
+
+        assertEquals(new Token(TokenKind.EOF, "", 3, 0), stream.input());
+
+        assertFalse(stream.canInput());
+    }
+
+    @Test
+    public void tokenizationError() throws TokenizationError {
+        TokenStream stream = lexer.tokenize("TEST_VAR_1 = 10\nTEST_VAR_2 = 'test \\' string");
+
+        for (int i = 0; i < 6; i++) {
+            stream.input();
+        }
+
+        try {
+            stream.input();
+            fail("should've fail on malformed input");
+        } catch (TokenizationError error) {
+            assertEquals(1, error.row);
+            assertEquals(13, error.column);
+        }
+    }
+
+    @Test
+    public void tokenizationPriority() throws TokenizationError {
+        lexer = new DfaTextLexer();
+
+        lexer.addRule("[a-z]+", TOK1);
+        lexer.addRule("[a-z0-9]+", TOK2);
+        lexer.addRule("\\s", null);
+
+        TokenStream stream = lexer.tokenize("asd dsa1");
+
+        // The first rule wins even though the second one matches a longer prefix.
+        assertEquals(new Token(TOK1, "asd", 0, 0), stream.input());
+        assertEquals(new Token(TOK1, "dsa", 0, 4), stream.input());
+        assertEquals(new Token(TOK2, "1", 0, 7), stream.input());
+    }
+
+    @Test(expected = TokenizationError.class)
+    public void tokenizationPriorityNoMatch() throws TokenizationError {
+        lexer = new DfaTextLexer();
+
+        lexer.addRule("[a-z]+", TOK1);
+        lexer.addRule("[a-z]+[0-9]+", TOK2);
+
+        TokenStream stream = lexer.tokenize("asd1");
+
+        assertEquals(new Token(TOK1, "asd", 0, 0), stream.input());
+        stream.input();
+    }
+
+    @Test
+    public void literalsAndKeywords() throws TokenizationError {
+        lexer = new DfaTextLexer(false);
+
+        Map<String, TokenKind> operators = new LinkedHashMap<>();
+        operators.put("+", OPERATOR);
+        operators.put("+=", EQ_SIGN);
+        operators.put("++", TOK1);
+        lexer.addLiterals(operators);
+        lexer.addLiteral("(*)", TOK2);
+        lexer.addRule("[a-z]+", NAME, Collections.singletonMap("if", KEYWORD));
+        lexer.addLiteral(" ", null);
+
+        TokenStream stream = lexer.tokenize("if ++ += +x (*) iff");
+
+        assertEquals(new Token(KEYWORD, "if", 0, 0), stream.input());
+        assertEquals(new Token(TOK1, "++", 0, 3), stream.input());
+        assertEquals(new Token(EQ_SIGN, "+=", 0, 6), stream.input());
+        assertEquals(new Token(OPERATOR, "+", 0, 9), stream.input());
+        assertEquals(new Token(NAME, "x", 0, 10), stream.input());
+        assertEquals(new Token(TOK2, "(*)", 0, 12), stream.input());
+        assertEquals(new Token(NAME, "iff", 0, 16), stream.input());
+        assertEquals(TokenKind.EOF, stream.input().getTokenKind());
+    }
+
+    @Test
+    public void scannerRules() throws TokenizationError {
+        lexer = new DfaTextLexer(false);
+
+        lexer.addRule("[0-9]+", NUMBER);
+        lexer.addRule(CharScanners.hexInteger(), TOK1);
+        lexer.addRule("[0-9a-z]+", NAME);
+        lexer.addRule(CharScanners.lineComment("#"), (TokenKind) null);
+        lexer.addRule(CharScanners.whitespace(), (TokenKind) null);
+
+        TokenStream stream = lexer.tokenize("0x1f 0 #x\nabc");
+
+        assertEquals(new Token(NUMBER, "0", 0, 0), stream.input());
+        assertEquals(new Token(NAME, "x1f", 0, 1), stream.input());
+        assertEquals(new Token(NUMBER, "0", 0, 5), stream.input());
+        assertEquals(new Token(NAME, "abc", 1, 0), stream.input());
+        assertEquals(TokenKind.EOF, stream.input().getTokenKind());
+
+        lexer = new DfaTextLexer(false);
+        lexer.addRule(CharScanners.hexInteger(), TOK1);
+        lexer.addRule("[0-9a-z]+", NAME);
+
+        stream = lexer.tokenize("0x1f");
+        assertEquals(new Token(TOK1, "0x1f", 0, 0), stream.input());
+
+        // Each rule is small, but together they count up to 2 * 3 * 5 * 7 * 11 * 13 states.
+        lexer = new DfaTextLexer(false);
+        lexer.addRule(CharScanners.whitespace(), (TokenKind) null);
+        for (int period : new int[]{2, 3, 5, 7, 11, 13}) {
+            lexer.addRule("(a{" + period + "})+", TOK1);
+        }
+
+        try {
+            lexer.tokenize("aa");
+            fail("should've fail on rules which are too complex together");
+        } catch (IllegalStateException e) {
+            assertEquals("rules are too complex to be compiled into an automaton", e.getMessage());
+        }
+    }
+
+    @Test
+    public void modes() throws TokenizationError {
+        lexer = new DfaTextLexer(false);
+
+        lexer.addRule("[0-9a-z]+", NAME);
+        lexer.addRule("<", TOK1, ModeTransition.push("tag"));
+        lexer.addRule("\\s+", (TokenKind) null);
+        lexer.beginMode("tag");
+        lexer.addRule("[0-9]+", NUMBER);
+        lexer.addRule("[a-z]+", TOK2);
+        lexer.addRule(">", TOK1, ModeTransition.pop());
+
+        TokenStream stream = lexer.tokenize("ab1 <cd2> 3");
+
+        assertEquals(new Token(NAME, "ab1", 0, 0), stream.input());
+        assertEquals(new Token(TOK1, "<", 0, 4), stream.input());
+        assertEquals(new Token(TOK2, "cd", 0, 5), stream.input());
+        assertEquals(new Token(NUMBER, "2", 0, 7), stream.input());
+        assertEquals(new Token(TOK1, ">", 0, 8), stream.input());
+        assertEquals(new Token(NAME, "3", 0, 10), stream.input());
+        assertEquals(TokenKind.EOF, stream.input().getTokenKind());
+    }
+
+    @Test
+    public void tokenFactory() throws TokenizationError {
+        lexer = new DfaTextLexer();
+
+        lexer.addRule(Pattern.compile("([a-z]+)=([0-9]+)"), matcher -> new Token(TOK1, matcher.group(2)));
+        lexer.addRule(Pattern.compile("\\s"), matcher -> null);
+
+        TokenStream stream = lexer.tokenize("asd=10 x=5");
+
+        assertEquals(new Token(TOK1, "10", 0, 0), stream.input());
+        assertEquals(new Token(TOK1, "5", 0, 7), stream.input());
+        assertEquals(new Token(TokenKind.EOF, "", 0, 10), stream.input());
+    }
+
+    @Test
+    public void regexFallback() throws TokenizationError {
+        lexer = new DfaTextLexer();
+
+        lexer.addRule("[a-z]+(?=\\()", TOK1);
+        lexer.addRule("[a-z]+", TOK2);
+        lexer.addRule("\\s++", null);
+        lexer.addRule("[()]", null);
+
+        assertArrayEquals(new int[]{0, 2}, lexer.getFallbackRules());
+
+        TokenStream stream = lexer.tokenize("foo(bar) baz");
+
+        assertEquals(new Token(TOK1, "foo", 0, 0), stream.input());
+        assertEquals(new Token(TOK2, "bar", 0, 4), stream.input());
+        assertEquals(new Token(TOK2, "baz", 0, 9), stream.input());
+        assertEquals(new Token(TokenKind.EOF, "", 0, 12), stream.input());
+    }
+
+    @Test
+    public void regexFallbackDisabled() {
+        lexer = new DfaTextLexer(false);
+
+        lexer.addRule("[a-z]+", TOK1);
+
+        try {
+            lexer.addRule("[a-z]+(?=\\()", TOK1);
+            fail("should've rejected a pattern with lookahead");
+        } catch (IllegalArgumentException ignored) {
+            // ok
+        }
+
+        try {
+            lexer.addRule(Pattern.compile("a", Pattern.CASE_INSENSITIVE), TOK1);
+            fail("should've rejected a pattern with flags");
+        } catch (IllegalArgumentException ignored) {
+            // ok
+        }
+
+        lexer = new DfaTextLexer();
+        lexer.addRule("(a)\\1", TOK1);
+
+        try {
+            lexer.setRegexFallback(false);
+            fail("should've rejected a pattern with a backreference");
+        } catch (IllegalArgumentException ignored) {
+            // ok
+        }
+
+        assertTrue(lexer.isRegexFallback());
+    }
+
+    @Test
+    public void supportedSyntax() throws TokenizationError {
+        lexer = new DfaTextLexer(false);
+
+        lexer.addRule("0x[0-9a-fA-F]{1,4}", NUMBER);
+        lexer.addRule("\\d+(?:\\.\\d*)?", NUMBER);
+        lexer.addRule("\\Q+=\\E|[-+*/]=?|\\u2260", OPERATOR);
+        lexer.addRule("(?<quote>[\"'])[^\"'\\n]*[\"']", STRING);
+        lexer.addRule("[_[a-zA-Z]]", NAME);
+        lexer.addRule("[\\x20\\t]+|\\n", null);
+
+        assertEquals(0, lexer.getFallbackRules().length);
+
+        TokenStream stream = lexer.tokenize("0x1F 0x12345 3.14 += -\u2260\t'str'\n");
+
+        assertEquals(new Token(NUMBER, "0x1F", 0, 0), stream.input());
+        assertEquals(new Token(NUMBER, "0x1234", 0, 5), stream.input());
+        assertEquals(new Token(NUMBER, "5", 0, 11), stream.input());
+        assertEquals(new Token(NUMBER, "3.14", 0, 13), stream.input());
+        assertEquals(new Token(OPERATOR, "+=", 0, 18), stream.input());
+        assertEquals(new Token(OPERATOR, "-", 0, 21), stream.input());
+        assertEquals(new Token(OPERATOR, "\u2260", 0, 22), stream.input());
+        assertEquals(new Token(STRING, "'str'", 0, 24), stream.input());
+        assertEquals(new Token(TokenKind.EOF, "", 1, 0), stream.input());
+    }
+
+    @Test(timeout = 10000)
+    public void noCatastrophicBacktracking() throws TokenizationError {
+        lexer = new DfaTextLexer(false);
+
+        lexer.addRule("(a+)+b", TOK1);
+        lexer.addRule("a", TOK2);
+
+        String text = new String(new char[5000]).replace("\0", "a");
+
+        TokenStream stream = lexer.tokenize(text);
+
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(TOK2, stream.input().getTokenKind());
+        }
+
+        assertEquals(TokenKind.EOF, stream.input().getTokenKind());
+    }
+
+    @Test
+    public void backtrackingPolicy() {
+        lexer = new DfaTextLexer();
+        lexer.setBacktrackingPolicy(BacktrackingPolicy.REJECT);
+
+        // Compiled into the automaton, so it can't backtrack.
+        lexer.addRule("(a+)+b", TOK1);
+
+        try {
+            lexer.addRule("(a+)+(?=b)", TOK2);
+            fail("should've fail on a backtracking fallback rule");
+        } catch (IllegalArgumentException ignored) {
+        }
+
+        try {
+            lexer.addRule(Pattern.compile("(a+)+c"), m -> new Token(TOK2, m.group(), 0, 0));
+            fail("should've fail on a backtracking rule with a token factory");
+        } catch (IllegalArgumentException ignored) {
+        }
+
+        assertEquals(1, lexer.getRules().size());
+    }
+
+    @Test
+    public void sameAsRegexpTextLexer() throws TokenizationError {
+        String[] patterns = {
+                "if|else|while", "[a-zA-Z_][a-zA-Z_0-9]*", "[0-9]+\\.[0-9]+", "[0-9]+", "\"([^\"\\\\]|\\\\.)*\"",
+                "==|=|<=|<|>=|>", "[-+*/%]", "[(){};,]", "//[^\\n]*", "\\s+"
+        };
+        TokenKind[] kinds = {KEYWORD, NAME, NUMBER, NUMBER, STRING, OPERATOR, OPERATOR, OPERATOR, null, null};
+
+        RegexpTextLexer regexpLexer = new RegexpTextLexer();
+        lexer = new DfaTextLexer(false);
+        for (int i = 0; i < patterns.length; i++) {
+            regexpLexer.addRule(patterns[i], kinds[i]);
+            lexer.addRule(patterns[i], kinds[i]);
+        }
+
+        String[] fragments = {
+                "if", "else", "while", "iffy", "x", "foo_1", "12", "3.25", "\"str\"", "\"a\\\"b\"", "==", "=", "<=",
+                "<", ">", "+", "-", "*", "/", "(", ")", "{", "}", ";", ",", " ", "\n", "\t", "// comment\n"
+        };
+
+        Random random = new Random(42);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            builder.append(fragments[random.nextInt(fragments.length)]).append(' ');
+        }
+        String text = builder.toString();
+
+        assertEquals(tokenizeAll(regexpLexer, text), tokenizeAll(lexer, text));
+    }
+
+    @Test
+    public void shorterRegexpMatch() throws TokenizationError {
+        RegexpTextLexer regexpLexer = new RegexpTextLexer();
+        lexer = new DfaTextLexer();
+        for (RegexpTextLexer l : new RegexpTextLexer[]{regexpLexer, lexer}) {
+            l.addRule("\\d+|\\d+\\.\\d+", NUMBER);
+            l.addRule("\\.", OPERATOR);
+            l.addRule("=|==", EQ_SIGN);
+            l.addRule("==|<", OPERATOR);
+            l.addRule("\\s", null);
+        }
+
+        // A regexp takes the first alternative that matches, not the longest one.
+        assertArrayEquals(new int[]{0, 2}, lexer.getFallbackRules());
+
+        String text = "1.5 == <";
+        ArrayList<Token> tokens = tokenizeAll(regexpLexer, text);
+
+        assertEquals(new Token(NUMBER, "1", 0, 0), tokens.get(0));
+        assertEquals(new Token(OPERATOR, ".", 0, 1), tokens.get(1));
+        assertEquals(new Token(NUMBER, "5", 0, 2), tokens.get(2));
+        assertEquals(new Token(EQ_SIGN, "=", 0, 4), tokens.get(3));
+        assertEquals(new Token(EQ_SIGN, "=", 0, 5), tokens.get(4));
+        assertEquals(tokens, tokenizeAll(lexer, text));
+
+        lexer = new DfaTextLexer(false);
+        lexer.addRule("\\d+(\\.\\d+)?|\\.\\d+", NUMBER);
+        lexer.addRule("(ab|a)c", TOK1);
+
+        try {
+            lexer.addRule("\\d+|\\d+\\.\\d+", NUMBER);
+            fail("should've rejected a pattern which may match less than the longest match");
+        } catch (IllegalArgumentException ignored) {
+            // ok
+        }
+
+        try {
+            lexer.addRule("(a|ab)(bc)?", TOK1);
+            fail("should've rejected a pattern which may match less than the longest match");
+        } catch (IllegalArgumentException ignored) {
+            // ok
+        }
+    }
+
+    @Test
+    public void tokenizeReader() throws TokenizationError {
+        lexer.addRule("\\d+(?=;)", TOK1);
+        lexer.addRule(";", TOK2);
+
+        String text = "" +
+                "TEST_VAR_1 = 10\n" +
+                "TEST_VAR_2 = 'test \\' string'\r\n" +
+                "TEST_VAR_3 = \"test \\\" string\"\n" +
+                "12345;\n";
+
+        ArrayList<Token> expected = tokenizeAll(lexer, text);
+
+        for (int bufferSize : new int[]{1, 2, 5, 1024}) {
+            ArrayList<Token> tokens = new ArrayList<>();
+
+            TokenStream stream = lexer.tokenize(new StringReader(text), bufferSize);
+            while (stream.canInput()) {
+                tokens.add(stream.input());
+            }
+
+            assertEquals(expected, tokens);
+        }
+    }
+}
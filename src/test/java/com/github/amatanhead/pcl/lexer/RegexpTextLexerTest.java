@@ -1,12 +1,44 @@
 package com.github.amatanhead.pcl.lexer;
 
+import com.github.amatanhead.pcl.errors.LexerProtocolError;
+import com.github.amatanhead.pcl.errors.NoNewTokenError;
 import com.github.amatanhead.pcl.errors.TokenizationError;
+import com.github.amatanhead.pcl.stream.StandardConversions;
+import com.github.amatanhead.pcl.stream.TokenBuffer;
+import com.github.amatanhead.pcl.stream.TokenCursor;
 import com.github.amatanhead.pcl.stream.TokenStream;
+import com.github.amatanhead.pcl.token.SliceToken;
 import com.github.amatanhead.pcl.token.Token;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import com.github.amatanhead.pcl.token.TokenKind;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import static org.junit.Assert.*;
@@ -22,6 +54,9 @@ public class RegexpTextLexerTest {
 
     private RegexpTextLexer lexer;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Before
     public void setUp() {
         lexer = new RegexpTextLexer();
@@ -139,6 +174,159 @@ public class RegexpTextLexerTest {
         }
     }
 
+    @Test
+    public void tokenizationErrorPosition() throws TokenizationError {
+        try {
+            tokenizeAll(lexer.tokenize("X = 1\nY = 'str"));
+            fail("should've fail on malformed input");
+        } catch (TokenizationError error) {
+            assertEquals(1, error.row);
+            assertEquals(4, error.column);
+            assertEquals(10, error.offset);
+        }
+    }
+
+    @Test
+    public void tokenizeWithoutPositions() throws TokenizationError {
+        lexer.setPositionTracking(false);
+
+        TokenStream stream = lexer.tokenize("X = 1\nY");
+
+        assertEquals(new Token(NAME, "X", -1, -1), stream.input());
+        assertEquals(new Token(EQ_SIGN, "=", -1, -1), stream.input());
+        assertEquals(new Token(NUMBER, "1", -1, -1), stream.input());
+        assertEquals(new Token(NEWLINE, "\n", -1, -1), stream.input());
+        assertEquals(6, stream.input().getOffset());
+        assertEquals(new Token(TokenKind.EOF, "", -1, -1), stream.input());
+
+        stream = lexer.tokenize(new StringReader("X = 1\nY"), 4);
+        assertEquals(new Token(NAME, "X", -1, -1), stream.input());
+
+        try {
+            tokenizeAll(lexer.tokenize("X = 1\nY = 'str"));
+            fail("should've fail on malformed input");
+        } catch (TokenizationError error) {
+            assertEquals(-1, error.row);
+            assertEquals(10, error.offset);
+        }
+    }
+
+    @Test
+    public void addLiterals() throws TokenizationError {
+        lexer = new RegexpTextLexer();
+
+        Map<String, TokenKind> operators = new LinkedHashMap<>();
+        operators.put("=", EQ_SIGN);
+        operators.put("==", TOK1);
+        operators.put(" ", null);
+        lexer.addLiterals(operators);
+        lexer.addLiteral("===", TOK2);
+        lexer.addRule("[=a-z]+", NAME);
+        lexer.addLiteral("abc", TOK1);
+        lexer.addLiteral("\n", NEWLINE);
+
+        TokenStream stream = lexer.tokenize("= == === ==== abc\n=\n=x");
+
+        assertEquals(new Token(EQ_SIGN, "=", 0, 0), stream.input());
+        assertEquals(new Token(TOK1, "==", 0, 2), stream.input());
+        assertEquals(new Token(TOK2, "===", 0, 5), stream.input());
+        assertEquals(new Token(TOK2, "===", 0, 9), stream.input());
+        assertEquals(new Token(EQ_SIGN, "=", 0, 12), stream.input());
+        assertEquals(new Token(NAME, "abc", 0, 14), stream.input());
+        assertEquals(new Token(NEWLINE, "\n", 0, 17), stream.input());
+        assertEquals(new Token(EQ_SIGN, "=", 1, 0), stream.input());
+        assertEquals(new Token(NEWLINE, "\n", 1, 1), stream.input());
+        assertEquals(new Token(EQ_SIGN, "=", 2, 0), stream.input());
+        assertEquals(new Token(NAME, "x", 2, 1), stream.input());
+        assertEquals(TokenKind.EOF, stream.input().getTokenKind());
+
+        assertEquals(tokenizeAll(lexer.tokenize("== =\n===x")),
+                tokenizeAll(lexer.tokenize(new StringReader("== =\n===x"), 1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void addLiteralTwice() {
+        lexer.addLiteral("+", TOK1);
+        lexer.addLiteral("+", TOK2);
+    }
+
+    @Test
+    public void addRuleWithKeywords() throws TokenizationError {
+        lexer = new RegexpTextLexer();
+
+        Map<String, TokenKind> keywords = new HashMap<>();
+        keywords.put("if", TOK1);
+        keywords.put("else", TOK2);
+        keywords.put("pass", null);
+        lexer.addRule("[a-z]+", NAME, keywords);
+        lexer.addRule(" ", (TokenKind) null);
+
+        TokenStream stream = lexer.tokenize("if iff else pass i");
+
+        assertEquals(new Token(TOK1, "if", 0, 0), stream.input());
+        assertEquals(new Token(NAME, "iff", 0, 3), stream.input());
+        assertEquals(new Token(TOK2, "else", 0, 7), stream.input());
+        assertEquals(new Token(NAME, "i", 0, 17), stream.input());
+        assertEquals(TokenKind.EOF, stream.input().getTokenKind());
+
+        TokenBuffer buffer = lexer.tokenizeAll("else x");
+        assertEquals(TOK2, buffer.getTokenKind(0));
+        assertEquals(NAME, buffer.getTokenKind(1));
+    }
+
+    @Test
+    public void addScannerRules() throws TokenizationError {
+        lexer = new RegexpTextLexer();
+
+        lexer.addRule(CharScanners.blockComment("/*", "*/"), (TokenKind) null);
+        lexer.addRule(CharScanners.identifier(), NAME, Collections.singletonMap("if", TOK1));
+        lexer.addRule(CharScanners.cString(), STRING);
+        lexer.addRule("[0-9]+x", TOK2);
+        lexer.addRule(CharScanners.number(), NUMBER);
+        lexer.addLiteral("=", EQ_SIGN);
+        lexer.addRule(CharScanners.whitespace(), (TokenKind) null);
+
+        String text = "if x /* comment\n */ = \"a \\\" b\" 10x 1.5e3\n  \"\"";
+        TokenStream stream = lexer.tokenize(text);
+
+        assertEquals(new Token(TOK1, "if", 0, 0), stream.input());
+        assertEquals(new Token(NAME, "x", 0, 3), stream.input());
+        assertEquals(new Token(EQ_SIGN, "=", 1, 4), stream.input());
+        assertEquals(new Token(STRING, "\"a \\\" b\"", 1, 6), stream.input());
+        assertEquals(new Token(TOK2, "10x", 1, 15), stream.input());
+        assertEquals(new Token(NUMBER, "1.5e3", 1, 19), stream.input());
+        assertEquals(new Token(STRING, "\"\"", 2, 2), stream.input());
+        assertEquals(TokenKind.EOF, stream.input().getTokenKind());
+
+        ArrayList<Token> expected = tokenizeAll(lexer.tokenize(text));
+        assertEquals(expected, tokenizeAll(lexer.tokenize(new StringReader(text), 1)));
+        assertEquals(expected, tokenizeAll(lexer.tokenize(new StringReader(text), 3)));
+    }
+
+    @Test
+    public void tokenizeCharRuns() throws TokenizationError {
+        lexer = new RegexpTextLexer();
+
+        lexer.addRule("[a-z]{2,3}", TOK1);
+        lexer.addRule("[a-z]", TOK2);
+        lexer.addRule("\\d+", NUMBER);
+        lexer.addRule("[ \t]+", (TokenKind) null);
+        lexer.addRule("\n", NEWLINE);
+
+        TokenStream stream = lexer.tokenize("abcd e 12 \t\n x");
+
+        assertEquals(new Token(TOK1, "abc", 0, 0), stream.input());
+        assertEquals(new Token(TOK2, "d", 0, 3), stream.input());
+        assertEquals(new Token(TOK2, "e", 0, 5), stream.input());
+        assertEquals(new Token(NUMBER, "12", 0, 7), stream.input());
+        assertEquals(new Token(NEWLINE, "\n", 0, 11), stream.input());
+        assertEquals(new Token(TOK2, "x", 1, 1), stream.input());
+        assertEquals(TokenKind.EOF, stream.input().getTokenKind());
+
+        assertEquals(tokenizeAll(lexer.tokenize("ab  cdefg 123\n\t  h")),
+                tokenizeAll(lexer.tokenize(new StringReader("ab  cdefg 123\n\t  h"), 1)));
+    }
+
     @Test
     public void tokenizationPriority() throws TokenizationError {
         lexer = new RegexpTextLexer();
@@ -157,5 +345,899 @@ public class RegexpTextLexerTest {
         assertFalse(stream.canInput());
     }
 
+    @Test
+    public void tokenizeFactoryMatcherOffsets() throws TokenizationError {
+        lexer = new RegexpTextLexer();
+
+        lexer.addRule(Pattern.compile("[a-zA-Z_]+"), matcher -> new Token(TOK1, matcher.start() + "-" + matcher.end()));
+        lexer.addRule(Pattern.compile("\\s"), matcher -> null);
+
+        TokenStream stream = lexer.tokenize("asd dsa");
+
+        assertEquals(new Token(TOK1, "0-3", 0, 0), stream.input());
+        assertEquals(new Token(TOK1, "4-7", 0, 4), stream.input());
+    }
+
+    /**
+     * A text which counts how much of it the lexer reads and copies.
+     */
+    private static class CountingText implements CharSequence {
+        private final CharSequence text;
+
+        long reads = 0;
+        long copied = 0;
+
+        CountingText(CharSequence text) {
+            this.text = text;
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            reads++;
+            return text.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            copied += end - start;
+            return text.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            copied += text.length();
+            return text.toString();
+        }
+    }
+
+    private CountingText countTokenize(String text) throws TokenizationError {
+        CountingText counting = new CountingText(text);
+
+        TokenStream stream = lexer.tokenize(counting);
+        while (stream.canInput()) {
+            stream.input();
+        }
+
+        return counting;
+    }
+
+    @Test
+    public void tokenizeScalesLinearly() throws TokenizationError {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            builder.append("VAR_").append(i).append(" = ").append(i * 7).append('\n');
+        }
+
+        String small = builder.toString();
+        String large = new String(new char[8]).replace("\0", small);
+
+        CountingText smallCount = countTokenize(small);
+        CountingText largeCount = countTokenize(large);
+
+        // A linear lexer reads each char a bounded number of times, so an 8x larger input takes ~8x more reads.
+        // A lexer which copies or rescans the rest of the input for each token takes ~64x more.
+        assertTrue("lexer reads grow faster than linearly: " + smallCount.reads + " vs " + largeCount.reads,
+                largeCount.reads <= 8 * smallCount.reads + small.length());
+        assertTrue("lexer reads each char a bounded number of times", largeCount.reads < 4L * large.length());
+        assertTrue("lexer copies the input per token", largeCount.copied <= large.length());
+    }
+
     // TODO test encoding and streams?
+
+    @Test
+    public void ruleIndex() {
+        lexer = new RegexpTextLexer();
+
+        lexer.addRule("if", TOK1);
+        lexer.addRule("[a-z]+", TOK2);
+        lexer.addRule("\\bx?", TOK1);
+        lexer.addRule("0x[0-9a-f]+|\\d+", NUMBER);
+        lexer.addRule("(?=\\()\\(", TOK1);
+        lexer.addRule("(?i)z", TOK2);
+
+        RuleIndex index = lexer.getIndex();
+
+        // Nullable rules and rules with flags can start with anything.
+        assertArrayEquals(new int[]{0, 1, 2, 5}, index.candidates('i'));
+        assertArrayEquals(new int[]{1, 2, 5}, index.candidates('x'));
+        assertArrayEquals(new int[]{2, 3, 5}, index.candidates('0'));
+        assertArrayEquals(new int[]{2, 4, 5}, index.candidates('('));
+        assertArrayEquals(new int[]{2, 5}, index.candidates('\u00e9'));
+
+        assertEquals("if", index.getPrefix(0));
+        assertTrue(index.isLiteral(0));
+        assertEquals("", index.getPrefix(1));
+        assertFalse(index.isLiteral(1));
+        assertEquals("", index.getPrefix(3));
+        assertEquals("", index.getPrefix(4));
+        assertFalse(index.isLiteral(4));
+    }
+
+    @Test
+    public void tokenizeWithDispatch() throws TokenizationError {
+        lexer = new RegexpTextLexer();
+
+        lexer.addRule("if", TOK1);
+        lexer.addRule("[a-z]+(?=\\()", NAME);
+        lexer.addRule("\\bdef\\b", TOK2);
+        lexer.addRule("[a-z]+", TOK2);
+        lexer.addRule("\"[^\"]*\"", STRING);
+        lexer.addRule("\u00e9+", NUMBER);
+        lexer.addRule("[()]|\\s", null);
+
+        TokenStream stream = lexer.tokenize("if iffy foo(\"x\") def \u00e9\u00e9");
+
+        assertEquals(new Token(TOK1, "if", 0, 0), stream.input());
+        assertEquals(new Token(TOK1, "if", 0, 3), stream.input());
+        assertEquals(new Token(TOK2, "fy", 0, 5), stream.input());
+        assertEquals(new Token(NAME, "foo", 0, 8), stream.input());
+        assertEquals(new Token(STRING, "\"x\"", 0, 12), stream.input());
+        assertEquals(new Token(TOK2, "def", 0, 17), stream.input());
+        assertEquals(new Token(NUMBER, "\u00e9\u00e9", 0, 21), stream.input());
+        assertEquals(new Token(TokenKind.EOF, "", 0, 23), stream.input());
+    }
+
+    private static ArrayList<Token> tokenizeAll(TokenStream stream) throws TokenizationError {
+        ArrayList<Token> tokens = new ArrayList<>();
+
+        while (stream.canInput()) {
+            tokens.add(stream.input());
+        }
+
+        return tokens;
+    }
+
+    @Test
+    public void tokenizeReader() throws TokenizationError {
+        lexer.addRule("\\$[a-z]+\\$", STRING);
+
+        // The fixture's string rules recurse once per char, so the text has no quotes.
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            builder.append("TEST_VAR_").append(i).append(" = ").append(i).append("\r\n");
+            builder.append("LONG_").append(i % 7 == 0 ? "xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx" : "").append(" = 10\n");
+            builder.append("$").append(i % 5 == 0 ? "abcdefghijklmnopqrstuvwxyz" : "q").append("$\n");
+        }
+        String text = builder.toString();
+
+        ArrayList<Token> expected = tokenizeAll(lexer.tokenize(text));
+
+        for (int bufferSize : new int[]{1, 2, 3, 7, 16, 100, 1 << 16}) {
+            assertEquals(expected, tokenizeAll(lexer.tokenize(new StringReader(text), bufferSize)));
+        }
+
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        assertEquals(expected, tokenizeAll(lexer.tokenize(
+                Channels.newChannel(new ByteArrayInputStream(bytes)), 5)));
+    }
+
+    @Test
+    public void tokenizeReaderPriority() throws TokenizationError {
+        lexer = new RegexpTextLexer();
+
+        // The first rule only matches once the whole line is read, but it must still win.
+        lexer.addRule("a[^\\n]*z", TOK1);
+        lexer.addRule("a", TOK2);
+        lexer.addRule("[^a\\n]+|\\n", null);
+
+        TokenStream stream = lexer.tokenize(new StringReader("a b c d e f z\na b"), 2);
+
+        assertEquals(new Token(TOK1, "a b c d e f z", 0, 0), stream.input());
+        assertEquals(new Token(TOK2, "a", 1, 0), stream.input());
+        assertEquals(new Token(TokenKind.EOF, "", 1, 3), stream.input());
+    }
+
+    @Test
+    public void tokenizeReaderError() throws TokenizationError {
+        TokenStream stream = lexer.tokenize(new StringReader("TEST_VAR_1 = 10\nTEST_VAR_2 = 'test \\' string"), 4);
+
+        for (int i = 0; i < 6; i++) {
+            stream.input();
+        }
+
+        try {
+            stream.input();
+            fail("should've fail on malformed input");
+        } catch (TokenizationError error) {
+            assertEquals(1, error.row);
+            assertEquals(13, error.column);
+            assertEquals(29, error.offset);
+        }
+    }
+
+    @Test
+    public void tokenizePath() throws IOException, TokenizationError {
+        lexer.addRule("[\u00e0-\u00ff]+|\uD83D\uDE00", NAME);
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            builder.append("VAR_").append(i).append(i % 3 == 0 ? " = \u00e9t\u00e9\n" : " = 42\n");
+        }
+        String latin1 = builder.toString();
+        String unicode = latin1 + "\uD83D\uDE00 = 1\n";
+
+        ArrayList<Token> expected = tokenizeAll(lexer.tokenize(unicode));
+
+        Path utf8 = folder.newFile("utf8.txt").toPath();
+        Files.write(utf8, unicode.getBytes(StandardCharsets.UTF_8));
+        assertEquals(expected, tokenizeAll(lexer.tokenize(utf8)));
+
+        Path utf16 = folder.newFile("utf16.txt").toPath();
+        Files.write(utf16, unicode.getBytes(StandardCharsets.UTF_16));
+        assertEquals(expected, tokenizeAll(lexer.tokenize(utf16, StandardCharsets.UTF_16)));
+
+        Path iso = folder.newFile("iso.txt").toPath();
+        Files.write(iso, latin1.getBytes(StandardCharsets.ISO_8859_1));
+        assertEquals(tokenizeAll(lexer.tokenize(latin1)),
+                tokenizeAll(lexer.tokenize(iso, StandardCharsets.ISO_8859_1)));
+    }
+
+    @Test
+    public void tokenizePathDecoder() throws IOException, TokenizationError {
+        lexer.addRule("\uFFFD", NAME);
+        lexer.setDefaultEncoding(StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE));
+
+        byte[] bytes = {'A', ' ', (byte) 0xFF, ' ', 'B'};
+        Path path = folder.newFile("malformed.txt").toPath();
+        Files.write(path, bytes);
+
+        ArrayList<Token> expected = tokenizeAll(lexer.tokenize(new ByteArrayInputStream(bytes)));
+        assertEquals(new Token(NAME, "\uFFFD", 0, 2), expected.get(1));
+
+        assertEquals(expected, tokenizeAll(lexer.tokenize(path)));
+        try (FileChannel channel = FileChannel.open(path)) {
+            assertEquals(expected, tokenizeAll(lexer.tokenize(channel)));
+        }
+
+        lexer.setDefaultEncoding(StandardCharsets.US_ASCII.newDecoder());
+        try {
+            tokenizeAll(lexer.tokenize(path));
+            fail("should've fail on malformed input");
+        } catch (UncheckedIOException ignored) {
+            // ok
+        }
+    }
+
+    @Test
+    public void tokenizeLargePath() throws IOException, TokenizationError {
+        Path path = folder.newFile("large.txt").toPath();
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.write("VAR_1 = 1\n".getBytes(StandardCharsets.US_ASCII));
+            // A sparse file which is too large to be mapped at once.
+            file.setLength(Integer.MAX_VALUE + 1024L);
+        }
+
+        TokenStream stream = lexer.tokenize(path, StandardCharsets.US_ASCII);
+        assertEquals(new Token(NAME, "VAR_1", 0, 0), stream.input());
+        assertEquals(new Token(EQ_SIGN, "=", 0, 6), stream.input());
+    }
+
+    @Test
+    public void tokenizeFileChannel() throws IOException, TokenizationError {
+        Path path = folder.newFile("ascii.txt").toPath();
+        Files.write(path, "SKIPPED\nTEST_VAR_1 = 10\n".getBytes(StandardCharsets.US_ASCII));
+
+        try (FileChannel channel = FileChannel.open(path)) {
+            channel.position(8);
+
+            TokenStream stream = lexer.tokenize(channel, StandardCharsets.US_ASCII);
+
+            assertEquals(new Token(NAME, "TEST_VAR_1", 0, 0), stream.input());
+            assertEquals(new Token(EQ_SIGN, "=", 0, 11), stream.input());
+            assertEquals(new Token(NUMBER, "10", 0, 13), stream.input());
+            assertEquals(new Token(NEWLINE, "\n", 0, 15), stream.input());
+            assertEquals(new Token(TokenKind.EOF, "", 1, 0), stream.input());
+        }
+    }
+
+    @Test
+    public void tokenizeSlices() throws TokenizationError {
+        String text = "TEST_VAR_1 = 10\nX = 5";
+
+        TokenStream stream = lexer.tokenize(text);
+
+        for (int offset : new int[]{0, 11, 13, 15, 16, 18, 20}) {
+            SliceToken token = (SliceToken) stream.input();
+            assertSame(text, token.getSource());
+            assertEquals(offset, token.getOffset());
+            assertEquals(offset, token.getStart());
+        }
+    }
+
+    @Test
+    public void tokenizeAll() throws TokenizationError {
+        lexer.addRule(Pattern.compile("#([a-z]+)"), matcher -> new Token(TOK1, matcher.group(1)));
+
+        String text = "TEST_VAR_1 = 10\n  #abc = 'test \\' string'\r\nX = \"str\"";
+
+        TokenBuffer buffer = lexer.tokenizeAll(text);
+        ArrayList<Token> expected = tokenizeAll(lexer.tokenize(text));
+
+        assertEquals(expected.size(), buffer.size());
+        for (int i = 0; i < buffer.size(); i++) {
+            assertEquals(expected.get(i), buffer.get(i));
+        }
+
+        assertEquals(expected, tokenizeAll(buffer.stream()));
+        assertEquals(TokenKind.EOF, buffer.getTokenKind(buffer.size() - 1));
+    }
+
+    @Test
+    public void tokenizeParallel() throws TokenizationError {
+        lexer = new RegexpTextLexer();
+        lexer.addRule("[a-zA-Z_][a-zA-Z_0-9]*", NAME);
+        lexer.addRule("'[^']*'", STRING);
+        lexer.addRule("[0-9]+", NUMBER);
+        lexer.addRule("=", EQ_SIGN);
+        lexer.addRule(Pattern.compile("#([a-z]+)"), matcher -> new Token(TOK1, matcher.group(1)));
+        lexer.addRule("\\s+", (TokenKind) null);
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            builder.append("VAR_").append(i).append(i % 7 == 0 ? " = 'multi\nline\n'\n" : " = 42 #x\n");
+        }
+        String text = builder.toString();
+
+        ArrayList<Token> expected = tokenizeAll(lexer.tokenizeAll(text).stream());
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        try {
+            for (int chunkSize : new int[]{1, 7, 50, 1000, 100000}) {
+                lexer.setResyncPredicate(ResyncPredicate.LINE_START);
+                assertEquals(expected, tokenizeAll(lexer.tokenizeParallel(text, pool, chunkSize).stream()));
+
+                lexer.setResyncPredicate((t, offset) -> true);
+                assertEquals(expected, tokenizeAll(lexer.tokenizeParallel(text, pool, chunkSize).stream()));
+            }
+
+            assertEquals(expected, tokenizeAll(lexer.tokenizeParallel(text, pool).stream()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void tokenizeParallelError() {
+        String text = "X = 1\nY = 2\nZ = 'str\nW = 3\n";
+        ForkJoinPool pool = new ForkJoinPool(2);
+
+        try {
+            lexer.tokenizeParallel(text, pool, 3);
+            fail("should've fail on malformed input");
+        } catch (TokenizationError error) {
+            assertEquals(2, error.row);
+            assertEquals(4, error.column);
+            assertEquals(16, error.offset);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void tokenizeParallelResync() throws TokenizationError {
+        lexer = new RegexpTextLexer();
+        lexer.addRule("\"[^\"]*\"", STRING);
+        lexer.addRule("[a-z]+", NAME);
+        lexer.addRule("\\s+", (TokenKind) null);
+
+        ForkJoinPool pool = new ForkJoinPool(2);
+
+        try {
+            // The last chunk starts inside the string and fails at the closing quote.
+            String text = "abc \"x\ny\" def ghi";
+            ArrayList<Token> expected = tokenizeAll(lexer.tokenizeAll(text).stream());
+            assertEquals(5, expected.size());
+            assertEquals(expected, tokenizeAll(lexer.tokenizeParallel(text, pool, 4).stream()));
+
+            // The second chunk starts inside the string, where only an empty match is found.
+            lexer.addRule(";?", TOK1);
+            text = "abc \"x\n!y\" def";
+            expected = tokenizeAll(lexer.tokenizeAll(text).stream());
+            assertEquals(4, expected.size());
+            assertEquals(expected, tokenizeAll(lexer.tokenizeParallel(text, pool, 4).stream()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void retokenize() throws TokenizationError {
+        lexer = new RegexpTextLexer();
+        lexer.addRule("[a-z]+", NAME);
+        lexer.addRule("'[^']*'", STRING);
+        lexer.addRule("[0-9]+(\\.[0-9]+)?", NUMBER);
+        lexer.addLiteral(".", TOK2);
+        lexer.addRule(Pattern.compile("#([a-z]+)"), matcher -> new Token(TOK1, matcher.group(1)));
+        lexer.addRule("\\s+", (TokenKind) null);
+
+        TokenBuffer tokens = lexer.tokenizeAll("a 1.x b");
+        tokens = lexer.retokenize(tokens, 4, 1, "5");
+        assertEquals("a 1.5 b", tokens.getSource().toString());
+        assertEquals(TokenKind.EOF, tokens.getTokenKind(3));
+        assertEquals("1.5", tokens.getData(1));
+        assertEquals(6, tokens.getStart(2));
+
+        java.util.Random random = new java.util.Random(42);
+        String alphabet = "ab1.#' \n";
+        tokens = lexer.tokenizeAll("");
+
+        for (int i = 0; i < 2000; i++) {
+            String text = tokens.getSource().toString();
+            int offset = random.nextInt(text.length() + 1);
+            int removed = random.nextInt(Math.min(4, text.length() - offset) + 1);
+            StringBuilder inserted = new StringBuilder();
+            for (int j = random.nextInt(4); j > 0; j--) {
+                char c = alphabet.charAt(random.nextInt(alphabet.length()));
+                if (c != '\'' || random.nextInt(4) == 0) {
+                    inserted.append(c);
+                }
+            }
+
+            String newText = text.substring(0, offset) + inserted + text.substring(offset + removed);
+            TokenBuffer expected;
+            try {
+                expected = lexer.tokenizeAll(newText);
+            } catch (TokenizationError error) {
+                try {
+                    lexer.retokenize(tokens, offset, removed, inserted);
+                    fail("should've fail on malformed input");
+                } catch (TokenizationError e) {
+                    assertEquals(error.offset, e.offset);
+                }
+                continue;
+            }
+
+            TokenBuffer actual = lexer.retokenize(tokens, offset, removed, inserted);
+            assertEquals(newText, actual.getSource().toString());
+            assertEquals(expected.size(), actual.size());
+            for (int j = 0; j < expected.size(); j++) {
+                assertEquals(expected.get(j), actual.get(j));
+                assertEquals(expected.getStart(j), actual.getStart(j));
+                assertEquals(expected.get(j).getOffset(), actual.get(j).getOffset());
+            }
+
+            tokens = actual;
+        }
+    }
+
+    @Test
+    public void retokenizeLookahead() throws TokenizationError {
+        lexer = new RegexpTextLexer();
+        lexer.addRule("\"[^\"]*\"", STRING);
+        lexer.addLiteral("\"", TOK1);
+        lexer.addRule("[a-z]+", NAME);
+        lexer.addRule("\\s+", (TokenKind) null);
+
+        TokenBuffer tokens = lexer.retokenize(lexer.tokenizeAll(""), 0, 0, "x \"hello world foo");
+        assertEquals(6, tokens.size());
+        tokens = lexer.retokenize(tokens, 18, 0, "\"");
+        assertEquals(3, tokens.size());
+        assertEquals(NAME, tokens.getTokenKind(0));
+        assertEquals("x", tokens.getData(0));
+        assertEquals(STRING, tokens.getTokenKind(1));
+        assertEquals("\"hello world foo\"", tokens.getData(1));
+        assertEquals(TokenKind.EOF, tokens.getTokenKind(2));
+
+        lexer = new RegexpTextLexer();
+        lexer.addRule("(c)+2([ab]|[^a])", TOK2);
+        lexer.addRule("[0-9]", NUMBER);
+        lexer.addRule("c", NAME);
+
+        tokens = lexer.retokenize(lexer.tokenizeAll(""), 0, 0, "1cc2");
+        assertEquals(5, tokens.size());
+        tokens = lexer.retokenize(tokens, 4, 0, "2");
+        assertEquals(3, tokens.size());
+        assertEquals(NUMBER, tokens.getTokenKind(0));
+        assertEquals("1", tokens.getData(0));
+        assertEquals(TOK2, tokens.getTokenKind(1));
+        assertEquals("cc22", tokens.getData(1));
+        assertEquals(1, tokens.getStart(1));
+    }
+
+    @Test
+    public void pushLexer() throws TokenizationError, CharacterCodingException {
+        lexer = new RegexpTextLexer();
+        lexer.addRule("[\\p{L}_][\\p{L}_0-9]*", NAME);
+        lexer.addRule("'[^']*'", STRING);
+        lexer.addRule("[0-9]+", NUMBER);
+        lexer.addLiteral("=", EQ_SIGN);
+        lexer.addRule(Pattern.compile("#([a-z]+)"), matcher -> new Token(TOK1, matcher.group(1)));
+        lexer.addRule("\\s+", (TokenKind) null);
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            builder.append("VAR_").append(i).append(i % 7 == 0 ? " = 'multi\n\u00e9\n'\n" : " = 42 #x\n");
+            builder.append("\u043f\u0435\u0440\u0435\u043c\u0435\u043d\u043d\u0430\u044f = \u4e2d\n");
+        }
+        String text = builder.toString();
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+
+        ArrayList<Token> expected = tokenizeAll(lexer.tokenize(text));
+
+        for (int chunkSize : new int[]{1, 2, 3, 7, 100, 1 << 16}) {
+            ArrayList<Token> tokens = new ArrayList<>();
+            PushLexer push = lexer.newPushLexer(tokens::add);
+            for (int i = 0; i < text.length(); i += chunkSize) {
+                push.feed(CharBuffer.wrap(text, i, Math.min(text.length(), i + chunkSize)));
+            }
+            push.finish();
+            assertEquals(expected, tokens);
+
+            tokens.clear();
+            push = lexer.newPushLexer(tokens::add);
+            for (int i = 0; i < bytes.length; i += chunkSize) {
+                push.feed(ByteBuffer.wrap(bytes, i, Math.min(bytes.length - i, chunkSize)));
+            }
+            push.finish();
+            assertEquals(expected, tokens);
+            assertTrue(push.isFinished());
+        }
+    }
+
+    @Test
+    public void pushLexerPartialToken() throws TokenizationError, CharacterCodingException {
+        ArrayList<Token> tokens = new ArrayList<>();
+        PushLexer push = lexer.newPushLexer(tokens::add);
+
+        push.feed(CharBuffer.wrap("X = 12"));
+        assertEquals(2, tokens.size());
+        assertEquals(new Token(NAME, "X", 0, 0), tokens.get(0));
+        assertEquals(new Token(EQ_SIGN, "=", 0, 2), tokens.get(1));
+
+        push.feed(CharBuffer.wrap("3\nY"));
+        assertEquals(4, tokens.size());
+        assertEquals(new Token(NUMBER, "123", 0, 4), tokens.get(2));
+        assertEquals(7, tokens.get(3).getOffset());
+
+        push.finish();
+        assertEquals(6, tokens.size());
+        assertEquals(new Token(NAME, "Y", 1, 0), tokens.get(4));
+        assertEquals(TokenKind.EOF, tokens.get(5).getTokenKind());
+    }
+
+    @Test
+    public void pushLexerErrors() throws TokenizationError, CharacterCodingException {
+        PushLexer push = lexer.newPushLexer(token -> {
+        });
+        push.feed(CharBuffer.wrap("X = 1\n"));
+
+        try {
+            push.feed(CharBuffer.wrap("Y = ?"));
+            fail("should've fail on malformed input");
+        } catch (TokenizationError error) {
+            assertEquals(1, error.row);
+            assertEquals(4, error.column);
+            assertEquals(10, error.offset);
+        }
+
+        push = lexer.newPushLexer(token -> {
+        });
+        push.feed(ByteBuffer.wrap(new byte[]{'X', ' ', (byte) 0xd0}));
+
+        try {
+            push.finish();
+            fail("should've fail on a truncated sequence");
+        } catch (CharacterCodingException ignored) {
+        }
+    }
+
+    @Test
+    public void modes() throws TokenizationError, CharacterCodingException {
+        lexer = new RegexpTextLexer();
+        lexer.addRule("[a-z]+", NAME);
+        lexer.addLiteral("\"", TOK1, ModeTransition.push("string"));
+        lexer.addLiteral("}", TOK2, ModeTransition.pop());
+        lexer.addRule("\\s+", (TokenKind) null);
+
+        lexer.beginMode("string");
+        lexer.addLiteral("\"", TOK1, ModeTransition.pop());
+        lexer.addLiteral("${", TOK2, ModeTransition.push(RegexpTextLexer.DEFAULT_MODE));
+        lexer.addRule("[^\"$]+", STRING);
+
+        String text = "a \"x y ${b \"z\"} w\" c";
+
+        ArrayList<Token> expected = new ArrayList<>();
+        expected.add(new Token(NAME, "a", 0, 0));
+        expected.add(new Token(TOK1, "\"", 0, 2));
+        expected.add(new Token(STRING, "x y ", 0, 3));
+        expected.add(new Token(TOK2, "${", 0, 7));
+        expected.add(new Token(NAME, "b", 0, 9));
+        expected.add(new Token(TOK1, "\"", 0, 11));
+        expected.add(new Token(STRING, "z", 0, 12));
+        expected.add(new Token(TOK1, "\"", 0, 13));
+        expected.add(new Token(TOK2, "}", 0, 14));
+        expected.add(new Token(STRING, " w", 0, 15));
+        expected.add(new Token(TOK1, "\"", 0, 17));
+        expected.add(new Token(NAME, "c", 0, 19));
+        expected.add(new Token(TokenKind.EOF, "", 0, 20));
+
+        assertEquals(expected, tokenizeAll(lexer.tokenize(text)));
+        assertEquals(expected, tokenizeAll(lexer.tokenizeAll(text).stream()));
+        assertEquals(expected, tokenizeAll(lexer.tokenize(new StringReader(text), 1)));
+
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            assertEquals(expected, tokenizeAll(lexer.tokenizeParallel(text, pool, 1).stream()));
+        } finally {
+            pool.shutdown();
+        }
+
+        ArrayList<Token> pushed = new ArrayList<>();
+        PushLexer push = lexer.newPushLexer(pushed::add);
+        for (int i = 0; i < text.length(); i++) {
+            push.feed(CharBuffer.wrap(text, i, i + 1));
+        }
+        push.finish();
+        assertEquals(expected, pushed);
+
+        TokenBuffer edited = lexer.retokenize(lexer.tokenizeAll(text.replace("z", "q")), 12, 1, "z");
+        assertEquals(expected, tokenizeAll(edited.stream()));
+    }
+
+    @Test
+    public void modesErrors() {
+        lexer = new RegexpTextLexer();
+        lexer.addRule("[a-z]+", NAME);
+        lexer.addLiteral("(", TOK1, ModeTransition.switchTo("args"));
+        lexer.addRule("\\s+", (TokenKind) null);
+        lexer.beginMode("args");
+        lexer.addRule("[0-9]+", NUMBER);
+        lexer.addLiteral(")", TOK1, ModeTransition.pop());
+
+        try {
+            tokenizeAll(lexer.tokenize("f(1)"));
+            fail("should've fail on popping the last mode");
+        } catch (TokenizationError error) {
+            assertEquals(3, error.offset);
+        }
+
+        try {
+            tokenizeAll(lexer.tokenize("f(x"));
+            fail("should've fail on a rule of another mode");
+        } catch (TokenizationError error) {
+            assertEquals(2, error.offset);
+        }
+    }
+
+    @Test
+    public void backtrackingPolicy() {
+        lexer = new RegexpTextLexer();
+        lexer.setBacktrackingPolicy(BacktrackingPolicy.REJECT);
+
+        for (String pattern : new String[]{"(a+)+b", "(a*)*", "(\\w+\\s?)*;", "(a|ab)*c", "\"(\\\\.|[^\"])*\""}) {
+            try {
+                lexer.addRule(pattern, NAME);
+                fail("should've fail on " + pattern);
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+
+        lexer.addRule("(a+b)+", NAME);
+        lexer.addRule("[a-z]+(,\\s*[a-z]+)*", NAME);
+        lexer.addRule("\"(\\\\.|[^\"\\\\])*\"", STRING);
+        lexer.addRule(CharScanners.whitespace(), null);
+        assertEquals(4, lexer.getRules().size());
+
+        ArrayList<String> warnings = new ArrayList<>();
+        lexer.setBacktrackingPolicy(BacktrackingPolicy.WARN);
+        lexer.setWarningHandler(warnings::add);
+        lexer.addRule("(a+)+b", NAME);
+        assertEquals(5, lexer.getRules().size());
+        assertEquals(1, warnings.size());
+        assertTrue(warnings.get(0).contains("(a+)+b"));
+    }
+
+    @Test
+    public void matchBudget() throws TokenizationError {
+        lexer = new RegexpTextLexer();
+        lexer.addRule("(.*a){8}b", NAME);
+        lexer.addRule("\\s+", (TokenKind) null);
+        lexer.setMatchBudget(10000);
+        assertEquals(10000, lexer.getMatchBudget());
+
+        StringBuilder builder = new StringBuilder("aaaaaaaab\n");
+        for (int i = 0; i < 30; i++) {
+            builder.append('a');
+        }
+        String text = builder.toString();
+
+        Token token = lexer.tokenize(text).input();
+        assertEquals(new Token(NAME, "aaaaaaaab", 0, 0), token);
+
+        try {
+            tokenizeAll(lexer.tokenize(text));
+            fail("should've fail on exceeding the budget");
+        } catch (TokenizationError error) {
+            assertEquals(10, error.offset);
+            assertEquals(1, error.row);
+            assertEquals(0, error.column);
+        }
+
+        try {
+            tokenizeAll(lexer.tokenize(new StringReader(text), 4));
+            fail("should've fail on exceeding the budget");
+        } catch (TokenizationError error) {
+            assertEquals(10, error.offset);
+        }
+
+        lexer.setMatchBudget(0);
+        lexer.setMatchTimeout(20, TimeUnit.MILLISECONDS);
+        assertEquals(20, lexer.getMatchTimeout(TimeUnit.MILLISECONDS));
+
+        builder.setLength(0);
+        for (int i = 0; i < 100; i++) {
+            builder.append('a');
+        }
+
+        try {
+            tokenizeAll(lexer.tokenize("\n" + builder));
+            fail("should've fail on exceeding the time budget");
+        } catch (TokenizationError error) {
+            assertEquals(1, error.offset);
+        }
+    }
+
+    @Test
+    public void pipelined() throws TokenizationError, InterruptedException {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            builder.append("VAR_").append(i).append(" = ").append(i).append('\n');
+        }
+        String text = builder.toString();
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            ArrayList<Token> expected = tokenizeAll(lexer.tokenize(new StringReader(text), 64));
+
+            assertEquals(expected, tokenizeAll(lexer.tokenizePipelined(new StringReader(text), 64, executor)));
+            assertEquals(expected, tokenizeAll(lexer.tokenizePipelined(
+                    Channels.newChannel(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8))),
+                    StandardCharsets.UTF_8.newDecoder(), 64, executor)));
+
+            String invalid = text + "X = 'str";
+            TokenizationError expectedError = null;
+            try {
+                tokenizeAll(lexer.tokenize(new StringReader(invalid), 64));
+                fail("should've fail on malformed input");
+            } catch (TokenizationError error) {
+                expectedError = error;
+            }
+
+            PipelinedTokenStream stream = lexer.tokenizePipelined(new StringReader(invalid), 64, executor);
+            for (int i = 0; i < expected.size() - 1; i++) {
+                assertEquals(expected.get(i), stream.input());
+            }
+            assertEquals(new Token(NAME, "X", 2000, 0, text.length()), stream.input());
+            assertEquals(new Token(EQ_SIGN, "=", 2000, 2, text.length() + 2), stream.input());
+            try {
+                stream.input();
+                fail("should've fail on malformed input");
+            } catch (TokenizationError error) {
+                assertEquals(expectedError.offset, error.offset);
+                assertEquals(expectedError.getMessage(), error.getMessage());
+            }
+
+            stream = lexer.tokenizePipelined(new StringReader(text), 64, executor);
+            assertEquals(expected.get(0), stream.input());
+            stream.close();
+        } finally {
+            executor.shutdown();
+        }
+
+        assertTrue("closed pipelines stop their tasks", executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void bulkInput() throws TokenizationError {
+        Token[] tokens = new Token[10];
+
+        TokenStream stream = lexer.tokenize("a = 1\nb = 'x");
+        assertEquals(6, stream.input(tokens, 2, 8));
+        assertEquals(new Token(NAME, "a", 0, 0, 0), tokens[2]);
+        assertEquals(new Token(EQ_SIGN, "=", 1, 2, 8), tokens[7]);
+
+        try {
+            stream.input(tokens, 0, 10);
+            fail("should've fail on malformed input");
+        } catch (TokenizationError error) {
+            assertEquals(10, error.offset);
+        }
+
+        stream = lexer.tokenize("a = 1");
+        assertEquals(3, stream.input(tokens, 0, 3));
+        assertEquals(1, stream.input(tokens, 0, 10));
+        assertEquals(TokenKind.EOF, tokens[0].getTokenKind());
+        assertEquals(0, stream.input(tokens, 0, 10));
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            builder.append("VAR_").append(i).append(" = ").append(i).append('\n');
+        }
+        String text = builder.toString();
+
+        ArrayList<Token> expected = tokenizeAll(lexer.tokenize(text));
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try (PipelinedTokenStream pipelined = lexer.tokenizePipelined(new StringReader(text), 64, executor)) {
+            ArrayList<Token> actual = new ArrayList<>();
+            int count;
+            while ((count = pipelined.input(tokens, 0, tokens.length)) > 0) {
+                Collections.addAll(actual, Arrays.copyOf(tokens, count));
+            }
+            assertEquals(expected, actual);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void cursor() throws TokenizationError {
+        String text = "" +
+                "TEST_VAR_1 = 10\n" +
+                "TEST_VAR_2 = 'test string'\n" +
+                "\n";
+
+        ArrayList<Token> expected = tokenizeAll(lexer.tokenize(text));
+
+        for (TokenCursor cursor : new TokenCursor[]{
+                lexer.newCursor(text), lexer.newCursor(new StringReader(text), 3)}) {
+            assertEquals(TokenCursor.NONE, cursor.kind());
+
+            for (Token token : expected) {
+                assertTrue(cursor.hasNext());
+                assertEquals(token.getTokenKind().getId(), cursor.next());
+                assertEquals(token.getTokenKind(), cursor.getTokenKind());
+                assertEquals(token.getData(), cursor.text().toString());
+                assertEquals(token.getOffset(), cursor.start());
+                assertEquals(token.getOffset() + token.getData().length(), cursor.end());
+                assertEquals(token.getRow(), cursor.line());
+                assertEquals(token.getColumn(), cursor.column());
+            }
+
+            assertFalse(cursor.hasNext());
+            assertEquals(TokenKind.EOF_ID, cursor.kind());
+
+            try {
+                cursor.next();
+                fail("should've fail on a finished cursor");
+            } catch (NoNewTokenError ignored) {
+            }
+        }
+
+        TokenCursor cursor = lexer.newCursor(text);
+        assertEquals(NAME.getId(), cursor.next());
+        CharSequence name = cursor.text();
+        assertEquals(10, name.length());
+        assertEquals('T', name.charAt(0));
+        assertEquals("VAR", name.subSequence(5, 8).toString());
+
+        assertEquals(expected, tokenizeAll(StandardConversions.toStream(lexer.newCursor(text))));
+
+        try {
+            StandardConversions.toStream(cursor);
+            fail("should've fail on a cursor which has moved");
+        } catch (LexerProtocolError ignored) {
+        }
+
+        lexer = new RegexpTextLexer();
+        lexer.setPositionTracking(false);
+        lexer.addRule(Pattern.compile("[a-z]+"), matcher -> new Token(TOK1, matcher.group().toUpperCase()));
+        lexer.addRule(Pattern.compile("\\s"), matcher -> null);
+
+        cursor = lexer.newCursor("ab cd");
+        assertEquals(TOK1.getId(), cursor.next());
+        assertEquals("AB", cursor.text().toString());
+        assertEquals(TOK1.getId(), cursor.next());
+        assertEquals("CD", cursor.text().toString());
+        assertEquals(3, cursor.start());
+        assertEquals(5, cursor.end());
+        assertEquals(-1, cursor.line());
+        assertEquals(TokenKind.EOF_ID, cursor.next());
+    }
 }
@@ -0,0 +1,214 @@
+package com.github.amatanhead.pcl.parser;
+
+import com.github.amatanhead.pcl.combinators.ast.AST;
+import com.github.amatanhead.pcl.errors.NoNewTokenError;
+import com.github.amatanhead.pcl.errors.ParsingError;
+import com.github.amatanhead.pcl.errors.TokenizationError;
+import com.github.amatanhead.pcl.lexer.CharScanners;
+import com.github.amatanhead.pcl.lexer.CompiledLexer;
+import com.github.amatanhead.pcl.lexer.RegexpTextLexer;
+import com.github.amatanhead.pcl.stream.ArrayStreamStar;
+import com.github.amatanhead.pcl.stream.TokenStream;
+import com.github.amatanhead.pcl.token.SliceToken;
+import com.github.amatanhead.pcl.token.Token;
+import com.github.amatanhead.pcl.token.TokenKind;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+
+import static com.github.amatanhead.pcl.combinators.Combinators.*;
+import static org.junit.Assert.*;
+
+public class ParseSessionTest {
+    private static final TokenKind NAME = new TokenKind("NAME");
+    private static final TokenKind NUMBER = new TokenKind("NUMBER");
+    private static final TokenKind EQ_SIGN = new TokenKind("EQ_SIGN");
+    private static final TokenKind SEMICOLON = new TokenKind("SEMICOLON");
+
+    private CompiledLexer lexer;
+    private Parser<Integer> parser;
+
+    @Before
+    public void setUp() {
+        RegexpTextLexer lexer = new RegexpTextLexer();
+        lexer.setPositionTracking(false);
+        lexer.addRule("[a-z]+", NAME);
+        lexer.addRule(CharScanners.integer(), NUMBER);
+        lexer.addLiteral("=", EQ_SIGN);
+        lexer.addLiteral(";", SEMICOLON);
+        lexer.addRule(CharScanners.whitespace(), null);
+        this.lexer = lexer.compile();
+
+        // Sums values of all assignments.
+        AST<Integer> value = a(NUMBER).bind(token -> Integer.parseInt(token.getData()));
+        AST<Integer> assignment = seq(a(NAME), a(EQ_SIGN), value, a(SEMICOLON)).bind(items -> (Integer) items.get(2));
+        AST<Integer> record = seq(many(assignment), a(TokenKind.EOF)).bind(items -> {
+            int sum = 0;
+            for (Object item : (ArrayList<?>) items.get(0)) {
+                sum += (Integer) item;
+            }
+            return sum;
+        });
+
+        parser = new RecursiveDescentParser<>(record);
+    }
+
+    /**
+     * A stream of the given tokens which can be reset to other tokens without allocating.
+     */
+    private static class ListStream implements TokenStream {
+        private ArrayList<Token> tokens = new ArrayList<>();
+        private int index = 0;
+
+        void reset(ArrayList<Token> tokens) {
+            this.tokens = tokens;
+            this.index = 0;
+        }
+
+        @Override
+        public Token input() throws TokenizationError {
+            if (index == tokens.size()) {
+                throw new NoNewTokenError("no tokens left in the stream");
+            }
+            return tokens.get(index++);
+        }
+
+        @Override
+        public boolean canInput() {
+            return index < tokens.size();
+        }
+
+        @Override
+        public boolean isClear() {
+            return index == 0;
+        }
+    }
+
+    private static String makeRecord(int i) {
+        return "a = " + i + "; bb = " + (i * 2) + "; ccc = 3;\n";
+    }
+
+    @Test
+    public void parse() throws TokenizationError, ParsingError {
+        ParseSession<Integer> session = new ParseSession<>(lexer, parser);
+
+        for (int i = 0; i < 100; i++) {
+            String text = makeRecord(i);
+            assertEquals(parser.parse(lexer.tokenize(text)), session.parse(text));
+            assertEquals(Integer.valueOf(i * 3 + 3), session.parse(text));
+        }
+
+        assertEquals(Integer.valueOf(0), session.parse(""));
+
+        try {
+            session.parse("a = ;");
+            fail("should've fail on a malformed record");
+        } catch (ParsingError ignored) {
+        }
+
+        try {
+            session.parse("a = 1 ?");
+            fail("should've fail on an unknown char");
+        } catch (TokenizationError error) {
+            assertEquals(6, error.offset);
+        }
+
+        // The session is usable after errors.
+        assertEquals(Integer.valueOf(7), session.parse("x = 7;"));
+
+        session.reset("x = 8;");
+        assertEquals(Integer.valueOf(8), session.parse());
+    }
+
+    @Test
+    public void tokensOutliveReset() throws TokenizationError, ParsingError {
+        ArrayList<Token> names = new ArrayList<>();
+        Parser<ArrayList<Token>> parser = new RecursiveDescentParser<>(many(a(NAME)));
+        ParseSession<ArrayList<Token>> session = new ParseSession<>(lexer, parser);
+
+        names.addAll(session.parse("foo bar"));
+        names.addAll(session.parse("baz"));
+
+        assertEquals(3, names.size());
+        assertEquals("foo", names.get(0).getData());
+        assertEquals("bar", names.get(1).getData());
+        assertEquals("baz", names.get(2).getData());
+    }
+
+    @Test
+    public void allocationBudget() throws TokenizationError, ParsingError {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        int count = 2000;
+        String[] records = new String[count];
+        for (int i = 0; i < count; i++) {
+            records[i] = makeRecord(i);
+        }
+
+        Parser<ArrayList<ArrayList<Token>>> parser =
+                new RecursiveDescentParser<>(many(seq(a(NAME), a(EQ_SIGN), a(NUMBER), a(SEMICOLON))));
+        ParseSession<ArrayList<ArrayList<Token>>> session = new ParseSession<>(lexer, parser);
+
+        // Tokens of each record, to measure what parsing costs without lexing.
+        ArrayList<ArrayList<Token>> tokens = new ArrayList<>();
+        for (String record : records) {
+            ArrayList<Token> recordTokens = new ArrayList<>();
+            TokenStream stream = lexer.tokenize(record);
+            while (stream.canInput()) {
+                recordTokens.add(stream.input());
+            }
+            tokens.add(recordTokens);
+        }
+
+        // Streams for measuring what parsing the ready tokens costs. They are reused just like the session's ones.
+        ListStream list = new ListStream();
+        ArrayStreamStar stream = new ArrayStreamStar(list, 64);
+
+        // Warm up, so that the buffers reach their size and everything is compiled.
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < count; i++) {
+                session.parse(records[i]);
+                list.reset(tokens.get(i));
+                stream.reset(list);
+                parser.parse(stream);
+            }
+        }
+
+        long thread = Thread.currentThread().getId();
+
+        long start = threads.getThreadAllocatedBytes(thread);
+        for (String record : records) {
+            session.parse(record);
+        }
+        long reused = (threads.getThreadAllocatedBytes(thread) - start) / count;
+
+        start = threads.getThreadAllocatedBytes(thread);
+        for (ArrayList<Token> recordTokens : tokens) {
+            list.reset(recordTokens);
+            stream.reset(list);
+            parser.parse(stream);
+        }
+        long results = (threads.getThreadAllocatedBytes(thread) - start) / count;
+
+        // The session's lexer makes slice tokens without positions.
+        assertTrue(tokens.get(0).get(0) instanceof SliceToken);
+        Token[] sample = new Token[count];
+        start = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < count; i++) {
+            sample[i] = new SliceToken(NAME, records[i], 0, 1, 0, null);
+        }
+        long tokenSize = (threads.getThreadAllocatedBytes(thread) - start) / count;
+
+        // Besides the parsing results, a session may only allocate the tokens themselves. Streams, matchers,
+        // stacks and bookmarks are reused.
+        long budget = results + tokenSize * tokens.get(0).size();
+        assertTrue("session allocates " + reused + " bytes per record, the budget is " + budget, reused <= budget);
+    }
+}
@@ -1,5 +1,7 @@
 package com.github.amatanhead.pcl.parser;
 
+import com.github.amatanhead.pcl.combinators.NodeType;
+import com.github.amatanhead.pcl.combinators.ast.AST;
 import com.github.amatanhead.pcl.combinators.ast.NDefer;
 import com.github.amatanhead.pcl.errors.ParsingError;
 import com.github.amatanhead.pcl.errors.TokenizationError;
@@ -13,6 +15,7 @@ import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 
 import static com.github.amatanhead.pcl.combinators.Combinators.*;
 import static org.junit.Assert.*;
@@ -64,6 +67,59 @@ public class RDPStandardCompilerTest {
         assertNull(result.getResult());
     }
 
+    @Test
+    public void testOneOf() throws TokenizationError, ParsingError {
+        RDPCompiledAST ast = compiler.compile(oneOf(TOK1, TOK2));
+        RDPResult result;
+
+        result = ast.parse(makeStream(new Token(TOK1, "data")));
+        assertTrue(result.isSuccess());
+        assertEquals(new Token(TOK1, "data"), result.getResult());
+
+        result = ast.parse(makeStream(new Token(TOK2, "data")));
+        assertTrue(result.isSuccess());
+        assertEquals(new Token(TOK2, "data"), result.getResult());
+
+        TokenStreamStar stream = makeStream(new Token(TokenKind.EOF, ""));
+        result = ast.parse(stream);
+        assertFalse(result.isSuccess());
+        assertNull(result.getResult());
+        assertFalse(stream.canUnput());
+    }
+
+    @Test
+    public void testNoneOf() throws TokenizationError, ParsingError {
+        RDPCompiledAST ast = compiler.compile(noneOf(TOK1));
+        RDPResult result;
+
+        result = ast.parse(makeStream(new Token(TOK2, "data")));
+        assertTrue(result.isSuccess());
+        assertEquals(new Token(TOK2, "data"), result.getResult());
+
+        result = ast.parse(makeStream(new Token(TokenKind.EOF, "")));
+        assertTrue(result.isSuccess());
+
+        result = ast.parse(makeStream(new Token(TOK1, "data")));
+        assertFalse(result.isSuccess());
+    }
+
+    @Test
+    public void testKindSetManyKinds() throws TokenizationError, ParsingError {
+        TokenKind[] kinds = new TokenKind[100];
+        for (int i = 0; i < kinds.length; i++) {
+            kinds[i] = new TokenKind("K" + i);
+        }
+
+        RDPCompiledAST oneOf = compiler.compile(oneOf(kinds[3], kinds[99]));
+        RDPCompiledAST noneOf = compiler.compile(noneOf(kinds[3], kinds[99]));
+
+        for (int i = 0; i < kinds.length; i++) {
+            boolean expected = i == 3 || i == 99;
+            assertEquals(expected, oneOf.parse(makeStream(new Token(kinds[i]))).isSuccess());
+            assertEquals(!expected, noneOf.parse(makeStream(new Token(kinds[i]))).isSuccess());
+        }
+    }
+
     @Test
     public void testSome() throws TokenizationError, ParsingError {
         RDPCompiledAST ast = compiler.compile(some(token -> token.getTokenKind() == TOK1 && token.getData().equals("data")));
@@ -118,6 +174,131 @@ public class RDPStandardCompilerTest {
         assertEquals(makeArray(new Token(TOK1, "data"), new Token(TOK1, "data2")), result.getResult());
     }
 
+    @Test
+    public void testManyCommit() throws TokenizationError, ParsingError {
+        RDPCompiledAST ast = compiler.compile(many(seq(a(TOK1), a(TOK2))));
+        TokenStreamStar stream = StandardConversions.toStreamStar(StandardConversions.toStream(makeArray(
+                new Token(TOK1, "data"), new Token(TOK2, "data"),
+                new Token(TOK1, "data2"), new Token(TOK2, "data2"),
+                new Token(TOK1, "data3")).iterator()));
+
+        RDPResult result = ast.parse(stream);
+        assertTrue(result.isSuccess());
+        assertEquals(2, ((ArrayList) result.getResult()).size());
+        assertFalse("top-level many drops tokens of complete items", stream.canUnput());
+        assertEquals(new Token(TOK1, "data3"), stream.input());
+
+        ast = compiler.compile(seq(many(seq(a(TOK1), a(TOK2))), a(TOK1)));
+        stream = StandardConversions.toStreamStar(StandardConversions.toStream(makeArray(
+                new Token(TOK1, "data"), new Token(TOK2, "data"),
+                new Token(TOK2, "data2")).iterator()));
+
+        result = ast.parse(stream);
+        assertFalse(result.isSuccess());
+        assertEquals("enclosing seq keeps its tokens", 0, stream.mark());
+        assertEquals(new Token(TOK1, "data"), stream.input());
+    }
+
+    /**
+     * A custom node which parses its underlying node and then goes back to where it started.
+     */
+    private static class NLookahead extends AST<Object> {
+        final AST<?> underlying;
+
+        NLookahead(AST<?> underlying) {
+            this.underlying = underlying;
+        }
+
+        @Override
+        public NodeType getType() {
+            return NodeType.Custom;
+        }
+    }
+
+    @Test
+    public void testManyCommitKeepsCustomBookmarks() throws TokenizationError, ParsingError {
+        compiler = new RDPStandardCompiler() {
+            @Override
+            protected RDPCompiledAST compileCustom(AST<Object> node, CompilationState compilationState) {
+                RDPCompiledAST underlying = compile(((NLookahead) node).underlying, compilationState);
+
+                return tokenStream -> {
+                    TokenStreamStar.Bookmark bookmark = tokenStream.makeBookmark();
+                    RDPResult result = underlying.parse(tokenStream);
+                    tokenStream.restoreBookmark(bookmark);
+                    return result;
+                };
+            }
+        };
+
+        RDPCompiledAST ast = compiler.compile(new NLookahead(many(a(TOK1))));
+        TokenStreamStar stream = StandardConversions.toStreamStar(StandardConversions.toStream(makeArray(
+                new Token(TOK1, "data"), new Token(TOK1, "data2"), new Token(TOK2, "data3")).iterator()));
+
+        RDPResult result = ast.parse(stream);
+        assertTrue(result.isSuccess());
+        assertEquals(2, ((ArrayList) result.getResult()).size());
+        assertEquals("commit doesn't drop tokens a custom node may go back to", 0, stream.mark());
+        assertEquals(new Token(TOK1, "data"), stream.input());
+    }
+
+    @Test
+    public void testFirstKinds() {
+        RDPStandardCompiler.CompilationState state = new RDPStandardCompiler.CompilationState();
+
+        assertEquals(kinds(TOK1), compiler.firstKinds(a(TOK1), state));
+        assertEquals(kinds(TOK1, TOK2), compiler.firstKinds(oneOf(TOK1, TOK2), state));
+        assertEquals(kinds(TOK1), compiler.firstKinds(seq(a(TOK1), a(TOK2)), state));
+        assertEquals(kinds(TOK1, TOK2), compiler.firstKinds(or(a(TOK1), seq(a(TOK2), a(TOK1))), state));
+        assertEquals(kinds(TOK2), compiler.firstKinds(many(a(TOK2), 1, null), state));
+
+        assertNull(compiler.firstKinds(noneOf(TOK1), state));
+        assertNull(compiler.firstKinds(some(token -> true), state));
+        assertNull(compiler.firstKinds(maybe(a(TOK1)), state));
+        assertNull(compiler.firstKinds(many(a(TOK1)), state));
+        assertNull(compiler.firstKinds(seq(maybe(a(TOK1)), a(TOK2)), state));
+        assertNull(compiler.firstKinds(or(a(TOK1), some(token -> true)), state));
+
+        NDefer<Object> defer = defer();
+        defer.setDeferred(or(seq(defer, a(TOK2)), a(TOK1)));
+        assertNull("cycles are given up on", compiler.firstKinds(defer, state));
+    }
+
+    @Test
+    public void testLookahead() throws TokenizationError, ParsingError {
+        RDPCompiledAST ast = compiler.compile(seq(
+                maybe(seq(a(TOK1), a(TOK1))),
+                many(or(seq(a(TOK2), a(TOK1)), seq(a(TOK1), a(TOK2)))),
+                a(TOK2)));
+
+        TokenStreamStar stream = makeStream(
+                new Token(TOK1, "1"), new Token(TOK1, "2"),
+                new Token(TOK2, "3"), new Token(TOK1, "4"),
+                new Token(TOK1, "5"), new Token(TOK2, "6"),
+                new Token(TOK2, "7"));
+        RDPResult result = ast.parse(stream);
+        assertTrue(result.isSuccess());
+        assertFalse(stream.canInput());
+
+        stream = makeStream(new Token(TOK2, "1"), new Token(TOK2, "2"));
+        result = ast.parse(stream);
+        assertTrue(result.isSuccess());
+        assertEquals(new Token(TOK2, "2"), stream.input());
+
+        stream = makeStream(new Token(TOK1, "1"), new Token(TOK1, "2"), new Token(TOK1, "3"));
+        result = ast.parse(stream);
+        assertFalse(result.isSuccess());
+        assertEquals(0, stream.mark());
+    }
+
+    private static BitSet kinds(TokenKind... tokenKinds) {
+        BitSet bitSet = new BitSet();
+        for (TokenKind tokenKind : tokenKinds) {
+            bitSet.set(tokenKind.getId());
+        }
+        return bitSet;
+    }
+
     @Test
     public void testManyRestricted() throws TokenizationError, ParsingError {
         RDPCompiledAST ast = compiler.compile(many(a(TOK1), 1, 2));
@@ -1,5 +1,6 @@
 package com.github.amatanhead.pcl.stream;
 
+import com.github.amatanhead.pcl.errors.BookmarkError;
 import com.github.amatanhead.pcl.errors.LexerProtocolError;
 import com.github.amatanhead.pcl.errors.NoBacktrackingTokenError;
 import com.github.amatanhead.pcl.errors.NoNewTokenError;
@@ -10,6 +11,7 @@ import org.junit.Test;
 
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.function.Consumer;
 
@@ -44,6 +46,69 @@ class IteratorDelegate<T> implements Iterator<T> {
     }
 }
 
+/**
+ * A third-party stream which only implements the abstract methods of {@link TokenStreamStar}.
+ */
+class ListStreamStar implements TokenStreamStar {
+    private static class IndexBookmark extends TokenStreamStar.Bookmark {
+        final int index;
+
+        IndexBookmark(TokenStreamStar originalStream, int index) {
+            super(originalStream);
+            this.index = index;
+        }
+    }
+
+    private final List<Token> tokens;
+    private int index = 0;
+
+    ListStreamStar(List<Token> tokens) {
+        this.tokens = tokens;
+    }
+
+    @Override
+    public Token input() {
+        if (!canInput()) {
+            throw new NoNewTokenError("no tokens left in the stream");
+        }
+        return tokens.get(index++);
+    }
+
+    @Override
+    public boolean canInput() {
+        return index < tokens.size();
+    }
+
+    @Override
+    public boolean isClear() {
+        return index == 0;
+    }
+
+    @Override
+    public Token unput() {
+        if (!canUnput()) {
+            throw new NoBacktrackingTokenError("no tokens left in the backtracking stack");
+        }
+        return tokens.get(--index);
+    }
+
+    @Override
+    public boolean canUnput() {
+        return index > 0;
+    }
+
+    @Override
+    public Bookmark makeBookmark() {
+        return new IndexBookmark(this, index);
+    }
+
+    @Override
+    public void restoreBookmark(Bookmark bookmark) {
+        assertBookmark(bookmark);
+        index = ((IndexBookmark) bookmark).index;
+    }
+}
+
 public class StandardConversionsTest {
     static private final TokenKind TOK1 = new TokenKind("TOK1");
     static private final TokenKind TOK2 = new TokenKind("TOK2");
@@ -514,6 +579,138 @@ public class StandardConversionsTest {
         assertTrue(tokenStream.canUnput());
     }
 
+    static private void testTokenStreamStarMark(TokenStreamStar tokenStream) throws TokenizationError {
+        int m1 = tokenStream.mark();
+        assertEquals(0, m1);
+
+        assertToken(TOK1, "Data 1", tokenStream.input());
+        assertToken(TOK2, "Data 2", tokenStream.input());
+
+        int m2 = tokenStream.mark();
+        assertEquals(2, m2);
+
+        assertToken(TOK3, "Data 3", tokenStream.input());
+        assertToken(EOF, tokenStream.input());
+        assertFalse(tokenStream.canInput());
+
+        int m3 = tokenStream.mark();
+
+        tokenStream.reset(m2);
+        assertTrue(tokenStream.canInput());
+        assertTrue(tokenStream.canUnput());
+        assertToken(TOK3, "Data 3", tokenStream.input());
+
+        tokenStream.reset(m1);
+        assertTrue(tokenStream.canInput());
+        assertFalse(tokenStream.canUnput());
+        assertToken(TOK1, "Data 1", tokenStream.input());
+
+        tokenStream.reset(m3);
+        assertFalse(tokenStream.canInput());
+        assertTrue(tokenStream.canUnput());
+        assertToken(EOF, tokenStream.unput());
+
+        tokenStream.reset(m2);
+        assertEquals(m2, tokenStream.mark());
+
+        try {
+            tokenStream.reset(-1);
+            fail("should've fail on negative mark");
+        } catch (BookmarkError ignored) {
+            // ok
+        }
+        assertEquals(m2, tokenStream.mark());
+    }
+
+    static private void testTokenStream1Peek(TokenStream1 tokenStream) throws TokenizationError {
+        assertToken(TOK1, "Data 1", tokenStream.peek());
+        assertToken(TOK1, "Data 1", tokenStream.peek());
+        assertFalse(tokenStream.canUnput());
+
+        assertToken(TOK1, "Data 1", tokenStream.input());
+        assertToken(TOK2, "Data 2", tokenStream.peek());
+        assertTrue("peeking doesn't lose the previous token", tokenStream.canUnput());
+        assertToken(TOK1, "Data 1", tokenStream.unput());
+        assertToken(TOK1, "Data 1", tokenStream.input());
+        assertToken(TOK2, "Data 2", tokenStream.input());
+
+        assertToken(TOK3, "Data 3", tokenStream.peek());
+        assertToken(TOK3, "Data 3", tokenStream.input());
+        assertToken(EOF, tokenStream.peek());
+        assertToken(EOF, tokenStream.input());
+
+        try {
+            tokenStream.peek();
+            fail("should've fail on empty stream");
+        } catch (NoNewTokenError ignored) {
+            // ok
+        }
+    }
+
+    static private void testTokenStreamStarPeek(TokenStreamStar tokenStream) throws TokenizationError {
+        assertToken(TOK1, "Data 1", tokenStream.peek());
+        assertToken(TOK1, "Data 1", tokenStream.peek(1));
+        assertToken(TOK3, "Data 3", tokenStream.peek(3));
+        assertToken(EOF, tokenStream.peek(4));
+        assertEquals(0, tokenStream.mark());
+
+        try {
+            tokenStream.peek(5);
+            fail("should've fail on peeking past the end of the stream");
+        } catch (NoNewTokenError ignored) {
+            // ok
+        }
+        assertEquals(0, tokenStream.mark());
+
+        try {
+            tokenStream.peek(0);
+            fail("should've fail on non-positive k");
+        } catch (IllegalArgumentException ignored) {
+            // ok
+        }
+
+        assertToken(TOK1, "Data 1", tokenStream.input());
+        assertToken(TOK2, "Data 2", tokenStream.peek());
+        assertToken(EOF, tokenStream.peek(3));
+        assertEquals(1, tokenStream.mark());
+        assertToken(TOK1, "Data 1", tokenStream.unput());
+        assertToken(TOK1, "Data 1", tokenStream.input());
+        assertToken(TOK2, "Data 2", tokenStream.input());
+    }
+
+    static private void testTokenStreamBulkInput(TokenStream tokenStream) throws TokenizationError {
+        Token[] tokens = new Token[5];
+
+        assertEquals(0, tokenStream.input(tokens, 0, 0));
+        assertTrue(tokenStream.isClear());
+
+        try {
+            tokenStream.input(tokens, 3, 3);
+            fail("should've fail on a range out of the array");
+        } catch (IndexOutOfBoundsException ignored) {
+            // ok
+        }
+
+        assertEquals(1, tokenStream.input(tokens, 1, 1));
+        assertToken(TOK1, "Data 1", tokens[1]);
+        assertFalse(tokenStream.isClear());
+
+        int count = 0;
+        while (count < 3) {
+            int read = tokenStream.input(tokens, 2 + count, 3 - count);
+            assertTrue("bulk input reads something until the stream is over", read > 0);
+            count += read;
+        }
+
+        assertNull(tokens[0]);
+        assertToken(TOK2, "Data 2", tokens[2]);
+        assertToken(TOK3, "Data 3", tokens[3]);
+        assertToken(EOF, tokens[4]);
+
+        assertFalse(tokenStream.canInput());
+        assertEquals(0, tokenStream.input(tokens, 0, 5));
+    }
+
     static private TokenStream makeDirty(TokenStream tokenStream) throws TokenizationError {
         tokenStream.input();
         return tokenStream;
@@ -601,6 +798,8 @@ public class StandardConversionsTest {
         testTokenStreamCanInput(makeTokenStreamFromListIterator());
         testTokenStreamStarUnput((TokenStreamStar) makeTokenStreamFromListIterator());
         testTokenStreamStarBookmark((TokenStreamStar) makeTokenStreamFromListIterator());
+        testTokenStreamStarMark((TokenStreamStar) makeTokenStreamFromListIterator());
+        testTokenStreamStarPeek((TokenStreamStar) makeTokenStreamFromListIterator());
     }
 
     @Test
@@ -611,6 +810,7 @@ public class StandardConversionsTest {
         testTokenStreamInput(StandardConversions.toStream1(makeTokenStreamFromIterator()));
         testTokenStreamCanInput(StandardConversions.toStream1(makeTokenStreamFromIterator()));
         testTokenStream1Unput(StandardConversions.toStream1(makeTokenStreamFromIterator()));
+        testTokenStream1Peek(StandardConversions.toStream1(makeTokenStreamFromIterator()));
 
         TokenStream stream = makeTokenStreamFromListIterator();
 
@@ -656,6 +856,20 @@ public class StandardConversionsTest {
         testTokenStreamCanInput(StandardConversions.toStreamStar(makeTokenStreamFromIterator()));
         testTokenStreamStarUnput(StandardConversions.toStreamStar(makeTokenStreamFromIterator()));
         testTokenStreamStarBookmark(StandardConversions.toStreamStar(makeTokenStreamFromIterator()));
+        testTokenStreamStarMark(StandardConversions.toStreamStar(makeTokenStreamFromIterator()));
+        testTokenStreamStarPeek(StandardConversions.toStreamStar(makeTokenStreamFromIterator()));
+
+        assertTrue(StandardConversions.toStreamStar(makeTokenStreamFromIterator()) instanceof ArrayStreamStar);
+
+        TokenStreamStar arrayStream = StandardConversions.toStreamStar(makeTokenStreamFromIterator());
+        arrayStream.input();
+        try {
+            arrayStream.reset(2);
+            fail("should've fail on a mark past the tokens read so far");
+        } catch (BookmarkError ignored) {
+            // ok
+        }
+        assertEquals(1, arrayStream.mark());
 
         TokenStream stream = makeTokenStreamFromListIterator();
 
@@ -668,6 +882,156 @@ public class StandardConversionsTest {
         testTokenStreamCanInput(StandardConversions.toStreamStar(makeTokenStreamFromListIterator()));
         testTokenStreamStarUnput(StandardConversions.toStreamStar(makeTokenStreamFromListIterator()));
         testTokenStreamStarBookmark(StandardConversions.toStreamStar(makeTokenStreamFromListIterator()));
+        testTokenStreamStarMark(StandardConversions.toStreamStar(makeTokenStreamFromListIterator()));
+    }
+
+    @Test
+    public void defaultMarks() throws TokenizationError {
+        testTokenStreamStarMark(new ListStreamStar(makeTokens()));
+        testTokenStreamStarPeek(new ListStreamStar(makeTokens()));
+
+        TokenStreamStar stream = new ListStreamStar(makeTokens());
+        stream.input();
+        try {
+            stream.reset(5);
+            fail("should've fail on a mark past the end of the stream");
+        } catch (LexerProtocolError ignored) {
+            // ok
+        }
+
+        assertTrue("streams with default marks are wrapped",
+                StandardConversions.toStreamStar(new ListStreamStar(makeTokens())) instanceof ArrayStreamStar);
+        testTokenStreamStarMark(StandardConversions.toStreamStar(new ListStreamStar(makeTokens())));
+    }
+
+    @Test
+    public void commit() throws TokenizationError {
+        TokenStreamStar stream = StandardConversions.toStreamStar(makeTokenStreamFromIterator());
+
+        assertToken(TOK1, "Data 1", stream.input());
+        int held = stream.hold();
+        assertToken(TOK2, "Data 2", stream.input());
+
+        stream.commit();
+        assertToken(TOK2, "Data 2", stream.unput());
+        assertFalse("commit drops tokens before the outermost hold", stream.canUnput());
+
+        stream.release();
+        assertToken(TOK2, "Data 2", stream.input());
+        assertToken(TOK3, "Data 3", stream.input());
+
+        stream.commit();
+        assertFalse(stream.canUnput());
+        assertTrue(stream.canInput());
+
+        try {
+            stream.reset(held);
+            fail("should've fail on a mark behind the commit point");
+        } catch (BookmarkError ignored) {
+            // ok
+        }
+
+        try {
+            stream.release();
+            fail("should've fail on release without a hold");
+        } catch (IllegalStateException ignored) {
+            // ok
+        }
+
+        assertToken(EOF, stream.input());
+        assertFalse(stream.canInput());
+    }
+
+    @Test
+    public void commitWindow() throws TokenizationError {
+        LinkedList<Token> tokens = new LinkedList<>();
+        for (int i = 0; i < 1000; i++) {
+            tokens.add(new Token(TOK1, String.valueOf(i)));
+        }
+
+        TokenStreamStar stream = StandardConversions.toStreamStar(
+                StandardConversions.toStream(new IteratorDelegate<>(tokens.listIterator())));
+
+        for (int i = 0; i < 1000; i += 50) {
+            int mark = stream.hold();
+            for (int j = 0; j < 50; j++) {
+                assertEquals(String.valueOf(i + j), stream.input().getData());
+                if (j % 7 == 0) {
+                    stream.commit();
+                }
+            }
+
+            stream.reset(mark);
+            stream.release();
+            stream.commit();
+            assertFalse(stream.canUnput());
+
+            for (int j = 0; j < 50; j++) {
+                assertEquals(String.valueOf(i + j), stream.input().getData());
+            }
+            stream.commit();
+        }
+
+        assertFalse(stream.canInput());
+    }
+
+    @Test
+    public void bulkInput() throws TokenizationError {
+        testTokenStreamBulkInput(makeTokenStreamFromIterator());
+        testTokenStreamBulkInput(makeTokenStreamFromListIterator());
+        testTokenStreamBulkInput(StandardConversions.toStream1(makeTokenStreamFromIterator()));
+        testTokenStreamBulkInput(StandardConversions.toStreamStar(makeTokenStreamFromIterator()));
+        testTokenStreamBulkInput(new ArrayStreamStar(makeTokenStreamFromIterator(), 2));
+
+        TokenStreamStar stream = StandardConversions.toStreamStar(makeTokenStreamFromIterator());
+        Token[] tokens = new Token[2];
+
+        assertToken(TOK1, "Data 1", stream.input());
+        assertEquals(2, stream.input(tokens, 0, 2));
+        assertToken(TOK3, "Data 3", stream.unput());
+        assertToken(TOK2, "Data 2", stream.unput());
+        assertEquals(1, stream.mark());
+    }
+
+    @Test
+    public void blockSize() throws TokenizationError {
+        testTokenStreamInput(new ArrayStreamStar(makeTokenStreamFromIterator(), 3));
+        testTokenStreamCanInput(new ArrayStreamStar(makeTokenStreamFromIterator(), 3));
+        testTokenStreamStarUnput(new ArrayStreamStar(makeTokenStreamFromIterator(), 3));
+        testTokenStreamStarBookmark(new ArrayStreamStar(makeTokenStreamFromIterator(), 3));
+        testTokenStreamStarMark(new ArrayStreamStar(makeTokenStreamFromIterator(), 3));
+        testTokenStreamStarPeek(new ArrayStreamStar(makeTokenStreamFromIterator(), 3));
+
+        try {
+            new ArrayStreamStar(makeTokenStreamFromIterator(), 0);
+            fail("should've fail on non-positive block size");
+        } catch (IllegalArgumentException ignored) {
+            // ok
+        }
+
+        LinkedList<Token> tokens = new LinkedList<>();
+        for (int i = 0; i < 1000; i++) {
+            tokens.add(new Token(TOK1, String.valueOf(i)));
+        }
+
+        TokenStreamStar stream = new ArrayStreamStar(
+                StandardConversions.toStream(new IteratorDelegate<>(tokens.listIterator())), 7);
+
+        for (int i = 0; i < 1000; i += 10) {
+            int mark = stream.hold();
+            for (int j = 0; j < 10; j++) {
+                assertEquals(String.valueOf(i + j), stream.input().getData());
+            }
+
+            stream.reset(mark);
+            stream.release();
+            for (int j = 0; j < 10; j++) {
+                assertEquals(String.valueOf(i + j), stream.input().getData());
+            }
+            stream.commit();
+        }
+
+        assertFalse(stream.canInput());
     }
 
     @Test
@@ -0,0 +1,155 @@
+package com.github.amatanhead.pcl.stream;
+
+import com.github.amatanhead.pcl.errors.BookmarkError;
+import com.github.amatanhead.pcl.errors.NoBacktrackingTokenError;
+import com.github.amatanhead.pcl.errors.NoNewTokenError;
+import com.github.amatanhead.pcl.errors.TokenizationError;
+import com.github.amatanhead.pcl.token.SliceToken;
+import com.github.amatanhead.pcl.token.Token;
+import com.github.amatanhead.pcl.token.TokenKind;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TokenBufferTest {
+    private final TokenKind NAME = new TokenKind("NAME");
+    private final TokenKind EQ = new TokenKind("EQ");
+
+    private final String text = "x = y\n  foo = bar";
+
+    private TokenBuffer makeBuffer() {
+        TokenBuffer buffer = new TokenBuffer(text);
+
+        buffer.add(NAME, 0, 1);
+        buffer.add(EQ, 2, 3);
+        buffer.add(NAME, 4, 5);
+        buffer.add(NAME, 8, 11);
+        buffer.add(new Token(EQ, "==", 1, 12));
+        buffer.add(new SliceToken(NAME, text, 14, 17, 14, 1, 8));
+        buffer.add(TokenKind.EOF, 17, 17);
+
+        return buffer;
+    }
+
+    @Test
+    public void accessors() {
+        TokenBuffer buffer = makeBuffer();
+
+        assertEquals(7, buffer.size());
+        assertSame(text, buffer.getSource());
+
+        assertEquals(NAME, buffer.getTokenKind(3));
+        assertEquals(buffer.getKindId(0), buffer.getKindId(3));
+        assertNotEquals(buffer.getKindId(0), buffer.getKindId(1));
+
+        assertEquals(8, buffer.getStart(3));
+        assertEquals(3, buffer.getLength(3));
+        assertEquals(1, buffer.getRow(3));
+        assertEquals(2, buffer.getColumn(3));
+        assertEquals("foo", buffer.getData(3));
+        assertEquals("foo", buffer.getText(3).toString());
+
+        // A token which is not a slice of the text.
+        assertEquals(EQ, buffer.getTokenKind(4));
+        assertEquals("==", buffer.getData(4));
+        assertEquals(2, buffer.getLength(4));
+        assertEquals(12, buffer.getColumn(4));
+        assertEquals(-1, buffer.getStart(4));
+
+        // A slice token whose column doesn't match the text is kept as is.
+        assertEquals(8, buffer.getColumn(5));
+        assertEquals("bar", buffer.getData(5));
+
+        assertEquals(new Token(TokenKind.EOF, "", 1, 11), buffer.get(6));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void outOfRange() {
+        makeBuffer().getRow(7);
+    }
+
+    @Test
+    public void stream() throws TokenizationError {
+        TokenBuffer buffer = makeBuffer();
+        TokenStreamStar stream = buffer.stream();
+
+        assertTrue(stream.isClear());
+        assertFalse(stream.canUnput());
+
+        assertEquals(new Token(NAME, "x", 0, 0), stream.input());
+        assertFalse(stream.isClear());
+
+        TokenStreamStar.Bookmark bookmark = stream.makeBookmark();
+
+        assertEquals(new Token(EQ, "=", 0, 2), stream.input());
+        assertEquals(new Token(NAME, "y", 0, 4), stream.input());
+        assertEquals(new Token(NAME, "foo", 1, 2), stream.input());
+        assertEquals(new Token(NAME, "foo", 1, 2), stream.unput());
+        assertEquals(new Token(NAME, "foo", 1, 2), stream.input());
+
+        stream.restoreBookmark(bookmark);
+
+        assertEquals(new Token(EQ, "=", 0, 2), stream.input());
+
+        while (stream.canInput()) {
+            stream.input();
+        }
+
+        try {
+            stream.input();
+            fail("should've fail on empty stream");
+        } catch (NoNewTokenError ignored) {
+            // ok
+        }
+
+        stream.restoreBookmark(bookmark);
+        stream.unput();
+
+        try {
+            stream.unput();
+            fail("should've fail on empty backtracking stack");
+        } catch (NoBacktrackingTokenError ignored) {
+            // ok
+        }
+
+        stream.restoreBookmark(bookmark);
+        assertEquals(new Token(EQ, "=", 0, 2), stream.peek());
+        assertEquals(new Token(NAME, "y", 0, 4), stream.peek(2));
+        int mark = stream.mark();
+        assertEquals(new Token(EQ, "=", 0, 2), stream.input());
+        stream.reset(mark);
+        assertEquals(new Token(EQ, "=", 0, 2), stream.input());
+
+        try {
+            stream.reset(-1);
+            fail("should've fail on negative mark");
+        } catch (BookmarkError ignored) {
+            // ok
+        }
+
+        try {
+            buffer.stream().restoreBookmark(bookmark);
+            fail("should've rejected a bookmark from another stream");
+        } catch (BookmarkError ignored) {
+            // ok
+        }
+    }
+
+    @Test
+    public void fromStream() throws TokenizationError {
+        TokenBuffer buffer = makeBuffer();
+        TokenBuffer copy = new TokenBuffer(text, buffer.stream());
+
+        assertEquals(buffer.size(), copy.size());
+        for (int i = 0; i < buffer.size(); i++) {
+            assertEquals(buffer.get(i), copy.get(i));
+        }
+
+        TokenBuffer list = new TokenBuffer(text, StandardConversions.toStream(Arrays.asList(
+                new Token(NAME, "x"), new Token(TokenKind.EOF)).iterator()));
+        assertEquals(2, list.size());
+        assertEquals("x", list.getData(0));
+    }
+}
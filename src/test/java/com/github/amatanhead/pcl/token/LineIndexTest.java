@@ -0,0 +1,65 @@
+package com.github.amatanhead.pcl.token;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LineIndexTest {
+    @Test
+    public void rowsAndColumns() {
+        LineIndex index = new LineIndex("ab\n\ncde\nf");
+
+        assertEquals(0, index.getRow(0));
+        assertEquals(0, index.getColumn(0));
+        assertEquals(0, index.getRow(2));
+        assertEquals(2, index.getColumn(2));
+        assertEquals(1, index.getRow(3));
+        assertEquals(0, index.getColumn(3));
+        assertEquals(2, index.getRow(6));
+        assertEquals(2, index.getColumn(6));
+        assertEquals(3, index.getRow(9));
+        assertEquals(1, index.getColumn(9));
+
+        // Lookups behind the scanned part of the text.
+        assertEquals(2, index.getRow(4));
+        assertEquals(0, index.getColumn(4));
+        assertEquals(0, index.getRow(1));
+    }
+
+    @Test
+    public void manyLines() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            builder.append("line\n");
+        }
+
+        LineIndex index = new LineIndex(builder);
+
+        assertEquals(999, index.getRow(4999));
+        assertEquals(4, index.getColumn(4999));
+        assertEquals(1000, index.getRow(5000));
+        assertEquals(500, index.getRow(2502));
+        assertEquals(2, index.getColumn(2502));
+    }
+
+    @Test
+    public void stringAndBuilder() {
+        String text = "a\n\nbc\n" + new String(new char[100]).replace('\0', 'x') + "\ny";
+        LineIndex string = new LineIndex(text);
+        LineIndex builder = new LineIndex(new StringBuilder(text));
+
+        for (int i = 0; i <= text.length(); i++) {
+            assertEquals(builder.getRow(i), string.getRow(i));
+            assertEquals(builder.getColumn(i), string.getColumn(i));
+        }
+
+        assertEquals(4, string.getRow(text.length()));
+        assertEquals(3, new LineIndex(text).getRow(50));
+        assertEquals(4, new LineIndex(text).getRow(107));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void outOfText() {
+        new LineIndex("abc").getRow(4);
+    }
+}
@@ -0,0 +1,68 @@
+package com.github.amatanhead.pcl.token;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SliceTokenTest {
+    private final TokenKind TK = new TokenKind("TK");
+
+    @Test
+    public void slice() {
+        StringBuilder source = new StringBuilder("x = foo + bar");
+
+        SliceToken token = new SliceToken(TK, source, 4, 7, 104, 1, 4);
+
+        assertEquals(TK, token.getTokenKind());
+        assertEquals(104, token.getOffset());
+        assertEquals(1, token.getRow());
+        assertEquals(4, token.getColumn());
+        assertEquals(3, token.getLength());
+        assertSame(source, token.getSource());
+        assertEquals(4, token.getStart());
+        assertEquals(7, token.getEnd());
+
+        assertEquals("foo", token.getText().toString());
+
+        String data = token.getData();
+        assertEquals("foo", data);
+        assertSame(data, token.getData());
+        assertSame(data, token.getText());
+    }
+
+    @Test
+    public void lazyPosition() {
+        String source = "x = 1\ny = foo";
+        LineIndex lines = new LineIndex(source);
+
+        assertEquals(1, new SliceToken(TK, source, 10, 13, 10, lines).getRow());
+        assertEquals(4, new SliceToken(TK, source, 10, 13, 10, lines).getColumn());
+        assertEquals(new Token(TK, "foo", 1, 4), new SliceToken(TK, source, 10, 13, 10, lines));
+
+        SliceToken token = new SliceToken(TK, source, 10, 13, 10, null);
+        assertEquals(-1, token.getRow());
+        assertEquals(-1, token.getColumn());
+        assertEquals(10, token.getOffset());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void sliceOutOfBounds() {
+        new SliceToken(TK, "foo", 2, 4, 2, 0, 2);
+    }
+
+    @Test
+    public void equality() {
+        SliceToken token = new SliceToken(TK, "x = foo", 4, 7, 4, 0, 4);
+
+        assertEquals(new Token(TK, "foo", 0, 4), token);
+        assertEquals(token, new Token(TK, "foo", 0, 4));
+        assertEquals(new Token(TK, "foo", 0, 4).hashCode(), token.hashCode());
+        assertEquals(token, new SliceToken(TK, "foo", 0, 3, 0, 0, 4));
+        assertNotEquals(token, new Token(TK, "fo", 0, 4));
+        assertNotEquals(token, new Token(TK, "foo", 0, 5));
+
+        Token copy = new Token(token, 3, 5);
+        assertEquals(new Token(TK, "foo", 3, 5), copy);
+        assertEquals(-1, copy.getOffset());
+    }
+}
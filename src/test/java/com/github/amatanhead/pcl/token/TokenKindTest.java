@@ -16,4 +16,16 @@ public class TokenKindTest {
     public void predefinedTokenKinds() {
         assertEquals("EOF", TokenKind.EOF.getName());
     }
+
+    @Test
+    public void ids() {
+        TokenKind first = new TokenKind("First");
+        TokenKind second = new TokenKind("Second");
+
+        assertEquals(TokenKind.EOF_ID, TokenKind.EOF.getId());
+        assertEquals(first.getId() + 1, second.getId());
+        assertTrue(second.getId() < TokenKind.count());
+        assertSame(first, TokenKind.forId(first.getId()));
+        assertSame(TokenKind.EOF, TokenKind.forId(TokenKind.EOF_ID));
+    }
 }